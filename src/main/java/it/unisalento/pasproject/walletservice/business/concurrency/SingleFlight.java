@@ -0,0 +1,87 @@
+package it.unisalento.pasproject.walletservice.business.concurrency;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * In-flight coalescing of concurrent calls with the same key.
+ * <p>
+ * The first caller of a key runs the loader, the callers arriving while it is still running
+ * wait for it and get the same result (or the same exception) instead of starting their own call.
+ * Nothing is kept once the call completes, the next caller starts a new one.
+ * </p>
+ * @param <K> the type of the key
+ * @param <V> the type of the result
+ */
+public class SingleFlight<K, V> {
+
+    private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * Run the loader for the key, or wait for the call already running for it
+     * @param key the key of the call
+     * @param loader the call to run if none is in flight for the key
+     * @return the result of the call
+     */
+    public V execute(K key, Supplier<V> loader) {
+        return await(executeAsync(key, () -> CompletableFuture.completedFuture(loader.get())));
+    }
+
+    /**
+     * Start the asynchronous loader for the key, or join the call already pending for it.
+     * The call stays shared until the future returned by the loader completes.
+     * @param key the key of the call
+     * @param loader the call to start if none is in flight for the key
+     * @return the future result of the call
+     */
+    public CompletableFuture<V> executeAsync(K key, Supplier<CompletableFuture<V>> loader) {
+        CompletableFuture<V> call = new CompletableFuture<>();
+        CompletableFuture<V> running = inFlight.putIfAbsent(key, call);
+
+        if (running != null) {
+            return running.copy();
+        }
+
+        try {
+            loader.get().whenComplete((result, e) -> complete(key, call, result, e));
+        } catch (Throwable e) {
+            complete(key, call, null, e);
+        }
+
+        return call.copy();
+    }
+
+    private void complete(K key, CompletableFuture<V> call, V result, Throwable e) {
+        //Rimossa prima di completarla, chi arriva dopo avvia una nuova chiamata
+        inFlight.remove(key, call);
+
+        if (e != null) {
+            call.completeExceptionally(e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+        } else {
+            call.complete(result);
+        }
+    }
+
+    /**
+     * @return the number of keys with a call in flight
+     */
+    public int inFlightCount() {
+        return inFlight.size();
+    }
+
+    private static <V> V await(CompletableFuture<V> call) {
+        try {
+            return call.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            if (e.getCause() instanceof Error error) {
+                throw error;
+            }
+            throw e;
+        }
+    }
+}
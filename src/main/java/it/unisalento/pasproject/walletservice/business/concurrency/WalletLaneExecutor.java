@@ -0,0 +1,103 @@
+package it.unisalento.pasproject.walletservice.business.concurrency;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Striped execution lanes keyed by wallet email.
+ * <p>
+ * Every email is hashed to one of a fixed number of lanes. A task touching two wallets holds
+ * both lanes while it runs, so operations on the same wallet never interleave while
+ * operations on unrelated wallets run in parallel on the caller threads.
+ * Lanes are always acquired in ascending index order, which rules out deadlocks between
+ * tasks touching the same pair of wallets in opposite directions.
+ * </p>
+ */
+@Component
+public class WalletLaneExecutor {
+
+    private final ReentrantLock[] lanes;
+
+    private final Timer waitTimer;
+
+    @Autowired
+    public WalletLaneExecutor(@Value("${wallet.lanes.count}") int laneCount, MeterRegistry meterRegistry) {
+        if (laneCount < 1) {
+            throw new IllegalArgumentException("wallet.lanes.count must be positive");
+        }
+
+        this.lanes = new ReentrantLock[laneCount];
+
+        for (int i = 0; i < laneCount; i++) {
+            ReentrantLock lane = new ReentrantLock(true);
+            lanes[i] = lane;
+            Gauge.builder("wallet.lanes.queue.depth", lane, ReentrantLock::getQueueLength)
+                    .description("Tasks waiting to enter the lane")
+                    .tag("lane", String.valueOf(i))
+                    .register(meterRegistry);
+        }
+
+        this.waitTimer = Timer.builder("wallet.lanes.wait")
+                .description("Time spent waiting for the lanes of a task")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Run a task holding the lanes of the given wallets
+     * @param firstEmail the email of the first wallet
+     * @param secondEmail the email of the second wallet, may be equal to the first one
+     * @param task the task to run
+     * @return the result of the task
+     */
+    public <T> T execute(String firstEmail, String secondEmail, Supplier<T> task) {
+        int first = laneOf(firstEmail);
+        int second = laneOf(secondEmail);
+
+        ReentrantLock lower = lanes[Math.min(first, second)];
+        ReentrantLock upper = lanes[Math.max(first, second)];
+
+        long start = System.nanoTime();
+        lower.lock();
+        try {
+            if (upper != lower) {
+                upper.lock();
+            }
+            try {
+                waitTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                return task.get();
+            } finally {
+                if (upper != lower) {
+                    upper.unlock();
+                }
+            }
+        } finally {
+            lower.unlock();
+        }
+    }
+
+    /**
+     * Run a task holding the lane of a single wallet
+     * @param email the email of the wallet
+     * @param task the task to run
+     * @return the result of the task
+     */
+    public <T> T execute(String email, Supplier<T> task) {
+        return execute(email, email, task);
+    }
+
+    int laneOf(String email) {
+        if (email == null) {
+            return 0;
+        }
+        int hash = email.hashCode();
+        return Math.floorMod(hash ^ (hash >>> 16), lanes.length);
+    }
+}
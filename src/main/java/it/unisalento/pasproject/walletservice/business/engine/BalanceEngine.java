@@ -0,0 +1,47 @@
+package it.unisalento.pasproject.walletservice.business.engine;
+
+import it.unisalento.pasproject.walletservice.domain.Wallet;
+import it.unisalento.pasproject.walletservice.dto.RequestTransactionDTO;
+
+import java.util.Optional;
+
+/**
+ * Executes the transfers between wallets and every other change of a balance or of the enabled flag,
+ * so the engine holding the balances sees all of them.
+ * The implementation is chosen with {@code wallet.engine.mode}.
+ */
+public interface BalanceEngine {
+    /**
+     * Move money from the sender to the receiver
+     * @param transaction the transfer to execute
+     * @return true if completed, false if a wallet doesn't exist, is disabled or the sender has not enough money
+     * @throws UnconfirmedChangeException if the transfer was applied but not made durable, so its outcome is unknown
+     */
+    boolean transfer(RequestTransactionDTO transaction);
+
+    /**
+     * Add the given amount to the balance, never going below the given floor,
+     * i.e. balance = max(balance + amount, floor)
+     * @param email the email of the wallet owner
+     * @param amount the amount to add (negative to withdraw)
+     * @param floor the minimum balance after the change, null for no minimum
+     * @return the wallet as it was before the change, empty if it doesn't exist
+     */
+    Optional<Wallet> applyChange(String email, double amount, Double floor);
+
+    /**
+     * Set the balance of the wallet
+     * @param email the email of the wallet owner
+     * @param balance the new balance
+     * @return the wallet as it was before the change, empty if it doesn't exist
+     */
+    Optional<Wallet> setBalance(String email, double balance);
+
+    /**
+     * Enable or disable the wallet
+     * @param email the email of the wallet owner
+     * @param enabled the new enabled flag
+     * @return the wallet after the change, empty if it doesn't exist
+     */
+    Optional<Wallet> setEnabled(String email, boolean enabled);
+}
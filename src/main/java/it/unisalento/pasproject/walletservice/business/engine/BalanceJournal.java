@@ -0,0 +1,261 @@
+package it.unisalento.pasproject.walletservice.business.engine;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Local write-ahead journal of the transfers applied by the {@link InMemoryBalanceEngine}.
+ * A change of a single balance is stored as an entry without sender, with the wallet as receiver
+ * and the signed change as amount.
+ * <p>
+ * Entries are appended to fixed size memory-mapped segment files, named after the first sequence
+ * they contain. Every entry is stored as {@code length | payload | crc32}, so an entry torn by a crash
+ * is detected on recovery and ends the segment. A segment is deleted once all its entries have been
+ * flushed to the database. Appends and deletes are serialized by the caller.
+ * </p>
+ * <p>
+ * Appending does not force the entry to disk: {@link #sync(long)} does, outside the lock of the caller,
+ * and a single force covers every entry appended until then (group commit). A segment is forced when it
+ * is closed, so a force always covers the whole active segment.
+ * </p>
+ */
+final class BalanceJournal implements Closeable {
+
+    record Entry(long sequence, String transactionId, String senderEmail, String receiverEmail, long amount) {
+    }
+
+    private static final String PREFIX = "journal-";
+    private static final String SUFFIX = ".log";
+
+    private final Path directory;
+    private final int segmentSize;
+    private final boolean sync;
+
+    //Ultima sequenza sicuramente su disco
+    private final AtomicLong durableSequence = new AtomicLong();
+
+    //Un solo force alla volta, chi arriva dopo trova spesso la sua sequenza già su disco
+    private final Object syncLock = new Object();
+
+    private final Deque<Segment> closedSegments = new ArrayDeque<>();
+    private Segment active;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+
+    private static final class Segment {
+        private final Path path;
+        private long lastSequence;
+
+        private Segment(Path path, long lastSequence) {
+            this.path = path;
+            this.lastSequence = lastSequence;
+        }
+    }
+
+    BalanceJournal(Path directory, int segmentSize, boolean sync) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.sync = sync;
+        Files.createDirectories(directory);
+    }
+
+    /**
+     * Read the entries left by the previous run. Must be called before the first append.
+     * @return the valid entries of every segment, in sequence order
+     */
+    List<Entry> recover() throws IOException {
+        List<Path> paths;
+
+        try (Stream<Path> files = Files.list(directory)) {
+            paths = files.filter(path -> path.getFileName().toString().startsWith(PREFIX)
+                            && path.getFileName().toString().endsWith(SUFFIX))
+                    .sorted()
+                    .toList();
+        }
+
+        List<Entry> entries = new ArrayList<>();
+
+        for (Path path : paths) {
+            List<Entry> segmentEntries = read(path);
+
+            if (segmentEntries.isEmpty()) {
+                Files.delete(path);
+                continue;
+            }
+
+            entries.addAll(segmentEntries);
+            closedSegments.add(new Segment(path, segmentEntries.get(segmentEntries.size() - 1).sequence()));
+        }
+
+        return entries;
+    }
+
+    synchronized void append(Entry entry) throws IOException {
+        byte[] payload = encode(entry);
+        int recordSize = Integer.BYTES + payload.length + Integer.BYTES;
+
+        if (recordSize > segmentSize) {
+            throw new IllegalArgumentException("Journal entry larger than the segment size");
+        }
+
+        if (active == null || buffer.remaining() < recordSize) {
+            rotate(entry.sequence());
+        }
+
+        buffer.putInt(payload.length).put(payload).putInt(checksum(payload));
+        active.lastSequence = entry.sequence();
+    }
+
+    /**
+     * Force to disk the entries appended up to the given sequence, if not already done by another caller.
+     * Does nothing when the journal is not synced.
+     * @param sequence the sequence of the last entry that must be on disk
+     */
+    void sync(long sequence) {
+        if (!sync || durableSequence.get() >= sequence) {
+            return;
+        }
+
+        synchronized (syncLock) {
+            if (durableSequence.get() >= sequence) {
+                return;
+            }
+
+            MappedByteBuffer segment;
+            long lastSequence;
+
+            synchronized (this) {
+                //Chiuso: il segmento è già stato scritto su disco
+                if (active == null) {
+                    return;
+                }
+
+                segment = buffer;
+                lastSequence = active.lastSequence;
+            }
+
+            //Il force copre anche le scritture arrivate dopo, ma registra solo quelle viste sotto il lock
+            segment.force();
+            durableSequence.accumulateAndGet(lastSequence, Math::max);
+        }
+    }
+
+    /**
+     * Delete the full segments whose entries are all included in the given sequence
+     */
+    synchronized void deleteUpTo(long sequence) throws IOException {
+        while (!closedSegments.isEmpty() && closedSegments.peekFirst().lastSequence <= sequence) {
+            Files.deleteIfExists(closedSegments.pollFirst().path);
+        }
+    }
+
+    synchronized int segmentCount() {
+        return closedSegments.size() + (active == null ? 0 : 1);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (active != null) {
+            buffer.force();
+            channel.close();
+            active = null;
+        }
+    }
+
+    private void rotate(long firstSequence) throws IOException {
+        if (active != null) {
+            buffer.force();
+            channel.close();
+            closedSegments.add(active);
+            durableSequence.accumulateAndGet(active.lastSequence, Math::max);
+        }
+
+        Path path = directory.resolve(String.format("%s%020d%s", PREFIX, firstSequence, SUFFIX));
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        active = new Segment(path, firstSequence - 1);
+    }
+
+    private static List<Entry> read(Path path) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+
+        try (FileChannel readChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer segment = readChannel.map(FileChannel.MapMode.READ_ONLY, 0, readChannel.size());
+
+            //Una lunghezza nulla segna la fine dei dati, una non valida o un checksum errato una scrittura interrotta
+            while (segment.remaining() >= Integer.BYTES) {
+                int length = segment.getInt();
+
+                if (length <= 0 || length > segment.remaining() - Integer.BYTES) {
+                    break;
+                }
+
+                byte[] payload = new byte[length];
+                segment.get(payload);
+
+                if (segment.getInt() != checksum(payload)) {
+                    break;
+                }
+
+                entries.add(decode(payload));
+            }
+        }
+
+        return entries;
+    }
+
+    private static byte[] encode(Entry entry) {
+        byte[] transactionId = bytes(entry.transactionId());
+        byte[] sender = bytes(entry.senderEmail());
+        byte[] receiver = bytes(entry.receiverEmail());
+
+        ByteBuffer payload = ByteBuffer.allocate(Long.BYTES * 2 + Integer.BYTES * 3
+                + transactionId.length + sender.length + receiver.length);
+        payload.putLong(entry.sequence());
+        payload.putInt(transactionId.length).put(transactionId);
+        payload.putInt(sender.length).put(sender);
+        payload.putInt(receiver.length).put(receiver);
+        payload.putLong(entry.amount());
+        return payload.array();
+    }
+
+    private static Entry decode(byte[] bytes) {
+        ByteBuffer payload = ByteBuffer.wrap(bytes);
+        long sequence = payload.getLong();
+        String transactionId = string(payload);
+        String sender = string(payload);
+        String receiver = string(payload);
+        long amount = payload.getLong();
+        return new Entry(sequence, transactionId.isEmpty() ? null : transactionId, sender.isEmpty() ? null : sender, receiver, amount);
+    }
+
+    private static byte[] bytes(String value) {
+        return value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String string(ByteBuffer payload) {
+        byte[] value = new byte[payload.getInt()];
+        payload.get(value);
+        return new String(value, StandardCharsets.UTF_8);
+    }
+
+    private static int checksum(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+}
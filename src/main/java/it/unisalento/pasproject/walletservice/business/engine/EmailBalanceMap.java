@@ -0,0 +1,166 @@
+package it.unisalento.pasproject.walletservice.business.engine;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Open addressing map from wallet email to balance, specialized for primitive values.
+ * <p>
+ * Balances are kept in cents in parallel {@code long} arrays, together with the change not yet
+ * flushed to the database and the enabled flag, so a lookup costs one probe sequence and no boxing.
+ * Emails are interned on insert, so the map shares the key instances with the rest of the JVM.
+ * Not thread safe, callers synchronize.
+ * </p>
+ */
+final class EmailBalanceMap {
+
+    private static final int MIN_CAPACITY = 16;
+
+    private String[] keys;
+    private long[] balances;
+    private long[] pending;
+    private boolean[] enabled;
+    private boolean[] changed;
+    private int size;
+
+    //Wallet con una variazione non ancora scritta su Mongo, nell'ordine in cui sono cambiati
+    private List<String> dirty = new ArrayList<>();
+
+    EmailBalanceMap(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean contains(String email) {
+        return slotOf(email) >= 0;
+    }
+
+    /**
+     * @return the slot of the email, or -1 if it is not in the map. Slots change when the map grows.
+     */
+    int slotOf(String email) {
+        int mask = keys.length - 1;
+        for (int slot = hash(email) & mask; ; slot = (slot + 1) & mask) {
+            String key = keys[slot];
+            if (key == null) {
+                return -1;
+            }
+            if (key.equals(email)) {
+                return slot;
+            }
+        }
+    }
+
+    /**
+     * Insert the wallet, or overwrite its balance and flag keeping the pending change
+     * @return the slot of the email
+     */
+    int put(String email, long balance, boolean isEnabled) {
+        int slot = slotOf(email);
+
+        if (slot < 0) {
+            if ((size + 1) * 2 > keys.length) {
+                grow();
+            }
+            slot = freeSlot(email);
+            keys[slot] = email.intern();
+            size++;
+        }
+
+        balances[slot] = balance;
+        enabled[slot] = isEnabled;
+        return slot;
+    }
+
+    long balance(int slot) {
+        return balances[slot];
+    }
+
+    long pending(int slot) {
+        return pending[slot];
+    }
+
+    boolean isEnabled(int slot) {
+        return enabled[slot];
+    }
+
+    /**
+     * Change the balance and remember the change for the next flush
+     */
+    void add(int slot, long delta) {
+        balances[slot] += delta;
+        pending[slot] += delta;
+        if (!changed[slot]) {
+            changed[slot] = true;
+            dirty.add(keys[slot]);
+        }
+    }
+
+    /**
+     * Take the changes not yet flushed and reset them
+     * @return the emails changed since the last call, in the same order as the deltas
+     */
+    List<String> drainDirty(List<Long> deltas) {
+        List<String> drained = dirty;
+        dirty = new ArrayList<>();
+
+        for (String email : drained) {
+            int slot = slotOf(email);
+            deltas.add(pending[slot]);
+            pending[slot] = 0;
+            changed[slot] = false;
+        }
+
+        return drained;
+    }
+
+    private int freeSlot(String email) {
+        int mask = keys.length - 1;
+        int slot = hash(email) & mask;
+        while (keys[slot] != null) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void grow() {
+        String[] oldKeys = keys;
+        long[] oldBalances = balances;
+        long[] oldPending = pending;
+        boolean[] oldEnabled = enabled;
+        boolean[] oldChanged = changed;
+
+        allocate(oldKeys.length << 1);
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != null) {
+                int slot = freeSlot(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                balances[slot] = oldBalances[i];
+                pending[slot] = oldPending[i];
+                enabled[slot] = oldEnabled[i];
+                changed[slot] = oldChanged[i];
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new String[capacity];
+        balances = new long[capacity];
+        pending = new long[capacity];
+        enabled = new boolean[capacity];
+        changed = new boolean[capacity];
+    }
+
+    private static int hash(String email) {
+        int hash = email.hashCode();
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,574 @@
+package it.unisalento.pasproject.walletservice.business.engine;
+
+import it.unisalento.pasproject.walletservice.business.events.BalancesChangedEvent;
+import it.unisalento.pasproject.walletservice.business.events.WalletChangedEvent;
+import it.unisalento.pasproject.walletservice.domain.Wallet;
+import it.unisalento.pasproject.walletservice.dto.RequestTransactionDTO;
+import it.unisalento.pasproject.walletservice.exceptions.BadRequestException;
+import it.unisalento.pasproject.walletservice.repositories.JobLeaseRepository;
+import it.unisalento.pasproject.walletservice.repositories.WalletRepository;
+import it.unisalento.pasproject.walletservice.service.LedgerService;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongUnaryOperator;
+
+/**
+ * Write-behind engine, enabled with {@code wallet.engine.mode=memory}.
+ * <p>
+ * Balances live in an {@link EmailBalanceMap}, which is the authority for the transfers.
+ * Every transfer is first appended to the {@link BalanceJournal} and then applied in memory, so the reply
+ * never waits for the database. The changes are flushed to the wallet collection in batches, one bulk write
+ * of the net change of every wallet, together with the ledger entries of the flushed transfers, and the flushed
+ * wallets are announced with a {@link BalancesChangedEvent}.
+ * </p>
+ * <p>
+ * Every flushed wallet stores the last journal sequence it includes (engineSeq). On startup the wallets are
+ * loaded from the database and the journal entries newer than their engineSeq are applied again, so the
+ * transfers not yet flushed before a crash are neither lost nor counted twice. Deposits, subtractions, refills
+ * and admin changes of the balance go through the engine as well and are journaled like the transfers, so every
+ * balance change is applied on the balance held here. The enabled flag is changed here and on the database.
+ * Wallets created on the database are picked up through {@link WalletChangedEvent}. The wallet collection lags
+ * behind the engine by at most one flush interval.
+ * </p>
+ * <p>
+ * Amounts are held in cents: an amount that is not a whole number of cents is rejected, never rounded.
+ * </p>
+ * <p>
+ * The journal is forced to disk after the lock is released, with one force for all the changes appended
+ * meanwhile, and a change is confirmed only after that. If the force fails the change, already applied in
+ * memory, is reported with an {@link UnconfirmedChangeException} and every change is refused until a force
+ * succeeds again. The balances held here are the only authority,
+ * so a single instance may run in this mode: it holds the {@code balance-engine} lease while running,
+ * does not start if another instance holds it and refuses every change once it can't renew it.
+ * </p>
+ */
+@Component
+@ConditionalOnProperty(name = "wallet.engine.mode", havingValue = "memory")
+public class InMemoryBalanceEngine implements BalanceEngine {
+
+    private final WalletRepository walletRepository;
+
+    private final LedgerService ledgerService;
+
+    private final BalanceJournal journal;
+
+    private final ApplicationEventPublisher eventPublisher;
+
+    private final JobLeaseRepository jobLeaseRepository;
+
+    private final Duration leaseDuration;
+
+    private final String instanceId = UUID.randomUUID().toString();
+
+    //Istante (nanoTime) fino al quale il lease è sicuramente nostro
+    private volatile long leaseDeadline;
+
+    //Un force del journal è fallito: nessun cambiamento è accettato finché uno non riesce
+    private volatile boolean journalFailed;
+
+    //Protegge mappa, journal e sequenza; le operazioni in memoria durano pochi microsecondi
+    private final Object lock = new Object();
+
+    //Serializza i flush con il ricaricamento dei wallet modificati sul database
+    private final ReentrantLock flushLock = new ReentrantLock();
+
+    private final EmailBalanceMap balances = new EmailBalanceMap(1024);
+
+    private List<RequestTransactionDTO> unflushedTransfers = new ArrayList<>();
+
+    private long nextSequence = 1;
+
+    //Batch in scrittura, ripetuto identico finché non riesce
+    private FlushBatch inFlight;
+
+    private static final double CENT_TOLERANCE = 1e-6;
+
+    private static final String ENGINE_LEASE = "balance-engine";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(InMemoryBalanceEngine.class);
+
+    private record FlushBatch(long sequence, Map<String, Double> deltas, List<RequestTransactionDTO> transfers) {
+    }
+
+    @Autowired
+    public InMemoryBalanceEngine(WalletRepository walletRepository, LedgerService ledgerService, ApplicationEventPublisher eventPublisher,
+                                 JobLeaseRepository jobLeaseRepository,
+                                 @Value("${wallet.engine.lease.duration}") long leaseMillis,
+                                 @Value("${wallet.engine.journal.dir}") String journalDirectory,
+                                 @Value("${wallet.engine.journal.segment.size}") int segmentSize,
+                                 @Value("${wallet.engine.journal.sync}") boolean sync,
+                                 @Value("${rabbitmq.listener.transaction.batch.enabled}") boolean batchEnabled,
+                                 @Value("${rabbitmq.listener.transaction.stream.enabled}") boolean streamEnabled) throws IOException {
+        //Batch e stream applicano i trasferimenti direttamente su Mongo
+        if (batchEnabled || streamEnabled) {
+            throw new IllegalStateException("wallet.engine.mode=memory can't be used together with the batch or stream transaction listener");
+        }
+
+        this.walletRepository = walletRepository;
+        this.ledgerService = ledgerService;
+        this.eventPublisher = eventPublisher;
+        this.jobLeaseRepository = jobLeaseRepository;
+        this.leaseDuration = Duration.ofMillis(leaseMillis);
+        this.journal = new BalanceJournal(Path.of(journalDirectory), segmentSize, sync);
+    }
+
+    /**
+     * Load the wallets from the database and replay the journal entries not yet flushed
+     */
+    @PostConstruct
+    public void recover() throws IOException {
+        //Due istanze con i saldi in memoria li vedrebbero diversi e potrebbero spendere due volte lo stesso credito
+        if (!acquireLease()) {
+            throw new IllegalStateException("Another instance holds the " + ENGINE_LEASE + " lease, only one instance can run with wallet.engine.mode=memory");
+        }
+
+        synchronized (lock) {
+            Map<String, Long> flushedSequences = new HashMap<>();
+            long lastSequence = 0;
+
+            for (Wallet wallet : walletRepository.findAll()) {
+                long flushed = wallet.getEngineSeq() == null ? 0 : wallet.getEngineSeq();
+                balances.put(wallet.getEmail(), toCents(wallet.getBalance()), Boolean.TRUE.equals(wallet.getIsEnable()));
+                flushedSequences.put(wallet.getEmail(), flushed);
+                lastSequence = Math.max(lastSequence, flushed);
+            }
+
+            int replayed = 0;
+
+            for (BalanceJournal.Entry entry : journal.recover()) {
+                //Le rettifiche hanno solo il wallet modificato, registrato come destinatario
+                boolean debited = entry.senderEmail() != null
+                        && replay(entry.senderEmail(), -entry.amount(), entry.sequence(), flushedSequences);
+                boolean credited = replay(entry.receiverEmail(), entry.amount(), entry.sequence(), flushedSequences);
+
+                if (debited || credited) {
+                    //Il ledger delle rettifiche è già stato scritto da chi le ha richieste
+                    if (entry.senderEmail() != null) {
+                        unflushedTransfers.add(transaction(entry));
+                    }
+                    replayed++;
+                }
+
+                lastSequence = Math.max(lastSequence, entry.sequence());
+            }
+
+            nextSequence = lastSequence + 1;
+            LOGGER.info("Balance engine started: {} wallets loaded, {} journal entries replayed", balances.size(), replayed);
+        }
+    }
+
+    @Override
+    public boolean transfer(RequestTransactionDTO transaction) {
+        long amount;
+
+        try {
+            amount = requireCents(transaction.getAmount());
+        } catch (BadRequestException e) {
+            LOGGER.info("Transaction {} failed: {}", transaction.getId(), e.getMessage());
+            return false;
+        }
+
+        if (!holdsLease()) {
+            LOGGER.error("Transaction {} refused: the {} lease is not held", transaction.getId(), ENGINE_LEASE);
+            return false;
+        }
+
+        if (!journalWritable()) {
+            LOGGER.error("Transaction {} refused: the journal can't be forced to disk", transaction.getId());
+            return false;
+        }
+
+        load(transaction.getSenderEmail());
+        load(transaction.getReceiverEmail());
+
+        long sequence;
+
+        synchronized (lock) {
+            int sender = balances.slotOf(transaction.getSenderEmail());
+
+            if (sender < 0 || !balances.isEnabled(sender) || balances.balance(sender) < amount) {
+                LOGGER.info("Transaction failed: sender not found, not enabled or not enough money");
+                return false;
+            }
+
+            int receiver = balances.slotOf(transaction.getReceiverEmail());
+
+            if (receiver < 0 || !balances.isEnabled(receiver)) {
+                LOGGER.info("Transaction failed: receiver not found or not enabled");
+                return false;
+            }
+
+            try {
+                journal.append(new BalanceJournal.Entry(nextSequence, transaction.getId(),
+                        transaction.getSenderEmail(), transaction.getReceiverEmail(), amount));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+
+            sequence = nextSequence++;
+            balances.add(sender, -amount);
+            balances.add(receiver, amount);
+            unflushedTransfers.add(transaction);
+        }
+
+        sync(sequence);
+        return true;
+    }
+
+    @Override
+    public Optional<Wallet> applyChange(String email, double amount, Double floor) {
+        long change = requireCents(amount);
+        Long minimum = floor == null ? null : requireCents(floor);
+
+        return adjust(email, balance -> minimum == null ? balance + change : Math.max(balance + change, minimum));
+    }
+
+    @Override
+    public Optional<Wallet> setBalance(String email, double balance) {
+        long target = requireCents(balance);
+
+        return adjust(email, current -> target);
+    }
+
+    @Override
+    public Optional<Wallet> setEnabled(String email, boolean enabled) {
+        requireWritable();
+
+        load(email);
+
+        Boolean previous = null;
+
+        //Prima in memoria, così nessun trasferimento passa su un wallet appena disabilitato
+        synchronized (lock) {
+            int slot = balances.slotOf(email);
+
+            if (slot >= 0) {
+                previous = balances.isEnabled(slot);
+                balances.put(email, balances.balance(slot), enabled);
+            }
+        }
+
+        Optional<Wallet> updated;
+
+        try {
+            updated = walletRepository.findAndSetEnable(email, enabled);
+        } catch (RuntimeException e) {
+            if (previous != null) {
+                synchronized (lock) {
+                    int slot = balances.slotOf(email);
+                    balances.put(email, balances.balance(slot), previous);
+                }
+            }
+            throw e;
+        }
+
+        //Il saldo sul database non include i cambiamenti non ancora scritti
+        synchronized (lock) {
+            int slot = balances.slotOf(email);
+            updated.ifPresent(wallet -> wallet.setBalance(slot < 0 ? wallet.getBalance() : balances.balance(slot) / 100.0));
+        }
+
+        return updated;
+    }
+
+    /**
+     * Write the changes of the journal entries appended since the last flush to the wallet collection.
+     * A failed batch is retried as is, so the engineSeq guard skips the wallets it already updated.
+     */
+    @Scheduled(fixedDelayString = "${wallet.engine.flush.interval}")
+    public void flush() {
+        flushLock.lock();
+        try {
+            if (inFlight == null) {
+                inFlight = drain();
+            }
+
+            if (inFlight == null) {
+                return;
+            }
+
+            walletRepository.applyJournalDeltas(inFlight.sequence(), inFlight.deltas());
+            eventPublisher.publishEvent(new BalancesChangedEvent(this, inFlight.deltas()));
+            ledgerService.recordTransfers(inFlight.transfers());
+            deleteJournalUpTo(inFlight.sequence());
+            inFlight = null;
+        } catch (Exception e) {
+            LOGGER.error("Flush of the journal failed, retrying on the next run: {}", e.getMessage());
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * Renew the lease of the engine. Once lost, it is taken back only if no other instance took it meanwhile.
+     */
+    @Scheduled(fixedDelayString = "${wallet.engine.lease.renew}")
+    public void renewLease() {
+        try {
+            if (!acquireLease()) {
+                leaseDeadline = System.nanoTime();
+                LOGGER.error("The {} lease is held by another instance, every balance change is refused", ENGINE_LEASE);
+            }
+        } catch (Exception e) {
+            LOGGER.error("The {} lease was not renewed: {}", ENGINE_LEASE, e.getMessage());
+        }
+    }
+
+    /**
+     * Reload a wallet changed on the database, keeping the changes of the engine not yet flushed
+     */
+    @EventListener
+    public void onWalletChanged(WalletChangedEvent event) {
+        flushLock.lock();
+        try {
+            Optional<Wallet> changed = walletRepository.findByEmail(event.getEmail());
+
+            if (changed.isEmpty()) {
+                return;
+            }
+
+            Wallet wallet = changed.get();
+            long notFlushed = 0;
+
+            if (inFlight != null && (wallet.getEngineSeq() == null || wallet.getEngineSeq() < inFlight.sequence())) {
+                notFlushed = toCents(inFlight.deltas().getOrDefault(wallet.getEmail(), 0.0));
+            }
+
+            synchronized (lock) {
+                int slot = balances.slotOf(wallet.getEmail());
+                long pending = slot < 0 ? 0 : balances.pending(slot);
+                balances.put(wallet.getEmail(), toCents(wallet.getBalance()) + notFlushed + pending,
+                        Boolean.TRUE.equals(wallet.getIsEnable()));
+            }
+        } catch (Exception e) {
+            LOGGER.error("Wallet {} not reloaded: {}", event.getEmail(), e.getMessage());
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    @PreDestroy
+    public void close() throws IOException {
+        flush();
+        synchronized (lock) {
+            journal.close();
+        }
+
+        try {
+            jobLeaseRepository.release(ENGINE_LEASE, instanceId);
+        } catch (Exception e) {
+            LOGGER.warn("The {} lease was not released, it expires in {}: {}", ENGINE_LEASE, leaseDuration, e.getMessage());
+        }
+    }
+
+    private FlushBatch drain() {
+        synchronized (lock) {
+            List<Long> deltas = new ArrayList<>();
+            List<String> emails = balances.drainDirty(deltas);
+
+            if (emails.isEmpty()) {
+                deleteJournalUpTo(nextSequence - 1);
+                return null;
+            }
+
+            Map<String, Double> changes = new LinkedHashMap<>();
+
+            for (int i = 0; i < emails.size(); i++) {
+                changes.put(emails.get(i), deltas.get(i) / 100.0);
+            }
+
+            List<RequestTransactionDTO> transfers = unflushedTransfers;
+            unflushedTransfers = new ArrayList<>();
+
+            return new FlushBatch(nextSequence - 1, changes, transfers);
+        }
+    }
+
+    private void deleteJournalUpTo(long sequence) {
+        synchronized (lock) {
+            try {
+                journal.deleteUpTo(sequence);
+            } catch (IOException e) {
+                LOGGER.error("Journal segments up to {} not deleted: {}", sequence, e.getMessage());
+            }
+        }
+    }
+
+    private void load(String email) {
+        synchronized (lock) {
+            if (email == null || balances.contains(email)) {
+                return;
+            }
+        }
+
+        //Wallet creato dopo l'avvio, letto una volta sola
+        walletRepository.findByEmail(email).ifPresent(wallet -> {
+            synchronized (lock) {
+                if (!balances.contains(email)) {
+                    balances.put(email, toCents(wallet.getBalance()), Boolean.TRUE.equals(wallet.getIsEnable()));
+                }
+            }
+        });
+    }
+
+    private Optional<Wallet> adjust(String email, LongUnaryOperator newBalance) {
+        requireWritable();
+
+        load(email);
+
+        long sequence;
+        Wallet previous;
+
+        synchronized (lock) {
+            int slot = balances.slotOf(email);
+
+            if (slot < 0) {
+                return Optional.empty();
+            }
+
+            long current = balances.balance(slot);
+            long delta = newBalance.applyAsLong(current) - current;
+
+            previous = new Wallet();
+            previous.setEmail(email);
+            previous.setBalance(current / 100.0);
+            previous.setIsEnable(balances.isEnabled(slot));
+
+            if (delta == 0) {
+                return Optional.of(previous);
+            }
+
+            try {
+                journal.append(new BalanceJournal.Entry(nextSequence, null, null, email, delta));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+
+            sequence = nextSequence++;
+            balances.add(slot, delta);
+        }
+
+        sync(sequence);
+        return Optional.of(previous);
+    }
+
+    private void sync(long sequence) {
+        try {
+            journal.sync(sequence);
+        } catch (RuntimeException e) {
+            //Il cambiamento è già applicato in memoria, ma senza force potrebbe non sopravvivere a un crash
+            journalFailed = true;
+            LOGGER.error("Journal not forced to disk up to {}, every change is refused until a force succeeds: {}", sequence, e.getMessage());
+            throw new UnconfirmedChangeException("Change " + sequence + " applied but not forced to disk", e);
+        }
+    }
+
+    /**
+     * @return true if the journal can be forced to disk, trying again a force if the last one failed
+     */
+    private boolean journalWritable() {
+        if (!journalFailed) {
+            return true;
+        }
+
+        long lastSequence;
+
+        synchronized (lock) {
+            lastSequence = nextSequence - 1;
+        }
+
+        try {
+            journal.sync(lastSequence);
+        } catch (RuntimeException e) {
+            return false;
+        }
+
+        journalFailed = false;
+        LOGGER.info("Journal forced to disk up to {}, changes accepted again", lastSequence);
+        return true;
+    }
+
+    private void requireWritable() {
+        if (!holdsLease()) {
+            throw new IllegalStateException("Balance change refused: the " + ENGINE_LEASE + " lease is not held");
+        }
+
+        if (!journalWritable()) {
+            throw new IllegalStateException("Balance change refused: the journal can't be forced to disk");
+        }
+    }
+
+    private boolean acquireLease() {
+        long start = System.nanoTime();
+
+        if (!jobLeaseRepository.tryAcquire(ENGINE_LEASE, instanceId, leaseDuration)) {
+            return false;
+        }
+
+        //Misurato da prima della richiesta, così scade qui prima che su Mongo
+        leaseDeadline = start + leaseDuration.toNanos();
+        return true;
+    }
+
+    private boolean holdsLease() {
+        return System.nanoTime() - leaseDeadline < 0;
+    }
+
+    private boolean replay(String email, long delta, long sequence, Map<String, Long> flushedSequences) {
+        int slot = balances.slotOf(email);
+
+        if (slot < 0) {
+            LOGGER.warn("Journal entry {} refers to the unknown wallet {}", sequence, email);
+            return false;
+        }
+
+        if (sequence <= flushedSequences.get(email)) {
+            return false;
+        }
+
+        balances.add(slot, delta);
+        return true;
+    }
+
+    private static RequestTransactionDTO transaction(BalanceJournal.Entry entry) {
+        RequestTransactionDTO transaction = new RequestTransactionDTO();
+        transaction.setId(entry.transactionId());
+        transaction.setSenderEmail(entry.senderEmail());
+        transaction.setReceiverEmail(entry.receiverEmail());
+        transaction.setAmount(entry.amount() / 100.0);
+        return transaction;
+    }
+
+    //Per i saldi già salvati, che potrebbero essere stati scritti con frazioni di centesimo
+    private static long toCents(double amount) {
+        return Math.round(amount * 100);
+    }
+
+    private static long requireCents(double amount) {
+        double cents = amount * 100;
+        long rounded = Math.round(cents);
+
+        //La tolleranza copre solo l'errore di rappresentazione dei double, es. 0.29 * 100
+        if (Double.isNaN(cents) || Math.abs(cents - rounded) > CENT_TOLERANCE) {
+            throw new BadRequestException("Amount must be a whole number of cents: " + amount);
+        }
+
+        return rounded;
+    }
+}
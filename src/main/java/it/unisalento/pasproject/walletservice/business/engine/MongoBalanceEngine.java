@@ -0,0 +1,101 @@
+package it.unisalento.pasproject.walletservice.business.engine;
+
+import it.unisalento.pasproject.walletservice.business.events.BalancesChangedEvent;
+import it.unisalento.pasproject.walletservice.domain.Wallet;
+import it.unisalento.pasproject.walletservice.dto.RequestTransactionDTO;
+import it.unisalento.pasproject.walletservice.repositories.WalletRepository;
+import it.unisalento.pasproject.walletservice.service.LedgerService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Default engine, every transfer is applied on the wallet collection before replying.
+ * <p>
+ * The debit is a single conditional update (sender enabled and with enough money),
+ * the credit a single increment on an enabled receiver. If the credit fails the debit
+ * is rolled back, so the balance checks never race with concurrent consumers.
+ * Completed transfers are appended to the ledger and announced with a {@link BalancesChangedEvent}.
+ * The other changes are single atomic updates of the wallet.
+ * </p>
+ */
+@Component
+@ConditionalOnProperty(name = "wallet.engine.mode", havingValue = "mongo", matchIfMissing = true)
+public class MongoBalanceEngine implements BalanceEngine {
+
+    private final WalletRepository walletRepository;
+
+    private final LedgerService ledgerService;
+
+    private final ApplicationEventPublisher eventPublisher;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MongoBalanceEngine.class);
+
+    @Autowired
+    public MongoBalanceEngine(WalletRepository walletRepository, LedgerService ledgerService, ApplicationEventPublisher eventPublisher) {
+        this.walletRepository = walletRepository;
+        this.ledgerService = ledgerService;
+        this.eventPublisher = eventPublisher;
+    }
+
+    @Override
+    public boolean transfer(RequestTransactionDTO transaction) {
+        String mittente = transaction.getSenderEmail();
+        String destinatario = transaction.getReceiverEmail();
+        double importo = transaction.getAmount();
+        String transactionId = transaction.getId();
+
+        //Preleva dal mittente solo se abilitato e con abbastanza soldi
+        if (!walletRepository.debitIfEnabled(mittente, importo)) {
+            LOGGER.info("Transaction failed: sender not found, not enabled or not enough money");
+            return false;
+        }
+
+        //Accredita al destinatario solo se abilitato, altrimenti restituisce i soldi al mittente
+        boolean credited;
+
+        try {
+            credited = walletRepository.creditIfEnabled(destinatario, importo);
+        } catch (Exception e) {
+            LOGGER.error("Transaction {} failed on credit: {}", transactionId, e.getMessage());
+            credited = false;
+        }
+
+        if (!credited) {
+            LOGGER.info("Transaction failed: receiver not found or not enabled");
+            try {
+                walletRepository.refund(mittente, importo);
+            } catch (Exception e) {
+                LOGGER.error("Transaction {}: refund of {} to {} failed: {}", transactionId, importo, mittente, e.getMessage());
+            }
+            //Il mittente è stato addebitato e rimborsato, chi lo ha letto nel frattempo ha una copia non valida
+            eventPublisher.publishEvent(new BalancesChangedEvent(this, Map.of(mittente, 0.0)));
+            return false;
+        }
+
+        eventPublisher.publishEvent(new BalancesChangedEvent(this, Map.of(mittente, -importo, destinatario, importo)));
+        ledgerService.recordTransfer(transaction);
+        return true;
+    }
+
+    @Override
+    public Optional<Wallet> applyChange(String email, double amount, Double floor) {
+        return walletRepository.findAndApplyChange(email, amount, floor);
+    }
+
+    @Override
+    public Optional<Wallet> setBalance(String email, double balance) {
+        return walletRepository.findAndSetBalance(email, balance);
+    }
+
+    @Override
+    public Optional<Wallet> setEnabled(String email, boolean enabled) {
+        return walletRepository.findAndSetEnable(email, enabled);
+    }
+}
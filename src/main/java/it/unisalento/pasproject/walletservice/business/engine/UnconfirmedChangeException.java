@@ -0,0 +1,12 @@
+package it.unisalento.pasproject.walletservice.business.engine;
+
+/**
+ * Thrown by a {@link BalanceEngine} when a change has been applied but could not be made durable,
+ * so it may or may not survive a crash and must not be confirmed to the caller
+ */
+public class UnconfirmedChangeException extends RuntimeException {
+
+    public UnconfirmedChangeException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
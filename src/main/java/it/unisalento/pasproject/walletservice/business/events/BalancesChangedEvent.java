@@ -0,0 +1,30 @@
+package it.unisalento.pasproject.walletservice.business.events;
+
+import lombok.Getter;
+import org.springframework.context.ApplicationEvent;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Published after transfers changed the balances of some wallets on the database,
+ * so the components caching what is read from the database can drop their copies.
+ * Unlike {@link WalletChangedEvent} it doesn't affect the state held by the balance engine.
+ */
+@Getter
+public class BalancesChangedEvent extends ApplicationEvent {
+
+    //Variazione del saldo di ogni wallet, per email
+    private final Map<String, Double> deltas;
+
+    public BalancesChangedEvent(Object source, Map<String, Double> deltas) {
+        super(source);
+        this.deltas = Collections.unmodifiableMap(new LinkedHashMap<>(deltas));
+    }
+
+    public List<String> getEmails() {
+        return List.copyOf(deltas.keySet());
+    }
+}
@@ -0,0 +1,23 @@
+package it.unisalento.pasproject.walletservice.business.events;
+
+/**
+ * Implemented by the components caching state about a user, which is evicted by the
+ * {@link it.unisalento.pasproject.walletservice.service.InvalidationHandler} when any
+ * instance of the service (or the auth service) changes it.
+ */
+public interface InvalidationAware {
+
+    /**
+     * Drop everything cached about the given user
+     * @param email the email of the user
+     */
+    void invalidate(String email);
+
+    /**
+     * Drop the cached copies of the wallet of the given user, whose balance or enabled flag was changed.
+     * Nothing to do for the components which don't cache wallets.
+     * @param email the email of the wallet owner
+     */
+    default void invalidateWallet(String email) {
+    }
+}
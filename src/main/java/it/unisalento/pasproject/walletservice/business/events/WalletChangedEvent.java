@@ -0,0 +1,30 @@
+package it.unisalento.pasproject.walletservice.business.events;
+
+import lombok.Getter;
+import org.springframework.context.ApplicationEvent;
+
+/**
+ * Published after a wallet is created or changed on the database outside of the transfer path
+ * (deposits, refills, admin updates), so the components holding a copy of it can reload it.
+ * When known, the new balance and enabled flag are carried too, null if not known or not changed.
+ */
+@Getter
+public class WalletChangedEvent extends ApplicationEvent {
+
+    private final String email;
+
+    private final Double balance;
+
+    private final Boolean enabled;
+
+    public WalletChangedEvent(Object source, String email) {
+        this(source, email, null, null);
+    }
+
+    public WalletChangedEvent(Object source, String email, Double balance, Boolean enabled) {
+        super(source);
+        this.email = email;
+        this.balance = balance;
+        this.enabled = enabled;
+    }
+}
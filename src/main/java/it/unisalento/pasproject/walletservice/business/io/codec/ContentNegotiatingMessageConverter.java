@@ -0,0 +1,112 @@
+package it.unisalento.pasproject.walletservice.business.io.codec;
+
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.support.converter.MessageConversionException;
+import org.springframework.amqp.support.converter.SmartMessageConverter;
+import org.springframework.util.InvalidMimeTypeException;
+import org.springframework.util.MimeType;
+
+import java.lang.reflect.Type;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Message converter choosing the codec by content type.
+ * <p>
+ * Every received message is decoded by the codec of its content type, ignoring parameters such as the charset,
+ * so services still sending JSON and services already sending a binary encoding are read at the same time.
+ * Messages without a known content type are read with the fallback codec. Sent messages are always encoded
+ * with the outgoing codec, which should be switched to a binary one only once every peer can read it.
+ * </p>
+ */
+public class ContentNegotiatingMessageConverter implements SmartMessageConverter {
+
+    private final Map<String, SmartMessageConverter> codecs;
+
+    private final SmartMessageConverter fallback;
+
+    private final SmartMessageConverter outgoing;
+
+    /**
+     * @param codecs the codecs, keyed by content type
+     * @param fallbackContentType the content type assumed for messages without a known one
+     * @param outgoingContentType the content type of the sent messages
+     */
+    public ContentNegotiatingMessageConverter(Map<String, SmartMessageConverter> codecs, String fallbackContentType,
+                                              String outgoingContentType) {
+        this.codecs = new HashMap<>();
+        codecs.forEach((contentType, codec) -> this.codecs.put(normalize(MimeType.valueOf(contentType)), codec));
+
+        this.fallback = codec(fallbackContentType);
+        this.outgoing = codec(outgoingContentType);
+    }
+
+    @Override
+    public Message toMessage(Object object, MessageProperties messageProperties) throws MessageConversionException {
+        return outgoing.toMessage(object, messageProperties);
+    }
+
+    @Override
+    public Message toMessage(Object object, MessageProperties messageProperties, Type genericType) throws MessageConversionException {
+        return outgoing.toMessage(object, messageProperties, genericType);
+    }
+
+    @Override
+    public Object fromMessage(Message message) throws MessageConversionException {
+        return codecFor(message).fromMessage(message);
+    }
+
+    @Override
+    public Object fromMessage(Message message, Object conversionHint) throws MessageConversionException {
+        return codecFor(message).fromMessage(message, conversionHint);
+    }
+
+    private SmartMessageConverter codecFor(Message message) {
+        MessageProperties properties = message.getMessageProperties();
+        String contentType = properties == null ? null : properties.getContentType();
+
+        if (contentType == null) {
+            return fallback;
+        }
+
+        MimeType mimeType;
+
+        try {
+            mimeType = MimeType.valueOf(contentType);
+        } catch (InvalidMimeTypeException e) {
+            return fallback;
+        }
+
+        SmartMessageConverter codec = codecs.get(normalize(mimeType));
+
+        if (codec == null) {
+            return fallback;
+        }
+
+        //I codec confrontano il content type alla lettera, quindi ricevono la forma senza parametri
+        if (!contentType.equals(normalize(mimeType))) {
+            if (properties.getContentEncoding() == null && mimeType.getCharset() != null) {
+                properties.setContentEncoding(mimeType.getCharset().name());
+            }
+
+            properties.setContentType(normalize(mimeType));
+        }
+
+        return codec;
+    }
+
+    private SmartMessageConverter codec(String contentType) {
+        SmartMessageConverter codec = codecs.get(normalize(MimeType.valueOf(contentType)));
+
+        if (codec == null) {
+            throw new IllegalArgumentException("No codec for content type " + contentType);
+        }
+
+        return codec;
+    }
+
+    private static String normalize(MimeType mimeType) {
+        return mimeType.getType() + "/" + mimeType.getSubtype();
+    }
+}
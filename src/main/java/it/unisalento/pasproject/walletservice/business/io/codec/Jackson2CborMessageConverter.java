@@ -0,0 +1,109 @@
+package it.unisalento.pasproject.walletservice.business.io.codec;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.MapperFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.dataformat.cbor.databind.CBORMapper;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.support.converter.AbstractMessageConverter;
+import org.springframework.amqp.support.converter.DefaultJackson2JavaTypeMapper;
+import org.springframework.amqp.support.converter.MessageConversionException;
+import org.springframework.amqp.support.converter.SmartMessageConverter;
+import org.springframework.core.ParameterizedTypeReference;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Message converter encoding the payloads as CBOR, the binary form of the JSON data model.
+ * <p>
+ * The messages are smaller than JSON and faster to parse, and the payloads are mapped exactly like
+ * the JSON ones, so the same DTOs are used. The known message types are sent with their simple class name
+ * as {@code __TypeId__} and resolved from a fixed map, never by loading a class by name, and their readers
+ * and writers are built once when the converter is created. The payload type is resolved like the JSON
+ * converter does: the conversion hint, then the type of the listener parameter, then the type id.
+ * </p>
+ */
+public class Jackson2CborMessageConverter extends AbstractMessageConverter implements SmartMessageConverter {
+
+    public static final String CONTENT_TYPE = "application/cbor";
+
+    private final ObjectMapper objectMapper;
+
+    private final DefaultJackson2JavaTypeMapper typeMapper = new DefaultJackson2JavaTypeMapper();
+
+    //Costruiti una volta sola, in uso solo in lettura
+    private final Map<Class<?>, JavaType> types = new HashMap<>();
+
+    private final Map<JavaType, ObjectReader> readers = new HashMap<>();
+
+    private final Map<Class<?>, ObjectWriter> writers = new HashMap<>();
+
+    /**
+     * @param messageTypes the payload types exchanged with the other services
+     */
+    public Jackson2CborMessageConverter(Collection<Class<?>> messageTypes) {
+        this.objectMapper = CBORMapper.builder()
+                .findAndAddModules()
+                .disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES)
+                .disable(MapperFeature.DEFAULT_VIEW_INCLUSION)
+                .build();
+
+        Map<String, Class<?>> idClassMapping = new HashMap<>();
+
+        for (Class<?> messageType : messageTypes) {
+            JavaType type = objectMapper.constructType(messageType);
+            idClassMapping.put(messageType.getSimpleName(), messageType);
+            types.put(messageType, type);
+            readers.put(type, objectMapper.readerFor(type));
+            writers.put(messageType, objectMapper.writerFor(type));
+        }
+
+        typeMapper.setIdClassMapping(idClassMapping);
+        typeMapper.setTrustedPackages(messageTypes.stream().map(Class::getPackageName).distinct().toArray(String[]::new));
+    }
+
+    @Override
+    protected Message createMessage(Object object, MessageProperties messageProperties) {
+        ObjectWriter writer = writers.get(object.getClass());
+        byte[] body;
+
+        try {
+            body = (writer != null ? writer : objectMapper.writer()).writeValueAsBytes(object);
+        } catch (IOException e) {
+            throw new MessageConversionException("Failed to encode " + object.getClass().getSimpleName() + " as CBOR", e);
+        }
+
+        messageProperties.setContentType(CONTENT_TYPE);
+        messageProperties.setContentLength(body.length);
+        typeMapper.fromJavaType(types.getOrDefault(object.getClass(), objectMapper.constructType(object.getClass())), messageProperties);
+
+        return new Message(body, messageProperties);
+    }
+
+    @Override
+    public Object fromMessage(Message message) throws MessageConversionException {
+        return fromMessage(message, null);
+    }
+
+    @Override
+    public Object fromMessage(Message message, Object conversionHint) throws MessageConversionException {
+        JavaType type = conversionHint instanceof ParameterizedTypeReference<?> reference
+                ? objectMapper.constructType(reference.getType())
+                : typeMapper.toJavaType(message.getMessageProperties());
+
+        ObjectReader reader = readers.get(type);
+
+        try {
+            return (reader != null ? reader : objectMapper.readerFor(type)).readValue(message.getBody());
+        } catch (IOException e) {
+            throw new MessageConversionException("Failed to decode CBOR message as " + type, e);
+        }
+    }
+}
@@ -1,6 +1,25 @@
 package it.unisalento.pasproject.walletservice.business.io.exchanger;
 
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+
 public interface MessageExchangeStrategy {
     <T> T exchangeMessage(String message, String routingKey,String exchange, Class<T> object);
     <T, R> R exchangeMessage( T message, String routingKey, String exchange, Class<R> responseType);
+
+    /**
+     * Send a request without waiting for the reply
+     * @param message the request
+     * @param routingKey the routing key of the request
+     * @param exchange the exchange to send the request to
+     * @param responseType the type of the reply
+     * @param timeout how long to wait for the reply, the future fails with a TimeoutException after it
+     * @return the future reply
+     */
+    <T, R> CompletableFuture<R> exchangeMessageAsync(T message, String routingKey, String exchange, Class<R> responseType, Duration timeout);
+
+    /**
+     * Send a request without waiting for the reply, using the default timeout of the strategy
+     */
+    <T, R> CompletableFuture<R> exchangeMessageAsync(T message, String routingKey, String exchange, Class<R> responseType);
 }
@@ -4,6 +4,9 @@ import lombok.Setter;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+
 @Service
 @Setter
 public class MessageExchanger {
@@ -23,4 +26,12 @@ public class MessageExchanger {
     public <T, R> R exchangeMessage(T message, String routingKey, String exchange, Class<R> responseType) {
         return strategy.exchangeMessage(message, routingKey, exchange, responseType);
     }
+
+    public <T, R> CompletableFuture<R> exchangeMessageAsync(T message, String routingKey, String exchange, Class<R> responseType) {
+        return strategy.exchangeMessageAsync(message, routingKey, exchange, responseType);
+    }
+
+    public <T, R> CompletableFuture<R> exchangeMessageAsync(T message, String routingKey, String exchange, Class<R> responseType, Duration timeout) {
+        return strategy.exchangeMessageAsync(message, routingKey, exchange, responseType, timeout);
+    }
 }
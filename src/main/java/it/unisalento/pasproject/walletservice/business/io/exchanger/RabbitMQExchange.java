@@ -2,20 +2,40 @@ package it.unisalento.pasproject.walletservice.business.io.exchanger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.rabbit.AsyncRabbitTemplate;
+import org.springframework.amqp.rabbit.RabbitConverterFuture;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.ParameterizedTypeReference;
 import org.springframework.stereotype.Service;
 
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Request/reply over RabbitMQ with direct reply-to.
+ * <p>
+ * Requests are correlated by the {@link AsyncRabbitTemplate}, so any number of them can be pending
+ * without holding a thread each. Every call has its own timeout, nothing shared is changed per call.
+ * The blocking methods wait on the same futures and return null when the reply doesn't arrive in time.
+ * </p>
+ */
 @Service("RabbitMQExchange")
 public class RabbitMQExchange implements MessageExchangeStrategy {
 
 
-    private final RabbitTemplate rabbitTemplate;
+    private final AsyncRabbitTemplate asyncRabbitTemplate;
+
+    private final Duration replyTimeout;
 
     @Autowired
-    public RabbitMQExchange(RabbitTemplate rabbitTemplate) {
-        this.rabbitTemplate = rabbitTemplate;
+    public RabbitMQExchange(AsyncRabbitTemplate asyncRabbitTemplate, @Value("${rabbitmq.rpc.timeout}") long replyTimeoutMillis) {
+        this.asyncRabbitTemplate = asyncRabbitTemplate;
+        this.replyTimeout = Duration.ofMillis(replyTimeoutMillis);
     }
 
     private static final Logger LOGGER = LoggerFactory.getLogger(RabbitMQExchange.class);
@@ -24,19 +44,48 @@ public class RabbitMQExchange implements MessageExchangeStrategy {
 
     @Override
     public <T> T exchangeMessage(String message, String routingKey, String exchange, Class<T> object) {
-        rabbitTemplate.setReplyTimeout(1000); // Timeout di 1 secondo
-        T response = rabbitTemplate.convertSendAndReceiveAsType(exchange, routingKey, message,
-                ParameterizedTypeReference.forType(object));
-        LOGGER.info("Message received: {}", response);
-        return response;
+        return await(exchangeMessageAsync(message, routingKey, exchange, object));
     }
 
     @Override
     public <T, R> R exchangeMessage(T message, String routingKey, String exchange, Class<R> responseType) {
-        rabbitTemplate.setReplyTimeout(1000); // Timeout di 1 secondo
-        R response = rabbitTemplate.convertSendAndReceiveAsType(exchange, routingKey, message,
+        return await(exchangeMessageAsync(message, routingKey, exchange, responseType));
+    }
+
+    @Override
+    public <T, R> CompletableFuture<R> exchangeMessageAsync(T message, String routingKey, String exchange, Class<R> responseType) {
+        return exchangeMessageAsync(message, routingKey, exchange, responseType, replyTimeout);
+    }
+
+    @Override
+    public <T, R> CompletableFuture<R> exchangeMessageAsync(T message, String routingKey, String exchange, Class<R> responseType, Duration timeout) {
+        RabbitConverterFuture<R> reply = asyncRabbitTemplate.convertSendAndReceiveAsType(exchange, routingKey, message,
                 ParameterizedTypeReference.forType(responseType));
-        LOGGER.info("Message received: {}", response);
-        return response;
+
+        //Il timeout è applicato a una copia, la richiesta originale viene annullata per liberare la correlazione
+        return reply.copy()
+                .orTimeout(timeout.toMillis(), TimeUnit.MILLISECONDS)
+                .whenComplete((response, e) -> {
+                    if (e instanceof TimeoutException) {
+                        reply.cancel(true);
+                    } else if (e == null) {
+                        LOGGER.info("Message received: {}", response);
+                    }
+                });
+    }
+
+    private static <R> R await(CompletableFuture<R> reply) {
+        try {
+            return reply.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof TimeoutException) {
+                LOGGER.error("Reply not received in time");
+                return null;
+            }
+            if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw new AmqpException(e.getCause());
+        }
     }
 }
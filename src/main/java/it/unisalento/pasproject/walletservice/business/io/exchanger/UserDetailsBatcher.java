@@ -0,0 +1,229 @@
+package it.unisalento.pasproject.walletservice.business.io.exchanger;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import it.unisalento.pasproject.walletservice.dto.UserDetailsDTO;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Micro-batching of the user details requests to the security service.
+ * <p>
+ * Lookups arriving within {@code window} ms of each other are sent as one request carrying the
+ * list of emails on the batch routing key, and the list of user details in the reply is fanned
+ * out to the callers. A lookup alone in its window is sent as the usual single request.
+ * If a batch request fails (e.g. the peer doesn't support batches and never replies) its lookups
+ * are sent one by one and batching is suspended for {@code fallback.retry} ms. An email missing from
+ * the reply of a batch is looked up again with a single request, so it is not taken for an unknown user.
+ * Every reply carries the duration of the request that answered it, so a lookup answered by the
+ * fallback is timed on its single request and not on the failed batch.
+ * </p>
+ */
+@Component
+public class UserDetailsBatcher {
+
+    private final MessageExchanger messageExchanger;
+
+    @Value("${rabbitmq.exchange.security.name}")
+    private String securityExchange;
+
+    @Value("${rabbitmq.routing.security.key}")
+    private String securityRequestRoutingKey;
+
+    @Value("${rabbitmq.routing.securityBatch.key}")
+    private String securityBatchRoutingKey;
+
+    private final boolean batchEnabled;
+
+    private final long windowMillis;
+
+    private final int maxBatchSize;
+
+    private final long fallbackRetryMillis;
+
+    private final DistributionSummary batchSizes;
+
+    private final ScheduledExecutorService scheduler;
+
+    private final Object lock = new Object();
+
+    //Lookup in attesa del prossimo invio, una sola future per email
+    private Map<String, CompletableFuture<Reply>> pending = new LinkedHashMap<>();
+
+    private volatile long batchesSuspendedUntil;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(UserDetailsBatcher.class);
+
+    /**
+     * The answer to a lookup
+     * @param user the user details, null if the user is unknown
+     * @param elapsedNanos how long the request that answered took, in nanoseconds
+     */
+    public record Reply(UserDetailsDTO user, long elapsedNanos) {
+    }
+
+    @Autowired
+    public UserDetailsBatcher(MessageExchanger messageExchanger, MeterRegistry meterRegistry,
+                              @Value("${wallet.user-details.batch.enabled}") boolean batchEnabled,
+                              @Value("${wallet.user-details.batch.window}") long windowMillis,
+                              @Value("${wallet.user-details.batch.size}") int maxBatchSize,
+                              @Value("${wallet.user-details.batch.fallback.retry}") long fallbackRetryMillis) {
+        this.messageExchanger = messageExchanger;
+        this.batchEnabled = batchEnabled;
+        this.windowMillis = windowMillis;
+        this.maxBatchSize = maxBatchSize;
+        this.fallbackRetryMillis = fallbackRetryMillis;
+
+        this.batchSizes = DistributionSummary.builder("wallet.user-details.batch.size")
+                .description("Lookups sent with one request to the security service")
+                .register(meterRegistry);
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "user-details-batcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Look up the user details of the given email, possibly together with other concurrent lookups
+     * @param email the email of the user
+     * @return the future reply with the user details
+     */
+    public CompletableFuture<Reply> lookup(String email) {
+        if (!batchEnabled || System.currentTimeMillis() < batchesSuspendedUntil) {
+            return single(email);
+        }
+
+        CompletableFuture<Reply> future;
+        Map<String, CompletableFuture<Reply>> full = null;
+
+        synchronized (lock) {
+            future = pending.get(email);
+
+            if (future == null) {
+                future = new CompletableFuture<>();
+                pending.put(email, future);
+
+                if (pending.size() == 1) {
+                    scheduler.schedule(this::flush, windowMillis, TimeUnit.MILLISECONDS);
+                }
+
+                if (pending.size() >= maxBatchSize) {
+                    full = drain();
+                }
+            }
+        }
+
+        if (full != null) {
+            send(full);
+        }
+
+        return future.copy();
+    }
+
+    void flush() {
+        Map<String, CompletableFuture<Reply>> batch;
+
+        synchronized (lock) {
+            batch = drain();
+        }
+
+        if (!batch.isEmpty()) {
+            send(batch);
+        }
+    }
+
+    private Map<String, CompletableFuture<Reply>> drain() {
+        Map<String, CompletableFuture<Reply>> batch = pending;
+        pending = new LinkedHashMap<>();
+        return batch;
+    }
+
+    private void send(Map<String, CompletableFuture<Reply>> batch) {
+        batchSizes.record(batch.size());
+
+        if (batch.size() == 1) {
+            batch.forEach((email, future) -> forward(single(email), future));
+            return;
+        }
+
+        List<String> emails = new ArrayList<>(batch.keySet());
+        CompletableFuture<UserDetailsDTO[]> reply;
+        long start = System.nanoTime();
+
+        try {
+            reply = messageExchanger.exchangeMessageAsync(emails, securityBatchRoutingKey, securityExchange, UserDetailsDTO[].class);
+        } catch (Exception e) {
+            reply = CompletableFuture.failedFuture(e);
+        }
+
+        reply.whenComplete((users, e) -> {
+            if (e != null || users == null) {
+                //Il servizio di sicurezza potrebbe non supportare le richieste multiple
+                LOGGER.warn("Batch of {} user lookups failed, sending them one by one: {}", batch.size(),
+                        e != null ? e.getMessage() : "empty reply");
+                batchesSuspendedUntil = System.currentTimeMillis() + fallbackRetryMillis;
+                batch.forEach((email, future) -> forward(single(email), future));
+                return;
+            }
+
+            Map<String, UserDetailsDTO> byEmail = new HashMap<>();
+
+            for (UserDetailsDTO user : users) {
+                if (user != null && user.getEmail() != null) {
+                    byEmail.put(user.getEmail(), user);
+                }
+            }
+
+            long elapsed = System.nanoTime() - start;
+
+            batch.forEach((email, future) -> {
+                UserDetailsDTO user = byEmail.get(email);
+
+                if (user != null) {
+                    future.complete(new Reply(user, elapsed));
+                } else {
+                    //L'assenza nella risposta non basta per considerare l'utente sconosciuto
+                    forward(single(email), future);
+                }
+            });
+        });
+    }
+
+    private CompletableFuture<Reply> single(String email) {
+        long start = System.nanoTime();
+
+        try {
+            return messageExchanger.exchangeMessageAsync(email, securityRequestRoutingKey, securityExchange, UserDetailsDTO.class)
+                    .thenApply(user -> new Reply(user, System.nanoTime() - start));
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    private static void forward(CompletableFuture<Reply> source, CompletableFuture<Reply> target) {
+        source.whenComplete((user, e) -> {
+            if (e != null) {
+                target.completeExceptionally(e);
+            } else {
+                target.complete(user);
+            }
+        });
+    }
+
+    @PreDestroy
+    public void close() {
+        scheduler.shutdownNow();
+    }
+}
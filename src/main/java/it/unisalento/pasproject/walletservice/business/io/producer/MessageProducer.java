@@ -24,4 +24,8 @@ public class MessageProducer {
         strategy.sendMessage(messageDTO, routingKey, exchange, replyTo);
     }
 
+    public <T> void sendReply(T messageDTO, String replyTo, String correlationId) {
+        strategy.sendReply(messageDTO, replyTo, correlationId);
+    }
+
 }
\ No newline at end of file
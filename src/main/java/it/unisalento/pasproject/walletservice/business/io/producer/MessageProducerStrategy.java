@@ -3,5 +3,6 @@ package it.unisalento.pasproject.walletservice.business.io.producer;
 public interface MessageProducerStrategy {
     <T> void sendMessage(T messageDTO,String routingKey, String exchange);
     <T> void sendMessage(T messageDTO,String routingKey, String exchange, String replyTo);
+    <T> void sendReply(T messageDTO, String replyTo, String correlationId);
 
 }
@@ -2,6 +2,7 @@ package it.unisalento.pasproject.walletservice.business.io.producer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.amqp.core.Address;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
@@ -59,4 +60,26 @@ public class RabbitMQProducer implements MessageProducerStrategy {
             return m;
         });
     }
+
+    /**
+     * Method to send a reply to a request received without going through a listener return value.
+     * <p>
+     * Il replyTo viene interpretato come indirizzo (exchange/routingKey o nome della coda),
+     * come fa il listener container per le risposte automatiche.
+     * </p>
+     * @param messageDTO The Object to send as a reply.
+     * @param replyTo The replyTo address of the request.
+     * @param correlationId The correlation id of the request, may be null.
+     */
+    @Override
+    public <T> void sendReply(T messageDTO, String replyTo, String correlationId) {
+        LOGGER.debug("RabbitMQ reply sent to {}: {}", replyTo, messageDTO);
+        Address address = new Address(replyTo);
+        rabbitTemplate.convertAndSend(address.getExchangeName(), address.getRoutingKey(), messageDTO, m -> {
+            if (correlationId != null) {
+                m.getMessageProperties().setCorrelationId(correlationId);
+            }
+            return m;
+        });
+    }
 }
@@ -0,0 +1,140 @@
+package it.unisalento.pasproject.walletservice.business.stats;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Quantile sketch of the wallet balances with relative accuracy, in the style of DDSketch.
+ * <p>
+ * Values are counted in logarithmic buckets, so every quantile is estimated within the given
+ * relative error whatever the distribution. Unlike most sketches a value can also be removed,
+ * which lets the sketch follow balances that change over time, and two sketches with the same
+ * accuracy can be merged by adding their buckets. Zero and negative balances have their own buckets.
+ * </p>
+ * <p>
+ * Not thread safe.
+ * </p>
+ */
+public class BalanceSketch {
+
+    private final double relativeAccuracy;
+
+    private final double logGamma;
+
+    private final TreeMap<Integer, Long> positive = new TreeMap<>();
+
+    //Indicizzati sul valore assoluto
+    private final TreeMap<Integer, Long> negative = new TreeMap<>();
+
+    private long zeroCount;
+
+    private long count;
+
+    /**
+     * @param relativeAccuracy the maximum relative error of the quantiles, between 0 and 1 (e.g. 0.01 for 1%)
+     */
+    public BalanceSketch(double relativeAccuracy) {
+        if (relativeAccuracy <= 0 || relativeAccuracy >= 1) {
+            throw new IllegalArgumentException("Relative accuracy must be between 0 and 1");
+        }
+
+        this.relativeAccuracy = relativeAccuracy;
+        this.logGamma = Math.log((1 + relativeAccuracy) / (1 - relativeAccuracy));
+    }
+
+    public void add(double value) {
+        update(value, 1);
+    }
+
+    /**
+     * Remove a value added before, e.g. the old balance of a changed wallet
+     * @param value the value to remove
+     */
+    public void remove(double value) {
+        update(value, -1);
+    }
+
+    /**
+     * Add all the values of another sketch to this one
+     * @param other a sketch with the same relative accuracy
+     */
+    public void merge(BalanceSketch other) {
+        if (other.relativeAccuracy != relativeAccuracy) {
+            throw new IllegalArgumentException("Sketches with different accuracy can't be merged");
+        }
+
+        other.positive.forEach((index, bucketCount) -> positive.merge(index, bucketCount, Long::sum));
+        other.negative.forEach((index, bucketCount) -> negative.merge(index, bucketCount, Long::sum));
+        zeroCount += other.zeroCount;
+        count += other.count;
+    }
+
+    /**
+     * Estimate the value at the given quantile
+     * @param quantile between 0 and 1
+     * @return the estimated value, NaN if the sketch is empty
+     */
+    public double quantile(double quantile) {
+        if (quantile < 0 || quantile > 1) {
+            throw new IllegalArgumentException("Quantile must be between 0 and 1");
+        }
+
+        if (count == 0) {
+            return Double.NaN;
+        }
+
+        long rank = (long) (quantile * (count - 1));
+        long seen = 0;
+
+        //Dal negativo più grande in valore assoluto verso lo zero
+        for (Map.Entry<Integer, Long> bucket : negative.descendingMap().entrySet()) {
+            seen += bucket.getValue();
+            if (seen > rank) {
+                return -value(bucket.getKey());
+            }
+        }
+
+        seen += zeroCount;
+        if (seen > rank) {
+            return 0.0;
+        }
+
+        for (Map.Entry<Integer, Long> bucket : positive.entrySet()) {
+            seen += bucket.getValue();
+            if (seen > rank) {
+                return value(bucket.getKey());
+            }
+        }
+
+        return value(positive.lastKey());
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getRelativeAccuracy() {
+        return relativeAccuracy;
+    }
+
+    private void update(double value, long delta) {
+        if (value == 0.0) {
+            zeroCount += delta;
+        } else {
+            TreeMap<Integer, Long> buckets = value > 0 ? positive : negative;
+            //Rimuove il bucket quando si svuota, così la mappa resta piccola
+            buckets.merge(index(Math.abs(value)), delta, (current, change) -> current + change == 0 ? null : current + change);
+        }
+
+        count += delta;
+    }
+
+    private int index(double value) {
+        return (int) Math.ceil(Math.log(value) / logGamma);
+    }
+
+    private double value(int index) {
+        //Centro del bucket (gamma^(i-1), gamma^i], a meno dell'errore relativo da entrambi i lati
+        return 2 * Math.exp(index * logGamma) / (1 + Math.exp(logGamma));
+    }
+}
@@ -0,0 +1,141 @@
+package it.unisalento.pasproject.walletservice.business.stats;
+
+import java.util.*;
+
+/**
+ * The first wallets of a leaderboard, by highest or by lowest balance, kept in memory up to a fixed capacity.
+ * <p>
+ * The kept wallets are always exactly the first ones of the leaderboard: every other wallet has a balance
+ * not better than a known bound. A kept wallet whose balance falls behind the bound is dropped, so the
+ * structure may shrink until it is loaded again from the database; an outside wallet whose new balance
+ * is better than the bound is added. A request for more wallets than the ones kept is a miss.
+ * </p>
+ * <p>
+ * Not thread safe.
+ * </p>
+ */
+public class TopBalances {
+
+    public record Entry(String email, double balance) {
+    }
+
+    private final int capacity;
+
+    private final boolean highest;
+
+    //Prima il wallet migliore, a parità di saldo in ordine di email
+    private final TreeSet<Entry> entries;
+
+    private final Map<String, Entry> members = new HashMap<>();
+
+    //Punteggio massimo dei wallet non tenuti, +inf finché non viene caricata
+    private double bound = Double.POSITIVE_INFINITY;
+
+    /**
+     * @param capacity the maximum number of wallets kept
+     * @param highest true to keep the highest balances, false for the lowest ones
+     */
+    public TopBalances(int capacity, boolean highest) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+
+        this.capacity = capacity;
+        this.highest = highest;
+        this.entries = new TreeSet<>(Comparator.comparingDouble((Entry entry) -> -score(entry.balance()))
+                .thenComparing(Entry::email));
+    }
+
+    /**
+     * Replace the kept wallets with the first ones read from the database
+     * @param first the first wallets of the leaderboard, in order, at most capacity
+     */
+    public void load(List<Entry> first) {
+        entries.clear();
+        members.clear();
+
+        for (Entry entry : first.subList(0, Math.min(first.size(), capacity))) {
+            entries.add(entry);
+            members.put(entry.email(), entry);
+        }
+
+        //Se il database ha restituito meno wallet della capacità, non ce ne sono altri
+        bound = first.size() < capacity ? Double.NEGATIVE_INFINITY : score(entries.last().balance());
+    }
+
+    /**
+     * Apply the new balance of a wallet
+     * @param email the email of the owner
+     * @param balance the new balance
+     */
+    public void update(String email, double balance) {
+        Entry previous = members.remove(email);
+
+        if (previous != null) {
+            entries.remove(previous);
+        }
+
+        //Sotto il limite un wallet non tenuto potrebbe precederlo, quindi resta fuori
+        if (score(balance) < bound) {
+            return;
+        }
+
+        Entry entry = new Entry(email, balance);
+        entries.add(entry);
+        members.put(email, entry);
+
+        if (entries.size() > capacity) {
+            Entry dropped = entries.pollLast();
+            members.remove(dropped.email());
+            bound = Math.max(bound, score(dropped.balance()));
+        }
+    }
+
+    /**
+     * Drop a wallet that can no longer be in the leaderboard, e.g. a disabled one
+     * @param email the email of the owner
+     */
+    public void remove(String email) {
+        Entry previous = members.remove(email);
+
+        if (previous != null) {
+            entries.remove(previous);
+        }
+    }
+
+    /**
+     * Get the first wallets of the leaderboard
+     * @param size the number of wallets, at most capacity
+     * @return the first wallets, empty if not enough wallets are kept and the database must be read
+     */
+    public Optional<List<Entry>> first(int size) {
+        if (entries.size() < size && bound != Double.NEGATIVE_INFINITY) {
+            return Optional.empty();
+        }
+
+        List<Entry> first = new ArrayList<>(Math.min(size, entries.size()));
+        Iterator<Entry> iterator = entries.iterator();
+
+        while (first.size() < size && iterator.hasNext()) {
+            first.add(iterator.next());
+        }
+
+        return Optional.of(first);
+    }
+
+    public boolean contains(String email) {
+        return members.containsKey(email);
+    }
+
+    public Optional<Double> balanceOf(String email) {
+        return Optional.ofNullable(members.get(email)).map(Entry::balance);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    private double score(double balance) {
+        return highest ? balance : -balance;
+    }
+}
@@ -1,14 +1,24 @@
 package it.unisalento.pasproject.walletservice.configuration;
 
+import it.unisalento.pasproject.walletservice.business.io.codec.ContentNegotiatingMessageConverter;
+import it.unisalento.pasproject.walletservice.business.io.codec.Jackson2CborMessageConverter;
+import it.unisalento.pasproject.walletservice.dto.*;
 import org.springframework.amqp.core.*;
+import org.springframework.amqp.rabbit.AsyncRabbitTemplate;
+import org.springframework.amqp.rabbit.config.SimpleRabbitListenerContainerFactory;
 import org.springframework.amqp.rabbit.connection.ConnectionFactory;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
 import org.springframework.amqp.support.converter.Jackson2JsonMessageConverter;
 import org.springframework.amqp.support.converter.MessageConverter;
+import org.springframework.amqp.support.converter.SmartMessageConverter;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.amqp.SimpleRabbitListenerContainerFactoryConfigurer;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import java.util.List;
+import java.util.Map;
+
 @Configuration
 public class RabbitMQConfig {
 
@@ -120,8 +130,82 @@ public class RabbitMQConfig {
                 .with(generalRefillKey);
     }
 
+    @Value("${rabbitmq.listener.generalRequest.batch.size}")
+    private int generalRequestBatchSize;
+
+    @Value("${rabbitmq.listener.generalRequest.batch.timeout}")
+    private long generalRequestBatchTimeout;
+
+    /**
+     * Creates the container factory used by the general request listener.
+     * <p>
+     * The consumer drains up to {@code batch.size} requests or waits at most {@code batch.timeout} ms,
+     * so the balance changes of the same wallet can be folded together. A single consumer is used
+     * so the requests of a wallet are applied in the order they were sent.
+     * </p>
+     *
+     * @param configurer the Spring Boot configurer, to inherit the rabbitmq listener properties.
+     * @param connectionFactory the connection factory to use.
+     * @return a new batch enabled SimpleRabbitListenerContainerFactory instance.
+     */
+    @Bean
+    public SimpleRabbitListenerContainerFactory generalRequestBatchContainerFactory(SimpleRabbitListenerContainerFactoryConfigurer configurer,
+                                                                                    ConnectionFactory connectionFactory) {
+        SimpleRabbitListenerContainerFactory factory = new SimpleRabbitListenerContainerFactory();
+        configurer.configure(factory, connectionFactory);
+        factory.setBatchListener(true);
+        factory.setConsumerBatchEnabled(true);
+        factory.setBatchSize(generalRequestBatchSize);
+        factory.setPrefetchCount(generalRequestBatchSize);
+        factory.setReceiveTimeout(generalRequestBatchTimeout);
+        factory.setConcurrentConsumers(1);
+        factory.setMaxConcurrentConsumers(1);
+        return factory;
+    }
+
     // ----- END GENERAL DATA HANDLER  ----- //
 
+    // ----- CACHE INVALIDATION  ----- //
+
+    @Value("${rabbitmq.exchange.invalidation.name}")
+    private String invalidationExchange;
+
+    @Bean
+    public FanoutExchange invalidationExchange() {
+        return new FanoutExchange(invalidationExchange);
+    }
+
+    // Una coda per istanza, rimossa alla chiusura della connessione
+    @Bean
+    public Queue invalidationQueue() {
+        return new AnonymousQueue();
+    }
+
+    @Bean
+    public Binding invalidationBinding() {
+        return BindingBuilder
+                .bind(invalidationQueue())
+                .to(invalidationExchange());
+    }
+
+    @Bean
+    public Binding invalidationUserDataBinding() {
+        return BindingBuilder
+                .bind(invalidationQueue())
+                .to(dataExchange())
+                .with(userDataKey);
+    }
+
+    @Bean
+    public Binding invalidationGeneralRequestBinding() {
+        return BindingBuilder
+                .bind(invalidationQueue())
+                .to(dataExchange())
+                .with(generalRefillKey);
+    }
+
+    // ----- END CACHE INVALIDATION  ----- //
+
 
     // ----- TRANSACTIONS HANDLER  ----- //
 
@@ -154,17 +238,66 @@ public class RabbitMQConfig {
                 .with(transactionExecutionRoutingKey);
     }
 
+    @Value("${rabbitmq.listener.transaction.batch.size}")
+    private int transactionBatchSize;
+
+    @Value("${rabbitmq.listener.transaction.batch.timeout}")
+    private long transactionBatchTimeout;
 
     /**
-     * Creates a message converter for JSON messages.
+     * Creates the container factory used by the batch transaction listener.
+     * <p>
+     * The consumer drains up to {@code batch.size} messages or waits at most {@code batch.timeout} ms,
+     * then hands the whole list to the listener. A single consumer is used so the batches are applied in order.
+     * </p>
      *
-     * @return a new Jackson2JsonMessageConverter instance.
+     * @param configurer the Spring Boot configurer, to inherit the rabbitmq listener properties.
+     * @param connectionFactory the connection factory to use.
+     * @return a new batch enabled SimpleRabbitListenerContainerFactory instance.
+     */
+    @Bean
+    public SimpleRabbitListenerContainerFactory transactionBatchContainerFactory(SimpleRabbitListenerContainerFactoryConfigurer configurer,
+                                                                                 ConnectionFactory connectionFactory) {
+        SimpleRabbitListenerContainerFactory factory = new SimpleRabbitListenerContainerFactory();
+        configurer.configure(factory, connectionFactory);
+        factory.setBatchListener(true);
+        factory.setConsumerBatchEnabled(true);
+        factory.setBatchSize(transactionBatchSize);
+        factory.setPrefetchCount(transactionBatchSize);
+        factory.setReceiveTimeout(transactionBatchTimeout);
+        factory.setConcurrentConsumers(1);
+        factory.setMaxConcurrentConsumers(1);
+        return factory;
+    }
+
+
+    // ------  CODEC  ------ //
+
+    //Payload scambiati con gli altri servizi, con il loro nome semplice come tipo nei messaggi CBOR
+    static final List<Class<?>> MESSAGE_TYPES = List.of(RequestTransactionDTO.class, MessageDTO.class,
+            GeneralDataDTO.class, GeneralRequestDTO.class, UserDTO.class, UserDetailsDTO.class, InvalidationDTO.class);
+
+    @Value("${rabbitmq.codec.outgoing}")
+    private String outgoingContentType;
+
+    /**
+     * Creates the message converter, reading JSON and CBOR messages by content type.
+     * Messages are sent as JSON, or as CBOR with rabbitmq.codec.outgoing=application/cbor.
+     *
+     * @return a new ContentNegotiatingMessageConverter instance.
      */
     @Bean
     public MessageConverter converter() {
-        return new Jackson2JsonMessageConverter();
+        Map<String, SmartMessageConverter> codecs = Map.of(
+                MessageProperties.CONTENT_TYPE_JSON, new Jackson2JsonMessageConverter(),
+                Jackson2CborMessageConverter.CONTENT_TYPE, new Jackson2CborMessageConverter(MESSAGE_TYPES));
+
+        //I servizi non aggiornati inviano solo JSON
+        return new ContentNegotiatingMessageConverter(codecs, MessageProperties.CONTENT_TYPE_JSON, outgoingContentType);
     }
 
+    // ------  END CODEC  ------ //
+
     /**
      * Creates an AMQP template for sending messages.
      *
@@ -177,4 +310,17 @@ public class RabbitMQConfig {
         rabbitTemplate.setMessageConverter(converter());
         return rabbitTemplate;
     }
+
+    /**
+     * Creates the template used for request/reply calls.
+     * Replies come back on the direct reply-to pseudo queue and are matched to the pending
+     * requests by correlation id, so no thread waits for them.
+     *
+     * @param rabbitTemplate the template used to send the requests.
+     * @return a new AsyncRabbitTemplate instance.
+     */
+    @Bean
+    public AsyncRabbitTemplate asyncRabbitTemplate(RabbitTemplate rabbitTemplate) {
+        return new AsyncRabbitTemplate(rabbitTemplate);
+    }
 }
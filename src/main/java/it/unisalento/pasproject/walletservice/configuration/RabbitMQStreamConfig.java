@@ -0,0 +1,80 @@
+package it.unisalento.pasproject.walletservice.configuration;
+
+import com.rabbitmq.stream.Environment;
+import it.unisalento.pasproject.walletservice.service.WalletStreamMessageHandler;
+import org.springframework.amqp.core.*;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.rabbit.stream.config.StreamRabbitListenerContainerFactory;
+
+/**
+ * Stream ingestion mode of the transactions, enabled with {@code rabbitmq.listener.transaction.stream.enabled=true}.
+ */
+@Configuration
+@ConditionalOnProperty(name = "rabbitmq.listener.transaction.stream.enabled", havingValue = "true")
+public class RabbitMQStreamConfig {
+
+    @Value("${rabbitmq.stream.transaction.name}")
+    private String transactionStream;
+
+    @Value("${rabbitmq.stream.transaction.max-age}")
+    private String transactionStreamMaxAge;
+
+    @Value("${rabbitmq.stream.transaction.consumer}")
+    private String transactionStreamConsumer;
+
+    @Value("${rabbitmq.routing.streamTransaction.key}")
+    private String transactionStreamRoutingKey;
+
+    /**
+     * Creates the stream of the transactions. Messages are kept for {@code max-age},
+     * which bounds how far back the consumption can be replayed.
+     *
+     * @return a new stream Queue instance.
+     */
+    @Bean
+    public Queue transactionStream() {
+        return QueueBuilder.durable(transactionStream)
+                .stream()
+                .withArgument("x-max-age", transactionStreamMaxAge)
+                .build();
+    }
+
+    @Bean
+    public Binding transactionStreamBinding(TopicExchange transactionExchange) {
+        return BindingBuilder
+                .bind(transactionStream())
+                .to(transactionExchange)
+                .with(transactionStreamRoutingKey);
+    }
+
+    /**
+     * Creates the container factory used by the stream transaction listener.
+     * <p>
+     * The listener gets the native stream messages, and the consumer starts from the offset
+     * stored on Mongo instead of the one tracked by the broker. Every instance uses the same consumer
+     * name as single active consumer, so only one of them consumes the stream at a time.
+     * </p>
+     *
+     * @param environment the stream environment configured by Spring Boot.
+     * @param handler the stream listener, which knows where the consumption stopped. Looked up when the
+     *                consumer is created, since the listener itself needs this factory.
+     * @return a new StreamRabbitListenerContainerFactory instance.
+     */
+    @Bean
+    public StreamRabbitListenerContainerFactory transactionStreamContainerFactory(Environment environment,
+                                                                                  ObjectProvider<WalletStreamMessageHandler> handler) {
+        StreamRabbitListenerContainerFactory factory = new StreamRabbitListenerContainerFactory(environment);
+        factory.setNativeListener(true);
+        //L'offset è salvato su Mongo, il broker non deve tracciarlo
+        factory.setConsumerCustomizer((id, builder) -> builder
+                .name(transactionStreamConsumer)
+                .singleActiveConsumer()
+                .noTrackingStrategy()
+                .consumerUpdateListener(context -> handler.getObject().onConsumerUpdate(context.isActive())));
+        return factory;
+    }
+}
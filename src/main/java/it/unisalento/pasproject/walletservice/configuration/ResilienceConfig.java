@@ -0,0 +1,95 @@
+package it.unisalento.pasproject.walletservice.configuration;
+
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import io.github.resilience4j.circuitbreaker.CircuitBreakerConfig;
+import io.github.resilience4j.circuitbreaker.CircuitBreakerRegistry;
+import io.github.resilience4j.micrometer.tagged.TaggedCircuitBreakerMetrics;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.time.Duration;
+
+@Configuration
+public class ResilienceConfig {
+
+    public static final String SECURITY_CIRCUIT_BREAKER = "securityCircuitBreaker";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ResilienceConfig.class);
+
+    @Value("${wallet.security.circuit.window.size}")
+    private int windowSize;
+
+    @Value("${wallet.security.circuit.minimum.calls}")
+    private int minimumCalls;
+
+    @Value("${wallet.security.circuit.failure.rate}")
+    private float failureRate;
+
+    @Value("${wallet.security.circuit.slow.rate}")
+    private float slowRate;
+
+    @Value("${wallet.security.circuit.slow.duration}")
+    private long slowDuration;
+
+    @Value("${wallet.security.circuit.open.wait}")
+    private long openWait;
+
+    @Value("${wallet.security.circuit.half-open.calls}")
+    private int halfOpenCalls;
+
+    /**
+     * Creates the registry of the circuit breakers, with their state and calls exported to Micrometer.
+     *
+     * @param meterRegistry the registry of the metrics.
+     * @return a new CircuitBreakerRegistry instance.
+     */
+    @Bean
+    public CircuitBreakerRegistry circuitBreakerRegistry(MeterRegistry meterRegistry) {
+        CircuitBreakerRegistry registry = CircuitBreakerRegistry.ofDefaults();
+        TaggedCircuitBreakerMetrics.ofCircuitBreakerRegistry(registry).bindTo(meterRegistry);
+        return registry;
+    }
+
+    /**
+     * Creates the circuit breaker of the requests to the security service.
+     * The failure and slow call rates are computed on a window of the last calls,
+     * after an open period a few probe calls decide whether to close it again.
+     *
+     * @param registry the registry of the circuit breakers.
+     * @param meterRegistry the registry of the metrics, used to count the state transitions.
+     * @return the circuit breaker of the security service.
+     */
+    @Bean(SECURITY_CIRCUIT_BREAKER)
+    public CircuitBreaker securityCircuitBreaker(CircuitBreakerRegistry registry, MeterRegistry meterRegistry) {
+        CircuitBreakerConfig config = CircuitBreakerConfig.custom()
+                .slidingWindowType(CircuitBreakerConfig.SlidingWindowType.COUNT_BASED)
+                .slidingWindowSize(windowSize)
+                .minimumNumberOfCalls(minimumCalls)
+                .failureRateThreshold(failureRate)
+                .slowCallRateThreshold(slowRate)
+                .slowCallDurationThreshold(Duration.ofMillis(slowDuration))
+                .waitDurationInOpenState(Duration.ofMillis(openWait))
+                .permittedNumberOfCallsInHalfOpenState(halfOpenCalls)
+                .automaticTransitionFromOpenToHalfOpenEnabled(true)
+                .build();
+
+        CircuitBreaker circuitBreaker = registry.circuitBreaker("security", config);
+
+        circuitBreaker.getEventPublisher().onStateTransition(event -> {
+            LOGGER.warn("Security circuit breaker: {}", event.getStateTransition());
+            Counter.builder("wallet.security.circuit.transitions")
+                    .description("State transitions of the security circuit breaker")
+                    .tag("from", event.getStateTransition().getFromState().name())
+                    .tag("to", event.getStateTransition().getToState().name())
+                    .register(meterRegistry)
+                    .increment();
+        });
+
+        return circuitBreaker;
+    }
+}
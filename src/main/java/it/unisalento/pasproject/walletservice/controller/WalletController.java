@@ -1,19 +1,49 @@
 package it.unisalento.pasproject.walletservice.controller;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import it.unisalento.pasproject.walletservice.business.engine.BalanceEngine;
+import it.unisalento.pasproject.walletservice.business.events.WalletChangedEvent;
+import it.unisalento.pasproject.walletservice.domain.BulkJob;
+import it.unisalento.pasproject.walletservice.domain.LedgerEntry;
 import it.unisalento.pasproject.walletservice.domain.Wallet;
+import it.unisalento.pasproject.walletservice.dto.BulkJobDTO;
+import it.unisalento.pasproject.walletservice.dto.BulkOperationDTO;
+import it.unisalento.pasproject.walletservice.dto.LedgerCheckDTO;
+import it.unisalento.pasproject.walletservice.dto.WalletBatchRequestDTO;
 import it.unisalento.pasproject.walletservice.dto.WalletDTO;
 import it.unisalento.pasproject.walletservice.dto.WalletListDTO;
+import it.unisalento.pasproject.walletservice.dto.WalletPageDTO;
+import it.unisalento.pasproject.walletservice.dto.WalletStatsDTO;
+import it.unisalento.pasproject.walletservice.exceptions.BadRequestException;
+import it.unisalento.pasproject.walletservice.exceptions.BulkJobNotFoundException;
 import it.unisalento.pasproject.walletservice.exceptions.WalletNotFoundException;
 import it.unisalento.pasproject.walletservice.exceptions.WrongUserException;
 import it.unisalento.pasproject.walletservice.repositories.WalletRepository;
+import it.unisalento.pasproject.walletservice.service.BulkOperationService;
+import it.unisalento.pasproject.walletservice.service.LeaderboardService;
+import it.unisalento.pasproject.walletservice.service.LedgerService;
 import it.unisalento.pasproject.walletservice.service.UserCheckService;
+import it.unisalento.pasproject.walletservice.service.WalletReadCache;
 import it.unisalento.pasproject.walletservice.service.WalletService;
+import it.unisalento.pasproject.walletservice.service.WalletStatsService;
+import org.bson.types.ObjectId;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.http.CacheControl;
 import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.security.access.annotation.Secured;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.stream.Stream;
 
 import static it.unisalento.pasproject.walletservice.security.SecurityConstants.*;
 
@@ -26,15 +56,56 @@ public class WalletController {
 
     private final WalletRepository walletRepository;
 
+    private final BalanceEngine balanceEngine;
+
+    private final LedgerService ledgerService;
+
+    private final ApplicationEventPublisher eventPublisher;
+
+    private final ObjectMapper objectMapper;
+
+    private final WalletReadCache walletReadCache;
+
+    private final BulkOperationService bulkOperationService;
+
+    private final WalletStatsService walletStatsService;
+
+    private final LeaderboardService leaderboardService;
+
+    private static final int MAX_PAGE_SIZE = 1000;
+
+    private static final int MAX_BATCH_SIZE = 1000;
+
     @Autowired
-    public WalletController(WalletService walletService, WalletRepository walletRepository, UserCheckService userCheckService) {
+    public WalletController(WalletService walletService, WalletRepository walletRepository, BalanceEngine balanceEngine,
+                            UserCheckService userCheckService, LedgerService ledgerService, ApplicationEventPublisher eventPublisher, ObjectMapper objectMapper,
+                            WalletReadCache walletReadCache, BulkOperationService bulkOperationService,
+                            WalletStatsService walletStatsService, LeaderboardService leaderboardService) {
         this.walletRepository = walletRepository;
+        this.balanceEngine = balanceEngine;
         this.walletService = walletService;
         this.userCheckService = userCheckService;
+        this.ledgerService = ledgerService;
+        this.eventPublisher = eventPublisher;
+        this.objectMapper = objectMapper;
+        this.walletReadCache = walletReadCache;
+        this.bulkOperationService = bulkOperationService;
+        this.walletStatsService = walletStatsService;
+        this.leaderboardService = leaderboardService;
     }
 
+    /**
+     * Get the wallet of the given owner, or of the current user.
+     * <p>
+     * The response carries the version of the wallet as ETag; a request with a matching If-None-Match
+     * is answered with 304 and no body. Wallets are served from the {@link WalletReadCache}.
+     * </p>
+     * @param email the email of the owner, the current user if missing
+     * @return the wallet
+     * @throws WalletNotFoundException if the owner has no wallet
+     */
     @GetMapping(value="/find")
-    public WalletDTO getWallet(@RequestParam(required = false) String email) throws WalletNotFoundException {
+    public ResponseEntity<WalletDTO> getWallet(@RequestParam(required = false) String email) throws WalletNotFoundException {
 
         //Fallback to current session user
         if (email == null){
@@ -46,16 +117,65 @@ public class WalletController {
             throw new WrongUserException("User not allowed to access wallet owner: " + email);
         }
 
-        Optional<WalletDTO> walletDTO = walletRepository.findByEmail(email).map(walletService::getWalletDTO);
+        Optional<WalletReadCache.Entry> cached = walletReadCache.find(email);
 
-        if(walletDTO.isEmpty()){
+        if(cached.isEmpty()){
             throw new WalletNotFoundException("Wallet not found for owner: " + email);
         }
 
-        return walletDTO.get();
+        //Il 304 viene restituito da Spring se l'ETag coincide con If-None-Match
+        return ResponseEntity.ok()
+                .eTag(cached.get().etag())
+                .cacheControl(CacheControl.noCache().cachePrivate())
+                .body(cached.get().wallet());
 
     }
 
+    /**
+     * Get the wallets of many owners at once.
+     * Users can only ask for their own wallet, administrators for any wallet.
+     * @param request the emails of the owners
+     * @return the wallets found, in the order of the request (owners without a wallet are skipped)
+     * @throws BadRequestException if an email is null or blank, or too many wallets are requested
+     */
+    @PostMapping(value="/find/batch", consumes = MediaType.APPLICATION_JSON_VALUE)
+    public WalletListDTO getWalletsBatch(@RequestBody WalletBatchRequestDTO request) {
+        List<String> emails = request.getEmails() == null ? List.of() : request.getEmails().stream().distinct().toList();
+
+        if (emails.size() > MAX_BATCH_SIZE) {
+            throw new BadRequestException("At most " + MAX_BATCH_SIZE + " wallets can be requested at once");
+        }
+
+        //Prima del controllo del proprietario, che altrimenti fallirebbe con un NullPointerException
+        if (emails.stream().anyMatch(email -> email == null || email.isBlank())) {
+            throw new BadRequestException("Emails can't be null or blank");
+        }
+
+        if (Boolean.TRUE.equals(!userCheckService.isAdministrator())) {
+            String currentUser = userCheckService.getCurrentUserEmail();
+
+            for (String email : emails) {
+                if (!email.equals(currentUser)) {
+                    throw new WrongUserException("User not allowed to access wallet owner: " + email);
+                }
+            }
+        }
+
+        Map<String, Wallet> wallets = new HashMap<>();
+
+        if (!emails.isEmpty()) {
+            walletRepository.findSummariesByEmailIn(emails).forEach(wallet -> wallets.put(wallet.getEmail(), wallet));
+        }
+
+        WalletListDTO walletListDTO = new WalletListDTO();
+        walletListDTO.setWallets(emails.stream()
+                .map(wallets::get)
+                .filter(Objects::nonNull)
+                .map(walletService::getWalletDTO)
+                .toList());
+        return walletListDTO;
+    }
+
     @GetMapping(value="/findall")
     @Secured({ROLE_ADMIN})
     public WalletListDTO getWallets() {
@@ -64,6 +184,95 @@ public class WalletController {
         return walletListDTO;
     }
 
+    /**
+     * Get the statistics of all the wallets, kept in memory and reconciled periodically with the database
+     * @return counts, total and mean balance and the quantiles of the balances
+     */
+    @GetMapping(value="/stats")
+    @Secured({ROLE_ADMIN})
+    public WalletStatsDTO getStats() {
+        return walletStatsService.getStats();
+    }
+
+    /**
+     * Get the enabled wallets with the highest or the lowest balances, kept in memory
+     * @param board HIGHEST for the highest balances first, LOWEST for the lowest first
+     * @param size the number of wallets
+     * @return the wallets in leaderboard order
+     */
+    @GetMapping(value="/leaderboard")
+    @Secured({ROLE_ADMIN})
+    public WalletListDTO getLeaderboard(@RequestParam(defaultValue = "HIGHEST") LeaderboardService.Board board,
+                                        @RequestParam(defaultValue = "10") int size) {
+        WalletListDTO walletListDTO = new WalletListDTO();
+        walletListDTO.setWallets(leaderboardService.getLeaderboard(board, size).stream()
+                .map(entry -> new WalletDTO(entry.email(), entry.balance(), true))
+                .toList());
+        return walletListDTO;
+    }
+
+    /**
+     * Get one page of wallets, in creation order
+     * @param after the cursor returned with the previous page, omitted for the first page
+     * @param size the maximum number of wallets in the page
+     * @param enabled only wallets with this enabled flag
+     * @param minBalance only wallets with at least this balance
+     * @param maxBalance only wallets with at most this balance
+     * @return the wallets of the page and the cursor of the next one
+     */
+    @GetMapping(value="/findall/page")
+    @Secured({ROLE_ADMIN})
+    public WalletPageDTO getWalletsPage(@RequestParam(required = false) String after,
+                                        @RequestParam(defaultValue = "100") int size,
+                                        @RequestParam(required = false) Boolean enabled,
+                                        @RequestParam(required = false) Double minBalance,
+                                        @RequestParam(required = false) Double maxBalance) {
+        if (size < 1 || size > MAX_PAGE_SIZE) {
+            throw new BadRequestException("Page size must be between 1 and " + MAX_PAGE_SIZE);
+        }
+
+        if (after != null && !ObjectId.isValid(after)) {
+            throw new BadRequestException("Invalid cursor: " + after);
+        }
+
+        List<Wallet> wallets = walletRepository.findPage(after, size, enabled, minBalance, maxBalance);
+
+        WalletPageDTO walletPageDTO = new WalletPageDTO();
+        walletPageDTO.setWallets(wallets.stream().map(walletService::getWalletDTO).toList());
+        walletPageDTO.setNext(wallets.size() == size ? wallets.get(wallets.size() - 1).getId() : null);
+        return walletPageDTO;
+    }
+
+    /**
+     * Stream all the wallets as newline delimited JSON, read from a database cursor
+     * and written one by one, so memory use doesn't grow with the number of wallets
+     * @param enabled only wallets with this enabled flag
+     * @param minBalance only wallets with at least this balance
+     * @param maxBalance only wallets with at most this balance
+     * @return one wallet per line
+     */
+    @GetMapping(value="/findall/stream", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    @Secured({ROLE_ADMIN})
+    public ResponseEntity<StreamingResponseBody> streamWallets(@RequestParam(required = false) Boolean enabled,
+                                                               @RequestParam(required = false) Double minBalance,
+                                                               @RequestParam(required = false) Double maxBalance) {
+        StreamingResponseBody body = outputStream -> {
+            try (Stream<Wallet> wallets = walletRepository.streamAll(enabled, minBalance, maxBalance);
+                 JsonGenerator generator = objectMapper.getFactory().createGenerator(outputStream)) {
+                generator.setRootValueSeparator(null);
+
+                for (Wallet wallet : (Iterable<Wallet>) wallets::iterator) {
+                    generator.writeObject(walletService.getWalletDTO(wallet));
+                    generator.writeRaw('\n');
+                }
+            }
+        };
+
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_NDJSON)
+                .body(body);
+    }
+
     /**
      * Add a new wallet for the user
      * @param walletDTO the wallet to add
@@ -89,7 +298,7 @@ public class WalletController {
             walletDTO.setBalance(0.0);
         }
 
-        return walletService.getWalletDTO(walletRepository.save(walletService.getWallet(walletDTO)));
+        return createWallet(walletDTO);
     }
 
     @PostMapping(value="/add")
@@ -116,55 +325,126 @@ public class WalletController {
         walletDTO.setEmail(email);
         walletDTO.setIsEnable(true);
 
-        return walletService.getWalletDTO(walletRepository.save(walletService.getWallet(walletDTO)));
+        return createWallet(walletDTO);
     }
 
-    @PutMapping(value="/update/balance")
-    @Secured({ROLE_ADMIN})
-    public WalletDTO updateBalance(@RequestParam String email, @RequestParam double balance) throws WalletNotFoundException {
-
-        Optional<Wallet> wallet = walletRepository.findByEmail(email);
+    private WalletDTO createWallet(WalletDTO walletDTO) {
+        Wallet saved;
 
-        if (wallet.isEmpty()) {
-            throw new WalletNotFoundException("Wallet not found for owner: " + email);
+        try {
+            saved = walletRepository.save(walletService.getWallet(walletDTO));
+        } catch (DuplicateKeyException e) {
+            // Created in the meantime by a concurrent request, return it as if it already existed
+            return walletRepository.findByEmail(walletDTO.getEmail()).map(walletService::getWalletDTO).orElseThrow(() -> e);
         }
 
-        Wallet ret = wallet.get();
-        ret.setBalance(balance);
+        ledgerService.record(saved.getEmail(), LedgerEntry.Type.OPENING, saved.getBalance());
+        eventPublisher.publishEvent(new WalletChangedEvent(this, saved.getEmail(), saved.getBalance(), saved.getIsEnable()));
 
-        return walletService.getWalletDTO(walletRepository.save(ret));
+        return walletService.getWalletDTO(saved);
+    }
+
+    /**
+     * Set the balance of a wallet with a single atomic update, so concurrent transfers are never overwritten
+     * @param email the email of the owner
+     * @param balance the new balance
+     * @return the updated wallet
+     * @throws WalletNotFoundException if the owner has no wallet
+     */
+    @PutMapping(value="/update/balance")
+    @Secured({ROLE_ADMIN})
+    public WalletDTO updateBalance(@RequestParam String email, @RequestParam double balance) throws WalletNotFoundException {
+        return setBalance(email, balance);
     }
 
     @PutMapping(value="/update/enable")
     @Secured({ROLE_ADMIN})
     public WalletDTO updateEnable(@RequestParam String email, @RequestParam boolean isEnable) throws WalletNotFoundException {
 
-        Optional<Wallet> wallet = walletRepository.findByEmail(email);
+        Optional<Wallet> updated = balanceEngine.setEnabled(email, isEnable);
 
-        if (wallet.isEmpty()) {
+        if (updated.isEmpty()) {
             throw new WalletNotFoundException("Wallet not found for owner: " + email);
         }
 
-        Wallet ret = wallet.get();
-        ret.setIsEnable(isEnable);
+        eventPublisher.publishEvent(new WalletChangedEvent(this, email, updated.get().getBalance(), isEnable));
 
-        return walletService.getWalletDTO(walletRepository.save(ret));
+        return walletService.getWalletDTO(updated.get());
     }
 
     @PutMapping(value="/reset")
     @Secured({ROLE_ADMIN})
     public WalletDTO resetWallet(@RequestParam String email) throws WalletNotFoundException {
+        return setBalance(email, 0.0);
+    }
 
-        Optional<Wallet> wallet = walletRepository.findByEmail(email);
+    /**
+     * Start a bulk enable, disable or reset of the selected wallets, run in background
+     * @param request the operation and the selection of the wallets
+     * @return the queued job, to poll with {@link #getBulkJob(String)}
+     */
+    @PostMapping(value="/bulk")
+    @Secured({ROLE_ADMIN})
+    public ResponseEntity<BulkJobDTO> startBulkOperation(@RequestBody BulkOperationDTO request) {
+        BulkJob job = bulkOperationService.submit(request, userCheckService.getCurrentUserEmail());
+
+        return ResponseEntity.accepted().body(bulkOperationService.getBulkJobDTO(job));
+    }
 
-        if (wallet.isEmpty()) {
+    @GetMapping(value="/bulk/{id}")
+    @Secured({ROLE_ADMIN})
+    public BulkJobDTO getBulkJob(@PathVariable String id) {
+        return bulkOperationService.findJob(id)
+                .map(bulkOperationService::getBulkJobDTO)
+                .orElseThrow(() -> new BulkJobNotFoundException("Bulk job not found: " + id));
+    }
+
+    /**
+     * Compare the balance of a wallet with the one rebuilt from its ledger history
+     * @param email the email of the owner
+     * @return the balance, the ledger balance and their difference
+     * @throws WalletNotFoundException if the owner has no wallet
+     */
+    @GetMapping(value="/ledger/check")
+    @Secured({ROLE_ADMIN})
+    public LedgerCheckDTO checkLedger(@RequestParam String email) throws WalletNotFoundException {
+        return ledgerService.check(email, currentBalance(email));
+    }
+
+    /**
+     * Record the difference between the balance of a wallet and its ledger history as an adjustment.
+     * The balance is not changed, only the ledger is brought back in line with it.
+     * @param email the email of the owner
+     * @return the check made before the repair
+     * @throws WalletNotFoundException if the owner has no wallet
+     */
+    @PutMapping(value="/ledger/repair")
+    @Secured({ROLE_ADMIN})
+    public LedgerCheckDTO repairLedger(@RequestParam String email) throws WalletNotFoundException {
+        return ledgerService.repair(email, currentBalance(email));
+    }
+
+    private double currentBalance(String email) throws WalletNotFoundException {
+        return walletReadCache.find(email)
+                .map(cached -> cached.wallet().getBalance())
+                .orElseThrow(() -> new WalletNotFoundException("Wallet not found for owner: " + email));
+    }
+
+    private WalletDTO setBalance(String email, double balance) throws WalletNotFoundException {
+        Optional<Wallet> previous = balanceEngine.setBalance(email, balance);
+
+        if (previous.isEmpty()) {
             throw new WalletNotFoundException("Wallet not found for owner: " + email);
         }
 
-        Wallet ret = wallet.get();
-        ret.setBalance(0.0);
+        ledgerService.record(email, LedgerEntry.Type.ADJUSTMENT, balance - previous.get().getBalance());
+        eventPublisher.publishEvent(new WalletChangedEvent(this, email, balance, null));
+
+        //Il documento restituito è quello precedente, l'unico campo cambiato è il saldo
+        WalletDTO walletDTO = walletService.getWalletDTO(previous.get());
+        walletDTO.setBalance(balance);
 
-        return walletService.getWalletDTO(walletRepository.save(ret));
+        return walletDTO;
     }
 
 
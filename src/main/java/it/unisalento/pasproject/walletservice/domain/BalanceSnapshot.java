@@ -0,0 +1,28 @@
+package it.unisalento.pasproject.walletservice.domain;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.IndexDirection;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+
+/**
+ * Compacted balance of a wallet, including every ledger entry recorded before the timestamp.
+ */
+@Getter
+@Setter
+@Document(collection = "balance_snapshot")
+@CompoundIndex(name = "email_timestamp", def = "{'email': 1, 'timestamp': -1}")
+public class BalanceSnapshot {
+    @Id
+    private String id;
+    private String email;
+    private double balance;
+    //Usato dalla compattazione per trovare e annullare l'ultima serie di snapshot
+    @Indexed(direction = IndexDirection.DESCENDING)
+    private Instant timestamp;
+}
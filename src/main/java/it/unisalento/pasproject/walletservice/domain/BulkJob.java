@@ -0,0 +1,47 @@
+package it.unisalento.pasproject.walletservice.domain;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+
+/**
+ * Progress of a bulk admin operation, run in background and polled by id
+ */
+@Getter
+@Setter
+@Document(collection = "bulk_job")
+public class BulkJob {
+
+    public enum Operation {
+        ENABLE,
+        DISABLE,
+        RESET
+    }
+
+    public enum Status {
+        PENDING,
+        RUNNING,
+        COMPLETED,
+        FAILED
+    }
+
+    @Id
+    private String id;
+    private Operation operation;
+    private Status status;
+    private String requestedBy;
+    //Wallet che corrispondevano al filtro all'avvio del job
+    private long total;
+    private long processed;
+    private long modified;
+    private Instant createdAt;
+    private Instant startedAt;
+    private Instant finishedAt;
+    private String error;
+    //Istanza che esegue il job, aggiorna heartbeatAt finché il job non è concluso
+    private String instance;
+    private Instant heartbeatAt;
+}
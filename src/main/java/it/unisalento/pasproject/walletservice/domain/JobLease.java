@@ -0,0 +1,22 @@
+package it.unisalento.pasproject.walletservice.domain;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+
+/**
+ * Lease of a job that must run on one instance at a time, one document per job.
+ * The owner keeps the lease until it releases it or until it expires.
+ */
+@Getter
+@Setter
+@Document(collection = "job_lease")
+public class JobLease {
+    @Id
+    private String name;
+    private String owner;
+    private Instant expiresAt;
+}
@@ -0,0 +1,44 @@
+package it.unisalento.pasproject.walletservice.domain;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+
+/**
+ * Append-only record of a balance change of a wallet.
+ * Entries are never updated, the balance at any time is the latest snapshot plus the entries recorded after it.
+ */
+@Getter
+@Setter
+@Document(collection = "ledger")
+@CompoundIndex(name = "email_recordedAt", def = "{'email': 1, 'recordedAt': 1}")
+public class LedgerEntry {
+
+    public enum Type {
+        OPENING,
+        TRANSFER_DEBIT,
+        TRANSFER_CREDIT,
+        DEPOSIT,
+        SUBTRACT,
+        REFILL,
+        ADJUSTMENT
+    }
+
+    @Id
+    private String id;
+    private String email;
+    private Type type;
+    //Variazione del saldo, negativa per i prelievi
+    private double amount;
+    private String transactionId;
+    //Istante della variazione, conservato anche quando il salvataggio viene ritentato
+    private Instant timestamp;
+    //Istante del salvataggio, usato dalla compattazione che somma le voci di tutti i wallet per intervallo di tempo
+    @Indexed
+    private Instant recordedAt;
+}
@@ -0,0 +1,29 @@
+package it.unisalento.pasproject.walletservice.domain;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+
+/**
+ * Outcome of an already processed transaction, used to answer redelivered messages.
+ * A transaction being applied is stored first with the {@link #PENDING} code.
+ * Documents are removed by a TTL index once redeliveries are no longer possible.
+ */
+@Getter
+@Setter
+@Document(collection = "processed_transaction")
+public class ProcessedTransaction {
+    //Transazione presa in carico ma senza esito, inserita prima di toccare i saldi
+    public static final int PENDING = 0;
+
+    @Id
+    private String id;
+    private int code;
+
+    @Indexed(expireAfter = "7d")
+    private Instant processedAt;
+}
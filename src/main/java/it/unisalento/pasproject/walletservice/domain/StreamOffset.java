@@ -0,0 +1,23 @@
+package it.unisalento.pasproject.walletservice.domain;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+
+/**
+ * Offset of the last stream message whose effects have been applied, one document per stream.
+ */
+@Getter
+@Setter
+@Document(collection = "stream_offset")
+public class StreamOffset {
+    @Id
+    private String stream;
+    private long offset;
+    //Ultimo replay eseguito, così un replay.offset rimasto nella configurazione non viene ripetuto a ogni avvio
+    private String replayId;
+    private Instant updatedAt;
+}
@@ -2,14 +2,32 @@ package it.unisalento.pasproject.walletservice.domain;
 
 import lombok.Getter;
 import lombok.Setter;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.Indexed;
 import org.springframework.data.mongodb.core.mapping.Document;
 
+import java.util.List;
+
 @Getter
 @Setter
 @Document(collection = "wallet")
+//Classifica dei saldi, letta in entrambe le direzioni
+@CompoundIndex(name = "enable_balance", def = "{'isEnable': 1, 'balance': -1}")
 public class Wallet {
     private String id;
+    //Un solo wallet per utente, anche con creazioni concorrenti
+    @Indexed(unique = true)
     private String email;
     private double balance;
     private Boolean isEnable;
+    //Ultima sequenza del journal applicata al saldo, usata solo dall'engine in memoria
+    private Long engineSeq;
+    //Incrementata a ogni modifica del wallet, esposta come ETag dalla /find
+    private Long version;
+    //Ultimo job massivo che ha modificato il wallet, così il job sa quali wallet ha cambiato davvero
+    private String bulkJob;
+    //Saldo precedente all'azzeramento, letto per le rettifiche del ledger
+    private Double resetBalance;
+    //Ultimi batch di trasferimenti applicati al saldo, così una scrittura ripetuta non viene applicata due volte
+    private List<String> transferBatches;
 }
@@ -0,0 +1,22 @@
+package it.unisalento.pasproject.walletservice.dto;
+
+import it.unisalento.pasproject.walletservice.domain.BulkJob;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.time.Instant;
+
+@Getter
+@Setter
+public class BulkJobDTO {
+    private String id;
+    private BulkJob.Operation operation;
+    private BulkJob.Status status;
+    private long total;
+    private long processed;
+    private long modified;
+    private Instant createdAt;
+    private Instant startedAt;
+    private Instant finishedAt;
+    private String error;
+}
@@ -0,0 +1,22 @@
+package it.unisalento.pasproject.walletservice.dto;
+
+import it.unisalento.pasproject.walletservice.domain.BulkJob;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.List;
+
+/**
+ * Bulk admin operation on the wallets selected by the given emails and filters, all combined.
+ * Without emails and filters nothing is selected, unless all is true.
+ */
+@Getter
+@Setter
+public class BulkOperationDTO {
+    private BulkJob.Operation operation;
+    private List<String> emails;
+    private Boolean enabled;
+    private Double minBalance;
+    private Double maxBalance;
+    private boolean all;
+}
@@ -0,0 +1,32 @@
+package it.unisalento.pasproject.walletservice.dto;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.List;
+
+/**
+ * Eviction notice for the state cached about a user.
+ * Only the email is read, so the user data and refill messages of the data exchange
+ * are accepted as they are. The wallets changed by this service are announced in batches.
+ * The users list evicts everything cached about the listed users.
+ */
+@Getter
+@Setter
+public class InvalidationDTO {
+    private String email;
+    private List<String> users;
+    private List<String> wallets;
+
+    public InvalidationDTO() {
+    }
+
+    public InvalidationDTO(String email) {
+        this.email = email;
+    }
+
+    public InvalidationDTO(List<String> users, List<String> wallets) {
+        this.users = users;
+        this.wallets = wallets;
+    }
+}
@@ -0,0 +1,14 @@
+package it.unisalento.pasproject.walletservice.dto;
+
+import lombok.Getter;
+import lombok.Setter;
+
+@Getter
+@Setter
+public class LedgerCheckDTO {
+    private String email;
+    private double balance;
+    private double ledgerBalance;
+    //Saldo meno saldo ricostruito dal ledger, 0 se coincidono
+    private double difference;
+}
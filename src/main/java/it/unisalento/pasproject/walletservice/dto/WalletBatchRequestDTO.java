@@ -0,0 +1,12 @@
+package it.unisalento.pasproject.walletservice.dto;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.List;
+
+@Getter
+@Setter
+public class WalletBatchRequestDTO {
+    private List<String> emails;
+}
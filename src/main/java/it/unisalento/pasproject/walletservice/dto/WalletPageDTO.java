@@ -0,0 +1,14 @@
+package it.unisalento.pasproject.walletservice.dto;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.List;
+
+@Getter
+@Setter
+public class WalletPageDTO {
+    private List<WalletDTO> wallets;
+    //Cursore da passare come "after" per la pagina successiva, null sull'ultima pagina
+    private String next;
+}
@@ -0,0 +1,19 @@
+package it.unisalento.pasproject.walletservice.dto;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.time.Instant;
+import java.util.Map;
+
+@Getter
+@Setter
+public class WalletStatsDTO {
+    private long wallets;
+    private long enabled;
+    private long disabled;
+    private double totalBalance;
+    private double meanBalance;
+    private Map<String, Double> quantiles;
+    private Instant reconciledAt;
+}
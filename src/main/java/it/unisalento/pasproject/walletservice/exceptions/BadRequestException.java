@@ -0,0 +1,11 @@
+package it.unisalento.pasproject.walletservice.exceptions;
+
+import org.springframework.http.HttpStatus;
+
+
+public class BadRequestException extends CustomErrorException {
+
+    public BadRequestException(String message) {
+        super(message, HttpStatus.BAD_REQUEST);
+    }
+}
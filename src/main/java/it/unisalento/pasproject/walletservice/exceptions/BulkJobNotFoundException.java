@@ -0,0 +1,11 @@
+package it.unisalento.pasproject.walletservice.exceptions;
+
+import org.springframework.http.HttpStatus;
+
+
+public class BulkJobNotFoundException extends CustomErrorException {
+
+    public BulkJobNotFoundException(String message) {
+        super(message, HttpStatus.NOT_FOUND);
+    }
+}
@@ -0,0 +1,13 @@
+package it.unisalento.pasproject.walletservice.repositories;
+
+import it.unisalento.pasproject.walletservice.domain.BalanceSnapshot;
+import org.springframework.data.mongodb.repository.MongoRepository;
+
+import java.time.Instant;
+import java.util.Optional;
+
+public interface BalanceSnapshotRepository extends MongoRepository<BalanceSnapshot, String>, BalanceSnapshotRepositoryCustom {
+    Optional<BalanceSnapshot> findFirstByEmailOrderByTimestampDesc(String email);
+    Optional<BalanceSnapshot> findFirstByOrderByTimestampDesc();
+    void deleteByTimestamp(Instant timestamp);
+}
@@ -0,0 +1,13 @@
+package it.unisalento.pasproject.walletservice.repositories;
+
+import java.util.Collection;
+import java.util.Map;
+
+public interface BalanceSnapshotRepositoryCustom {
+    /**
+     * Find the balance of the latest snapshot of a group of wallets with a single query
+     * @param emails the emails of the wallets
+     * @return the latest snapshot balance of every wallet that has one, keyed by email
+     */
+    Map<String, Double> findLatestBalances(Collection<String> emails);
+}
@@ -0,0 +1,44 @@
+package it.unisalento.pasproject.walletservice.repositories;
+
+import it.unisalento.pasproject.walletservice.domain.BalanceSnapshot;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.query.Criteria;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+public class BalanceSnapshotRepositoryCustomImpl implements BalanceSnapshotRepositoryCustom {
+
+    private final MongoTemplate mongoTemplate;
+
+    @Autowired
+    public BalanceSnapshotRepositoryCustomImpl(MongoTemplate mongoTemplate) {
+        this.mongoTemplate = mongoTemplate;
+    }
+
+    @Override
+    public Map<String, Double> findLatestBalances(Collection<String> emails) {
+        Map<String, Double> balances = new HashMap<>();
+
+        if (emails.isEmpty()) {
+            return balances;
+        }
+
+        //Ordinamento coperto dall'indice email_timestamp
+        Aggregation aggregation = Aggregation.newAggregation(
+                Aggregation.match(Criteria.where("email").in(emails)),
+                Aggregation.sort(Sort.by(Sort.Order.asc("email"), Sort.Order.desc("timestamp"))),
+                Aggregation.group("email").first("balance").as("balance"));
+
+        for (Document result : mongoTemplate.aggregate(aggregation, BalanceSnapshot.class, Document.class)) {
+            balances.put(result.getString("_id"), result.get("balance", Number.class).doubleValue());
+        }
+
+        return balances;
+    }
+}
@@ -0,0 +1,7 @@
+package it.unisalento.pasproject.walletservice.repositories;
+
+import it.unisalento.pasproject.walletservice.domain.BulkJob;
+import org.springframework.data.mongodb.repository.MongoRepository;
+
+public interface BulkJobRepository extends MongoRepository<BulkJob, String>, BulkJobRepositoryCustom {
+}
@@ -0,0 +1,54 @@
+package it.unisalento.pasproject.walletservice.repositories;
+
+import it.unisalento.pasproject.walletservice.domain.BulkJob;
+
+import java.time.Instant;
+
+public interface BulkJobRepositoryCustom {
+    /**
+     * Mark a pending job of an instance as running
+     * @param id the id of the job
+     * @param instance the id of the instance running the job
+     * @param total the number of wallets selected
+     * @param now the time the job starts at
+     * @return true if updated, false if the job is no longer pending on the instance (e.g. failed as orphan)
+     */
+    boolean start(String id, String instance, long total, Instant now);
+
+    /**
+     * Store the progress of a running job of an instance, refreshing its heartbeat
+     * @param id the id of the job
+     * @param instance the id of the instance running the job
+     * @param processed the wallets processed so far
+     * @param modified the wallets changed so far
+     * @param now the time of the update
+     * @return true if updated, false if the job is no longer running on the instance
+     */
+    boolean updateProgress(String id, String instance, long processed, long modified, Instant now);
+
+    /**
+     * Finish a pending or running job of an instance
+     * @param id the id of the job
+     * @param instance the id of the instance running the job
+     * @param status the final status
+     * @param error the reason of the failure, null if completed
+     * @param now the time the job is finished at
+     * @return true if updated, false if the job was already finished (e.g. failed as orphan)
+     */
+    boolean finish(String id, String instance, BulkJob.Status status, String error, Instant now);
+
+    /**
+     * Mark the unfinished jobs of an instance as alive
+     * @param instance the id of the instance running the jobs
+     * @param now the time of the heartbeat
+     */
+    void heartbeat(String instance, Instant now);
+
+    /**
+     * Mark as failed the pending and running jobs whose instance stopped sending heartbeats
+     * @param staleBefore the jobs without a heartbeat since this time are failed
+     * @param now the time the jobs are finished at
+     * @return the number of jobs failed
+     */
+    long failOrphans(Instant staleBefore, Instant now);
+}
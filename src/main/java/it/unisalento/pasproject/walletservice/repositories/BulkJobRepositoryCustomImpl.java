@@ -0,0 +1,82 @@
+package it.unisalento.pasproject.walletservice.repositories;
+
+import it.unisalento.pasproject.walletservice.domain.BulkJob;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.time.Instant;
+import java.util.List;
+
+public class BulkJobRepositoryCustomImpl implements BulkJobRepositoryCustom {
+
+    private static final List<BulkJob.Status> UNFINISHED = List.of(BulkJob.Status.PENDING, BulkJob.Status.RUNNING);
+
+    private final MongoTemplate mongoTemplate;
+
+    @Autowired
+    public BulkJobRepositoryCustomImpl(MongoTemplate mongoTemplate) {
+        this.mongoTemplate = mongoTemplate;
+    }
+
+    @Override
+    public boolean start(String id, String instance, long total, Instant now) {
+        Update update = new Update()
+                .set("status", BulkJob.Status.RUNNING)
+                .set("total", total)
+                .set("startedAt", now)
+                .set("heartbeatAt", now);
+
+        return updateOwned(id, instance, List.of(BulkJob.Status.PENDING), update);
+    }
+
+    @Override
+    public boolean updateProgress(String id, String instance, long processed, long modified, Instant now) {
+        Update update = new Update()
+                .set("processed", processed)
+                .set("modified", modified)
+                .set("heartbeatAt", now);
+
+        return updateOwned(id, instance, List.of(BulkJob.Status.RUNNING), update);
+    }
+
+    @Override
+    public boolean finish(String id, String instance, BulkJob.Status status, String error, Instant now) {
+        Update update = new Update()
+                .set("status", status)
+                .set("error", error)
+                .set("finishedAt", now)
+                .set("heartbeatAt", now);
+
+        return updateOwned(id, instance, UNFINISHED, update);
+    }
+
+    //Solo i campi indicati, e solo se il job è ancora nello stato atteso e dell'istanza: un job fallito come orfano resta tale
+    private boolean updateOwned(String id, String instance, List<BulkJob.Status> expected, Update update) {
+        Query query = new Query(Criteria.where("_id").is(id).and("instance").is(instance).and("status").in(expected));
+
+        return mongoTemplate.updateFirst(query, update, BulkJob.class).getMatchedCount() > 0;
+    }
+
+    @Override
+    public void heartbeat(String instance, Instant now) {
+        Query query = new Query(Criteria.where("instance").is(instance).and("status").in(UNFINISHED));
+
+        mongoTemplate.updateMulti(query, new Update().set("heartbeatAt", now), BulkJob.class);
+    }
+
+    @Override
+    public long failOrphans(Instant staleBefore, Instant now) {
+        //Anche i job senza heartbeat, creati prima che venisse registrato
+        Query query = new Query(Criteria.where("status").in(UNFINISHED)
+                .orOperator(Criteria.where("heartbeatAt").lt(staleBefore), Criteria.where("heartbeatAt").exists(false)));
+        Update update = new Update()
+                .set("status", BulkJob.Status.FAILED)
+                .set("error", "Interrupted: the instance running the job stopped")
+                .set("finishedAt", now);
+
+        return mongoTemplate.updateMulti(query, update, BulkJob.class).getModifiedCount();
+    }
+}
@@ -0,0 +1,7 @@
+package it.unisalento.pasproject.walletservice.repositories;
+
+import it.unisalento.pasproject.walletservice.domain.JobLease;
+import org.springframework.data.mongodb.repository.MongoRepository;
+
+public interface JobLeaseRepository extends MongoRepository<JobLease, String>, JobLeaseRepositoryCustom {
+}
@@ -0,0 +1,21 @@
+package it.unisalento.pasproject.walletservice.repositories;
+
+import java.time.Duration;
+
+public interface JobLeaseRepositoryCustom {
+    /**
+     * Take or renew the lease of a job with a single upsert
+     * @param name the name of the job
+     * @param owner the id of the instance asking for the lease
+     * @param duration how long the lease lasts from now
+     * @return true if the lease is now held by the owner, false if another instance holds it
+     */
+    boolean tryAcquire(String name, String owner, Duration duration);
+
+    /**
+     * Release the lease of a job, only if held by the owner
+     * @param name the name of the job
+     * @param owner the id of the instance holding the lease
+     */
+    void release(String name, String owner);
+}
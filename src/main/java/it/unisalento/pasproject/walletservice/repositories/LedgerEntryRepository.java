@@ -0,0 +1,11 @@
+package it.unisalento.pasproject.walletservice.repositories;
+
+import it.unisalento.pasproject.walletservice.domain.LedgerEntry;
+import org.springframework.data.mongodb.repository.MongoRepository;
+
+import java.time.Instant;
+import java.util.List;
+
+public interface LedgerEntryRepository extends MongoRepository<LedgerEntry, String>, LedgerEntryRepositoryCustom {
+    List<LedgerEntry> findByEmailAndRecordedAtGreaterThanEqual(String email, Instant from);
+}
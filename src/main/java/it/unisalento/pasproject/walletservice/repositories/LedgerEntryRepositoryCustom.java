@@ -0,0 +1,14 @@
+package it.unisalento.pasproject.walletservice.repositories;
+
+import java.time.Instant;
+import java.util.Map;
+
+public interface LedgerEntryRepositoryCustom {
+    /**
+     * Sum the ledger entries of every wallet recorded in a time window
+     * @param from the start of the window, inclusive
+     * @param to the end of the window, exclusive
+     * @return the balance change of every wallet with entries in the window, keyed by email
+     */
+    Map<String, Double> sumAmountsByEmail(Instant from, Instant to);
+}
@@ -0,0 +1,37 @@
+package it.unisalento.pasproject.walletservice.repositories;
+
+import it.unisalento.pasproject.walletservice.domain.LedgerEntry;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.query.Criteria;
+
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+
+public class LedgerEntryRepositoryCustomImpl implements LedgerEntryRepositoryCustom {
+
+    private final MongoTemplate mongoTemplate;
+
+    @Autowired
+    public LedgerEntryRepositoryCustomImpl(MongoTemplate mongoTemplate) {
+        this.mongoTemplate = mongoTemplate;
+    }
+
+    @Override
+    public Map<String, Double> sumAmountsByEmail(Instant from, Instant to) {
+        Aggregation aggregation = Aggregation.newAggregation(
+                Aggregation.match(Criteria.where("recordedAt").gte(from).lt(to)),
+                Aggregation.group("email").sum("amount").as("amount"));
+
+        Map<String, Double> sums = new HashMap<>();
+
+        for (Document result : mongoTemplate.aggregate(aggregation, LedgerEntry.class, Document.class)) {
+            sums.put(result.getString("_id"), result.get("amount", Number.class).doubleValue());
+        }
+
+        return sums;
+    }
+}
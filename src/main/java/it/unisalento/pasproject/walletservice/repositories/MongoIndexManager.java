@@ -0,0 +1,264 @@
+package it.unisalento.pasproject.walletservice.repositories;
+
+import jakarta.annotation.PostConstruct;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.IndexDefinition;
+import org.springframework.data.mongodb.core.index.IndexOperations;
+import org.springframework.data.mongodb.core.index.IndexResolver;
+import org.springframework.data.mongodb.core.index.MongoPersistentEntityIndexResolver;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+import org.springframework.data.mongodb.core.mapping.MongoPersistentEntity;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Creates the indexes declared on the documents and checks the plans of the repository queries at startup.
+ * <p>
+ * The indexes are created here only, before the listeners start, and not by the Spring Data automatic index
+ * creation. A unique index is created only if the collection holds no duplicated values for it: otherwise the
+ * duplicates are logged and a non unique index with the same keys is created in its place, so the queries stay
+ * indexed until the duplicates are resolved and the next startup creates the unique index.
+ * </p>
+ * <p>
+ * Once the application is ready every query used by the repositories is explained against the real collections,
+ * a plan scanning the whole collection is logged, or stops the startup with {@code wallet.mongo.indexes.verify=fail}.
+ * A new query path should be added to {@link #QUERIES} together with its index.
+ * </p>
+ */
+@Component
+public class MongoIndexManager {
+
+    /**
+     * A repository query, as sent to the database
+     */
+    record QueryPlanProbe(String name, String collection, Document filter, Document sort) {
+    }
+
+    private static final Date EPOCH = new Date(0);
+
+    private static final int MAX_DUPLICATES_LOGGED = 20;
+
+    private static final String NON_UNIQUE_SUFFIX = "_non_unique";
+
+    static final List<QueryPlanProbe> QUERIES = List.of(
+            new QueryPlanProbe("WalletRepository.findByEmail", "wallet",
+                    new Document("email", ""), null),
+            new QueryPlanProbe("WalletRepository.findByEmailIn", "wallet",
+                    new Document("email", new Document("$in", List.of(""))), null),
+            new QueryPlanProbe("WalletRepository.findSummariesByEmailIn", "wallet",
+                    new Document("email", new Document("$in", List.of(""))), null),
+            new QueryPlanProbe("WalletRepository.findPage", "wallet",
+                    new Document(), new Document("_id", 1)),
+            new QueryPlanProbe("WalletRepository.countMatching", "wallet",
+                    new Document("isEnable", true).append("balance", new Document("$gte", 0.0)), null),
+            new QueryPlanProbe("WalletRepository.findIdsPage", "wallet",
+                    new Document("isEnable", true).append("_id", new Document("$gt", new ObjectId(EPOCH))), new Document("_id", 1)),
+            new QueryPlanProbe("WalletRepository.setEnableByIds", "wallet",
+                    new Document("_id", new Document("$in", List.of(new ObjectId(EPOCH)))).append("isEnable", new Document("$ne", true)), null),
+            new QueryPlanProbe("WalletRepository.resetByIds", "wallet",
+                    new Document("_id", new Document("$in", List.of(new ObjectId(EPOCH)))), null),
+            new QueryPlanProbe("WalletRepository.findTopBalances", "wallet",
+                    new Document("isEnable", true), new Document("balance", -1)),
+            new QueryPlanProbe("LedgerEntryRepository.findByEmailAndRecordedAtGreaterThanEqual", "ledger",
+                    new Document("email", "").append("recordedAt", new Document("$gte", EPOCH)), null),
+            new QueryPlanProbe("LedgerEntryRepository.sumAmountsByEmail", "ledger",
+                    new Document("recordedAt", new Document("$gte", EPOCH).append("$lt", EPOCH)), null),
+            new QueryPlanProbe("BalanceSnapshotRepository.findFirstByEmailOrderByTimestampDesc", "balance_snapshot",
+                    new Document("email", ""), new Document("timestamp", -1)),
+            new QueryPlanProbe("BalanceSnapshotRepository.findLatestBalances", "balance_snapshot",
+                    new Document("email", new Document("$in", List.of(""))), new Document("email", 1).append("timestamp", -1)),
+            new QueryPlanProbe("BalanceSnapshotRepository.findFirstByOrderByTimestampDesc", "balance_snapshot",
+                    new Document(), new Document("timestamp", -1)),
+            new QueryPlanProbe("BalanceSnapshotRepository.deleteByTimestamp", "balance_snapshot",
+                    new Document("timestamp", EPOCH), null),
+            new QueryPlanProbe("ProcessedTransactionRepository.findById", "processed_transaction",
+                    new Document("_id", ""), null)
+    );
+
+    private final MongoTemplate mongoTemplate;
+
+    private final MongoMappingContext mappingContext;
+
+    private final boolean ensureIndexes;
+
+    private final String verifyMode;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MongoIndexManager.class);
+
+    @Autowired
+    public MongoIndexManager(MongoTemplate mongoTemplate, MongoMappingContext mappingContext,
+                             @Value("${wallet.mongo.indexes.ensure}") boolean ensureIndexes,
+                             @Value("${wallet.mongo.indexes.verify}") String verifyMode) {
+        this.mongoTemplate = mongoTemplate;
+        this.mappingContext = mappingContext;
+        this.ensureIndexes = ensureIndexes;
+        this.verifyMode = verifyMode;
+    }
+
+    //Prima dell'avvio dei listener, così nessun wallet è scritto prima dell'indice univoco
+    @PostConstruct
+    public void createIndexes() {
+        if (ensureIndexes) {
+            ensureIndexes();
+        }
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void onApplicationReady() {
+        if ("off".equalsIgnoreCase(verifyMode)) {
+            return;
+        }
+
+        List<String> collectionScans = verifyQueryPlans();
+
+        if (!collectionScans.isEmpty() && "fail".equalsIgnoreCase(verifyMode)) {
+            throw new IllegalStateException("Queries without index: " + collectionScans);
+        }
+    }
+
+    /**
+     * Create the indexes declared with the mapping annotations, existing indexes are left as they are.
+     * A unique index is replaced by a non unique one while the collection holds duplicated values.
+     */
+    public void ensureIndexes() {
+        IndexResolver resolver = new MongoPersistentEntityIndexResolver(mappingContext);
+
+        for (MongoPersistentEntity<?> entity : mappingContext.getPersistentEntities()) {
+            if (!entity.isAnnotationPresent(org.springframework.data.mongodb.core.mapping.Document.class)) {
+                continue;
+            }
+
+            IndexOperations indexOperations = mongoTemplate.indexOps(entity.getType());
+
+            for (IndexDefinition index : resolver.resolveIndexFor(entity.getType())) {
+                try {
+                    ensureIndex(entity.getCollection(), indexOperations, index);
+                } catch (Exception e) {
+                    LOGGER.error("Index {} on {} not created: {}", index.getIndexKeys(), entity.getCollection(), e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void ensureIndex(String collection, IndexOperations indexOperations, IndexDefinition index) {
+        if (!Boolean.TRUE.equals(index.getIndexOptions().get("unique"))) {
+            indexOperations.ensureIndex(index);
+            return;
+        }
+
+        IndexDefinition fallback = nonUnique(index);
+        List<Document> duplicates = findDuplicates(collection, index.getIndexKeys());
+
+        if (!duplicates.isEmpty()) {
+            LOGGER.error("Unique index {} on {} not created, duplicated values (first {}): {}. A non unique index is used until they are resolved",
+                    index.getIndexKeys(), collection, MAX_DUPLICATES_LOGGED, duplicates);
+            indexOperations.ensureIndex(fallback);
+            return;
+        }
+
+        indexOperations.ensureIndex(index);
+
+        //Duplicati risolti: l'indice non univoco creato in precedenza non serve più
+        String fallbackName = fallback.getIndexOptions().getString("name");
+        if (indexOperations.getIndexInfo().stream().anyMatch(info -> info.getName().equals(fallbackName))) {
+            indexOperations.dropIndex(fallbackName);
+            LOGGER.info("Unique index {} on {} created, non unique index {} dropped", index.getIndexKeys(), collection, fallbackName);
+        }
+    }
+
+    /**
+     * Find the values repeated in more documents for the keys of a unique index
+     * @return up to {@value #MAX_DUPLICATES_LOGGED} repeated values, each with the number of documents holding it
+     */
+    List<Document> findDuplicates(String collection, Document keys) {
+        Document group = new Document();
+        keys.keySet().forEach(key -> group.append(key, "$" + key));
+
+        return mongoTemplate.getCollection(collection).aggregate(List.of(
+                        new Document("$group", new Document("_id", group).append("count", new Document("$sum", 1))),
+                        new Document("$match", new Document("count", new Document("$gt", 1))),
+                        new Document("$limit", MAX_DUPLICATES_LOGGED)))
+                .allowDiskUse(true)
+                .into(new ArrayList<>());
+    }
+
+    private static IndexDefinition nonUnique(IndexDefinition index) {
+        Document options = new Document(index.getIndexOptions());
+        options.remove("unique");
+        String name = options.getString("name") != null ? options.getString("name") : String.join("_", index.getIndexKeys().keySet());
+        options.put("name", name + NON_UNIQUE_SUFFIX);
+
+        return new IndexDefinition() {
+            @Override
+            public Document getIndexKeys() {
+                return index.getIndexKeys();
+            }
+
+            @Override
+            public Document getIndexOptions() {
+                return options;
+            }
+        };
+    }
+
+    /**
+     * Explain every repository query and report the ones scanning the whole collection
+     * @return the names of the queries without an index
+     */
+    public List<String> verifyQueryPlans() {
+        List<String> collectionScans = new ArrayList<>();
+
+        for (QueryPlanProbe query : QUERIES) {
+            try {
+                Document explain = explain(query);
+                Document queryPlanner = explain.get("queryPlanner", Document.class);
+
+                if (queryPlanner != null && hasStage(queryPlanner.get("winningPlan"), "COLLSCAN")) {
+                    LOGGER.warn("Query {} on {} scans the whole collection", query.name(), query.collection());
+                    collectionScans.add(query.name());
+                }
+            } catch (Exception e) {
+                LOGGER.error("Plan of {} not verified: {}", query.name(), e.getMessage());
+            }
+        }
+
+        return collectionScans;
+    }
+
+    Document explain(QueryPlanProbe query) {
+        var find = mongoTemplate.getCollection(query.collection()).find(query.filter());
+
+        if (query.sort() != null) {
+            find = find.sort(query.sort());
+        }
+
+        return find.explain();
+    }
+
+    //Il piano vincente è un albero di stage (inputStage/inputStages, queryPlan con il motore SBE)
+    static boolean hasStage(Object plan, String stage) {
+        if (plan instanceof Document document) {
+            if (stage.equals(document.get("stage"))) {
+                return true;
+            }
+            return document.values().stream().anyMatch(value -> hasStage(value, stage));
+        }
+
+        if (plan instanceof List<?> list) {
+            return list.stream().anyMatch(value -> hasStage(value, stage));
+        }
+
+        return false;
+    }
+}
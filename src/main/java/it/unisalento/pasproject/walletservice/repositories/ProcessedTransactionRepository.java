@@ -0,0 +1,7 @@
+package it.unisalento.pasproject.walletservice.repositories;
+
+import it.unisalento.pasproject.walletservice.domain.ProcessedTransaction;
+import org.springframework.data.mongodb.repository.MongoRepository;
+
+public interface ProcessedTransactionRepository extends MongoRepository<ProcessedTransaction, String>, ProcessedTransactionRepositoryCustom {
+}
@@ -0,0 +1,23 @@
+package it.unisalento.pasproject.walletservice.repositories;
+
+import it.unisalento.pasproject.walletservice.domain.ProcessedTransaction;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+
+public interface ProcessedTransactionRepositoryCustom {
+    /**
+     * Insert the claims of a group of transactions with one unordered bulk write.
+     * The ids already stored are skipped, the other claims are inserted anyway.
+     * @param claims the pending outcomes to insert
+     * @return the ids already stored, whose claims were not inserted
+     */
+    Set<String> insertClaims(List<ProcessedTransaction> claims);
+
+    /**
+     * Store the outcomes of a group of claimed transactions with one unordered bulk write, replacing the claims
+     * @param outcomes the outcomes to store
+     */
+    void saveOutcomes(Collection<ProcessedTransaction> outcomes);
+}
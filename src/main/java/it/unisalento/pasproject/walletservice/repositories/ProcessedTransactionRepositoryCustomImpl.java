@@ -0,0 +1,67 @@
+package it.unisalento.pasproject.walletservice.repositories;
+
+import com.mongodb.bulk.BulkWriteError;
+import it.unisalento.pasproject.walletservice.domain.ProcessedTransaction;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class ProcessedTransactionRepositoryCustomImpl implements ProcessedTransactionRepositoryCustom {
+
+    private static final int DUPLICATE_KEY = 11000;
+
+    private final MongoTemplate mongoTemplate;
+
+    @Autowired
+    public ProcessedTransactionRepositoryCustomImpl(MongoTemplate mongoTemplate) {
+        this.mongoTemplate = mongoTemplate;
+    }
+
+    @Override
+    public Set<String> insertClaims(List<ProcessedTransaction> claims) {
+        if (claims.isEmpty()) {
+            return Set.of();
+        }
+
+        try {
+            mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, ProcessedTransaction.class).insert(claims).execute();
+            return Set.of();
+        } catch (BulkOperationException e) {
+            Set<String> duplicates = new HashSet<>();
+
+            //Le transazioni già prese in carico restano a chi le ha inserite per primo
+            for (BulkWriteError error : e.getErrors()) {
+                if (error.getCode() != DUPLICATE_KEY) {
+                    throw e;
+                }
+
+                duplicates.add(claims.get(error.getIndex()).getId());
+            }
+
+            return duplicates;
+        }
+    }
+
+    @Override
+    public void saveOutcomes(Collection<ProcessedTransaction> outcomes) {
+        if (outcomes.isEmpty()) {
+            return;
+        }
+
+        BulkOperations bulkOperations = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, ProcessedTransaction.class);
+
+        outcomes.forEach(outcome -> bulkOperations.upsert(new Query(Criteria.where("_id").is(outcome.getId())),
+                new Update().set("code", outcome.getCode()).set("processedAt", outcome.getProcessedAt())));
+
+        bulkOperations.execute();
+    }
+}
@@ -0,0 +1,7 @@
+package it.unisalento.pasproject.walletservice.repositories;
+
+import it.unisalento.pasproject.walletservice.domain.StreamOffset;
+import org.springframework.data.mongodb.repository.MongoRepository;
+
+public interface StreamOffsetRepository extends MongoRepository<StreamOffset, String> {
+}
@@ -3,8 +3,11 @@ package it.unisalento.pasproject.walletservice.repositories;
 import it.unisalento.pasproject.walletservice.domain.Wallet;
 import org.springframework.data.mongodb.repository.MongoRepository;
 
+import java.util.Collection;
+import java.util.List;
 import java.util.Optional;
 
-public interface WalletRepository extends MongoRepository<Wallet, String> {
+public interface WalletRepository extends MongoRepository<Wallet, String>, WalletRepositoryCustom {
     Optional<Wallet> findByEmail(String email);
+    List<Wallet> findByEmailIn(Collection<String> emails);
 }
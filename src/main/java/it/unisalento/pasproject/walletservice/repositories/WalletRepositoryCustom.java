@@ -0,0 +1,205 @@
+package it.unisalento.pasproject.walletservice.repositories;
+
+import it.unisalento.pasproject.walletservice.domain.Wallet;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/**
+ * Atomic balance operations and cursor based reads on the wallet collection.
+ * Balances are changed with server side increments, so no read-modify-write
+ * cycle is needed and concurrent writers can't overwrite each other.
+ * Every balance change also increments the version of the wallet.
+ */
+public interface WalletRepositoryCustom {
+
+    /**
+     * Totals of the whole wallet collection
+     * @param wallets the number of wallets
+     * @param enabled the number of enabled wallets
+     * @param balance the sum of all the balances
+     */
+    record Totals(long wallets, long enabled, double balance) {
+    }
+
+    /**
+     * Debit the wallet only if it is enabled and holds at least the given amount
+     * @param email the email of the wallet owner
+     * @param amount the amount to withdraw
+     * @return true if the wallet was debited, false if it doesn't exist, is disabled or has not enough money
+     */
+    boolean debitIfEnabled(String email, double amount);
+
+    /**
+     * Credit the wallet only if it is enabled
+     * @param email the email of the wallet owner
+     * @param amount the amount to deposit
+     * @return true if the wallet was credited, false if it doesn't exist or is disabled
+     */
+    boolean creditIfEnabled(String email, double amount);
+
+    /**
+     * Unconditionally add the given amount to the wallet, used to roll back a debit
+     * @param email the email of the wallet owner
+     * @param amount the amount to give back
+     */
+    void refund(String email, double amount);
+
+    /**
+     * Apply the balance changes of a transfer batch in one unordered bulk write, tagging every changed wallet with the batch id.
+     * Only enabled wallets are changed, and a debit (negative change) only if the wallet holds at least the amount.
+     * A wallet already tagged with the batch id is not changed again, so the write can be retried after a failure.
+     * @param batchId the id of the batch
+     * @param deltas the amount to add to each wallet, keyed by owner email (negative to withdraw)
+     * @return the emails of the wallets changed by the batch, also by a previous attempt
+     */
+    Set<String> applyBatchDeltas(String batchId, Map<String, Double> deltas);
+
+    /**
+     * Roll back the changes applied by {@link #applyBatchDeltas(String, Map)}, removing the batch id from the wallets.
+     * Only tagged wallets are changed, so the rollback can be retried too.
+     * @param batchId the id of the batch
+     * @param deltas the changes applied by the batch, keyed by owner email
+     */
+    void revertBatchDeltas(String batchId, Map<String, Double> deltas);
+
+    /**
+     * Apply the balance changes of a journal flush in one bulk write.
+     * A wallet is updated only if its engineSeq is lower than the given sequence, which is then stored,
+     * so a flush retried or replayed after a crash is never applied twice to the same wallet.
+     * @param sequence the last journal sequence included in the changes
+     * @param deltas the amount to add to each wallet, keyed by owner email (negative to withdraw)
+     */
+    void applyJournalDeltas(long sequence, Map<String, Double> deltas);
+
+    /**
+     * Atomically set the balance of the wallet, writing only the balance and the version
+     * @param email the email of the wallet owner
+     * @param balance the new balance
+     * @return the wallet as it was before the update, to record the change, empty if it doesn't exist
+     */
+    Optional<Wallet> findAndSetBalance(String email, double balance);
+
+    /**
+     * Atomically add the given amount to the balance, never going below the given floor,
+     * i.e. balance = max(balance + amount, floor), writing only the balance and the version
+     * @param email the email of the wallet owner
+     * @param amount the amount to add (negative to withdraw)
+     * @param floor the minimum balance after the change, null for no minimum
+     * @return the wallet as it was before the update, to record the change, empty if it doesn't exist
+     */
+    Optional<Wallet> findAndApplyChange(String email, double amount, Double floor);
+
+    /**
+     * Atomically enable or disable the wallet, writing only the enabled flag and the version
+     * @param email the email of the wallet owner
+     * @param enabled the new enabled flag
+     * @return the wallet after the update, empty if it doesn't exist
+     */
+    Optional<Wallet> findAndSetEnable(String email, boolean enabled);
+
+    /**
+     * Read the wallets of the given owners with one query, loading only email, balance and enabled flag
+     * @param emails the emails of the owners
+     * @return the wallets found, in no particular order
+     */
+    List<Wallet> findSummariesByEmailIn(Collection<String> emails);
+
+    /**
+     * Read one page of wallets in id order, starting after the given id.
+     * The filters are applied by the query, a null filter is ignored.
+     * @param afterId the id of the last wallet of the previous page, null for the first page
+     * @param size the maximum number of wallets to return
+     * @param enabled only wallets with this enabled flag
+     * @param minBalance only wallets with at least this balance
+     * @param maxBalance only wallets with at most this balance
+     * @return the wallets of the page
+     */
+    List<Wallet> findPage(String afterId, int size, Boolean enabled, Double minBalance, Double maxBalance);
+
+    /**
+     * Read the enabled wallets with the highest or the lowest balances, using the balance index
+     * @param size the maximum number of wallets to return
+     * @param highest true for the highest balances first, false for the lowest first
+     * @return the wallets in leaderboard order, with only email and balance loaded
+     */
+    List<Wallet> findTopBalances(int size, boolean highest);
+
+    /**
+     * Count the wallets selected by a bulk operation, a null or empty filter is ignored
+     * @param emails only wallets of these owners
+     * @param enabled only wallets with this enabled flag
+     * @param minBalance only wallets with at least this balance
+     * @param maxBalance only wallets with at most this balance
+     * @return the number of wallets selected
+     */
+    long countMatching(Collection<String> emails, Boolean enabled, Double minBalance, Double maxBalance);
+
+    /**
+     * Read the id and the email of one chunk of the wallets selected by a bulk operation, in id order
+     * @param afterId the id of the last wallet of the previous chunk, null for the first chunk
+     * @param size the maximum number of wallets to return
+     * @param emails only wallets of these owners
+     * @param enabled only wallets with this enabled flag
+     * @param minBalance only wallets with at least this balance
+     * @param maxBalance only wallets with at most this balance
+     * @return the wallets of the chunk, with only id and email loaded
+     */
+    List<Wallet> findIdsPage(String afterId, int size, Collection<String> emails, Boolean enabled, Double minBalance, Double maxBalance);
+
+    /**
+     * Enable or disable the given wallets with one update, the wallets already in that state are not written.
+     * The selection of the job is checked again by the update, so a wallet changed since it was read
+     * is skipped, and every changed wallet is tagged with the job id.
+     * @param ids the ids of the wallets
+     * @param enabled the new enabled flag
+     * @param jobId the id of the bulk job
+     * @param selectedEnabled only wallets with this enabled flag, if not null
+     * @param minBalance only wallets with at least this balance
+     * @param maxBalance only wallets with at most this balance
+     * @return the changed wallets, with only the email loaded
+     */
+    List<Wallet> setEnableByIds(Collection<String> ids, boolean enabled, String jobId,
+                                Boolean selectedEnabled, Double minBalance, Double maxBalance);
+
+    /**
+     * Reset the balance of the given wallets with one update.
+     * The selection of the job is checked again by the update, so a wallet changed since it was read
+     * is skipped. Every wallet keeps the balance it had right before the update together with the job id,
+     * so the change of every wallet is known exactly even if transfers hit it in the meantime.
+     * @param ids the ids of the wallets
+     * @param jobId the id of the bulk job
+     * @param enabled only wallets with this enabled flag, if not null
+     * @param minBalance only wallets with at least this balance
+     * @param maxBalance only wallets with at most this balance
+     * @return the reset wallets, with only email and previous balance (resetBalance) loaded
+     */
+    List<Wallet> resetByIds(Collection<String> ids, String jobId, Boolean enabled, Double minBalance, Double maxBalance);
+
+    /**
+     * Stream the wallets in id order from a database cursor, fetched in batches while the stream is consumed.
+     * The stream must be closed to release the cursor.
+     * @param enabled only wallets with this enabled flag
+     * @param minBalance only wallets with at least this balance
+     * @param maxBalance only wallets with at most this balance
+     * @return the stream of the wallets
+     */
+    Stream<Wallet> streamAll(Boolean enabled, Double minBalance, Double maxBalance);
+
+    /**
+     * Stream all the wallets from a database cursor, loading only email, balance and enabled flag.
+     * The stream must be closed to release the cursor.
+     * @return the stream of the wallets
+     */
+    Stream<Wallet> streamSummaries();
+
+    /**
+     * Compute the totals of the wallet collection with one aggregation on the database
+     * @return the totals, all zero if there are no wallets
+     */
+    Totals aggregateTotals();
+}
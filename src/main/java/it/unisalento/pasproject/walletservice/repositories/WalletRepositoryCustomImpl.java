@@ -0,0 +1,331 @@
+package it.unisalento.pasproject.walletservice.repositories;
+
+import it.unisalento.pasproject.walletservice.domain.Wallet;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.AccumulatorOperators;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.AggregationExpression;
+import org.springframework.data.mongodb.core.aggregation.AggregationUpdate;
+import org.springframework.data.mongodb.core.aggregation.ArithmeticOperators;
+import org.springframework.data.mongodb.core.aggregation.ComparisonOperators;
+import org.springframework.data.mongodb.core.aggregation.ConditionalOperators;
+import org.springframework.data.mongodb.core.aggregation.LiteralOperators;
+import org.springframework.data.mongodb.core.aggregation.SetOperation;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class WalletRepositoryCustomImpl implements WalletRepositoryCustom {
+
+    private static final int CURSOR_BATCH_SIZE = 500;
+
+    //Batch di trasferimenti ricordati su ogni wallet, bastano a riconoscere i tentativi ripetuti
+    private static final int TRANSFER_BATCHES_KEPT = 16;
+
+    private final MongoTemplate mongoTemplate;
+
+    @Autowired
+    public WalletRepositoryCustomImpl(MongoTemplate mongoTemplate) {
+        this.mongoTemplate = mongoTemplate;
+    }
+
+    @Override
+    public boolean debitIfEnabled(String email, double amount) {
+        Query query = new Query(Criteria.where("email").is(email)
+                .and("isEnable").is(true)
+                .and("balance").gte(amount));
+
+        return mongoTemplate.updateFirst(query, new Update().inc("balance", -amount).inc("version", 1), Wallet.class)
+                .getMatchedCount() == 1;
+    }
+
+    @Override
+    public boolean creditIfEnabled(String email, double amount) {
+        Query query = new Query(Criteria.where("email").is(email)
+                .and("isEnable").is(true));
+
+        return mongoTemplate.updateFirst(query, new Update().inc("balance", amount).inc("version", 1), Wallet.class)
+                .getMatchedCount() == 1;
+    }
+
+    @Override
+    public void refund(String email, double amount) {
+        Query query = new Query(Criteria.where("email").is(email));
+        mongoTemplate.updateFirst(query, new Update().inc("balance", amount).inc("version", 1), Wallet.class);
+    }
+
+    @Override
+    public Set<String> applyBatchDeltas(String batchId, Map<String, Double> deltas) {
+        if (deltas.isEmpty()) {
+            return Set.of();
+        }
+
+        BulkOperations bulkOperations = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, Wallet.class);
+
+        deltas.forEach((email, delta) -> {
+            Criteria criteria = Criteria.where("email").is(email).and("transferBatches").ne(batchId).and("isEnable").is(true);
+
+            if (delta < 0) {
+                criteria = criteria.and("balance").gte(-delta);
+            }
+
+            bulkOperations.updateOne(new Query(criteria), new Update().inc("balance", delta).inc("version", 1)
+                    .push("transferBatches").slice(-TRANSFER_BATCHES_KEPT).each(batchId));
+        });
+
+        try {
+            if (bulkOperations.execute().getMatchedCount() == deltas.size()) {
+                return Set.copyOf(deltas.keySet());
+            }
+        } catch (RuntimeException e) {
+            //Le scritture già applicate portano l'id del batch, si leggono sotto
+        }
+
+        Query query = new Query(Criteria.where("email").in(deltas.keySet()).and("transferBatches").is(batchId));
+        query.fields().include("email");
+
+        return mongoTemplate.find(query, Wallet.class).stream().map(Wallet::getEmail).collect(Collectors.toSet());
+    }
+
+    @Override
+    public void revertBatchDeltas(String batchId, Map<String, Double> deltas) {
+        if (deltas.isEmpty()) {
+            return;
+        }
+
+        BulkOperations bulkOperations = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, Wallet.class);
+
+        deltas.forEach((email, delta) -> bulkOperations.updateOne(
+                new Query(Criteria.where("email").is(email).and("transferBatches").is(batchId)),
+                new Update().inc("balance", -delta).inc("version", 1).pull("transferBatches", batchId)));
+
+        bulkOperations.execute();
+    }
+
+    @Override
+    public void applyJournalDeltas(long sequence, Map<String, Double> deltas) {
+        if (deltas.isEmpty()) {
+            return;
+        }
+
+        BulkOperations bulkOperations = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, Wallet.class);
+
+        //Il confronto con not() include anche i wallet che non hanno ancora engineSeq
+        deltas.forEach((email, delta) -> bulkOperations.updateOne(
+                new Query(Criteria.where("email").is(email).and("engineSeq").not().gte(sequence)),
+                new Update().inc("balance", delta).inc("version", 1).set("engineSeq", sequence)));
+
+        bulkOperations.execute();
+    }
+
+    @Override
+    public Optional<Wallet> findAndSetBalance(String email, double balance) {
+        Query query = new Query(Criteria.where("email").is(email));
+        Update update = new Update().set("balance", balance).inc("version", 1);
+
+        return Optional.ofNullable(mongoTemplate.findAndModify(query, update, FindAndModifyOptions.options().returnNew(false), Wallet.class));
+    }
+
+    @Override
+    public Optional<Wallet> findAndApplyChange(String email, double amount, Double floor) {
+        AggregationExpression balance = ArithmeticOperators.valueOf("balance").add(amount);
+
+        if (floor != null) {
+            balance = AccumulatorOperators.Max.maxOf(balance).and(LiteralOperators.Literal.asLiteral(floor));
+        }
+
+        //Pipeline: il minimo è applicato sul saldo corrente, nella stessa scrittura
+        AggregationUpdate update = AggregationUpdate.update()
+                .set(SetOperation.builder()
+                        .set("balance").toValueOf(balance)
+                        .and().set("version").toValueOf(ArithmeticOperators.valueOf(
+                                ConditionalOperators.ifNull("version").then(0)).add(1)));
+
+        return Optional.ofNullable(mongoTemplate.findAndModify(new Query(Criteria.where("email").is(email)), update,
+                FindAndModifyOptions.options().returnNew(false), Wallet.class));
+    }
+
+    @Override
+    public Optional<Wallet> findAndSetEnable(String email, boolean enabled) {
+        Query query = new Query(Criteria.where("email").is(email));
+        Update update = new Update().set("isEnable", enabled).inc("version", 1);
+
+        return Optional.ofNullable(mongoTemplate.findAndModify(query, update, FindAndModifyOptions.options().returnNew(true), Wallet.class));
+    }
+
+    @Override
+    public List<Wallet> findSummariesByEmailIn(Collection<String> emails) {
+        Query query = new Query(Criteria.where("email").in(emails));
+        query.fields().include("email", "balance", "isEnable");
+
+        return mongoTemplate.find(query, Wallet.class);
+    }
+
+    @Override
+    public List<Wallet> findPage(String afterId, int size, Boolean enabled, Double minBalance, Double maxBalance) {
+        Criteria criteria = filter(enabled, minBalance, maxBalance);
+
+        if (afterId != null) {
+            criteria.and("_id").gt(new ObjectId(afterId));
+        }
+
+        Query query = new Query(criteria)
+                .with(Sort.by(Sort.Direction.ASC, "_id"))
+                .limit(size);
+
+        return mongoTemplate.find(query, Wallet.class);
+    }
+
+    @Override
+    public Stream<Wallet> streamAll(Boolean enabled, Double minBalance, Double maxBalance) {
+        Query query = new Query(filter(enabled, minBalance, maxBalance))
+                .with(Sort.by(Sort.Direction.ASC, "_id"))
+                .cursorBatchSize(CURSOR_BATCH_SIZE);
+
+        return mongoTemplate.stream(query, Wallet.class);
+    }
+
+    @Override
+    public Stream<Wallet> streamSummaries() {
+        Query query = new Query().cursorBatchSize(CURSOR_BATCH_SIZE);
+        query.fields().include("email", "balance", "isEnable");
+
+        return mongoTemplate.stream(query, Wallet.class);
+    }
+
+    @Override
+    public Totals aggregateTotals() {
+        Aggregation aggregation = Aggregation.newAggregation(
+                Aggregation.group()
+                        .count().as("wallets")
+                        .sum(ConditionalOperators.when(ComparisonOperators.valueOf("isEnable").equalToValue(true))
+                                .then(1).otherwise(0)).as("enabled")
+                        .sum("balance").as("balance"));
+
+        Document result = mongoTemplate.aggregate(aggregation, Wallet.class, Document.class).getUniqueMappedResult();
+
+        if (result == null) {
+            return new Totals(0, 0, 0.0);
+        }
+
+        return new Totals(result.get("wallets", Number.class).longValue(),
+                result.get("enabled", Number.class).longValue(),
+                result.get("balance", Number.class).doubleValue());
+    }
+
+    @Override
+    public List<Wallet> findTopBalances(int size, boolean highest) {
+        Query query = new Query(Criteria.where("isEnable").is(true))
+                .with(Sort.by(highest ? Sort.Direction.DESC : Sort.Direction.ASC, "balance"))
+                .limit(size);
+        query.fields().include("email", "balance");
+
+        return mongoTemplate.find(query, Wallet.class);
+    }
+
+    @Override
+    public long countMatching(Collection<String> emails, Boolean enabled, Double minBalance, Double maxBalance) {
+        return mongoTemplate.count(new Query(bulkFilter(emails, enabled, minBalance, maxBalance)), Wallet.class);
+    }
+
+    @Override
+    public List<Wallet> findIdsPage(String afterId, int size, Collection<String> emails, Boolean enabled, Double minBalance, Double maxBalance) {
+        Criteria criteria = bulkFilter(emails, enabled, minBalance, maxBalance);
+
+        if (afterId != null) {
+            criteria.and("_id").gt(new ObjectId(afterId));
+        }
+
+        Query query = new Query(criteria)
+                .with(Sort.by(Sort.Direction.ASC, "_id"))
+                .limit(size);
+        query.fields().include("email");
+
+        return mongoTemplate.find(query, Wallet.class);
+    }
+
+    @Override
+    public List<Wallet> setEnableByIds(Collection<String> ids, boolean enabled, String jobId,
+                                       Boolean selectedEnabled, Double minBalance, Double maxBalance) {
+        //Selezionati solo wallet già in quello stato: nessuno da cambiare
+        if (selectedEnabled != null && selectedEnabled == enabled) {
+            return List.of();
+        }
+
+        Criteria criteria = filter(selectedEnabled, minBalance, maxBalance).and("_id").in(ids);
+
+        if (selectedEnabled == null) {
+            criteria.and("isEnable").ne(enabled);
+        }
+
+        mongoTemplate.updateMulti(new Query(criteria),
+                new Update().set("isEnable", enabled).set("bulkJob", jobId).inc("version", 1), Wallet.class);
+
+        return findChangedByJob(ids, jobId, "email");
+    }
+
+    @Override
+    public List<Wallet> resetByIds(Collection<String> ids, String jobId, Boolean enabled, Double minBalance, Double maxBalance) {
+        //Pipeline: il saldo precedente è letto e salvato dalla stessa scrittura che lo azzera
+        AggregationUpdate update = AggregationUpdate.update()
+                .set(SetOperation.builder()
+                        .set("bulkJob").toValue(jobId)
+                        .and().set("resetBalance").toValueOf("balance")
+                        .and().set("balance").toValue(0.0)
+                        .and().set("version").toValueOf(ArithmeticOperators.valueOf(
+                                ConditionalOperators.ifNull("version").then(0)).add(1)));
+
+        mongoTemplate.updateMulti(new Query(filter(enabled, minBalance, maxBalance).and("_id").in(ids)), update, Wallet.class);
+
+        return findChangedByJob(ids, jobId, "email", "resetBalance");
+    }
+
+    private List<Wallet> findChangedByJob(Collection<String> ids, String jobId, String... fields) {
+        Query query = new Query(Criteria.where("_id").in(ids).and("bulkJob").is(jobId));
+        query.fields().include(fields);
+
+        return mongoTemplate.find(query, Wallet.class);
+    }
+
+    private static Criteria bulkFilter(Collection<String> emails, Boolean enabled, Double minBalance, Double maxBalance) {
+        Criteria criteria = filter(enabled, minBalance, maxBalance);
+
+        if (emails != null && !emails.isEmpty()) {
+            criteria.and("email").in(emails);
+        }
+
+        return criteria;
+    }
+
+    private static Criteria filter(Boolean enabled, Double minBalance, Double maxBalance) {
+        Criteria criteria = new Criteria();
+
+        if (enabled != null) {
+            criteria.and("isEnable").is(enabled);
+        }
+
+        if (minBalance != null && maxBalance != null) {
+            criteria.and("balance").gte(minBalance).lte(maxBalance);
+        } else if (minBalance != null) {
+            criteria.and("balance").gte(minBalance);
+        } else if (maxBalance != null) {
+            criteria.and("balance").lte(maxBalance);
+        }
+
+        return criteria;
+    }
+}
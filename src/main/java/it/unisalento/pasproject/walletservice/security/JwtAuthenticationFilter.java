@@ -38,14 +38,14 @@ public class JwtAuthenticationFilter extends OncePerRequestFilter {
         final String authorizationHeader = request.getHeader("Authorization");
 
         String username = null;
-        String jwt = null;
+        VerifiedToken token = null;
         String role = null;
 
         try {
             if (authorizationHeader != null && authorizationHeader.startsWith("Bearer ")) {
-                jwt = authorizationHeader.substring(7);
-                username = jwtUtilities.extractUsername(jwt);
-                role = jwtUtilities.extractRole(jwt);
+                token = jwtUtilities.verify(authorizationHeader.substring(7));
+                username = token.getUsername();
+                role = token.getRole();
             } else {
                 throw new AccessDeniedException("Invalid token");
             }
@@ -78,7 +78,7 @@ public class JwtAuthenticationFilter extends OncePerRequestFilter {
                     .authorities(userRole) // Set roles or authorities from the UserDetailsDTO
                     .build();
 
-            if (jwtUtilities.validateToken(jwt, userDetails, userRole) && userCheckService.isEnable(userEnabled)) {
+            if (jwtUtilities.validateToken(token, userDetails, userRole) && userCheckService.isEnable(userEnabled)) {
                 UsernamePasswordAuthenticationToken usernamePasswordAuthenticationToken = new UsernamePasswordAuthenticationToken(
                         userDetails, null, userDetails.getAuthorities());
                 usernamePasswordAuthenticationToken
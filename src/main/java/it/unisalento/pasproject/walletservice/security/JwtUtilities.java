@@ -1,40 +1,105 @@
 package it.unisalento.pasproject.walletservice.security;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
 import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.JwtParser;
 import io.jsonwebtoken.Jwts;
 import io.jsonwebtoken.security.Keys;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.security.core.userdetails.UserDetails;
 import org.springframework.stereotype.Service;
 
+import java.nio.charset.StandardCharsets;
 import java.security.Key;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Date;
+import java.util.HexFormat;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 
 
 @Service
 public class JwtUtilities {
-    private final Key key;
+    //Il parser è immutabile e thread safe, costruito una sola volta
+    private final JwtParser parser;
+
+    //Token già verificati, indicizzati per SHA-256 e rimossi alla scadenza del token
+    private final Cache<String, VerifiedToken> verifiedTokens;
 
     @Autowired
-    public JwtUtilities(SecurityConstants securityConstants) {
-        key = Keys.hmacShaKeyFor(securityConstants.getJWT_SECRET().getBytes());
+    public JwtUtilities(SecurityConstants securityConstants, MeterRegistry meterRegistry,
+                        @Value("${wallet.jwt.cache.size}") long cacheSize) {
+        Key key = Keys.hmacShaKeyFor(securityConstants.getJWT_SECRET().getBytes());
+        parser = Jwts.parserBuilder()
+                .setSigningKey(key)
+                .build();
+
+        verifiedTokens = Caffeine.newBuilder()
+                .maximumSize(cacheSize)
+                .expireAfter(new Expiry<String, VerifiedToken>() {
+                    @Override
+                    public long expireAfterCreate(String digest, VerifiedToken token, long currentTime) {
+                        //Token senza scadenza non vengono trattenuti
+                        if (token.getExpiration() == null) {
+                            return 0;
+                        }
+                        long remaining = token.getExpiration().getTime() - System.currentTimeMillis();
+                        return TimeUnit.MILLISECONDS.toNanos(Math.max(remaining, 0));
+                    }
+
+                    @Override
+                    public long expireAfterUpdate(String digest, VerifiedToken token, long currentTime, long currentDuration) {
+                        return currentDuration;
+                    }
+
+                    @Override
+                    public long expireAfterRead(String digest, VerifiedToken token, long currentTime, long currentDuration) {
+                        return currentDuration;
+                    }
+                })
+                .recordStats()
+                .build();
+
+        CaffeineCacheMetrics.monitor(meterRegistry, verifiedTokens, "verifiedTokens");
     }
 
     private static final Logger LOGGER = LoggerFactory.getLogger(JwtUtilities.class);
 
+    /**
+     * Verify the signature and the expiration of the token and return its claims.
+     * <p>
+     * The token is parsed only the first time it is seen, later calls with the same token
+     * are answered from a bounded cache until the token expires.
+     * </p>
+     * @param token the compact JWT
+     * @return the claims of the token
+     * @throws io.jsonwebtoken.JwtException if the token is malformed, expired or not signed with our key
+     */
+    public VerifiedToken verify(String token) {
+        return verifiedTokens.get(digest(token), digest -> {
+            Claims claims = extractAllClaims(token);
+            return new VerifiedToken(claims.getSubject(), claims.get("role", String.class), claims.getExpiration());
+        });
+    }
+
     public String extractUsername(String token) {
-        return extractClaim(token, Claims::getSubject);
+        return verify(token).getUsername();
     }
 
     public String extractRole(String token) {
-        return extractClaim(token, claims -> claims.get("role", String.class));
+        return verify(token).getRole();
     }
 
     public Date extractExpiration(String token) {
-        return extractClaim(token, Claims::getExpiration);
+        return verify(token).getExpiration();
     }
 
     public <T> T extractClaim(String token, Function<Claims, T> claimsResolver) {
@@ -43,21 +108,25 @@ public class JwtUtilities {
     }
 
     private Claims extractAllClaims(String token) {
-        return Jwts.parserBuilder()
-                .setSigningKey(key)
-                .build()
+        return parser
                 .parseClaimsJws(token)
                 .getBody();
     }
 
-    private Boolean isTokenExpired(String token) {
-        return extractExpiration(token).before(new Date());
+    private static String digest(String token) {
+        try {
+            MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(sha256.digest(token.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
     }
 
-
     public Boolean validateToken(String token, UserDetails userDetails, String role) {
-        final String username = extractUsername(token);
-        final String tokenRole = extractRole(token);
-        return (username.equals(userDetails.getUsername()) && tokenRole.equalsIgnoreCase(role)  && !isTokenExpired(token));
+        return validateToken(verify(token), userDetails, role);
+    }
+
+    public Boolean validateToken(VerifiedToken token, UserDetails userDetails, String role) {
+        return (token.getUsername().equals(userDetails.getUsername()) && token.getRole().equalsIgnoreCase(role) && !token.isExpired());
     }
-}
\ No newline at end of file
+}
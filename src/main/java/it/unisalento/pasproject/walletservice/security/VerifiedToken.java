@@ -0,0 +1,29 @@
+package it.unisalento.pasproject.walletservice.security;
+
+import lombok.Getter;
+
+import java.util.Date;
+
+/**
+ * Immutable view of the claims of a token whose signature was already verified.
+ */
+@Getter
+public final class VerifiedToken {
+    private final String username;
+    private final String role;
+    private final Date expiration;
+
+    public VerifiedToken(String username, String role, Date expiration) {
+        this.username = username;
+        this.role = role;
+        this.expiration = expiration == null ? null : new Date(expiration.getTime());
+    }
+
+    public Date getExpiration() {
+        return expiration == null ? null : new Date(expiration.getTime());
+    }
+
+    public boolean isExpired() {
+        return expiration != null && expiration.before(new Date());
+    }
+}
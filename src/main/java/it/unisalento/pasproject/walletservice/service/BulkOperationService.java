@@ -0,0 +1,278 @@
+package it.unisalento.pasproject.walletservice.service;
+
+import it.unisalento.pasproject.walletservice.business.events.WalletChangedEvent;
+import it.unisalento.pasproject.walletservice.domain.BulkJob;
+import it.unisalento.pasproject.walletservice.domain.LedgerEntry;
+import it.unisalento.pasproject.walletservice.domain.Wallet;
+import it.unisalento.pasproject.walletservice.dto.BulkJobDTO;
+import it.unisalento.pasproject.walletservice.dto.BulkOperationDTO;
+import it.unisalento.pasproject.walletservice.exceptions.BadRequestException;
+import it.unisalento.pasproject.walletservice.repositories.BulkJobRepository;
+import it.unisalento.pasproject.walletservice.repositories.WalletRepository;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Bulk admin operations (enable, disable, reset) on many wallets, run in background one job at a time.
+ * <p>
+ * The selected wallets are processed in chunks of {@code wallet.bulk.chunk.size} wallets in id order,
+ * every chunk with a single update, and the progress of the job is stored after every chunk so it can be
+ * polled by id from any instance. A reset records the exact previous balance of every wallet in the ledger.
+ * Every update checks the selection again, so a wallet changed since its chunk was read is skipped, and only
+ * the wallets actually changed are counted and announced with a {@link WalletChangedEvent}, like the single
+ * admin updates.
+ * A reset writes the balances on the database, so it is refused when the balances are held by the
+ * in-memory engine.
+ * </p>
+ * <p>
+ * Jobs live in the executor of the instance that accepted them: while they are unfinished the instance
+ * refreshes their heartbeat every {@code wallet.bulk.heartbeat.interval} ms, and the jobs left without a
+ * heartbeat for {@code wallet.bulk.orphan.timeout} ms by a stopped instance are marked as failed.
+ * Progress and status are stored only while the job is still unfinished and owned by this instance, so a job
+ * already marked as failed is never overwritten: the job stops at its next update instead.
+ * </p>
+ */
+@Service
+public class BulkOperationService {
+
+    private final WalletRepository walletRepository;
+
+    private final BulkJobRepository bulkJobRepository;
+
+    private final LedgerService ledgerService;
+
+    private final ApplicationEventPublisher eventPublisher;
+
+    private final int chunkSize;
+
+    private final boolean memoryEngine;
+
+    private final Duration orphanTimeout;
+
+    private final String instanceId = UUID.randomUUID().toString();
+
+    //Un job alla volta, così i job non competono tra loro per il database
+    private final ExecutorService executor;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BulkOperationService.class);
+
+    @Autowired
+    public BulkOperationService(WalletRepository walletRepository, BulkJobRepository bulkJobRepository,
+                                LedgerService ledgerService, ApplicationEventPublisher eventPublisher,
+                                @Value("${wallet.bulk.chunk.size}") int chunkSize,
+                                @Value("${wallet.engine.mode}") String engineMode,
+                                @Value("${wallet.bulk.orphan.timeout}") long orphanTimeoutMillis) {
+        this.walletRepository = walletRepository;
+        this.bulkJobRepository = bulkJobRepository;
+        this.ledgerService = ledgerService;
+        this.eventPublisher = eventPublisher;
+        this.chunkSize = chunkSize;
+        this.memoryEngine = "memory".equals(engineMode);
+        this.orphanTimeout = Duration.ofMillis(orphanTimeoutMillis);
+        this.executor = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "bulk-jobs");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Validate and queue a bulk operation
+     * @param request the operation and the selection of the wallets
+     * @param requestedBy the email of the administrator
+     * @return the queued job
+     */
+    public BulkJob submit(BulkOperationDTO request, String requestedBy) {
+        if (request.getOperation() == null) {
+            throw new BadRequestException("Operation is required");
+        }
+
+        //Il motore in memoria sovrascriverebbe il saldo azzerato sul database
+        if (request.getOperation() == BulkJob.Operation.RESET && memoryEngine) {
+            throw new BadRequestException("Bulk reset is not available with the in-memory balance engine");
+        }
+
+        boolean hasEmails = request.getEmails() != null && !request.getEmails().isEmpty();
+        boolean hasFilter = request.getEnabled() != null || request.getMinBalance() != null || request.getMaxBalance() != null;
+
+        if (!hasEmails && !hasFilter && !request.isAll()) {
+            throw new BadRequestException("No wallet selected, set emails, a filter or all");
+        }
+
+        BulkJob job = new BulkJob();
+        job.setOperation(request.getOperation());
+        job.setStatus(BulkJob.Status.PENDING);
+        job.setRequestedBy(requestedBy);
+        job.setCreatedAt(Instant.now());
+        job.setInstance(instanceId);
+        job.setHeartbeatAt(job.getCreatedAt());
+
+        BulkJob saved = bulkJobRepository.save(job);
+        executor.execute(() -> run(saved, request));
+
+        return saved;
+    }
+
+    /**
+     * Refresh the heartbeat of the unfinished jobs of this instance, then fail the jobs of stopped instances.
+     * The first run happens at startup, so the jobs interrupted by the previous run are failed right away.
+     */
+    @Scheduled(fixedDelayString = "${wallet.bulk.heartbeat.interval}")
+    public void checkJobs() {
+        Instant now = Instant.now();
+
+        try {
+            bulkJobRepository.heartbeat(instanceId, now);
+
+            long orphans = bulkJobRepository.failOrphans(now.minus(orphanTimeout), now);
+
+            if (orphans > 0) {
+                LOGGER.warn("{} bulk jobs interrupted by a stopped instance marked as failed", orphans);
+            }
+        } catch (Exception e) {
+            LOGGER.error("Bulk jobs not checked: {}", e.getMessage());
+        }
+    }
+
+    public Optional<BulkJob> findJob(String id) {
+        return bulkJobRepository.findById(id);
+    }
+
+    public BulkJobDTO getBulkJobDTO(BulkJob job) {
+        BulkJobDTO jobDTO = new BulkJobDTO();
+        jobDTO.setId(job.getId());
+        jobDTO.setOperation(job.getOperation());
+        jobDTO.setStatus(job.getStatus());
+        jobDTO.setTotal(job.getTotal());
+        jobDTO.setProcessed(job.getProcessed());
+        jobDTO.setModified(job.getModified());
+        jobDTO.setCreatedAt(job.getCreatedAt());
+        jobDTO.setStartedAt(job.getStartedAt());
+        jobDTO.setFinishedAt(job.getFinishedAt());
+        jobDTO.setError(job.getError());
+        return jobDTO;
+    }
+
+    private void run(BulkJob job, BulkOperationDTO request) {
+        try {
+            //Liste di email molto lunghe sono divise, ogni query ne contiene al più chunkSize
+            List<Collection<String>> selections = new ArrayList<>();
+
+            if (request.getEmails() == null || request.getEmails().isEmpty()) {
+                selections.add(null);
+            } else {
+                List<String> emails = List.copyOf(new LinkedHashSet<>(request.getEmails()));
+
+                for (int i = 0; i < emails.size(); i += chunkSize) {
+                    selections.add(emails.subList(i, Math.min(i + chunkSize, emails.size())));
+                }
+            }
+
+            long total = 0;
+
+            for (Collection<String> emails : selections) {
+                total += walletRepository.countMatching(emails, request.getEnabled(), request.getMinBalance(), request.getMaxBalance());
+            }
+
+            job.setStatus(BulkJob.Status.RUNNING);
+            job.setStartedAt(Instant.now());
+            job.setTotal(total);
+            requireOwned(job, bulkJobRepository.start(job.getId(), instanceId, total, job.getStartedAt()));
+
+            for (Collection<String> emails : selections) {
+                runSelection(job, request, emails);
+            }
+
+            job.setStatus(BulkJob.Status.COMPLETED);
+            LOGGER.info("Bulk job {} completed: {} wallets processed, {} changed", job.getId(), job.getProcessed(), job.getModified());
+        } catch (Exception e) {
+            LOGGER.error("Bulk job {} failed after {} wallets: {}", job.getId(), job.getProcessed(), e.getMessage());
+            job.setStatus(BulkJob.Status.FAILED);
+            job.setError(e.getMessage());
+        }
+
+        job.setFinishedAt(Instant.now());
+
+        try {
+            if (!bulkJobRepository.finish(job.getId(), instanceId, job.getStatus(), job.getError(), job.getFinishedAt())) {
+                LOGGER.warn("Bulk job {} already finished, status {} not stored", job.getId(), job.getStatus());
+            }
+        } catch (Exception e) {
+            LOGGER.error("Bulk job {} status {} not stored: {}", job.getId(), job.getStatus(), e.getMessage());
+        }
+    }
+
+    //Il job potrebbe essere già stato dichiarato fallito come orfano, in quel caso non deve proseguire
+    private static void requireOwned(BulkJob job, boolean updated) {
+        if (!updated) {
+            throw new IllegalStateException("Bulk job " + job.getId() + " is no longer running on this instance");
+        }
+    }
+
+    private void runSelection(BulkJob job, BulkOperationDTO request, Collection<String> emails) {
+        String afterId = null;
+        List<Wallet> chunk;
+
+        do {
+            chunk = walletRepository.findIdsPage(afterId, chunkSize, emails,
+                    request.getEnabled(), request.getMinBalance(), request.getMaxBalance());
+
+            if (chunk.isEmpty()) {
+                return;
+            }
+
+            List<String> ids = chunk.stream().map(Wallet::getId).toList();
+            long modified;
+
+            if (job.getOperation() == BulkJob.Operation.RESET) {
+                modified = reset(job, request, ids);
+            } else {
+                boolean enabled = job.getOperation() == BulkJob.Operation.ENABLE;
+                List<Wallet> changed = walletRepository.setEnableByIds(ids, enabled, job.getId(),
+                        request.getEnabled(), request.getMinBalance(), request.getMaxBalance());
+                changed.forEach(wallet -> eventPublisher.publishEvent(new WalletChangedEvent(this, wallet.getEmail(), null, enabled)));
+                modified = changed.size();
+            }
+
+            job.setProcessed(job.getProcessed() + chunk.size());
+            job.setModified(job.getModified() + modified);
+            requireOwned(job, bulkJobRepository.updateProgress(job.getId(), instanceId, job.getProcessed(), job.getModified(), Instant.now()));
+
+            afterId = ids.get(ids.size() - 1);
+            //Un gruppo di email ha al più chunkSize wallet (email univoca), quindi basta una pagina
+        } while (emails == null && chunk.size() == chunkSize);
+    }
+
+    private long reset(BulkJob job, BulkOperationDTO request, List<String> ids) {
+        List<Wallet> reset = walletRepository.resetByIds(ids, job.getId(),
+                request.getEnabled(), request.getMinBalance(), request.getMaxBalance());
+        Map<String, Double> adjustments = new HashMap<>();
+
+        for (Wallet wallet : reset) {
+            double previous = wallet.getResetBalance() == null ? 0.0 : wallet.getResetBalance();
+            adjustments.put(wallet.getEmail(), -previous);
+            eventPublisher.publishEvent(new WalletChangedEvent(this, wallet.getEmail(), 0.0, null));
+        }
+
+        ledgerService.recordAll(LedgerEntry.Type.ADJUSTMENT, adjustments);
+
+        return reset.size();
+    }
+
+    @PreDestroy
+    public void close() {
+        executor.shutdownNow();
+    }
+}
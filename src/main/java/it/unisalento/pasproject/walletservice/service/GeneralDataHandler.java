@@ -1,5 +1,8 @@
 package it.unisalento.pasproject.walletservice.service;
 
+import it.unisalento.pasproject.walletservice.business.engine.BalanceEngine;
+import it.unisalento.pasproject.walletservice.business.events.WalletChangedEvent;
+import it.unisalento.pasproject.walletservice.domain.LedgerEntry;
 import it.unisalento.pasproject.walletservice.domain.Wallet;
 import it.unisalento.pasproject.walletservice.dto.GeneralDataDTO;
 import it.unisalento.pasproject.walletservice.dto.GeneralRequestDTO;
@@ -8,8 +11,14 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.amqp.rabbit.annotation.RabbitListener;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.dao.DuplicateKeyException;
 import org.springframework.stereotype.Service;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
 import static it.unisalento.pasproject.walletservice.security.WalletConstants.UTENTE_INITIAL_BALANCE;
@@ -17,16 +26,27 @@ import static it.unisalento.pasproject.walletservice.security.WalletConstants.UT
 /**
  * This class is used to handle the general data.
  * It is used to retrieve all the data that should have a wallet. (Rewards, ...)
+ * General requests are received in batches, so the balance changes of the same wallet
+ * are applied with one update. Balance and enabled changes go through the {@link BalanceEngine}.
  */
 @Service
 public class GeneralDataHandler {
     private final WalletRepository walletRepository;
 
+    private final BalanceEngine balanceEngine;
+
+    private final LedgerService ledgerService;
+
+    private final ApplicationEventPublisher eventPublisher;
+
     private static final Logger LOGGER = LoggerFactory.getLogger(GeneralDataHandler.class);
 
     @Autowired
-    public GeneralDataHandler(WalletRepository walletRepository) {
+    public GeneralDataHandler(WalletRepository walletRepository, BalanceEngine balanceEngine, LedgerService ledgerService, ApplicationEventPublisher eventPublisher) {
         this.walletRepository = walletRepository;
+        this.balanceEngine = balanceEngine;
+        this.ledgerService = ledgerService;
+        this.eventPublisher = eventPublisher;
     }
 
     @RabbitListener(queues = "${rabbitmq.queue.receiveData.name}")
@@ -48,53 +68,172 @@ public class GeneralDataHandler {
             wallet.setIsEnable(true);
 
             walletRepository.save(wallet);
+            eventPublisher.publishEvent(new WalletChangedEvent(this, wallet.getEmail(), wallet.getBalance(), wallet.getIsEnable()));
+        } catch (DuplicateKeyException e) {
+            LOGGER.error("User already exists");
         } catch (Exception e) {
             LOGGER.error(e.getMessage());
         }
     }
 
-    @RabbitListener(queues = "${rabbitmq.queue.generalRequest.name}")
+    /**
+     * Apply a single request, as part of a batch of one
+     * @param requestDTO the request
+     */
     public void receiveRequest(GeneralRequestDTO requestDTO) {
-        try{
-            LOGGER.debug("Received request: {}", requestDTO);
+        receiveRequests(List.of(requestDTO));
+    }
 
-            //Check if the user exists
-            Optional<Wallet> walletOptional = walletRepository.findByEmail(requestDTO.getEmail());
+    /**
+     * Apply a batch of requests, in order for every wallet.
+     * <p>
+     * Consecutive deposits and subtractions of the same wallet are folded into one change, applied with
+     * a single atomic update; a refill, enable or disable request applies the changes before it first.
+     * </p>
+     * @param requests the requests drained from the queue
+     */
+    @RabbitListener(queues = "${rabbitmq.queue.generalRequest.name}", containerFactory = "generalRequestBatchContainerFactory")
+    public void receiveRequests(List<GeneralRequestDTO> requests) {
+        LOGGER.debug("Received {} requests", requests.size());
+
+        //Richieste raggruppate per wallet, nell'ordine di arrivo
+        Map<String, List<GeneralRequestDTO>> byWallet = new LinkedHashMap<>();
+
+        for (GeneralRequestDTO request : requests) {
+            if (request == null || request.getEmail() == null || request.getRequestType() == null) {
+                LOGGER.error("Invalid request skipped");
+                continue;
+            }
 
-            if (walletOptional.isEmpty()) {
-                return;
+            byWallet.computeIfAbsent(request.getEmail(), email -> new ArrayList<>()).add(request);
+        }
+
+        //Un errore su un wallet non deve rimettere in coda le richieste degli altri
+        byWallet.forEach((email, walletRequests) -> {
+            try {
+                process(email, walletRequests);
+            } catch (Exception e) {
+                LOGGER.error(e.getMessage());
             }
+        });
+    }
 
-            Wallet wallet = walletOptional.get();
+    private void process(String email, List<GeneralRequestDTO> requests) {
+        BalanceChange change = null;
 
-            switch (requestDTO.getRequestType()) {
-                case GeneralRequestDTO.RequestType.DISABLE:
-                    wallet.setIsEnable(false);
-                    break;
-                case GeneralRequestDTO.RequestType.ENABLE:
-                    wallet.setIsEnable(true);
-                    break;
+        for (GeneralRequestDTO request : requests) {
+            switch (request.getRequestType()) {
                 case GeneralRequestDTO.RequestType.DEPOSIT:
-                    wallet.setBalance(wallet.getBalance() + requestDTO.getAmount());
-                    break;
-                case GeneralRequestDTO.RequestType.REFILL:
-                    wallet.setBalance(UTENTE_INITIAL_BALANCE);
-                    break;
                 case GeneralRequestDTO.RequestType.SUBTRACT:
-                    if((wallet.getBalance() - requestDTO.getAmount()) <= 0){
-                        wallet.setBalance(0.0);
-                    }else{
-                        wallet.setBalance(wallet.getBalance() - requestDTO.getAmount());
+                    if (change == null) {
+                        change = new BalanceChange();
                     }
+                    change.add(request);
                     break;
                 default:
-                    LOGGER.error("Request type not found");
-                    return;
+                    if (change != null && !apply(email, change)) {
+                        return;
+                    }
+                    change = null;
+
+                    if (!apply(email, request)) {
+                        return;
+                    }
             }
+        }
 
-            walletRepository.save(wallet);
-        } catch (Exception e) {
-            LOGGER.error(e.getMessage());
+        if (change != null) {
+            apply(email, change);
+        }
+    }
+
+    /**
+     * @return false if the wallet doesn't exist, so the rest of its requests are skipped
+     */
+    private boolean apply(String email, BalanceChange change) {
+        Optional<Wallet> previous = balanceEngine.applyChange(email, change.amount, change.floor);
+
+        if (previous.isEmpty()) {
+            return false;
+        }
+
+        double previousBalance = previous.get().getBalance();
+        double balance = change.applyTo(previousBalance);
+
+        eventPublisher.publishEvent(new WalletChangedEvent(this, email, balance, previous.get().getIsEnable()));
+        ledgerService.record(email, change.type(), balance - previousBalance);
+        return true;
+    }
+
+    /**
+     * @return false if the wallet doesn't exist, so the rest of its requests are skipped
+     */
+    private boolean apply(String email, GeneralRequestDTO request) {
+        switch (request.getRequestType()) {
+            case GeneralRequestDTO.RequestType.DISABLE:
+            case GeneralRequestDTO.RequestType.ENABLE:
+                boolean enabled = request.getRequestType() == GeneralRequestDTO.RequestType.ENABLE;
+                Optional<Wallet> updated = balanceEngine.setEnabled(email, enabled);
+
+                if (updated.isEmpty()) {
+                    return false;
+                }
+
+                eventPublisher.publishEvent(new WalletChangedEvent(this, email, updated.get().getBalance(), enabled));
+                return true;
+            case GeneralRequestDTO.RequestType.REFILL:
+                Optional<Wallet> previous = balanceEngine.setBalance(email, UTENTE_INITIAL_BALANCE);
+
+                if (previous.isEmpty()) {
+                    return false;
+                }
+
+                eventPublisher.publishEvent(new WalletChangedEvent(this, email, UTENTE_INITIAL_BALANCE, previous.get().getIsEnable()));
+                ledgerService.record(email, LedgerEntry.Type.REFILL, UTENTE_INITIAL_BALANCE - previous.get().getBalance());
+                return true;
+            default:
+                LOGGER.error("Request type not found");
+                return true;
+        }
+    }
+
+    /**
+     * Deposits and subtractions folded into one change: the new balance is max(balance + amount, floor).
+     * A subtraction never takes the balance below zero, so after one the floor is at least zero.
+     */
+    private static class BalanceChange {
+
+        private double amount;
+
+        //Null finché non c'è una sottrazione
+        private Double floor;
+
+        private boolean deposits;
+
+        private boolean subtracts;
+
+        void add(GeneralRequestDTO request) {
+            if (request.getRequestType() == GeneralRequestDTO.RequestType.DEPOSIT) {
+                amount += request.getAmount();
+                floor = floor == null ? null : floor + request.getAmount();
+                deposits = true;
+            } else {
+                amount -= request.getAmount();
+                floor = floor == null ? 0.0 : Math.max(floor - request.getAmount(), 0.0);
+                subtracts = true;
+            }
+        }
+
+        double applyTo(double balance) {
+            return floor == null ? balance + amount : Math.max(balance + amount, floor);
+        }
+
+        LedgerEntry.Type type() {
+            if (deposits != subtracts) {
+                return deposits ? LedgerEntry.Type.DEPOSIT : LedgerEntry.Type.SUBTRACT;
+            }
+
+            return amount >= 0 ? LedgerEntry.Type.DEPOSIT : LedgerEntry.Type.SUBTRACT;
         }
     }
 }
@@ -0,0 +1,153 @@
+package it.unisalento.pasproject.walletservice.service;
+
+import it.unisalento.pasproject.walletservice.business.events.BalancesChangedEvent;
+import it.unisalento.pasproject.walletservice.business.events.InvalidationAware;
+import it.unisalento.pasproject.walletservice.business.events.WalletChangedEvent;
+import it.unisalento.pasproject.walletservice.business.io.producer.MessageProducer;
+import it.unisalento.pasproject.walletservice.dto.InvalidationDTO;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.rabbit.annotation.RabbitListener;
+import org.springframework.amqp.support.AmqpHeaders;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.messaging.handler.annotation.Header;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the caches of all running instances consistent.
+ * <p>
+ * Every instance listens on its own queue, bound to the invalidation fanout exchange and to the
+ * user data and refill keys of the data exchange. A user data message evicts everything cached about
+ * the user from every {@link InvalidationAware} component, the user details of the security service
+ * included. A refill and the wallets announced on the fanout exchange only change the wallet, so only
+ * the cached copies of the wallet are evicted. A wallet changed by this instance is evicted here at once
+ * and announced on the fanout exchange, so the other instances evict it too.
+ * </p>
+ * <p>
+ * Transfers and bulk operations change many wallets, so the changes are collected and announced together
+ * every {@code wallet.invalidation.flush.interval} ms, with at most {@value #MAX_EMAILS_PER_MESSAGE} emails
+ * per message.
+ * </p>
+ */
+@Service
+public class InvalidationHandler {
+
+    private final List<InvalidationAware> caches;
+
+    private final MessageProducer messageProducer;
+
+    //Modifiche non ancora annunciate alle altre istanze
+    private final Set<String> pendingWallets = ConcurrentHashMap.newKeySet();
+
+    private static final int MAX_EMAILS_PER_MESSAGE = 1000;
+
+    @Value("${rabbitmq.exchange.invalidation.name}")
+    private String invalidationExchange;
+
+    @Value("${rabbitmq.routing.refill.name}")
+    private String refillRoutingKey;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(InvalidationHandler.class);
+
+    @Autowired
+    public InvalidationHandler(List<InvalidationAware> caches, MessageProducer messageProducer) {
+        this.caches = caches;
+        this.messageProducer = messageProducer;
+    }
+
+    @RabbitListener(queues = "#{invalidationQueue.name}")
+    public void receiveInvalidation(InvalidationDTO invalidationDTO,
+                                    @Header(name = AmqpHeaders.RECEIVED_ROUTING_KEY, required = false) String routingKey) {
+        if (invalidationDTO.getEmail() != null) {
+            //Una ricarica cambia solo il saldo, i dati dell'utente restano validi
+            if (refillRoutingKey.equals(routingKey)) {
+                evictWallet(invalidationDTO.getEmail());
+            } else {
+                evictUser(invalidationDTO.getEmail());
+            }
+        }
+
+        if (invalidationDTO.getUsers() != null) {
+            invalidationDTO.getUsers().forEach(this::evictUser);
+        }
+
+        if (invalidationDTO.getWallets() != null) {
+            invalidationDTO.getWallets().forEach(this::evictWallet);
+        }
+    }
+
+    @EventListener
+    public void onWalletChanged(WalletChangedEvent event) {
+        evictWallet(event.getEmail());
+        pendingWallets.add(event.getEmail());
+    }
+
+    @EventListener
+    public void onBalancesChanged(BalancesChangedEvent event) {
+        for (String email : event.getEmails()) {
+            evictWallet(email);
+            pendingWallets.add(email);
+        }
+    }
+
+    /**
+     * Announce the changes made since the last run to all instances
+     */
+    @Scheduled(fixedDelayString = "${wallet.invalidation.flush.interval}")
+    public void flush() {
+        while (!pendingWallets.isEmpty()) {
+            List<String> wallets = drain(pendingWallets);
+
+            try {
+                messageProducer.sendMessage(new InvalidationDTO(List.of(), wallets), "", invalidationExchange);
+            } catch (Exception e) {
+                LOGGER.error("Invalidation of {} wallets not sent, retrying on the next run: {}", wallets.size(), e.getMessage());
+                pendingWallets.addAll(wallets);
+                return;
+            }
+        }
+    }
+
+    private static List<String> drain(Set<String> pending) {
+        List<String> emails = new ArrayList<>();
+        Iterator<String> iterator = pending.iterator();
+
+        while (iterator.hasNext() && emails.size() < MAX_EMAILS_PER_MESSAGE) {
+            emails.add(iterator.next());
+            iterator.remove();
+        }
+
+        return emails;
+    }
+
+    private void evictUser(String email) {
+        LOGGER.debug("Evicting cached state of {}", email);
+
+        for (InvalidationAware cache : caches) {
+            try {
+                cache.invalidate(email);
+            } catch (Exception e) {
+                LOGGER.error("Eviction of {} failed: {}", email, e.getMessage());
+            }
+        }
+    }
+
+    private void evictWallet(String email) {
+        for (InvalidationAware cache : caches) {
+            try {
+                cache.invalidateWallet(email);
+            } catch (Exception e) {
+                LOGGER.error("Eviction of the wallet of {} failed: {}", email, e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package it.unisalento.pasproject.walletservice.service;
+
+import it.unisalento.pasproject.walletservice.business.events.BalancesChangedEvent;
+import it.unisalento.pasproject.walletservice.business.events.InvalidationAware;
+import it.unisalento.pasproject.walletservice.business.events.WalletChangedEvent;
+import it.unisalento.pasproject.walletservice.business.stats.TopBalances;
+import it.unisalento.pasproject.walletservice.domain.Wallet;
+import it.unisalento.pasproject.walletservice.exceptions.BadRequestException;
+import it.unisalento.pasproject.walletservice.repositories.WalletRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Leaderboards of the enabled wallets with the highest and the lowest balances.
+ * <p>
+ * The first {@code wallet.leaderboard.capacity} wallets of every leaderboard are kept in a {@link TopBalances},
+ * so a request is answered from memory. On a miss, at startup or when too many wallets left the kept ones,
+ * the leaderboard is read again from the balance index.
+ * </p>
+ * <p>
+ * Kept wallets are updated at once by the changes of this instance. Wallets whose balance is not known here,
+ * and wallets evicted by any instance, are read again every {@code wallet.leaderboard.refresh.interval} ms.
+ * </p>
+ */
+@Service
+public class LeaderboardService implements InvalidationAware {
+
+    public enum Board {
+        HIGHEST, LOWEST
+    }
+
+    private final WalletRepository walletRepository;
+
+    private final int capacity;
+
+    private final Map<Board, TopBalances> boards = new EnumMap<>(Board.class);
+
+    private final Object lock = new Object();
+
+    //Una sola lettura dal database alla volta, le richieste in attesa trovano poi la classifica caricata
+    private final Object loadLock = new Object();
+
+    //Wallet da rileggere dal database
+    private final Set<String> dirty = ConcurrentHashMap.newKeySet();
+
+    //Wallet cambiati mentre una classifica veniva letta, potrebbero essere stati letti prima della modifica
+    private final Set<String> changedDuringLoad = new HashSet<>();
+
+    private boolean loading;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LeaderboardService.class);
+
+    @Autowired
+    public LeaderboardService(WalletRepository walletRepository,
+                              @Value("${wallet.leaderboard.capacity}") int capacity) {
+        this.walletRepository = walletRepository;
+        this.capacity = capacity;
+
+        boards.put(Board.HIGHEST, new TopBalances(capacity, true));
+        boards.put(Board.LOWEST, new TopBalances(capacity, false));
+    }
+
+    /**
+     * Get the first wallets of a leaderboard, from memory unless not enough wallets are kept
+     * @param board the leaderboard
+     * @param size the number of wallets, between 1 and the capacity
+     * @return the wallets in leaderboard order
+     */
+    public List<TopBalances.Entry> getLeaderboard(Board board, int size) {
+        if (size < 1 || size > capacity) {
+            throw new BadRequestException("Leaderboard size must be between 1 and " + capacity);
+        }
+
+        synchronized (lock) {
+            Optional<List<TopBalances.Entry>> first = boards.get(board).first(size);
+
+            if (first.isPresent()) {
+                return first.get();
+            }
+        }
+
+        return load(board, size);
+    }
+
+    @EventListener
+    public void onBalancesChanged(BalancesChangedEvent event) {
+        synchronized (lock) {
+            event.getDeltas().forEach((email, delta) -> {
+                Optional<Double> balance = knownBalance(email);
+
+                if (balance.isPresent()) {
+                    apply(email, balance.get() + delta);
+                } else {
+                    dirty.add(email);
+                }
+            });
+        }
+    }
+
+    @EventListener
+    public void onWalletChanged(WalletChangedEvent event) {
+        synchronized (lock) {
+            String email = event.getEmail();
+
+            if (Boolean.FALSE.equals(event.getEnabled())) {
+                boards.values().forEach(board -> board.remove(email));
+                markChanged(email);
+            } else if (event.getBalance() != null && (Boolean.TRUE.equals(event.getEnabled()) || knownBalance(email).isPresent())) {
+                apply(email, event.getBalance());
+            } else if (knownBalance(email).isEmpty()) {
+                dirty.add(email);
+            }
+        }
+    }
+
+    @Override
+    public void invalidate(String email) {
+        dirty.add(email);
+    }
+
+    @Override
+    public void invalidateWallet(String email) {
+        dirty.add(email);
+    }
+
+    /**
+     * Read again the wallets changed since the last run
+     */
+    @Scheduled(fixedDelayString = "${wallet.leaderboard.refresh.interval}")
+    public void refresh() {
+        if (dirty.isEmpty()) {
+            return;
+        }
+
+        List<String> emails = new ArrayList<>(dirty);
+        dirty.removeAll(emails);
+
+        try {
+            List<Wallet> found = walletRepository.findSummariesByEmailIn(emails);
+
+            synchronized (lock) {
+                Set<String> missing = new HashSet<>(emails);
+
+                for (Wallet wallet : found) {
+                    missing.remove(wallet.getEmail());
+
+                    if (Boolean.TRUE.equals(wallet.getIsEnable())) {
+                        apply(wallet.getEmail(), wallet.getBalance());
+                    } else {
+                        missing.add(wallet.getEmail());
+                    }
+                }
+
+                for (String email : missing) {
+                    boards.values().forEach(board -> board.remove(email));
+                    markChanged(email);
+                }
+            }
+        } catch (Exception e) {
+            LOGGER.error("Leaderboard of {} wallets not refreshed, retrying on the next run: {}", emails.size(), e.getMessage());
+            dirty.addAll(emails);
+        }
+    }
+
+    private List<TopBalances.Entry> load(Board board, int size) {
+        synchronized (loadLock) {
+            synchronized (lock) {
+                Optional<List<TopBalances.Entry>> first = boards.get(board).first(size);
+
+                if (first.isPresent()) {
+                    return first.get();
+                }
+
+                loading = true;
+            }
+
+            List<TopBalances.Entry> read = null;
+
+            try {
+                read = walletRepository.findTopBalances(capacity, board == Board.HIGHEST).stream()
+                        .map(wallet -> new TopBalances.Entry(wallet.getEmail(), wallet.getBalance()))
+                        .toList();
+            } finally {
+                synchronized (lock) {
+                    if (read != null) {
+                        boards.get(board).load(read);
+                    }
+
+                    loading = false;
+                    dirty.addAll(changedDuringLoad);
+                    changedDuringLoad.clear();
+                }
+            }
+
+            LOGGER.debug("Leaderboard {} loaded: {} wallets", board, read.size());
+            return read.subList(0, Math.min(size, read.size()));
+        }
+    }
+
+    private Optional<Double> knownBalance(String email) {
+        for (TopBalances board : boards.values()) {
+            Optional<Double> balance = board.balanceOf(email);
+
+            if (balance.isPresent()) {
+                return balance;
+            }
+        }
+
+        return Optional.empty();
+    }
+
+    private void apply(String email, double balance) {
+        boards.values().forEach(board -> board.update(email, balance));
+        markChanged(email);
+    }
+
+    private void markChanged(String email) {
+        if (loading) {
+            changedDuringLoad.add(email);
+        }
+    }
+}
@@ -0,0 +1,376 @@
+package it.unisalento.pasproject.walletservice.service;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import it.unisalento.pasproject.walletservice.domain.BalanceSnapshot;
+import it.unisalento.pasproject.walletservice.domain.LedgerEntry;
+import it.unisalento.pasproject.walletservice.domain.Wallet;
+import it.unisalento.pasproject.walletservice.dto.LedgerCheckDTO;
+import it.unisalento.pasproject.walletservice.dto.RequestTransactionDTO;
+import it.unisalento.pasproject.walletservice.repositories.BalanceSnapshotRepository;
+import it.unisalento.pasproject.walletservice.repositories.JobLeaseRepository;
+import it.unisalento.pasproject.walletservice.repositories.LedgerEntryRepository;
+import it.unisalento.pasproject.walletservice.repositories.WalletRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Append-only history of the balance changes of the wallets.
+ * <p>
+ * Every change is a new document of the ledger collection, so hot wallets never contend on
+ * the same document. Periodically the entries of every active wallet are compacted into a
+ * balance snapshot, and a balance can be rebuilt as the latest snapshot plus the entries recorded after it.
+ * The compaction runs on one instance at a time, the one holding the {@code ledger-compaction} lease.
+ * Its first run seeds an opening snapshot for every existing wallet, so the wallets created before the ledger,
+ * which have no {@code OPENING} entry, can be rebuilt as well.
+ * </p>
+ * <p>
+ * Ledger failures never fail the operation that changed the balance: the entries not stored are kept in memory
+ * and retried every {@code wallet.ledger.retry.interval} ms, and their number is exposed as {@code wallet.ledger.pending}.
+ * Entries still pending when the instance stops are lost, so the ledger may differ from the balances.
+ * </p>
+ */
+@Service
+public class LedgerService {
+
+    private static final int SNAPSHOT_CHUNK_SIZE = 1000;
+
+    private static final String COMPACTION_LEASE = "ledger-compaction";
+
+    //Oltre questo numero le entry non salvate vengono scartate, per non esaurire la memoria
+    private static final int MAX_PENDING_ENTRIES = 100_000;
+
+    private final LedgerEntryRepository ledgerEntryRepository;
+
+    private final BalanceSnapshotRepository balanceSnapshotRepository;
+
+    private final JobLeaseRepository jobLeaseRepository;
+
+    private final WalletRepository walletRepository;
+
+    //Le entry più recenti potrebbero essere ancora in scrittura, quindi restano fuori dallo snapshot
+    private final Duration snapshotGrace;
+
+    //Deve superare la durata di una compattazione, altrimenti un'altra istanza potrebbe iniziarne una in parallelo
+    private final Duration snapshotLease;
+
+    private final String instanceId = UUID.randomUUID().toString();
+
+    private final Queue<LedgerEntry> pending = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger pendingCount = new AtomicInteger();
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LedgerService.class);
+
+    @Autowired
+    public LedgerService(LedgerEntryRepository ledgerEntryRepository, BalanceSnapshotRepository balanceSnapshotRepository,
+                         JobLeaseRepository jobLeaseRepository, WalletRepository walletRepository, MeterRegistry meterRegistry,
+                         @Value("${wallet.ledger.snapshot.grace}") long snapshotGraceMillis,
+                         @Value("${wallet.ledger.snapshot.lease}") long snapshotLeaseMillis) {
+        this.ledgerEntryRepository = ledgerEntryRepository;
+        this.balanceSnapshotRepository = balanceSnapshotRepository;
+        this.jobLeaseRepository = jobLeaseRepository;
+        this.walletRepository = walletRepository;
+        this.snapshotGrace = Duration.ofMillis(snapshotGraceMillis);
+        this.snapshotLease = Duration.ofMillis(snapshotLeaseMillis);
+
+        Gauge.builder("wallet.ledger.pending", pendingCount, AtomicInteger::get)
+                .description("Ledger entries not stored yet, waiting to be retried")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Record a balance change of a wallet, nothing is recorded if the balance did not change
+     * @param email the email of the wallet
+     * @param type the operation that changed the balance
+     * @param amount the balance change, negative if money was taken
+     */
+    public void record(String email, LedgerEntry.Type type, double amount) {
+        if (amount == 0.0) {
+            return;
+        }
+
+        insert(List.of(entry(email, type, amount, null, Instant.now())));
+    }
+
+    /**
+     * Record a completed transfer as a debit and a credit entry, with a single insert
+     * @param transaction the completed transfer
+     */
+    public void recordTransfer(RequestTransactionDTO transaction) {
+        recordTransfers(List.of(transaction));
+    }
+
+    /**
+     * Record a group of completed transfers with a single insert
+     * @param transactions the completed transfers
+     */
+    public void recordTransfers(Collection<RequestTransactionDTO> transactions) {
+        List<LedgerEntry> entries = new ArrayList<>(transactions.size() * 2);
+        Instant now = Instant.now();
+
+        for (RequestTransactionDTO transaction : transactions) {
+            entries.add(entry(transaction.getSenderEmail(), LedgerEntry.Type.TRANSFER_DEBIT,
+                    -transaction.getAmount(), transaction.getId(), now));
+            entries.add(entry(transaction.getReceiverEmail(), LedgerEntry.Type.TRANSFER_CREDIT,
+                    transaction.getAmount(), transaction.getId(), now));
+        }
+
+        insert(entries);
+    }
+
+    /**
+     * Record the same kind of balance change for many wallets with a single insert,
+     * nothing is recorded for the wallets whose balance did not change
+     * @param type the operation that changed the balances
+     * @param amounts the balance change of every wallet, keyed by email
+     */
+    public void recordAll(LedgerEntry.Type type, Map<String, Double> amounts) {
+        List<LedgerEntry> entries = new ArrayList<>(amounts.size());
+        Instant now = Instant.now();
+
+        amounts.forEach((email, amount) -> {
+            if (amount != 0.0) {
+                entries.add(entry(email, type, amount, null, now));
+            }
+        });
+
+        insert(entries);
+    }
+
+    /**
+     * Rebuild the balance of a wallet from its history
+     * @param email the email of the wallet
+     * @return the latest snapshot balance plus the entries recorded after it
+     */
+    public double rebuildBalance(String email) {
+        Optional<BalanceSnapshot> snapshot = balanceSnapshotRepository.findFirstByEmailOrderByTimestampDesc(email);
+
+        double balance = snapshot.map(BalanceSnapshot::getBalance).orElse(0.0);
+        Instant from = snapshot.map(BalanceSnapshot::getTimestamp).orElse(Instant.EPOCH);
+
+        for (LedgerEntry entry : ledgerEntryRepository.findByEmailAndRecordedAtGreaterThanEqual(email, from)) {
+            balance += entry.getAmount();
+        }
+
+        return balance;
+    }
+
+    /**
+     * Compare the balance of a wallet with the one rebuilt from its history.
+     * Entries still pending or being written show up as a difference, so it must be checked again before a repair.
+     * @param email the email of the wallet
+     * @param balance the current balance of the wallet
+     * @return the balance, the ledger balance and their difference
+     */
+    public LedgerCheckDTO check(String email, double balance) {
+        double ledgerBalance = rebuildBalance(email);
+
+        LedgerCheckDTO ledgerCheckDTO = new LedgerCheckDTO();
+        ledgerCheckDTO.setEmail(email);
+        ledgerCheckDTO.setBalance(balance);
+        ledgerCheckDTO.setLedgerBalance(ledgerBalance);
+        //I saldi sono in centesimi, il resto è errore di arrotondamento delle somme
+        ledgerCheckDTO.setDifference(Math.round((balance - ledgerBalance) * 100) / 100.0);
+        return ledgerCheckDTO;
+    }
+
+    /**
+     * Record the difference between the balance of a wallet and its history as an adjustment,
+     * so the ledger matches the balance again
+     * @param email the email of the wallet
+     * @param balance the current balance of the wallet
+     * @return the check made before the repair
+     */
+    public LedgerCheckDTO repair(String email, double balance) {
+        LedgerCheckDTO ledgerCheckDTO = check(email, balance);
+
+        if (ledgerCheckDTO.getDifference() != 0.0) {
+            LOGGER.warn("Ledger of {} differs from the balance by {}, adjustment recorded", email, ledgerCheckDTO.getDifference());
+            record(email, LedgerEntry.Type.ADJUSTMENT, ledgerCheckDTO.getDifference());
+        }
+
+        return ledgerCheckDTO;
+    }
+
+    /**
+     * Compact the entries recorded since the last run into a new snapshot for every wallet that changed.
+     * All the snapshots of a run share the same timestamp, so the latest snapshot marks where the next run starts.
+     */
+    @Scheduled(fixedDelayString = "${wallet.ledger.snapshot.interval}", initialDelayString = "${wallet.ledger.snapshot.interval}")
+    public void compact() {
+        try {
+            if (!jobLeaseRepository.tryAcquire(COMPACTION_LEASE, instanceId, snapshotLease)) {
+                LOGGER.debug("Ledger compaction running on another instance");
+                return;
+            }
+        } catch (Exception e) {
+            LOGGER.error("Ledger compaction skipped, lease not available: {}", e.getMessage());
+            return;
+        }
+
+        try {
+            compactUnderLease();
+        } finally {
+            try {
+                jobLeaseRepository.release(COMPACTION_LEASE, instanceId);
+            } catch (Exception e) {
+                LOGGER.warn("Ledger compaction lease not released, it expires in {}: {}", snapshotLease, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Store again the entries whose insert failed.
+     * They keep the time of the change as timestamp, but are recorded at the time of the retry,
+     * so they always fall after the last compacted window.
+     */
+    @Scheduled(fixedDelayString = "${wallet.ledger.retry.interval}")
+    public void retryPending() {
+        List<LedgerEntry> entries = new ArrayList<>();
+        LedgerEntry entry;
+
+        while ((entry = pending.poll()) != null) {
+            entries.add(entry);
+        }
+
+        if (entries.isEmpty()) {
+            return;
+        }
+
+        pendingCount.addAndGet(-entries.size());
+        insert(entries);
+    }
+
+    private void compactUnderLease() {
+        //Mongo conserva i millisecondi, il cutoff deve essere confrontabile con quello salvato
+        Instant cutoff = Instant.now().minus(snapshotGrace).truncatedTo(ChronoUnit.MILLIS);
+
+        try {
+            Instant from = balanceSnapshotRepository.findFirstByOrderByTimestampDesc()
+                    .map(BalanceSnapshot::getTimestamp)
+                    .orElse(Instant.EPOCH);
+
+            if (!from.isBefore(cutoff)) {
+                return;
+            }
+
+            if (from.equals(Instant.EPOCH)) {
+                seedOpenings(cutoff);
+                return;
+            }
+
+            Map<String, Double> changes = ledgerEntryRepository.sumAmountsByEmail(from, cutoff);
+            List<String> emails = new ArrayList<>(changes.keySet());
+
+            for (int start = 0; start < emails.size(); start += SNAPSHOT_CHUNK_SIZE) {
+                List<String> chunk = emails.subList(start, Math.min(start + SNAPSHOT_CHUNK_SIZE, emails.size()));
+                Map<String, Double> previous = balanceSnapshotRepository.findLatestBalances(chunk);
+                List<BalanceSnapshot> snapshots = new ArrayList<>(chunk.size());
+
+                for (String email : chunk) {
+                    BalanceSnapshot snapshot = new BalanceSnapshot();
+                    snapshot.setEmail(email);
+                    snapshot.setBalance(previous.getOrDefault(email, 0.0) + changes.get(email));
+                    snapshot.setTimestamp(cutoff);
+                    snapshots.add(snapshot);
+                }
+
+                balanceSnapshotRepository.insert(snapshots);
+            }
+
+            LOGGER.info("Ledger compacted up to {}: {} snapshots created", cutoff, emails.size());
+        } catch (Exception e) {
+            LOGGER.error("Ledger compaction failed: {}", e.getMessage());
+            rollback(cutoff);
+        }
+    }
+
+    /**
+     * Create the first snapshot of every wallet from its balance, less the entries recorded after the cutoff.
+     * Changes not yet written to the wallets collection end up in the difference reported by {@link #check(String, double)}.
+     */
+    private void seedOpenings(Instant cutoff) {
+        Map<String, Double> balances = new HashMap<>();
+
+        try (Stream<Wallet> wallets = walletRepository.streamSummaries()) {
+            wallets.forEach(wallet -> balances.put(wallet.getEmail(), wallet.getBalance()));
+        }
+
+        //Le variazioni registrate dopo il cutoff sono già nei saldi, ma saranno sommate agli snapshot dalle prossime compattazioni
+        Map<String, Double> later = ledgerEntryRepository.sumAmountsByEmail(cutoff, Instant.now());
+        List<BalanceSnapshot> snapshots = new ArrayList<>(SNAPSHOT_CHUNK_SIZE);
+
+        for (Map.Entry<String, Double> balance : balances.entrySet()) {
+            BalanceSnapshot snapshot = new BalanceSnapshot();
+            snapshot.setEmail(balance.getKey());
+            snapshot.setBalance(balance.getValue() - later.getOrDefault(balance.getKey(), 0.0));
+            snapshot.setTimestamp(cutoff);
+            snapshots.add(snapshot);
+
+            if (snapshots.size() == SNAPSHOT_CHUNK_SIZE) {
+                balanceSnapshotRepository.insert(snapshots);
+                snapshots = new ArrayList<>(SNAPSHOT_CHUNK_SIZE);
+            }
+        }
+
+        if (!snapshots.isEmpty()) {
+            balanceSnapshotRepository.insert(snapshots);
+        }
+
+        LOGGER.info("Ledger opened at {}: {} opening snapshots created", cutoff, balances.size());
+    }
+
+    //Uno snapshot parziale sposterebbe l'inizio del run successivo, quindi si scarta l'intero run
+    private void rollback(Instant cutoff) {
+        try {
+            balanceSnapshotRepository.deleteByTimestamp(cutoff);
+        } catch (Exception e) {
+            LOGGER.error("Snapshots of {} not removed: {}", cutoff, e.getMessage());
+        }
+    }
+
+    private void insert(List<LedgerEntry> entries) {
+        if (entries.isEmpty()) {
+            return;
+        }
+
+        Instant now = Instant.now();
+        entries.forEach(entry -> entry.setRecordedAt(now));
+
+        try {
+            ledgerEntryRepository.insert(entries);
+        } catch (Exception e) {
+            if (pendingCount.get() + entries.size() > MAX_PENDING_ENTRIES) {
+                LOGGER.error("{} ledger entries not stored and dropped, too many pending: {}", entries.size(), e.getMessage());
+                return;
+            }
+
+            LOGGER.warn("{} ledger entries not stored, retrying later: {}", entries.size(), e.getMessage());
+            pending.addAll(entries);
+            pendingCount.addAndGet(entries.size());
+        }
+    }
+
+    private static LedgerEntry entry(String email, LedgerEntry.Type type, double amount, String transactionId, Instant timestamp) {
+        LedgerEntry entry = new LedgerEntry();
+        entry.setEmail(email);
+        entry.setType(type);
+        entry.setAmount(amount);
+        entry.setTransactionId(transactionId);
+        entry.setTimestamp(timestamp);
+        return entry;
+    }
+}
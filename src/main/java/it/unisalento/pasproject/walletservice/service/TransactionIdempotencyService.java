@@ -0,0 +1,275 @@
+package it.unisalento.pasproject.walletservice.service;
+
+import it.unisalento.pasproject.walletservice.domain.ProcessedTransaction;
+import it.unisalento.pasproject.walletservice.dto.MessageDTO;
+import it.unisalento.pasproject.walletservice.repositories.ProcessedTransactionRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+
+/**
+ * Remembers the outcome of the processed transactions, so a message redelivered by RabbitMQ
+ * gets the original reply back instead of being applied twice.
+ * <p>
+ * Recent ids are kept in a bounded LRU map, so repeated ids are answered without touching the database.
+ * Every outcome is also stored in the processed_transaction collection, whose TTL index
+ * drops it once redeliveries are no longer expected.
+ * </p>
+ * <p>
+ * A transaction claimed but still without an outcome is in flight on another consumer: its redelivery gets no
+ * reply, the reply is sent by the consumer applying it. Only a claim older than
+ * {@code wallet.idempotency.pending.timeout} ms is considered orphaned, left by a consumer that stopped, and
+ * answered as failed.
+ * </p>
+ */
+@Service
+public class TransactionIdempotencyService {
+
+    private final ProcessedTransactionRepository processedTransactionRepository;
+
+    private final Map<String, Integer> recentOutcomes;
+
+    private final Duration pendingTimeout;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TransactionIdempotencyService.class);
+
+    @Autowired
+    public TransactionIdempotencyService(ProcessedTransactionRepository processedTransactionRepository,
+                                         @Value("${wallet.idempotency.cache.size}") int cacheSize,
+                                         @Value("${wallet.idempotency.pending.timeout}") long pendingTimeoutMillis) {
+        this.processedTransactionRepository = processedTransactionRepository;
+        this.pendingTimeout = Duration.ofMillis(pendingTimeoutMillis);
+        this.recentOutcomes = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * Find the outcome of an already processed transaction
+     * @param transactionId the id of the transaction
+     * @return the original outcome, or null if the transaction was never processed
+     */
+    public MessageDTO findOutcome(String transactionId) {
+        if (transactionId == null) {
+            return null;
+        }
+
+        MessageDTO recent = findRecentOutcome(transactionId);
+
+        if (recent != null) {
+            return recent;
+        }
+
+        Optional<ProcessedTransaction> processed = processedTransactionRepository.findById(transactionId);
+
+        if (processed.isEmpty() || processed.get().getCode() == ProcessedTransaction.PENDING) {
+            return null;
+        }
+
+        remember(transactionId, processed.get().getCode());
+        return new MessageDTO(transactionId, processed.get().getCode());
+    }
+
+    /**
+     * Claim a transaction before applying it, inserting a pending outcome keyed on its id.
+     * <p>
+     * Only the caller whose insert succeeds applies the transaction, so a redelivery never applies it twice,
+     * also while the first attempt is still running or after a crash in the middle of it.
+     * A transaction claimed without an outcome is returned with the {@link ProcessedTransaction#PENDING} code
+     * while the claim is recent, so the caller doesn't reply, and as failed once the claim is orphaned.
+     * It is never applied again.
+     * </p>
+     * @param transactionId the id of the transaction, null if it can't be deduplicated
+     * @return null if the caller must apply the transaction, otherwise the outcome to reply with,
+     * or a {@link ProcessedTransaction#PENDING} one if no reply must be sent
+     */
+    public MessageDTO claim(String transactionId) {
+        if (transactionId == null) {
+            return null;
+        }
+
+        MessageDTO recent = findRecentOutcome(transactionId);
+
+        if (recent != null) {
+            return recent;
+        }
+
+        ProcessedTransaction pending = new ProcessedTransaction();
+        pending.setId(transactionId);
+        pending.setCode(ProcessedTransaction.PENDING);
+        pending.setProcessedAt(Instant.now());
+
+        try {
+            processedTransactionRepository.insert(pending);
+            return null;
+        } catch (DuplicateKeyException e) {
+            Optional<ProcessedTransaction> processed = processedTransactionRepository.findById(transactionId);
+
+            if (processed.isEmpty()) {
+                //Rimossa dal TTL tra l'insert e la lettura, come se fosse ancora in corso
+                return new MessageDTO(transactionId, ProcessedTransaction.PENDING);
+            }
+
+            return outcomeOf(processed.get());
+        }
+    }
+
+    /**
+     * Claim a group of transactions before applying them, like {@link #claim(String)} but with one bulk insert.
+     * Only the ids already stored are read back, with one query.
+     * @param transactionIds the ids of the transactions
+     * @return the outcome to reply with for every transaction not claimed by the caller, keyed by id,
+     * with the {@link ProcessedTransaction#PENDING} code for the ones in flight; the caller applies the others
+     */
+    public Map<String, MessageDTO> claimAll(Collection<String> transactionIds) {
+        Map<String, MessageDTO> outcomes = new HashMap<>();
+        Set<String> missing = new LinkedHashSet<>();
+
+        synchronized (recentOutcomes) {
+            for (String transactionId : transactionIds) {
+                if (transactionId == null) {
+                    continue;
+                }
+
+                Integer code = recentOutcomes.get(transactionId);
+
+                if (code != null) {
+                    outcomes.put(transactionId, new MessageDTO(transactionId, code));
+                } else {
+                    missing.add(transactionId);
+                }
+            }
+        }
+
+        if (missing.isEmpty()) {
+            return outcomes;
+        }
+
+        Instant now = Instant.now();
+        List<ProcessedTransaction> claims = new ArrayList<>(missing.size());
+
+        for (String transactionId : missing) {
+            ProcessedTransaction pending = new ProcessedTransaction();
+            pending.setId(transactionId);
+            pending.setCode(ProcessedTransaction.PENDING);
+            pending.setProcessedAt(now);
+            claims.add(pending);
+        }
+
+        Set<String> duplicates = processedTransactionRepository.insertClaims(claims);
+
+        if (duplicates.isEmpty()) {
+            return outcomes;
+        }
+
+        for (ProcessedTransaction processed : processedTransactionRepository.findAllById(duplicates)) {
+            outcomes.put(processed.getId(), outcomeOf(processed));
+        }
+
+        //Rimosse dal TTL tra l'insert e la lettura, come se fossero ancora in corso
+        for (String transactionId : duplicates) {
+            outcomes.putIfAbsent(transactionId, new MessageDTO(transactionId, ProcessedTransaction.PENDING));
+        }
+
+        return outcomes;
+    }
+
+    /**
+     * Store the outcome of a transaction claimed with {@link #claim(String)}, replacing the pending one.
+     * If the write fails the transaction stays pending, so it is still never applied twice.
+     * @param outcome the reply sent for the transaction
+     */
+    public void recordOutcome(MessageDTO outcome) {
+        if (outcome.getResponse() == null) {
+            return;
+        }
+
+        remember(outcome.getResponse(), outcome.getCode());
+
+        ProcessedTransaction transaction = new ProcessedTransaction();
+        transaction.setId(outcome.getResponse());
+        transaction.setCode(outcome.getCode());
+        transaction.setProcessedAt(Instant.now());
+
+        try {
+            processedTransactionRepository.save(transaction);
+        } catch (Exception e) {
+            LOGGER.error("Outcome of transaction {} not stored, it stays pending: {}", outcome.getResponse(), e.getMessage());
+        }
+    }
+
+    /**
+     * Store the outcomes of a group of transactions claimed with {@link #claimAll(Collection)}, with a single bulk write.
+     * If the write fails the transactions stay pending, so they are still never applied twice.
+     * @param outcomes the replies sent for the transactions
+     */
+    public void recordOutcomes(Collection<MessageDTO> outcomes) {
+        List<ProcessedTransaction> processed = new ArrayList<>(outcomes.size());
+        Instant now = Instant.now();
+
+        for (MessageDTO outcome : outcomes) {
+            if (outcome.getResponse() == null) {
+                continue;
+            }
+
+            remember(outcome.getResponse(), outcome.getCode());
+
+            ProcessedTransaction transaction = new ProcessedTransaction();
+            transaction.setId(outcome.getResponse());
+            transaction.setCode(outcome.getCode());
+            transaction.setProcessedAt(now);
+            processed.add(transaction);
+        }
+
+        try {
+            processedTransactionRepository.saveOutcomes(processed);
+        } catch (Exception e) {
+            LOGGER.error("Outcome of {} transactions not stored, they stay pending: {}", processed.size(), e.getMessage());
+        }
+    }
+
+    private MessageDTO outcomeOf(ProcessedTransaction processed) {
+        if (processed.getCode() != ProcessedTransaction.PENDING) {
+            remember(processed.getId(), processed.getCode());
+            return new MessageDTO(processed.getId(), processed.getCode());
+        }
+
+        Instant claimedAt = processed.getProcessedAt();
+
+        if (claimedAt != null && claimedAt.isAfter(Instant.now().minus(pendingTimeout))) {
+            LOGGER.info("Transaction {} in flight on another consumer, not applied again", processed.getId());
+            return new MessageDTO(processed.getId(), ProcessedTransaction.PENDING);
+        }
+
+        //Il consumer che l'ha presa in carico si è fermato senza salvare l'esito
+        LOGGER.warn("Transaction {} orphaned, claimed at {} without an outcome: answered as failed, must be checked",
+                processed.getId(), claimedAt);
+        return new MessageDTO(processed.getId(), 400);
+    }
+
+    private MessageDTO findRecentOutcome(String transactionId) {
+        Integer code;
+
+        synchronized (recentOutcomes) {
+            code = recentOutcomes.get(transactionId);
+        }
+
+        return code == null ? null : new MessageDTO(transactionId, code);
+    }
+
+    private void remember(String transactionId, int code) {
+        synchronized (recentOutcomes) {
+            recentOutcomes.put(transactionId, code);
+        }
+    }
+}
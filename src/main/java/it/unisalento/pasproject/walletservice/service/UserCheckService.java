@@ -1,8 +1,16 @@
 package it.unisalento.pasproject.walletservice.service;
 
 
-import it.unisalento.pasproject.walletservice.business.io.exchanger.MessageExchangeStrategy;
-import it.unisalento.pasproject.walletservice.business.io.exchanger.MessageExchanger;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import it.unisalento.pasproject.walletservice.business.concurrency.SingleFlight;
+import it.unisalento.pasproject.walletservice.business.events.InvalidationAware;
+import it.unisalento.pasproject.walletservice.business.io.exchanger.UserDetailsBatcher;
+import it.unisalento.pasproject.walletservice.configuration.ResilienceConfig;
 import it.unisalento.pasproject.walletservice.dto.UserDetailsDTO;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -14,50 +22,147 @@ import org.springframework.security.core.userdetails.UserDetails;
 import org.springframework.security.core.userdetails.UsernameNotFoundException;
 import org.springframework.stereotype.Service;
 
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
 import static it.unisalento.pasproject.walletservice.security.SecurityConstants.ROLE_ADMIN;
 
 
 @Service
-public class UserCheckService {
+public class UserCheckService implements InvalidationAware {
+
+    private final UserDetailsBatcher userDetailsBatcher;
 
-    private final MessageExchanger messageExchanger;
+    //Utenti sconosciuti salvati come Optional vuoto, con una scadenza più breve
+    private final Cache<String, Optional<UserDetailsDTO>> userDetailsCache;
 
-    @Value("${rabbitmq.exchange.security.name}")
-    private String securityExchange;
+    //Richieste concorrenti per la stessa email condividono una sola chiamata al servizio di sicurezza
+    private final SingleFlight<String, UserDetailsDTO> userLookups = new SingleFlight<>();
 
-    @Value("${rabbitmq.routing.security.key}")
-    private String securityRequestRoutingKey;
+    private final CircuitBreaker circuitBreaker;
 
     @Autowired
-    public UserCheckService(MessageExchanger messageExchanger, @Qualifier("RabbitMQExchange") MessageExchangeStrategy messageExchangeStrategy) {
-        this.messageExchanger = messageExchanger;
-        this.messageExchanger.setStrategy(messageExchangeStrategy);
+    public UserCheckService(UserDetailsBatcher userDetailsBatcher,
+                            @Qualifier(ResilienceConfig.SECURITY_CIRCUIT_BREAKER) CircuitBreaker circuitBreaker, MeterRegistry meterRegistry,
+                            @Value("${wallet.user-details.cache.size}") long cacheSize,
+                            @Value("${wallet.user-details.cache.ttl}") long cacheTtlMillis,
+                            @Value("${wallet.user-details.cache.negative.ttl}") long negativeTtlMillis) {
+        this.userDetailsBatcher = userDetailsBatcher;
+        this.circuitBreaker = circuitBreaker;
+
+        long ttl = TimeUnit.MILLISECONDS.toNanos(cacheTtlMillis);
+        long negativeTtl = TimeUnit.MILLISECONDS.toNanos(negativeTtlMillis);
+
+        this.userDetailsCache = Caffeine.newBuilder()
+                .maximumSize(cacheSize)
+                .expireAfter(new Expiry<String, Optional<UserDetailsDTO>>() {
+                    @Override
+                    public long expireAfterCreate(String email, Optional<UserDetailsDTO> user, long currentTime) {
+                        return user.isPresent() ? ttl : negativeTtl;
+                    }
+
+                    @Override
+                    public long expireAfterUpdate(String email, Optional<UserDetailsDTO> user, long currentTime, long currentDuration) {
+                        return expireAfterCreate(email, user, currentTime);
+                    }
+
+                    @Override
+                    public long expireAfterRead(String email, Optional<UserDetailsDTO> user, long currentTime, long currentDuration) {
+                        return currentDuration;
+                    }
+                })
+                .recordStats()
+                .build();
+
+        CaffeineCacheMetrics.monitor(meterRegistry, userDetailsCache, "userDetails");
     }
 
     private static final Logger LOGGER = LoggerFactory.getLogger(UserCheckService.class);
 
 
     /**
-     * Load the user details by email
+     * Load the user details by email.
+     * <p>
+     * Answers are cached for {@code wallet.user-details.cache.ttl} ms, unknown users for
+     * {@code wallet.user-details.cache.negative.ttl} ms. Failed lookups are not cached.
+     * Concurrent misses for the same email share a single request to the security service.
+     * While the circuit breaker of the security service is open no request is sent and null is returned at once.
+     * </p>
      * @param email the email of the user
-     * @return the user details
+     * @return the user details, or null if the user is unknown or the lookup failed
      * @throws UsernameNotFoundException if the user is not found
      */
     public UserDetailsDTO loadUserByUsername(String email) throws UsernameNotFoundException {
+        return loadUserByUsernameAsync(email).join();
+    }
+
+    /**
+     * Load the user details by email without blocking the caller, see {@link #loadUserByUsername(String)}
+     * @param email the email of the user
+     * @return the future user details, completed with null if the user is unknown or the lookup failed
+     */
+    public CompletableFuture<UserDetailsDTO> loadUserByUsernameAsync(String email) {
+        Optional<UserDetailsDTO> cached = userDetailsCache.getIfPresent(email);
+
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached.orElse(null));
+        }
+
+        return userLookups.executeAsync(email, () -> fetchUser(email));
+    }
+
+    private CompletableFuture<UserDetailsDTO> fetchUser(String email) {
+        //Una chiamata appena conclusa potrebbe aver già popolato la cache
+        Optional<UserDetailsDTO> cached = userDetailsCache.policy().getIfPresentQuietly(email);
+
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached.orElse(null));
+        }
+
+        //Servizio di sicurezza non disponibile: si risponde subito senza chiamata
+        if (!circuitBreaker.tryAcquirePermission()) {
+            LOGGER.warn("Security service unavailable, user details of {} not requested", email);
+            return CompletableFuture.completedFuture(null);
+        }
 
         //Chiamata MQTT a CQRS per ottenere i dettagli dell'utente
-        UserDetailsDTO user = null;
+        long start = circuitBreaker.getCurrentTimestamp();
+        CompletableFuture<UserDetailsBatcher.Reply> reply;
 
         try {
-            user = messageExchanger.exchangeMessage(email,securityRequestRoutingKey,securityExchange,UserDetailsDTO.class);
+            reply = userDetailsBatcher.lookup(email);
         } catch (Exception e) {
+            circuitBreaker.onError(circuitBreaker.getCurrentTimestamp() - start, circuitBreaker.getTimestampUnit(), e);
             LOGGER.error(e.getMessage());
+            return CompletableFuture.completedFuture(null);
         }
 
-        return user;
+        return reply.handle((answer, e) -> {
+            if (e != null) {
+                circuitBreaker.onError(circuitBreaker.getCurrentTimestamp() - start, circuitBreaker.getTimestampUnit(), e);
+                LOGGER.error(e.getMessage());
+                return null;
+            }
+
+            //Durata della sola richiesta che ha risposto, non di un batch fallito prima di essa
+            circuitBreaker.onSuccess(answer.elapsedNanos(), TimeUnit.NANOSECONDS);
+
+            userDetailsCache.put(email, Optional.ofNullable(answer.user()));
+            return answer.user();
+        });
     }
 
 
+    /**
+     * Evict the cached user details, called when the user is changed by any instance or by the auth service
+     * @param email the email of the user
+     */
+    @Override
+    public void invalidate(String email) {
+        userDetailsCache.invalidate(email);
+    }
+
     public Boolean isEnable(Boolean enable) {
         return enable;
     }
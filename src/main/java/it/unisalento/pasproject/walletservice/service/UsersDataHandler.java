@@ -1,5 +1,7 @@
 package it.unisalento.pasproject.walletservice.service;
 
+import it.unisalento.pasproject.walletservice.business.events.WalletChangedEvent;
+import it.unisalento.pasproject.walletservice.domain.LedgerEntry;
 import it.unisalento.pasproject.walletservice.domain.Wallet;
 import it.unisalento.pasproject.walletservice.repositories.WalletRepository;
 import org.slf4j.Logger;
@@ -7,6 +9,8 @@ import org.slf4j.LoggerFactory;
 import org.springframework.amqp.rabbit.annotation.RabbitListener;
 import it.unisalento.pasproject.walletservice.dto.UserDTO;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.dao.DuplicateKeyException;
 import org.springframework.stereotype.Service;
 
 import java.util.Objects;
@@ -22,11 +26,17 @@ public class UsersDataHandler {
     // It is used to retrieve the data of the users when they are created.
     private final WalletRepository walletRepository;
 
+    private final LedgerService ledgerService;
+
+    private final ApplicationEventPublisher eventPublisher;
+
     private static final Logger LOGGER = LoggerFactory.getLogger(UsersDataHandler.class);
 
     @Autowired
-    public UsersDataHandler(WalletRepository walletRepository) {
+    public UsersDataHandler(WalletRepository walletRepository, LedgerService ledgerService, ApplicationEventPublisher eventPublisher) {
         this.walletRepository = walletRepository;
+        this.ledgerService = ledgerService;
+        this.eventPublisher = eventPublisher;
     }
 
     @RabbitListener(queues = "${rabbitmq.queue.userData.name}")
@@ -64,6 +74,11 @@ public class UsersDataHandler {
             wallet.setIsEnable(true);
 
             walletRepository.save(wallet);
+            ledgerService.record(wallet.getEmail(), LedgerEntry.Type.OPENING, balance);
+            eventPublisher.publishEvent(new WalletChangedEvent(this, wallet.getEmail(), balance, true));
+        } catch (DuplicateKeyException e) {
+            //Wallet creato nel frattempo da un altro consumer, l'indice univoco su email impedisce il duplicato
+            LOGGER.info("User already exists");
         } catch (Exception e) {
             LOGGER.error(e.getMessage());
         }
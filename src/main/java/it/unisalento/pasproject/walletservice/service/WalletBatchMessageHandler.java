@@ -0,0 +1,347 @@
+package it.unisalento.pasproject.walletservice.service;
+
+import it.unisalento.pasproject.walletservice.business.events.BalancesChangedEvent;
+import it.unisalento.pasproject.walletservice.business.io.producer.MessageProducer;
+import it.unisalento.pasproject.walletservice.domain.ProcessedTransaction;
+import it.unisalento.pasproject.walletservice.domain.Wallet;
+import it.unisalento.pasproject.walletservice.dto.MessageDTO;
+import it.unisalento.pasproject.walletservice.dto.RequestTransactionDTO;
+import it.unisalento.pasproject.walletservice.repositories.WalletRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.rabbit.annotation.RabbitListener;
+import org.springframework.amqp.support.AmqpHeaders;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.messaging.Message;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Batch mode of the transaction listener.
+ * <p>
+ * Instead of two database writes per transfer, the transactions of a batch are claimed with one bulk insert,
+ * validated in memory against one snapshot of the involved wallets, and the resulting balance changes are
+ * applied with two bulk writes, the debits and then the credits, and the completed transfers are appended
+ * to the ledger with a single insert. Every change is still conditional on the wallet being enabled, and a
+ * debit on the wallet holding enough money: if a wallet changed after the snapshot, the changes of the batch
+ * are rolled back and the transfers are applied one at a time. Every transfer still gets its own
+ * {@link MessageDTO} reply, and redelivered transfers are answered with their original outcome.
+ * Enabled with {@code rabbitmq.listener.transaction.batch.enabled=true}, which also stops
+ * the single message listener of {@link WalletMessageHandler}. The stream mode of
+ * {@link WalletStreamMessageHandler} reuses {@link #processBatch(List)} without starting this listener.
+ * </p>
+ */
+@Service
+@ConditionalOnExpression("${rabbitmq.listener.transaction.batch.enabled} or ${rabbitmq.listener.transaction.stream.enabled}")
+public class WalletBatchMessageHandler {
+
+    private final WalletRepository walletRepository;
+
+    private final MessageProducer messageProducer;
+
+    private final TransactionIdempotencyService transactionIdempotencyService;
+
+    private final LedgerService ledgerService;
+
+    private final ApplicationEventPublisher eventPublisher;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(WalletBatchMessageHandler.class);
+
+    @Autowired
+    public WalletBatchMessageHandler(WalletRepository walletRepository, MessageProducer messageProducer,
+                                     TransactionIdempotencyService transactionIdempotencyService, LedgerService ledgerService,
+                                     ApplicationEventPublisher eventPublisher) {
+        this.walletRepository = walletRepository;
+        this.messageProducer = messageProducer;
+        this.transactionIdempotencyService = transactionIdempotencyService;
+        this.ledgerService = ledgerService;
+        this.eventPublisher = eventPublisher;
+    }
+
+    @RabbitListener(queues = "${rabbitmq.queue.receiveTransaction.name}", containerFactory = "transactionBatchContainerFactory",
+            autoStartup = "${rabbitmq.listener.transaction.batch.enabled}")
+    public void receiveTransactions(List<Message<RequestTransactionDTO>> messages) {
+        List<RequestTransactionDTO> transactions = messages.stream().map(Message::getPayload).toList();
+
+        List<MessageDTO> responses = processBatch(transactions);
+
+        for (int i = 0; i < messages.size(); i++) {
+            String replyTo = messages.get(i).getHeaders().get(AmqpHeaders.REPLY_TO, String.class);
+
+            if (replyTo == null || responses.get(i) == null) {
+                continue;
+            }
+
+            String correlationId = messages.get(i).getHeaders().get(AmqpHeaders.CORRELATION_ID, String.class);
+
+            try {
+                messageProducer.sendReply(responses.get(i), replyTo, correlationId);
+            } catch (Exception e) {
+                LOGGER.error("Reply for transaction {} not sent: {}", responses.get(i).getResponse(), e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Validate and apply a batch of transfers, with an id derived from the ids of its transactions,
+     * so a batch delivered again keeps its id
+     * @param transactions the transfers, in the order they were received
+     * @return the outcome of every transfer, in the same order, null for the ones that must get no reply
+     */
+    public List<MessageDTO> processBatch(List<RequestTransactionDTO> transactions) {
+        //Senza gli id non si riconosce un batch ripetuto, l'id è casuale
+        if (transactions.stream().anyMatch(transaction -> transaction.getId() == null)) {
+            return processBatch(UUID.randomUUID().toString(), transactions);
+        }
+
+        String ids = transactions.stream().map(RequestTransactionDTO::getId).sorted().distinct().collect(Collectors.joining("\n"));
+        return processBatch(UUID.nameUUIDFromBytes(ids.getBytes(StandardCharsets.UTF_8)).toString(), transactions);
+    }
+
+    /**
+     * Validate and apply a batch of transfers.
+     * <p>
+     * The transactions are claimed before any balance is changed, like in the single message mode.
+     * Transactions already processed, in a previous batch or earlier in the same one, are not applied again
+     * and get the original outcome, the ones in flight on another consumer get no reply.
+     * A transfer whose changes may or may not have been applied, because a write failed midway, gets no reply
+     * either and its claim stays pending, so it is never applied again.
+     * </p>
+     * @param batchId the id tagging the wallets changed by the batch, the same if the batch is applied again
+     * @param transactions the transfers, in the order they were received
+     * @return the outcome of every transfer, in the same order, null for the ones that must get no reply
+     */
+    public List<MessageDTO> processBatch(String batchId, List<RequestTransactionDTO> transactions) {
+        Map<String, MessageDTO> previousOutcomes;
+
+        try {
+            previousOutcomes = transactionIdempotencyService.claimAll(
+                    transactions.stream().map(RequestTransactionDTO::getId).toList());
+        } catch (Exception e) {
+            LOGGER.error("Batch {} of {} transactions failed: not claimed: {}", batchId, transactions.size(), e.getMessage());
+            return transactions.stream().map(transaction -> new MessageDTO(transaction.getId(), 400)).toList();
+        }
+
+        Set<String> emails = new HashSet<>();
+
+        for (RequestTransactionDTO transaction : transactions) {
+            emails.add(transaction.getSenderEmail());
+            emails.add(transaction.getReceiverEmail());
+        }
+
+        //Stato dei wallet coinvolti, letto una sola volta e aggiornato in memoria
+        Map<String, Wallet> wallets = new HashMap<>();
+        boolean walletsRead;
+
+        try {
+            walletRepository.findByEmailIn(emails).forEach(wallet -> wallets.put(wallet.getEmail(), wallet));
+            walletsRead = true;
+        } catch (Exception e) {
+            LOGGER.error("Batch {} of {} transactions failed: {}", batchId, transactions.size(), e.getMessage());
+            walletsRead = false;
+        }
+
+        Map<String, Double> deltas = new LinkedHashMap<>();
+        Map<String, MessageDTO> batchOutcomes = new HashMap<>();
+        List<MessageDTO> newOutcomes = new ArrayList<>();
+        List<RequestTransactionDTO> accepted = new ArrayList<>();
+        List<MessageDTO> acceptedOutcomes = new ArrayList<>();
+        List<MessageDTO> outcomes = new ArrayList<>(transactions.size());
+
+        for (RequestTransactionDTO transaction : transactions) {
+            String transactionId = transaction.getId();
+            MessageDTO previous = transactionId == null ? null : previousOutcomes.getOrDefault(transactionId, batchOutcomes.get(transactionId));
+
+            if (previous != null) {
+                if (previous.getCode() != ProcessedTransaction.PENDING && !batchOutcomes.containsKey(transactionId)) {
+                    LOGGER.info("Transaction {} already processed, replying with the original outcome", transactionId);
+                }
+
+                //Ripetuta nello stesso batch: riceve lo stesso esito, anche se cambia dopo
+                outcomes.add(previous);
+                continue;
+            }
+
+            MessageDTO outcome = walletsRead ? applyInMemory(transaction, wallets, deltas) : new MessageDTO(transactionId, 400);
+
+            if (transactionId != null) {
+                batchOutcomes.put(transactionId, outcome);
+            }
+
+            if (outcome.getCode() == 200) {
+                accepted.add(transaction);
+                acceptedOutcomes.add(outcome);
+            }
+
+            newOutcomes.add(outcome);
+            outcomes.add(outcome);
+        }
+
+        deltas.values().removeIf(delta -> delta == 0.0);
+
+        try {
+            if (!applyDeltas(batchId, deltas)) {
+                //Un wallet è cambiato dopo la lettura: i trasferimenti sono verificati di nuovo uno alla volta
+                transferOneByOne(accepted, acceptedOutcomes, deltas);
+            }
+        } catch (Exception e) {
+            //Non si sa quali scritture siano state applicate: nessuna risposta e le prese in carico restano pendenti
+            LOGGER.error("Batch {} of {} transactions left in an unknown state, wallets tagged with it must be checked: {}",
+                    batchId, transactions.size(), e.getMessage());
+            acceptedOutcomes.forEach(outcome -> outcome.setCode(ProcessedTransaction.PENDING));
+            deltas.clear();
+        }
+
+        if (!deltas.isEmpty()) {
+            eventPublisher.publishEvent(new BalancesChangedEvent(this, deltas));
+        }
+
+        List<RequestTransactionDTO> completed = new ArrayList<>();
+
+        for (int i = 0; i < accepted.size(); i++) {
+            if (acceptedOutcomes.get(i).getCode() == 200) {
+                completed.add(accepted.get(i));
+            }
+        }
+
+        ledgerService.recordTransfers(completed);
+        LOGGER.info("Batch {} of {} transactions completed, {} wallets updated", batchId, transactions.size(), deltas.size());
+
+        transactionIdempotencyService.recordOutcomes(newOutcomes.stream()
+                .filter(outcome -> outcome.getCode() != ProcessedTransaction.PENDING).toList());
+
+        return outcomes.stream().map(outcome -> outcome.getCode() == ProcessedTransaction.PENDING ? null : outcome).toList();
+    }
+
+    /**
+     * Apply the balance changes of a batch: first the debits, then the credits,
+     * each one only if the wallet is still enabled and, for a debit, holds enough money.
+     * @return false if a debit or a credit didn't match, in which case the changes of the batch are rolled back
+     */
+    private boolean applyDeltas(String batchId, Map<String, Double> deltas) {
+        Map<String, Double> debits = new LinkedHashMap<>();
+        Map<String, Double> credits = new LinkedHashMap<>();
+
+        deltas.forEach((email, delta) -> (delta < 0 ? debits : credits).put(email, delta));
+
+        Set<String> debited = walletRepository.applyBatchDeltas(batchId, debits);
+
+        if (debited.size() < debits.size()) {
+            LOGGER.info("Batch {}: {} of {} debits not applied, rolling back", batchId, debits.size() - debited.size(), debits.size());
+            Map<String, Double> applied = new HashMap<>(debits);
+            applied.keySet().retainAll(debited);
+            walletRepository.revertBatchDeltas(batchId, applied);
+            return false;
+        }
+
+        //Un errore a metà lascia accrediti mancanti, il secondo tentativo applica solo quelli
+        Set<String> credited = walletRepository.applyBatchDeltas(batchId, credits);
+
+        if (credited.size() < credits.size()) {
+            credited = walletRepository.applyBatchDeltas(batchId, credits);
+        }
+
+        if (credited.size() < credits.size()) {
+            //Un destinatario disabilitato dopo la lettura: come per i debiti, si annulla tutto il batch
+            LOGGER.info("Batch {}: {} of {} credits not applied, rolling back", batchId, credits.size() - credited.size(), credits.size());
+            Map<String, Double> applied = new HashMap<>(credits);
+            applied.keySet().retainAll(credited);
+            walletRepository.revertBatchDeltas(batchId, applied);
+            walletRepository.revertBatchDeltas(batchId, debits);
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Apply the accepted transfers of a batch one at a time with the conditional updates of the single message mode
+     * @param accepted the transfers accepted by the in-memory validation
+     * @param outcomes the outcomes of the accepted transfers, in the same order, updated with the result of each transfer
+     * @param deltas replaced with the balance changes actually applied
+     */
+    private void transferOneByOne(List<RequestTransactionDTO> accepted, List<MessageDTO> outcomes, Map<String, Double> deltas) {
+        deltas.clear();
+
+        for (int i = 0; i < accepted.size(); i++) {
+            RequestTransactionDTO transaction = accepted.get(i);
+            int code = transferOne(transaction);
+
+            if (code == 200) {
+                deltas.merge(transaction.getSenderEmail(), -transaction.getAmount(), Double::sum);
+                deltas.merge(transaction.getReceiverEmail(), transaction.getAmount(), Double::sum);
+            }
+
+            outcomes.get(i).setCode(code);
+        }
+
+        deltas.values().removeIf(delta -> delta == 0.0);
+    }
+
+    /**
+     * @return 200 if completed, 400 if nothing was changed, {@link ProcessedTransaction#PENDING} if a write failed
+     * and the transfer may be half applied
+     */
+    private int transferOne(RequestTransactionDTO transaction) {
+        String sender = transaction.getSenderEmail();
+        double amount = transaction.getAmount();
+
+        try {
+            if (!walletRepository.debitIfEnabled(sender, amount)) {
+                LOGGER.info("Transaction {} failed: sender changed before the batch was applied", transaction.getId());
+                return 400;
+            }
+        } catch (Exception e) {
+            LOGGER.error("Transaction {} left in an unknown state on debit: {}", transaction.getId(), e.getMessage());
+            return ProcessedTransaction.PENDING;
+        }
+
+        try {
+            if (walletRepository.creditIfEnabled(transaction.getReceiverEmail(), amount)) {
+                return 200;
+            }
+        } catch (Exception e) {
+            //L'accredito potrebbe essere stato applicato, un rimborso creerebbe denaro
+            LOGGER.error("Transaction {} left in an unknown state on credit: {}", transaction.getId(), e.getMessage());
+            return ProcessedTransaction.PENDING;
+        }
+
+        LOGGER.info("Transaction {} failed: receiver changed before the batch was applied", transaction.getId());
+
+        try {
+            walletRepository.refund(sender, amount);
+            return 400;
+        } catch (Exception e) {
+            LOGGER.error("Transaction {} left in an unknown state: debit not refunded: {}", transaction.getId(), e.getMessage());
+            return ProcessedTransaction.PENDING;
+        }
+    }
+
+    private MessageDTO applyInMemory(RequestTransactionDTO transaction, Map<String, Wallet> wallets, Map<String, Double> deltas) {
+        Wallet sender = wallets.get(transaction.getSenderEmail());
+        Wallet receiver = wallets.get(transaction.getReceiverEmail());
+        double amount = transaction.getAmount();
+
+        if (sender == null || !Boolean.TRUE.equals(sender.getIsEnable()) || sender.getBalance() < amount) {
+            LOGGER.info("Transaction {} failed: sender not found, not enabled or not enough money", transaction.getId());
+            return new MessageDTO(transaction.getId(), 400);
+        }
+
+        if (receiver == null || !Boolean.TRUE.equals(receiver.getIsEnable())) {
+            LOGGER.info("Transaction {} failed: receiver not found or not enabled", transaction.getId());
+            return new MessageDTO(transaction.getId(), 400);
+        }
+
+        sender.setBalance(sender.getBalance() - amount);
+        receiver.setBalance(receiver.getBalance() + amount);
+        deltas.merge(sender.getEmail(), -amount, Double::sum);
+        deltas.merge(receiver.getEmail(), amount, Double::sum);
+
+        return new MessageDTO(transaction.getId(), 200);
+    }
+}
@@ -1,78 +1,103 @@
 package it.unisalento.pasproject.walletservice.service;
 
-import it.unisalento.pasproject.walletservice.domain.Wallet;
+import it.unisalento.pasproject.walletservice.business.concurrency.WalletLaneExecutor;
+import it.unisalento.pasproject.walletservice.business.engine.BalanceEngine;
+import it.unisalento.pasproject.walletservice.business.engine.UnconfirmedChangeException;
+import it.unisalento.pasproject.walletservice.domain.ProcessedTransaction;
 import it.unisalento.pasproject.walletservice.dto.MessageDTO;
 import it.unisalento.pasproject.walletservice.dto.RequestTransactionDTO;
-import it.unisalento.pasproject.walletservice.repositories.WalletRepository;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.amqp.rabbit.annotation.RabbitListener;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
-import java.util.Optional;
-
 @Service
 public class WalletMessageHandler {
 
 
-    private final WalletRepository walletRepository;
+    private final BalanceEngine balanceEngine;
+
+    private final WalletLaneExecutor walletLaneExecutor;
+
+    private final TransactionIdempotencyService transactionIdempotencyService;
 
     @Autowired
-    public WalletMessageHandler(WalletRepository walletRepository) {
-        this.walletRepository = walletRepository;
+    public WalletMessageHandler(BalanceEngine balanceEngine, WalletLaneExecutor walletLaneExecutor,
+                                TransactionIdempotencyService transactionIdempotencyService) {
+        this.balanceEngine = balanceEngine;
+        this.walletLaneExecutor = walletLaneExecutor;
+        this.transactionIdempotencyService = transactionIdempotencyService;
     }
 
     private static final Logger LOGGER = LoggerFactory.getLogger(WalletMessageHandler.class);
 
 
-    @RabbitListener(queues = "${rabbitmq.queue.receiveTransaction.name}")
+    /**
+     * Execute a transfer between two wallets with the configured {@link BalanceEngine}.
+     * <p>
+     * The transfer runs on the lanes of both wallets, so transfers touching the same wallet
+     * are serialized while the others run in parallel on the listener consumers.
+     * A transaction already processed (e.g. redelivered after a crash) is not applied again,
+     * the original outcome is returned instead. A redelivery of a transaction still in flight on another
+     * consumer gets no reply, the other consumer sends it. A transfer whose outcome is unknown gets no reply either.
+     * </p>
+     * <p>
+     * Not started when the batch mode of {@link WalletBatchMessageHandler} or the stream mode
+     * of {@link WalletStreamMessageHandler} is enabled.
+     * </p>
+     * @param message the transaction to execute
+     * @return the outcome of the transaction, 200 if completed, 400 otherwise, null if no reply must be sent
+     */
+    @RabbitListener(queues = "${rabbitmq.queue.receiveTransaction.name}", concurrency = "${rabbitmq.listener.transaction.concurrency}",
+            autoStartup = "#{!(${rabbitmq.listener.transaction.batch.enabled} or ${rabbitmq.listener.transaction.stream.enabled})}")
     public MessageDTO receiveTransaction(RequestTransactionDTO message) {
+        return walletLaneExecutor.execute(message.getSenderEmail(), message.getReceiverEmail(),
+                () -> processTransaction(message));
+    }
 
-        String mittente = message.getSenderEmail();
-        String destinatario = message.getReceiverEmail();
-        double importo = message.getAmount();
-        String transactionId = message.getId();
-
-        //Controlla se il mittente ha abbastanza soldi
-        Optional<Wallet> sender = walletRepository.findByEmail(mittente);
+    private MessageDTO processTransaction(RequestTransactionDTO message) {
+        MessageDTO previous;
 
-        if (sender.isEmpty()) {
-            LOGGER.info("Transaction failed: sender not found");
-            return new MessageDTO(transactionId, 400);
+        //L'id viene preso in carico prima di toccare i saldi, così un crash a metà non porta a un doppio addebito
+        try {
+            previous = transactionIdempotencyService.claim(message.getId());
+        } catch (Exception e) {
+            LOGGER.error("Transaction {} failed: not claimed: {}", message.getId(), e.getMessage());
+            return new MessageDTO(message.getId(), 400);
         }
 
-        Wallet senderWallet = sender.get();
-
-        if(senderWallet.getBalance() < importo || !senderWallet.getIsEnable()) {
-            LOGGER.info("Transaction failed: Sender not enough money");
-            LOGGER.info("Sender balance: {}", senderWallet.getBalance());
-            return new MessageDTO(transactionId, 400);
+        if (previous != null && previous.getCode() == ProcessedTransaction.PENDING) {
+            return null;
         }
 
-        //Controlla se il destinatario è abilitato
-        Optional<Wallet> receiver = walletRepository.findByEmail(destinatario);
-
-        if (receiver.isEmpty()){
-            LOGGER.info("Transaction failed: receiver not found");
-            return new MessageDTO(transactionId, 400);
+        if (previous != null) {
+            LOGGER.info("Transaction {} already processed, replying with the original outcome", message.getId());
+            return previous;
         }
 
-        Wallet receiverWallet = receiver.get();
+        MessageDTO outcome = executeTransaction(message);
 
-        if(!receiver.get().getIsEnable()) {
-            LOGGER.info("Transaction failed: receiver not enabled");
-            return new MessageDTO(transactionId, 400);
+        //Esito sconosciuto: nessuna risposta e la presa in carico resta pendente
+        if (outcome != null) {
+            transactionIdempotencyService.recordOutcome(outcome);
         }
 
-        //Se il mittente ha abbastanza soldi e il destinatario è abilitato, esegui la transazione
-        senderWallet.setBalance(senderWallet.getBalance() - importo);
-        receiverWallet.setBalance(receiverWallet.getBalance() + importo);
+        return outcome;
+    }
+
+    private MessageDTO executeTransaction(RequestTransactionDTO message) {
+        String transactionId = message.getId();
 
-        try{
-            walletRepository.save(senderWallet);
-            walletRepository.save(receiverWallet);
+        try {
+            if (!balanceEngine.transfer(message)) {
+                return new MessageDTO(transactionId, 400);
+            }
+        } catch (UnconfirmedChangeException e) {
+            LOGGER.error("Transaction {} left in an unknown state: {}", transactionId, e.getMessage());
+            return null;
         } catch (Exception e) {
+            LOGGER.error("Transaction {} failed: {}", transactionId, e.getMessage());
             return new MessageDTO(transactionId, 400);
         }
 
@@ -0,0 +1,118 @@
+package it.unisalento.pasproject.walletservice.service;
+
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import it.unisalento.pasproject.walletservice.business.events.InvalidationAware;
+import it.unisalento.pasproject.walletservice.domain.Wallet;
+import it.unisalento.pasproject.walletservice.dto.WalletDTO;
+import it.unisalento.pasproject.walletservice.repositories.WalletRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Read-through cache of the wallets returned by the /find endpoint, keyed by owner email.
+ * <p>
+ * Every entry keeps the wallet together with its ETag, built from the version of the wallet,
+ * so a client polling with If-None-Match is answered without reading the database.
+ * Entries are evicted by the {@link InvalidationHandler} whenever any instance changes the wallet,
+ * and expire after {@code wallet.read-cache.ttl} ms in case an eviction is lost.
+ * Unknown wallets are not cached.
+ * </p>
+ * <p>
+ * Concurrent misses for the same email share a single query. A load is never stored once the
+ * wallet is evicted while it runs, so a copy read before a change can't outlive the eviction.
+ * </p>
+ */
+@Service
+public class WalletReadCache implements InvalidationAware {
+
+    private final WalletRepository walletRepository;
+
+    private final WalletService walletService;
+
+    private final AsyncCache<String, Entry> wallets;
+
+    /**
+     * A cached wallet, never changed once created
+     * @param wallet the wallet as returned to the clients
+     * @param etag the quoted ETag of this version of the wallet
+     */
+    public record Entry(WalletDTO wallet, String etag) {
+    }
+
+    @Autowired
+    public WalletReadCache(WalletRepository walletRepository, WalletService walletService, MeterRegistry meterRegistry,
+                           @Value("${wallet.read-cache.size}") long cacheSize,
+                           @Value("${wallet.read-cache.ttl}") long cacheTtlMillis) {
+        this.walletRepository = walletRepository;
+        this.walletService = walletService;
+
+        this.wallets = Caffeine.newBuilder()
+                .maximumSize(cacheSize)
+                .expireAfterWrite(Duration.ofMillis(cacheTtlMillis))
+                .recordStats()
+                .buildAsync();
+
+        CaffeineCacheMetrics.monitor(meterRegistry, wallets, "walletReads");
+    }
+
+    /**
+     * Get the wallet of the given owner, reading it from the database only if not cached
+     * @param email the email of the owner
+     * @return the cached wallet, empty if the owner has no wallet
+     */
+    public Optional<Entry> find(String email) {
+        CompletableFuture<Entry> load = new CompletableFuture<>();
+        CompletableFuture<Entry> cached = wallets.asMap().putIfAbsent(email, load);
+
+        if (cached != null) {
+            try {
+                return Optional.ofNullable(cached.join());
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException cause ? cause : e;
+            }
+        }
+
+        try {
+            Entry entry = walletRepository.findByEmail(email).map(this::toEntry).orElse(null);
+            //Un future completato con null viene rimosso dalla cache
+            load.complete(entry);
+            return Optional.ofNullable(entry);
+        } catch (RuntimeException e) {
+            wallets.asMap().remove(email, load);
+            load.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    private Entry toEntry(Wallet wallet) {
+        long version = wallet.getVersion() == null ? 0 : wallet.getVersion();
+        return new Entry(walletService.getWalletDTO(wallet), "\"" + version + "\"");
+    }
+
+    /**
+     * Evict the cached wallet, called when the user is changed by any instance or by the auth service
+     * @param email the email of the owner
+     */
+    @Override
+    public void invalidate(String email) {
+        wallets.synchronous().invalidate(email);
+    }
+
+    /**
+     * Evict the cached wallet, called when its balance is changed by a transfer on any instance
+     * @param email the email of the owner
+     */
+    @Override
+    public void invalidateWallet(String email) {
+        wallets.synchronous().invalidate(email);
+    }
+}
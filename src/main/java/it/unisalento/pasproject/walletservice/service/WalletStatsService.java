@@ -0,0 +1,312 @@
+package it.unisalento.pasproject.walletservice.service;
+
+import it.unisalento.pasproject.walletservice.business.events.BalancesChangedEvent;
+import it.unisalento.pasproject.walletservice.business.events.InvalidationAware;
+import it.unisalento.pasproject.walletservice.business.events.WalletChangedEvent;
+import it.unisalento.pasproject.walletservice.business.stats.BalanceSketch;
+import it.unisalento.pasproject.walletservice.domain.Wallet;
+import it.unisalento.pasproject.walletservice.dto.WalletStatsDTO;
+import it.unisalento.pasproject.walletservice.repositories.WalletRepository;
+import it.unisalento.pasproject.walletservice.repositories.WalletRepositoryCustom;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * Statistics of all the wallets, kept in memory and updated on every change so they are read in constant time.
+ * <p>
+ * The balance and the enabled flag of every wallet are kept together with the running totals and a
+ * {@link BalanceSketch} of the balances. Changes made by this instance are applied from the
+ * {@link BalancesChangedEvent} and {@link WalletChangedEvent} at once. Wallets evicted by any instance are
+ * marked and read again every {@code wallet.stats.refresh.interval} ms, so changes made elsewhere are applied too.
+ * </p>
+ * <p>
+ * Every {@code wallet.stats.reconcile.interval} ms the totals are compared with an aggregation on the database,
+ * and everything is loaded again from the database if they differ. The wallets changed while they are loaded
+ * are read again after the new statistics replace the old ones, since the load may have read them before the change.
+ * Between two runs the statistics may be slightly behind the database.
+ * </p>
+ */
+@Service
+public class WalletStatsService implements InvalidationAware {
+
+    private static final double[] QUANTILES = {0.1, 0.25, 0.5, 0.75, 0.9, 0.99};
+
+    private static final String[] QUANTILE_NAMES = {"p10", "p25", "p50", "p75", "p90", "p99"};
+
+    private final WalletRepository walletRepository;
+
+    private final double sketchAccuracy;
+
+    //Wallet da rileggere dal database, cambiati da questa o da altre istanze
+    private final Set<String> dirty = ConcurrentHashMap.newKeySet();
+
+    private final Object lock = new Object();
+
+    private final Object rebuildLock = new Object();
+
+    //Wallet cambiati durante il caricamento, da rileggere quando termina
+    private final Set<String> changedDuringLoad = new HashSet<>();
+
+    private boolean loading;
+
+    private Map<String, State> wallets = new HashMap<>();
+
+    private BalanceSketch sketch;
+
+    //In centesimi, così la somma non accumula errori di arrotondamento
+    private long totalCents;
+
+    private long enabledCount;
+
+    private Instant reconciledAt;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(WalletStatsService.class);
+
+    private record State(double balance, boolean enabled) {
+    }
+
+    @Autowired
+    public WalletStatsService(WalletRepository walletRepository,
+                              @Value("${wallet.stats.sketch.accuracy}") double sketchAccuracy) {
+        this.walletRepository = walletRepository;
+        this.sketchAccuracy = sketchAccuracy;
+        this.sketch = new BalanceSketch(sketchAccuracy);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void onApplicationReady() {
+        try {
+            rebuild();
+        } catch (Exception e) {
+            LOGGER.error("Wallet statistics not loaded, retrying on the next reconciliation: {}", e.getMessage());
+        }
+    }
+
+    @EventListener
+    public void onBalancesChanged(BalancesChangedEvent event) {
+        synchronized (lock) {
+            event.getDeltas().forEach((email, delta) -> {
+                State state = wallets.get(email);
+
+                //Un wallet sconosciuto viene caricato dal refresh
+                if (state != null) {
+                    put(email, new State(state.balance() + delta, state.enabled()));
+                } else {
+                    markChanged(email);
+                }
+            });
+        }
+    }
+
+    @EventListener
+    public void onWalletChanged(WalletChangedEvent event) {
+        synchronized (lock) {
+            State state = wallets.get(event.getEmail());
+
+            if (state == null && (event.getBalance() == null || event.getEnabled() == null)) {
+                markChanged(event.getEmail());
+                dirty.add(event.getEmail());
+                return;
+            }
+
+            double balance = event.getBalance() != null ? event.getBalance() : state.balance();
+            boolean enabled = event.getEnabled() != null ? event.getEnabled() : state.enabled();
+
+            put(event.getEmail(), new State(balance, enabled));
+        }
+    }
+
+    @Override
+    public void invalidate(String email) {
+        dirty.add(email);
+    }
+
+    @Override
+    public void invalidateWallet(String email) {
+        dirty.add(email);
+    }
+
+    /**
+     * Read again the wallets changed since the last run
+     */
+    @Scheduled(fixedDelayString = "${wallet.stats.refresh.interval}")
+    public void refresh() {
+        if (dirty.isEmpty()) {
+            return;
+        }
+
+        List<String> emails = new ArrayList<>(dirty);
+        dirty.removeAll(emails);
+
+        try {
+            List<Wallet> found = walletRepository.findSummariesByEmailIn(emails);
+
+            synchronized (lock) {
+                Set<String> missing = new HashSet<>(emails);
+
+                for (Wallet wallet : found) {
+                    missing.remove(wallet.getEmail());
+                    put(wallet.getEmail(), stateOf(wallet));
+                }
+
+                missing.forEach(this::remove);
+            }
+        } catch (Exception e) {
+            LOGGER.error("Statistics of {} wallets not refreshed, retrying on the next run: {}", emails.size(), e.getMessage());
+            dirty.addAll(emails);
+        }
+    }
+
+    /**
+     * Compare the totals with the database and load everything again if they differ
+     */
+    @Scheduled(fixedDelayString = "${wallet.stats.reconcile.interval}", initialDelayString = "${wallet.stats.reconcile.interval}")
+    public void reconcile() {
+        try {
+            WalletRepositoryCustom.Totals totals = walletRepository.aggregateTotals();
+
+            synchronized (lock) {
+                //Tolleranza di un centesimo per wallet per gli arrotondamenti
+                boolean consistent = totals.wallets() == wallets.size()
+                        && totals.enabled() == enabledCount
+                        && Math.abs(cents(totals.balance()) - totalCents) <= totals.wallets();
+
+                if (consistent) {
+                    reconciledAt = Instant.now();
+                    return;
+                }
+            }
+
+            LOGGER.warn("Wallet statistics differ from the database ({} wallets, {} enabled), loading them again",
+                    totals.wallets(), totals.enabled());
+            rebuild();
+        } catch (Exception e) {
+            LOGGER.error("Wallet statistics not reconciled: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Get the current statistics, without reading the database
+     * @return the statistics of all the wallets
+     */
+    public WalletStatsDTO getStats() {
+        synchronized (lock) {
+            WalletStatsDTO statsDTO = new WalletStatsDTO();
+            statsDTO.setWallets(wallets.size());
+            statsDTO.setEnabled(enabledCount);
+            statsDTO.setDisabled(wallets.size() - enabledCount);
+            statsDTO.setTotalBalance(totalCents / 100.0);
+            statsDTO.setMeanBalance(wallets.isEmpty() ? 0.0 : totalCents / 100.0 / wallets.size());
+
+            Map<String, Double> quantiles = new LinkedHashMap<>();
+
+            if (sketch.getCount() > 0) {
+                for (int i = 0; i < QUANTILES.length; i++) {
+                    quantiles.put(QUANTILE_NAMES[i], sketch.quantile(QUANTILES[i]));
+                }
+            }
+
+            statsDTO.setQuantiles(quantiles);
+            statsDTO.setReconciledAt(reconciledAt);
+            return statsDTO;
+        }
+    }
+
+    private void rebuild() {
+        synchronized (rebuildLock) {
+            synchronized (lock) {
+                loading = true;
+            }
+
+            Map<String, State> loaded = new HashMap<>();
+            BalanceSketch loadedSketch = new BalanceSketch(sketchAccuracy);
+            long loadedCents = 0;
+            long loadedEnabled = 0;
+            boolean complete = false;
+
+            try (Stream<Wallet> stream = walletRepository.streamSummaries()) {
+                Iterator<Wallet> iterator = stream.iterator();
+
+                while (iterator.hasNext()) {
+                    Wallet wallet = iterator.next();
+                    State state = stateOf(wallet);
+
+                    if (loaded.put(wallet.getEmail(), state) == null) {
+                        loadedSketch.add(state.balance());
+                        loadedCents += cents(state.balance());
+                        loadedEnabled += state.enabled() ? 1 : 0;
+                    }
+                }
+
+                complete = true;
+            } finally {
+                synchronized (lock) {
+                    if (complete) {
+                        wallets = loaded;
+                        sketch = loadedSketch;
+                        totalCents = loadedCents;
+                        enabledCount = loadedEnabled;
+                        reconciledAt = Instant.now();
+                    }
+
+                    loading = false;
+                    dirty.addAll(changedDuringLoad);
+                    changedDuringLoad.clear();
+                }
+            }
+
+            LOGGER.info("Wallet statistics loaded: {} wallets", loaded.size());
+        }
+    }
+
+    private void put(String email, State state) {
+        markChanged(email);
+        State previous = wallets.put(email, state);
+
+        if (previous != null) {
+            sketch.remove(previous.balance());
+            totalCents -= cents(previous.balance());
+            enabledCount -= previous.enabled() ? 1 : 0;
+        }
+
+        sketch.add(state.balance());
+        totalCents += cents(state.balance());
+        enabledCount += state.enabled() ? 1 : 0;
+    }
+
+    private void remove(String email) {
+        markChanged(email);
+        State previous = wallets.remove(email);
+
+        if (previous != null) {
+            sketch.remove(previous.balance());
+            totalCents -= cents(previous.balance());
+            enabledCount -= previous.enabled() ? 1 : 0;
+        }
+    }
+
+    private void markChanged(String email) {
+        if (loading) {
+            changedDuringLoad.add(email);
+        }
+    }
+
+    private static State stateOf(Wallet wallet) {
+        return new State(wallet.getBalance(), Boolean.TRUE.equals(wallet.getIsEnable()));
+    }
+
+    private static long cents(double amount) {
+        return Math.round(amount * 100);
+    }
+}
@@ -0,0 +1,259 @@
+package it.unisalento.pasproject.walletservice.service;
+
+import com.rabbitmq.stream.Message;
+import com.rabbitmq.stream.MessageHandler;
+import com.rabbitmq.stream.OffsetSpecification;
+import com.rabbitmq.stream.Properties;
+import it.unisalento.pasproject.walletservice.business.io.producer.MessageProducer;
+import it.unisalento.pasproject.walletservice.domain.StreamOffset;
+import it.unisalento.pasproject.walletservice.dto.MessageDTO;
+import it.unisalento.pasproject.walletservice.dto.RequestTransactionDTO;
+import it.unisalento.pasproject.walletservice.repositories.StreamOffsetRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.annotation.RabbitListener;
+import org.springframework.amqp.support.converter.MessageConversionException;
+import org.springframework.amqp.support.converter.MessageConverter;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Stream ingestion mode of the transaction listener.
+ * <p>
+ * Transfers are read from a RabbitMQ stream, buffered and applied in batches through
+ * {@link WalletBatchMessageHandler#processBatch(String, List)}. After every batch the offset of its last message is
+ * stored on Mongo, in the stream_offset collection, and on restart the consumption resumes right after it.
+ * Setting {@code stream.replay.offset} together with a new {@code stream.replay.id} restarts the consumption
+ * from that offset once, to replay the stream after an incident; the id is stored with the offset, so the
+ * following restarts resume normally.
+ * </p>
+ * <p>
+ * The id of a batch is made of the stream name and the offsets of its first and last message, and its
+ * transactions are claimed before any balance is changed. If the process stops before the offset is stored,
+ * the messages of the batch are read again: a transfer whose outcome was stored is answered with it, one
+ * claimed without an outcome gets no reply, and none of them is applied a second time.
+ * </p>
+ * <p>
+ * All the instances subscribe with the same consumer name as single active consumer, so the broker delivers
+ * the stream to one of them at a time. An instance that becomes inactive applies its buffer and stores the
+ * offset before the next one starts from it.
+ * </p>
+ * <p>
+ * Messages are decoded by their content type, like the ones of the queues.
+ * The outcome of a transfer is sent to its reply-to address if present, otherwise it is published
+ * on the transaction exchange with the response routing key.
+ * Enabled with {@code rabbitmq.listener.transaction.stream.enabled=true}, which also stops
+ * the single message listener of {@link WalletMessageHandler}.
+ * </p>
+ */
+@Service
+@ConditionalOnProperty(name = "rabbitmq.listener.transaction.stream.enabled", havingValue = "true")
+public class WalletStreamMessageHandler {
+
+    private final WalletBatchMessageHandler walletBatchMessageHandler;
+
+    private final StreamOffsetRepository streamOffsetRepository;
+
+    private final MessageProducer messageProducer;
+
+    private final MessageConverter messageConverter;
+
+    @Value("${rabbitmq.stream.transaction.name}")
+    private String streamName;
+
+    @Value("${rabbitmq.exchange.transaction.name}")
+    private String transactionExchange;
+
+    @Value("${rabbitmq.routing.responseTransaction.key}")
+    private String responseRoutingKey;
+
+    @Value("${rabbitmq.listener.transaction.stream.batch.size}")
+    private int batchSize;
+
+    @Value("${rabbitmq.listener.transaction.stream.replay.offset}")
+    private long replayOffset;
+
+    @Value("${rabbitmq.listener.transaction.stream.replay.id}")
+    private String replayId;
+
+    //Ultima richiesta di replay eseguita, salvata insieme all'offset
+    private String appliedReplayId;
+
+    private final List<BufferedTransaction> buffer = new ArrayList<>();
+
+    //Offset del primo e dell'ultimo messaggio letto, inclusi nel prossimo batch
+    private long firstOffset = -1;
+
+    private long lastOffset = -1;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(WalletStreamMessageHandler.class);
+
+    private record BufferedTransaction(RequestTransactionDTO transaction, String replyTo, String correlationId) {
+    }
+
+    @Autowired
+    public WalletStreamMessageHandler(WalletBatchMessageHandler walletBatchMessageHandler, StreamOffsetRepository streamOffsetRepository,
+                                      MessageProducer messageProducer, MessageConverter messageConverter) {
+        this.walletBatchMessageHandler = walletBatchMessageHandler;
+        this.streamOffsetRepository = streamOffsetRepository;
+        this.messageProducer = messageProducer;
+        this.messageConverter = messageConverter;
+    }
+
+    /**
+     * Where the consumer starts: the replay offset if a replay not yet executed is requested,
+     * otherwise right after the last applied message
+     * @return the offset specification for the stream consumer
+     */
+    public OffsetSpecification startOffset() {
+        Optional<StreamOffset> stored = streamOffsetRepository.findById(streamName);
+        appliedReplayId = stored.map(StreamOffset::getReplayId).orElse(null);
+
+        boolean replayRequested = replayOffset >= 0 && replayId != null && !replayId.isBlank();
+
+        if (replayRequested && !replayId.equals(appliedReplayId)) {
+            LOGGER.warn("Replaying stream {} from offset {}, replay {}", streamName, replayOffset, replayId);
+            appliedReplayId = replayId;
+            //Salvato subito, un riavvio durante il replay riparte da dove è arrivato
+            storeOffset(replayOffset - 1);
+            return OffsetSpecification.offset(replayOffset);
+        }
+
+        if (replayOffset >= 0 && !replayRequested) {
+            LOGGER.warn("Replay of stream {} ignored: replay.offset is set without a replay.id", streamName);
+        }
+
+        if (stored.isEmpty()) {
+            return OffsetSpecification.first();
+        }
+
+        LOGGER.info("Resuming stream {} after offset {}", streamName, stored.get().getOffset());
+        return OffsetSpecification.offset(stored.get().getOffset() + 1);
+    }
+
+    /**
+     * Called by the broker when this instance becomes the active consumer of the stream or stops being it
+     * @param active true if this instance now receives the messages
+     * @return where the consumption starts, ignored when the consumer becomes inactive
+     */
+    public OffsetSpecification onConsumerUpdate(boolean active) {
+        if (active) {
+            return startOffset();
+        }
+
+        //Il prossimo consumer attivo riparte dall'offset salvato qui
+        LOGGER.info("No longer the active consumer of stream {}", streamName);
+        flush();
+        return OffsetSpecification.none();
+    }
+
+    @RabbitListener(queues = "${rabbitmq.stream.transaction.name}", containerFactory = "transactionStreamContainerFactory")
+    public void receiveTransaction(Message message, MessageHandler.Context context) {
+        RequestTransactionDTO transaction = null;
+
+        try {
+            transaction = decode(message);
+        } catch (MessageConversionException | ClassCastException e) {
+            LOGGER.error("Stream message at offset {} is not a transaction, skipped: {}", context.offset(), e.getMessage());
+        }
+
+        synchronized (buffer) {
+            if (transaction != null) {
+                Properties properties = message.getProperties();
+                buffer.add(new BufferedTransaction(transaction,
+                        properties == null ? null : properties.getReplyTo(),
+                        properties == null || properties.getCorrelationId() == null ? null : properties.getCorrelationIdAsString()));
+            }
+
+            if (firstOffset < 0) {
+                firstOffset = context.offset();
+            }
+
+            lastOffset = context.offset();
+
+            if (buffer.size() >= batchSize) {
+                processBuffer();
+            }
+        }
+    }
+
+    /**
+     * Apply the transfers buffered so far, so a batch never waits more than the batch timeout
+     */
+    @Scheduled(fixedDelayString = "${rabbitmq.listener.transaction.stream.batch.timeout}")
+    public void flush() {
+        synchronized (buffer) {
+            processBuffer();
+        }
+    }
+
+    private RequestTransactionDTO decode(Message message) {
+        //Decodificato come un messaggio AMQP, con il codec del suo content type
+        MessageProperties messageProperties = new MessageProperties();
+        messageProperties.setContentType(message.getProperties() == null ? null : message.getProperties().getContentType());
+        messageProperties.setInferredArgumentType(RequestTransactionDTO.class);
+
+        return (RequestTransactionDTO) messageConverter.fromMessage(
+                new org.springframework.amqp.core.Message(message.getBodyAsBinary(), messageProperties));
+    }
+
+    private void processBuffer() {
+        if (lastOffset < 0) {
+            return;
+        }
+
+        //Lo stesso intervallo di offset, letto di nuovo, dà lo stesso batch
+        String batchId = streamName + ":" + firstOffset + "-" + lastOffset;
+
+        List<MessageDTO> responses = buffer.isEmpty()
+                ? List.of()
+                : walletBatchMessageHandler.processBatch(batchId, buffer.stream().map(BufferedTransaction::transaction).toList());
+
+        storeOffset(lastOffset);
+
+        for (int i = 0; i < responses.size(); i++) {
+            BufferedTransaction buffered = buffer.get(i);
+
+            if (responses.get(i) == null) {
+                continue;
+            }
+
+            try {
+                if (buffered.replyTo() != null) {
+                    messageProducer.sendReply(responses.get(i), buffered.replyTo(), buffered.correlationId());
+                } else {
+                    messageProducer.sendMessage(responses.get(i), responseRoutingKey, transactionExchange);
+                }
+            } catch (Exception e) {
+                LOGGER.error("Outcome of transaction {} not sent: {}", responses.get(i).getResponse(), e.getMessage());
+            }
+        }
+
+        buffer.clear();
+        firstOffset = -1;
+        lastOffset = -1;
+    }
+
+    private void storeOffset(long offset) {
+        StreamOffset streamOffset = new StreamOffset();
+        streamOffset.setStream(streamName);
+        streamOffset.setOffset(offset);
+        streamOffset.setReplayId(appliedReplayId);
+        streamOffset.setUpdatedAt(Instant.now());
+
+        try {
+            streamOffsetRepository.save(streamOffset);
+        } catch (Exception e) {
+            LOGGER.error("Offset {} of stream {} not stored: {}", offset, streamName, e.getMessage());
+        }
+    }
+}
@@ -19,7 +19,7 @@ public class TestSecurityConfig {
         http.csrf(AbstractHttpConfigurer::disable);
 
         http.authorizeHttpRequests(auth -> auth
-                        .requestMatchers("/api/users/wallet/findall").hasRole("ADMIN")
+                        .requestMatchers("/api/users/wallet/findall", "/api/users/wallet/findall/**", "/api/users/wallet/bulk/**", "/api/users/wallet/stats", "/api/users/wallet/leaderboard").hasRole("ADMIN")
                         .anyRequest().authenticated());
 
         return http.build();
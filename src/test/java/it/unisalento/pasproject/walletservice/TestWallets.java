@@ -0,0 +1,45 @@
+package it.unisalento.pasproject.walletservice;
+
+import it.unisalento.pasproject.walletservice.domain.Wallet;
+
+/**
+ * Wallets used as fixtures by the tests
+ */
+public final class TestWallets {
+
+    private TestWallets() {
+    }
+
+    public static Wallet wallet(String email, double balance, boolean enabled) {
+        Wallet wallet = new Wallet();
+        wallet.setEmail(email);
+        wallet.setBalance(balance);
+        wallet.setIsEnable(enabled);
+        return wallet;
+    }
+
+    /**
+     * A wallet already applied by the in-memory engine up to the given journal sequence
+     */
+    public static Wallet wallet(String email, double balance, boolean enabled, Long engineSeq) {
+        Wallet wallet = wallet(email, balance, enabled);
+        wallet.setEngineSeq(engineSeq);
+        return wallet;
+    }
+
+    public static Wallet walletWithVersion(String email, double balance, Long version) {
+        Wallet wallet = wallet(email, balance, true);
+        wallet.setVersion(version);
+        return wallet;
+    }
+
+    /**
+     * A wallet as read by the paged selections, with only the id and the email
+     */
+    public static Wallet walletWithId(String id, String email) {
+        Wallet wallet = new Wallet();
+        wallet.setId(id);
+        wallet.setEmail(email);
+        return wallet;
+    }
+}
@@ -0,0 +1,83 @@
+package it.unisalento.pasproject.walletservice.benchmark;
+
+import it.unisalento.pasproject.walletservice.business.io.codec.Jackson2CborMessageConverter;
+import it.unisalento.pasproject.walletservice.dto.MessageDTO;
+import it.unisalento.pasproject.walletservice.dto.RequestTransactionDTO;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.support.converter.Jackson2JsonMessageConverter;
+import org.springframework.amqp.support.converter.MessageConverter;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Microbenchmark of the AMQP codecs on the high rate payloads, the transfer requests and their outcomes.
+ * <p>
+ * Every payload is encoded and decoded with every codec, the way the listeners do it (type inferred from the
+ * listener parameter), after a warm up of the same length. The report prints the encoded size and the
+ * average encode and decode time of every payload and codec:
+ * <pre>
+ * ./gradlew codecBenchmark -PbenchmarkArgs="1000000"
+ * </pre>
+ * Arguments: iterations (default 500000).
+ * </p>
+ */
+public class MessageCodecBenchmark {
+
+    private static volatile Object sink;
+
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 500_000;
+
+        RequestTransactionDTO transaction = new RequestTransactionDTO();
+        transaction.setId("665f1c2e9b1d4a3f8c7e5a21");
+        transaction.setSenderEmail("sender.user@example.com");
+        transaction.setReceiverEmail("receiver.user@example.com");
+        transaction.setAmount(125.75);
+
+        Map<String, MessageConverter> codecs = Map.of(
+                "json", new Jackson2JsonMessageConverter(),
+                "cbor", new Jackson2CborMessageConverter(List.of(RequestTransactionDTO.class, MessageDTO.class)));
+
+        Map<Object, Class<?>> payloads = Map.of(
+                transaction, RequestTransactionDTO.class,
+                new MessageDTO("665f1c2e9b1d4a3f8c7e5a21", 200), MessageDTO.class);
+
+        System.out.printf("iterations=%d%n", iterations);
+
+        for (Map.Entry<Object, Class<?>> payload : payloads.entrySet()) {
+            for (Map.Entry<String, MessageConverter> codec : codecs.entrySet()) {
+                //Riscaldamento del JIT con lo stesso numero di iterazioni
+                run(codec.getValue(), payload.getKey(), payload.getValue(), iterations);
+                long[] result = run(codec.getValue(), payload.getKey(), payload.getValue(), iterations);
+
+                System.out.printf("%-22s %-5s bytes=%4d encode=%6.0f ns/op decode=%6.0f ns/op%n",
+                        payload.getValue().getSimpleName(), codec.getKey(), result[0],
+                        (double) result[1] / iterations, (double) result[2] / iterations);
+            }
+        }
+    }
+
+    private static long[] run(MessageConverter codec, Object payload, Class<?> type, int iterations) {
+        Message message = null;
+        long start = System.nanoTime();
+
+        for (int i = 0; i < iterations; i++) {
+            message = codec.toMessage(payload, new MessageProperties());
+        }
+
+        long encode = System.nanoTime() - start;
+        byte[] body = message.getBody();
+        MessageProperties properties = message.getMessageProperties();
+        properties.setInferredArgumentType(type);
+        start = System.nanoTime();
+
+        for (int i = 0; i < iterations; i++) {
+            sink = codec.fromMessage(new Message(body, properties));
+        }
+
+        long decode = System.nanoTime() - start;
+        return new long[]{body.length, encode, decode};
+    }
+}
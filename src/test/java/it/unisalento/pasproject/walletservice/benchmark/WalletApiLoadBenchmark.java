@@ -0,0 +1,135 @@
+package it.unisalento.pasproject.walletservice.benchmark;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Load benchmark of the wallet API, used to compare the default profile (Tomcat worker threads)
+ * with the {@code virtual} profile (one virtual thread per request) on a running instance.
+ * <p>
+ * Every simulated client polls {@code /api/users/wallet/find} in a loop, waiting think ms between requests,
+ * for the given number of seconds. Slow clients are simulated with a long think time and many clients, so most
+ * connections are open and idle at any time. With conditional=true the ETag of the last response is sent back
+ * as If-None-Match, like the real pollers do.
+ * </p>
+ * <p>
+ * Start the service once with each profile and run with the same arguments against both:
+ * <pre>
+ * ./gradlew benchmark -PbenchmarkArgs="http://localhost:8080 &lt;jwt&gt; user@example.com 5000 60 200 true"
+ * </pre>
+ * Arguments: base url, bearer token, wallet owner, clients, seconds, think ms, conditional.
+ * The report prints throughput, latency percentiles and the count of every status code.
+ * </p>
+ */
+public class WalletApiLoadBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.err.println("Usage: <base url> <token> <email> [clients=1000] [seconds=30] [think ms=100] [conditional=true]");
+            System.exit(1);
+        }
+
+        URI uri = URI.create(args[0] + "/api/users/wallet/find?email=" + args[2]);
+        String token = args[1];
+        int clients = args.length > 3 ? Integer.parseInt(args[3]) : 1000;
+        long seconds = args.length > 4 ? Long.parseLong(args[4]) : 30;
+        long thinkMillis = args.length > 5 ? Long.parseLong(args[5]) : 100;
+        boolean conditional = args.length <= 6 || Boolean.parseBoolean(args[6]);
+
+        HttpClient httpClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(10))
+                .executor(Executors.newVirtualThreadPerTaskExecutor())
+                .build();
+
+        Map<Integer, LongAdder> statuses = new ConcurrentHashMap<>();
+        LongAdder errors = new LongAdder();
+        List<Future<long[]>> results = new ArrayList<>(clients);
+
+        long deadline = System.nanoTime() + Duration.ofSeconds(seconds).toNanos();
+        long start = System.nanoTime();
+
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < clients; i++) {
+                results.add(executor.submit(() -> poll(httpClient, uri, token, conditional, thinkMillis, deadline, statuses, errors)));
+            }
+        }
+
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        long[] latencies = results.stream().map(WalletApiLoadBenchmark::join).flatMapToLong(Arrays::stream).sorted().toArray();
+
+        System.out.printf("clients=%d seconds=%.1f think=%dms conditional=%s%n", clients, elapsed, thinkMillis, conditional);
+        System.out.printf("requests=%d throughput=%.0f req/s errors=%d%n", latencies.length, latencies.length / elapsed, errors.sum());
+
+        if (latencies.length > 0) {
+            System.out.printf("latency ms: p50=%.1f p90=%.1f p99=%.1f max=%.1f%n",
+                    percentile(latencies, 50), percentile(latencies, 90), percentile(latencies, 99),
+                    latencies[latencies.length - 1] / 1e6);
+        }
+
+        statuses.forEach((status, count) -> System.out.printf("status %d: %d%n", status, count.sum()));
+    }
+
+    private static long[] poll(HttpClient httpClient, URI uri, String token, boolean conditional, long thinkMillis,
+                               long deadline, Map<Integer, LongAdder> statuses, LongAdder errors) throws InterruptedException {
+        long[] latencies = new long[1024];
+        int count = 0;
+        String etag = null;
+
+        while (System.nanoTime() < deadline) {
+            HttpRequest.Builder request = HttpRequest.newBuilder(uri)
+                    .timeout(Duration.ofSeconds(30))
+                    .header("Authorization", "Bearer " + token)
+                    .GET();
+
+            if (conditional && etag != null) {
+                request.header("If-None-Match", etag);
+            }
+
+            long sent = System.nanoTime();
+
+            try {
+                HttpResponse<String> response = httpClient.send(request.build(), HttpResponse.BodyHandlers.ofString());
+
+                if (count == latencies.length) {
+                    latencies = Arrays.copyOf(latencies, count * 2);
+                }
+
+                latencies[count++] = System.nanoTime() - sent;
+                statuses.computeIfAbsent(response.statusCode(), status -> new LongAdder()).increment();
+                etag = response.headers().firstValue("ETag").orElse(etag);
+            } catch (Exception e) {
+                errors.increment();
+            }
+
+            Thread.sleep(thinkMillis);
+        }
+
+        return Arrays.copyOf(latencies, count);
+    }
+
+    private static long[] join(Future<long[]> result) {
+        try {
+            return result.get();
+        } catch (Exception e) {
+            return new long[0];
+        }
+    }
+
+    private static double percentile(long[] sorted, double percentile) {
+        int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+        return sorted[Math.max(index, 0)] / 1e6;
+    }
+}
@@ -0,0 +1,91 @@
+package it.unisalento.pasproject.walletservice.business.concurrency;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SingleFlightTest {
+
+    private final SingleFlight<String, String> singleFlight = new SingleFlight<>();
+
+    @Test
+    void execute_sharesOneCallBetweenConcurrentCallers() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+
+        try {
+            Future<String> leader = pool.submit(() -> singleFlight.execute("user@example.com", () -> {
+                calls.incrementAndGet();
+                started.countDown();
+                await(release);
+                return "result";
+            }));
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+
+            List<Future<String>> followers = new ArrayList<>();
+            List<Thread> followerThreads = new CopyOnWriteArrayList<>();
+            for (int i = 0; i < 7; i++) {
+                followers.add(pool.submit(() -> {
+                    followerThreads.add(Thread.currentThread());
+                    return singleFlight.execute("user@example.com", () -> {
+                        calls.incrementAndGet();
+                        return "other";
+                    });
+                }));
+            }
+
+            //I follower devono essere in attesa della chiamata in corso prima di sbloccarla
+            while (followerThreads.size() < 7
+                    || followerThreads.stream().anyMatch(thread -> thread.getState() != Thread.State.WAITING)) {
+                Thread.sleep(5);
+            }
+            release.countDown();
+
+            assertEquals("result", leader.get(5, TimeUnit.SECONDS));
+            for (Future<String> follower : followers) {
+                assertEquals("result", follower.get(5, TimeUnit.SECONDS));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        assertEquals(1, calls.get());
+        assertEquals(0, singleFlight.inFlightCount());
+    }
+
+    @Test
+    void execute_startsANewCallOnceTheLastOneCompleted() {
+        AtomicInteger calls = new AtomicInteger();
+
+        singleFlight.execute("user@example.com", () -> "v" + calls.incrementAndGet());
+        String second = singleFlight.execute("user@example.com", () -> "v" + calls.incrementAndGet());
+
+        assertEquals("v2", second);
+    }
+
+    @Test
+    void execute_propagatesTheFailureAndForgetsTheCall() {
+        IllegalStateException failure = new IllegalStateException("timeout");
+
+        IllegalStateException thrown = assertThrows(IllegalStateException.class,
+                () -> singleFlight.execute("user@example.com", () -> { throw failure; }));
+
+        assertSame(failure, thrown);
+        assertEquals("ok", singleFlight.execute("user@example.com", () -> "ok"));
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package it.unisalento.pasproject.walletservice.business.concurrency;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WalletLaneExecutorTest {
+
+    private SimpleMeterRegistry meterRegistry;
+
+    private WalletLaneExecutor walletLaneExecutor;
+
+    @BeforeEach
+    void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        walletLaneExecutor = new WalletLaneExecutor(16, meterRegistry);
+    }
+
+    @Test
+    void execute_serializesTasksOnTheSameWallet() throws Exception {
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+
+        try {
+            CountDownLatch done = new CountDownLatch(200);
+            for (int i = 0; i < 200; i++) {
+                String other = "user" + i + "@example.com";
+                pool.execute(() -> {
+                    walletLaneExecutor.execute("hot@example.com", other, () -> {
+                        maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                        running.decrementAndGet();
+                        return null;
+                    });
+                    done.countDown();
+                });
+            }
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+        } finally {
+            pool.shutdownNow();
+        }
+
+        assertEquals(1, maxRunning.get());
+    }
+
+    @Test
+    void execute_runsTasksOnUnrelatedWalletsInParallel() throws Exception {
+        String first = "a@example.com";
+        String second = findEmailOnDifferentLane(first);
+        CyclicBarrier barrier = new CyclicBarrier(2);
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+
+        try {
+            Future<Boolean> one = pool.submit(() -> walletLaneExecutor.execute(first, () -> await(barrier)));
+            Future<Boolean> two = pool.submit(() -> walletLaneExecutor.execute(second, () -> await(barrier)));
+
+            // Both tasks can only pass the barrier if they hold their lanes at the same time
+            assertTrue(one.get(5, TimeUnit.SECONDS));
+            assertTrue(two.get(5, TimeUnit.SECONDS));
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    void execute_opposingTransfersDoNotDeadlock() throws Exception {
+        String first = "a@example.com";
+        String second = findEmailOnDifferentLane(first);
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+
+        try {
+            Future<?> forward = pool.submit(() -> {
+                for (int i = 0; i < 10_000; i++) {
+                    walletLaneExecutor.execute(first, second, () -> null);
+                }
+            });
+            Future<?> backward = pool.submit(() -> {
+                for (int i = 0; i < 10_000; i++) {
+                    walletLaneExecutor.execute(second, first, () -> null);
+                }
+            });
+
+            forward.get(10, TimeUnit.SECONDS);
+            backward.get(10, TimeUnit.SECONDS);
+        } finally {
+            pool.shutdownNow();
+        }
+
+        assertEquals(20_000, meterRegistry.get("wallet.lanes.wait").timer().count());
+    }
+
+    @Test
+    void laneOf_isStableAndInRange() {
+        for (int i = 0; i < 1000; i++) {
+            String email = "user" + i + "@example.com";
+            int lane = walletLaneExecutor.laneOf(email);
+            assertTrue(lane >= 0 && lane < 16);
+            assertEquals(lane, walletLaneExecutor.laneOf(email));
+        }
+    }
+
+    private String findEmailOnDifferentLane(String email) {
+        for (int i = 0; ; i++) {
+            String candidate = "user" + i + "@example.com";
+            if (walletLaneExecutor.laneOf(candidate) != walletLaneExecutor.laneOf(email)) {
+                return candidate;
+            }
+        }
+    }
+
+    private static boolean await(CyclicBarrier barrier) {
+        try {
+            barrier.await(2, TimeUnit.SECONDS);
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+}
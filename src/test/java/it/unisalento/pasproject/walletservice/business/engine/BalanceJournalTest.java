@@ -0,0 +1,104 @@
+package it.unisalento.pasproject.walletservice.business.engine;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BalanceJournalTest {
+
+    @TempDir
+    Path directory;
+
+    private static BalanceJournal.Entry entry(long sequence) {
+        return new BalanceJournal.Entry(sequence, "tx" + sequence, "a@example.com", "b@example.com", 100 * sequence);
+    }
+
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.sorted().toList();
+        }
+    }
+
+    @Test
+    void recover_returnsTheEntriesOfThePreviousRun() throws IOException {
+        BalanceJournal journal = new BalanceJournal(directory, 4096, true);
+        journal.recover();
+        journal.append(entry(1));
+        journal.append(new BalanceJournal.Entry(2, null, "b@example.com", "a@example.com", 50));
+        journal.close();
+
+        List<BalanceJournal.Entry> entries = new BalanceJournal(directory, 4096, true).recover();
+
+        assertEquals(2, entries.size());
+        assertEquals(entry(1), entries.get(0));
+        assertNull(entries.get(1).transactionId());
+        assertEquals(50, entries.get(1).amount());
+    }
+
+    @Test
+    void append_rotatesFullSegments() throws IOException {
+        BalanceJournal journal = new BalanceJournal(directory, 128, false);
+        journal.recover();
+
+        for (long sequence = 1; sequence <= 6; sequence++) {
+            journal.append(entry(sequence));
+        }
+        journal.close();
+
+        assertTrue(segments().size() > 1);
+        assertEquals(List.of(1L, 2L, 3L, 4L, 5L, 6L),
+                new BalanceJournal(directory, 128, false).recover().stream().map(BalanceJournal.Entry::sequence).toList());
+    }
+
+    @Test
+    void deleteUpTo_removesOnlyFlushedSegments() throws IOException {
+        BalanceJournal journal = new BalanceJournal(directory, 128, false);
+        journal.recover();
+
+        for (long sequence = 1; sequence <= 6; sequence++) {
+            journal.append(entry(sequence));
+        }
+
+        int before = journal.segmentCount();
+        journal.deleteUpTo(2);
+        journal.close();
+
+        assertTrue(journal.segmentCount() < before);
+        List<BalanceJournal.Entry> left = new BalanceJournal(directory, 128, false).recover();
+        assertEquals(6L, left.get(left.size() - 1).sequence());
+        assertTrue(left.get(0).sequence() > 1);
+    }
+
+    @Test
+    void recover_stopsAtATornEntry() throws IOException {
+        BalanceJournal journal = new BalanceJournal(directory, 4096, true);
+        journal.recover();
+        journal.append(entry(1));
+        journal.append(entry(2));
+        journal.close();
+
+        //Corrompe l'ultimo byte del payload della seconda entry
+        Path segment = segments().get(0);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer length = ByteBuffer.allocate(Integer.BYTES);
+            channel.read(length, 0);
+            int second = Integer.BYTES + length.flip().getInt() + Integer.BYTES;
+            length.clear();
+            channel.read(length, second);
+            int corrupted = second + Integer.BYTES + length.flip().getInt() - 1;
+            channel.write(ByteBuffer.wrap(new byte[]{(byte) 0x7f}), corrupted);
+        }
+
+        assertEquals(List.of(entry(1)), new BalanceJournal(directory, 4096, true).recover());
+    }
+}
@@ -0,0 +1,297 @@
+package it.unisalento.pasproject.walletservice.business.engine;
+
+import it.unisalento.pasproject.walletservice.business.events.WalletChangedEvent;
+import it.unisalento.pasproject.walletservice.domain.Wallet;
+import it.unisalento.pasproject.walletservice.dto.RequestTransactionDTO;
+import it.unisalento.pasproject.walletservice.exceptions.BadRequestException;
+import it.unisalento.pasproject.walletservice.repositories.JobLeaseRepository;
+import it.unisalento.pasproject.walletservice.repositories.WalletRepository;
+import it.unisalento.pasproject.walletservice.service.LedgerService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static it.unisalento.pasproject.walletservice.TestWallets.wallet;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+class InMemoryBalanceEngineTest {
+
+    @TempDir
+    Path directory;
+
+    private WalletRepository walletRepository;
+
+    private LedgerService ledgerService;
+
+    private ApplicationEventPublisher eventPublisher;
+
+    private JobLeaseRepository jobLeaseRepository;
+
+    @BeforeEach
+    void setUp() {
+        walletRepository = mock(WalletRepository.class);
+        ledgerService = mock(LedgerService.class);
+        eventPublisher = mock(ApplicationEventPublisher.class);
+        jobLeaseRepository = mock(JobLeaseRepository.class);
+        when(jobLeaseRepository.tryAcquire(eq("balance-engine"), anyString(), any())).thenReturn(true);
+    }
+
+    private static RequestTransactionDTO transaction(String id, String sender, String receiver, double amount) {
+        RequestTransactionDTO request = new RequestTransactionDTO();
+        request.setId(id);
+        request.setSenderEmail(sender);
+        request.setReceiverEmail(receiver);
+        request.setAmount(amount);
+        return request;
+    }
+
+    private InMemoryBalanceEngine start() throws IOException {
+        InMemoryBalanceEngine engine = new InMemoryBalanceEngine(walletRepository, ledgerService, eventPublisher, jobLeaseRepository, 30000, directory.toString(), 4096, true, false, false);
+        engine.recover();
+        return engine;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Double> flushedDeltas(long sequence) {
+        ArgumentCaptor<Map<String, Double>> deltasCaptor = ArgumentCaptor.forClass(Map.class);
+        verify(walletRepository).applyJournalDeltas(eq(sequence), deltasCaptor.capture());
+        return deltasCaptor.getValue();
+    }
+
+    @Test
+    void transfer_checksBalancesInMemoryWithoutWritingTheDatabase() throws IOException {
+        when(walletRepository.findAll()).thenReturn(List.of(
+                wallet("a@example.com", 100.0, true),
+                wallet("b@example.com", 0.0, true),
+                wallet("disabled@example.com", 100.0, false)));
+        InMemoryBalanceEngine engine = start();
+
+        assertTrue(engine.transfer(transaction("tx1", "a@example.com", "b@example.com", 60.0)));
+        assertFalse(engine.transfer(transaction("tx2", "a@example.com", "b@example.com", 60.0)));
+        assertFalse(engine.transfer(transaction("tx3", "a@example.com", "disabled@example.com", 10.0)));
+        assertFalse(engine.transfer(transaction("tx4", "disabled@example.com", "a@example.com", 10.0)));
+
+        verify(walletRepository, never()).applyJournalDeltas(anyLong(), anyMap());
+        verify(walletRepository, never()).save(any(Wallet.class));
+    }
+
+    @Test
+    void flush_writesTheNetChangeOfEveryWallet() throws IOException {
+        when(walletRepository.findAll()).thenReturn(List.of(
+                wallet("a@example.com", 100.0, true),
+                wallet("b@example.com", 0.0, true)));
+        InMemoryBalanceEngine engine = start();
+
+        engine.transfer(transaction("tx1", "a@example.com", "b@example.com", 60.0));
+        engine.transfer(transaction("tx2", "b@example.com", "a@example.com", 10.5));
+        engine.flush();
+
+        Map<String, Double> deltas = flushedDeltas(2);
+        assertEquals(-49.5, deltas.get("a@example.com"));
+        assertEquals(49.5, deltas.get("b@example.com"));
+        verify(ledgerService).recordTransfers(argThat(transfers -> transfers.size() == 2));
+    }
+
+    @Test
+    void flush_retriesTheSameBatchAfterAFailure() throws IOException {
+        when(walletRepository.findAll()).thenReturn(List.of(
+                wallet("a@example.com", 100.0, true),
+                wallet("b@example.com", 0.0, true)));
+        doThrow(new RuntimeException()).doNothing().when(walletRepository).applyJournalDeltas(anyLong(), anyMap());
+        InMemoryBalanceEngine engine = start();
+
+        engine.transfer(transaction("tx1", "a@example.com", "b@example.com", 10.0));
+        engine.flush();
+        engine.transfer(transaction("tx2", "a@example.com", "b@example.com", 20.0));
+        engine.flush();
+        engine.flush();
+
+        verify(walletRepository, times(2)).applyJournalDeltas(eq(1L), eq(Map.of("a@example.com", -10.0, "b@example.com", 10.0)));
+        verify(walletRepository).applyJournalDeltas(eq(2L), eq(Map.of("a@example.com", -20.0, "b@example.com", 20.0)));
+    }
+
+    @Test
+    void recover_replaysOnlyTheEntriesNotYetFlushed() throws IOException {
+        when(walletRepository.findAll()).thenReturn(List.of(
+                wallet("a@example.com", 100.0, true),
+                wallet("b@example.com", 0.0, true)));
+        InMemoryBalanceEngine engine = start();
+        engine.transfer(transaction("tx1", "a@example.com", "b@example.com", 10.0));
+        engine.transfer(transaction("tx2", "a@example.com", "b@example.com", 20.0));
+
+        //Crash dopo un flush parziale: a include la sequenza 2, b solo la 1
+        reset(walletRepository);
+        when(walletRepository.findAll()).thenReturn(List.of(
+                wallet("a@example.com", 70.0, true, 2L),
+                wallet("b@example.com", 10.0, true, 1L)));
+        InMemoryBalanceEngine restarted = start();
+
+        assertFalse(restarted.transfer(transaction("tx3", "a@example.com", "b@example.com", 70.01)));
+        assertTrue(restarted.transfer(transaction("tx4", "b@example.com", "a@example.com", 30.0)));
+        restarted.flush();
+
+        Map<String, Double> deltas = flushedDeltas(3);
+        assertEquals(30.0, deltas.get("a@example.com"));
+        assertEquals(-10.0, deltas.get("b@example.com"));
+    }
+
+    @Test
+    void transfer_loadsWalletsCreatedAfterStartup() throws IOException {
+        when(walletRepository.findAll()).thenReturn(List.of(wallet("a@example.com", 100.0, true)));
+        when(walletRepository.findByEmail("new@example.com")).thenReturn(Optional.of(wallet("new@example.com", 0.0, true)));
+        InMemoryBalanceEngine engine = start();
+
+        assertTrue(engine.transfer(transaction("tx1", "a@example.com", "new@example.com", 10.0)));
+        assertTrue(engine.transfer(transaction("tx2", "a@example.com", "new@example.com", 10.0)));
+
+        verify(walletRepository, times(1)).findByEmail("new@example.com");
+    }
+
+    @Test
+    void onWalletChanged_keepsTheChangesNotYetFlushed() throws IOException {
+        when(walletRepository.findAll()).thenReturn(List.of(
+                wallet("a@example.com", 100.0, true),
+                wallet("b@example.com", 0.0, true)));
+        InMemoryBalanceEngine engine = start();
+        engine.transfer(transaction("tx1", "a@example.com", "b@example.com", 60.0));
+
+        //Deposito di 50 scritto direttamente sul database, che non vede ancora il trasferimento
+        when(walletRepository.findByEmail("a@example.com")).thenReturn(Optional.of(wallet("a@example.com", 150.0, true)));
+        engine.onWalletChanged(new WalletChangedEvent(this, "a@example.com"));
+
+        assertTrue(engine.transfer(transaction("tx2", "a@example.com", "b@example.com", 90.0)));
+        assertFalse(engine.transfer(transaction("tx3", "a@example.com", "b@example.com", 0.01)));
+    }
+
+    @Test
+    void applyChange_changesTheBalanceInMemoryAndFlushesIt() throws IOException {
+        when(walletRepository.findAll()).thenReturn(List.of(
+                wallet("a@example.com", 100.0, true),
+                wallet("b@example.com", 0.0, true)));
+        InMemoryBalanceEngine engine = start();
+
+        assertEquals(100.0, engine.applyChange("a@example.com", -30.0, null).orElseThrow().getBalance());
+        assertEquals(70.0, engine.applyChange("a@example.com", -100.0, 0.0).orElseThrow().getBalance());
+        assertEquals(0.0, engine.setBalance("b@example.com", 25.0).orElseThrow().getBalance());
+        assertTrue(engine.applyChange("missing@example.com", 10.0, null).isEmpty());
+
+        assertFalse(engine.transfer(transaction("tx1", "a@example.com", "b@example.com", 0.01)));
+        assertTrue(engine.transfer(transaction("tx2", "b@example.com", "a@example.com", 25.0)));
+        engine.flush();
+
+        Map<String, Double> deltas = flushedDeltas(4);
+        assertEquals(-75.0, deltas.get("a@example.com"));
+        assertEquals(0.0, deltas.get("b@example.com"));
+        verify(walletRepository, never()).findAndApplyChange(anyString(), anyDouble(), any());
+        verify(ledgerService).recordTransfers(argThat(transfers -> transfers.size() == 1));
+    }
+
+    @Test
+    void amountsWithFractionsOfCentsAreRejected() throws IOException {
+        when(walletRepository.findAll()).thenReturn(List.of(
+                wallet("a@example.com", 100.0, true),
+                wallet("b@example.com", 0.0, true)));
+        InMemoryBalanceEngine engine = start();
+
+        assertThrows(BadRequestException.class, () -> engine.applyChange("a@example.com", 0.004, null));
+        assertThrows(BadRequestException.class, () -> engine.setBalance("a@example.com", 10.005));
+        assertFalse(engine.transfer(transaction("tx1", "a@example.com", "b@example.com", 0.009)));
+        assertTrue(engine.transfer(transaction("tx2", "a@example.com", "b@example.com", 0.29)));
+    }
+
+    @Test
+    void recover_replaysTheBalanceChanges() throws IOException {
+        when(walletRepository.findAll()).thenReturn(List.of(wallet("a@example.com", 100.0, true)));
+        InMemoryBalanceEngine engine = start();
+        engine.applyChange("a@example.com", 50.0, null);
+
+        reset(walletRepository);
+        when(walletRepository.findAll()).thenReturn(List.of(
+                wallet("a@example.com", 100.0, true),
+                wallet("b@example.com", 0.0, true)));
+        InMemoryBalanceEngine restarted = start();
+
+        assertTrue(restarted.transfer(transaction("tx1", "a@example.com", "b@example.com", 150.0)));
+        restarted.flush();
+
+        verify(ledgerService).recordTransfers(argThat(transfers -> transfers.size() == 1));
+    }
+
+    @Test
+    void setEnabled_blocksTransfersAndKeepsTheBalanceInMemory() throws IOException {
+        when(walletRepository.findAll()).thenReturn(List.of(
+                wallet("a@example.com", 100.0, true),
+                wallet("b@example.com", 0.0, true)));
+        when(walletRepository.findAndSetEnable("a@example.com", false)).thenReturn(Optional.of(wallet("a@example.com", 100.0, false)));
+        InMemoryBalanceEngine engine = start();
+        engine.transfer(transaction("tx1", "a@example.com", "b@example.com", 40.0));
+
+        assertEquals(60.0, engine.setEnabled("a@example.com", false).orElseThrow().getBalance());
+        assertFalse(engine.transfer(transaction("tx2", "a@example.com", "b@example.com", 10.0)));
+    }
+
+    @Test
+    void recover_refusesToStartWhileAnotherInstanceHoldsTheLease() {
+        when(jobLeaseRepository.tryAcquire(eq("balance-engine"), anyString(), any())).thenReturn(false);
+
+        assertThrows(IllegalStateException.class, this::start);
+        verify(walletRepository, never()).findAll();
+    }
+
+    @Test
+    void changesAreRefusedOnceTheLeaseIsLost() throws IOException {
+        when(walletRepository.findAll()).thenReturn(List.of(
+                wallet("a@example.com", 100.0, true),
+                wallet("b@example.com", 0.0, true)));
+        InMemoryBalanceEngine engine = start();
+
+        when(jobLeaseRepository.tryAcquire(eq("balance-engine"), anyString(), any())).thenReturn(false);
+        engine.renewLease();
+
+        assertFalse(engine.transfer(transaction("tx1", "a@example.com", "b@example.com", 10.0)));
+        assertThrows(IllegalStateException.class, () -> engine.applyChange("a@example.com", 10.0, null));
+
+        when(jobLeaseRepository.tryAcquire(eq("balance-engine"), anyString(), any())).thenReturn(true);
+        engine.renewLease();
+
+        assertTrue(engine.transfer(transaction("tx2", "a@example.com", "b@example.com", 10.0)));
+    }
+
+    @Test
+    void changesAreRefusedUntilTheJournalIsForcedToDisk() throws IOException {
+        when(walletRepository.findAll()).thenReturn(List.of(
+                wallet("a@example.com", 100.0, true),
+                wallet("b@example.com", 0.0, true)));
+        InMemoryBalanceEngine engine = start();
+
+        BalanceJournal journal = spy((BalanceJournal) ReflectionTestUtils.getField(engine, "journal"));
+        ReflectionTestUtils.setField(engine, "journal", journal);
+        doThrow(new UncheckedIOException(new IOException("disk full"))).when(journal).sync(anyLong());
+
+        assertThrows(UnconfirmedChangeException.class, () -> engine.transfer(transaction("tx1", "a@example.com", "b@example.com", 10.0)));
+        assertFalse(engine.transfer(transaction("tx2", "a@example.com", "b@example.com", 10.0)));
+        assertThrows(IllegalStateException.class, () -> engine.applyChange("a@example.com", 10.0, null));
+
+        doCallRealMethod().when(journal).sync(anyLong());
+
+        assertTrue(engine.transfer(transaction("tx3", "a@example.com", "b@example.com", 10.0)));
+    }
+
+    @Test
+    void constructor_rejectsTheBatchMode() {
+        assertThrows(IllegalStateException.class,
+                () -> new InMemoryBalanceEngine(walletRepository, ledgerService, eventPublisher, jobLeaseRepository, 30000, directory.toString(), 4096, true, true, false));
+    }
+}
@@ -0,0 +1,107 @@
+package it.unisalento.pasproject.walletservice.business.io.codec;
+
+import it.unisalento.pasproject.walletservice.dto.MessageDTO;
+import it.unisalento.pasproject.walletservice.dto.RequestTransactionDTO;
+import it.unisalento.pasproject.walletservice.dto.UserDetailsDTO;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.support.converter.Jackson2JsonMessageConverter;
+import org.springframework.amqp.support.converter.SmartMessageConverter;
+import org.springframework.core.ParameterizedTypeReference;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ContentNegotiatingMessageConverterTest {
+
+    private static final List<Class<?>> MESSAGE_TYPES = List.of(RequestTransactionDTO.class, MessageDTO.class, UserDetailsDTO.class);
+
+    private Jackson2JsonMessageConverter json;
+
+    private Jackson2CborMessageConverter cbor;
+
+    @BeforeEach
+    void setUp() {
+        json = new Jackson2JsonMessageConverter();
+        cbor = new Jackson2CborMessageConverter(MESSAGE_TYPES);
+    }
+
+    private ContentNegotiatingMessageConverter converter(String outgoing) {
+        Map<String, SmartMessageConverter> codecs = Map.of(
+                MessageProperties.CONTENT_TYPE_JSON, json,
+                Jackson2CborMessageConverter.CONTENT_TYPE, cbor);
+        return new ContentNegotiatingMessageConverter(codecs, MessageProperties.CONTENT_TYPE_JSON, outgoing);
+    }
+
+    private static RequestTransactionDTO transaction() {
+        RequestTransactionDTO transaction = new RequestTransactionDTO();
+        transaction.setId("tx-1");
+        transaction.setSenderEmail("a@example.com");
+        transaction.setReceiverEmail("b@example.com");
+        transaction.setAmount(12.5);
+        return transaction;
+    }
+
+    @Test
+    void cborMessagesShouldUseShortTypeIdsAndBeSmallerThanJson() {
+        Message cborMessage = converter(Jackson2CborMessageConverter.CONTENT_TYPE).toMessage(transaction(), new MessageProperties());
+        Message jsonMessage = converter(MessageProperties.CONTENT_TYPE_JSON).toMessage(transaction(), new MessageProperties());
+
+        assertEquals(Jackson2CborMessageConverter.CONTENT_TYPE, cborMessage.getMessageProperties().getContentType());
+        assertEquals("RequestTransactionDTO", cborMessage.getMessageProperties().getHeader("__TypeId__"));
+        assertEquals(RequestTransactionDTO.class.getName(), jsonMessage.getMessageProperties().getHeader("__TypeId__"));
+        assertTrue(cborMessage.getBody().length < jsonMessage.getBody().length);
+    }
+
+    @Test
+    void messagesShouldBeDecodedByTheirContentType() {
+        //Un nodo che invia ancora JSON e uno già passato a CBOR, letti dalla stessa istanza
+        ContentNegotiatingMessageConverter converter = converter(MessageProperties.CONTENT_TYPE_JSON);
+        Message jsonMessage = json.toMessage(transaction(), new MessageProperties());
+        Message cborMessage = cbor.toMessage(transaction(), new MessageProperties());
+
+        RequestTransactionDTO fromJson = (RequestTransactionDTO) converter.fromMessage(jsonMessage);
+        RequestTransactionDTO fromCbor = (RequestTransactionDTO) converter.fromMessage(cborMessage);
+
+        assertEquals("tx-1", fromJson.getId());
+        assertEquals("tx-1", fromCbor.getId());
+        assertEquals(12.5, fromCbor.getAmount());
+        assertEquals("b@example.com", fromCbor.getReceiverEmail());
+    }
+
+    @Test
+    void legacyJsonWithParametersOrWithoutContentTypeShouldBeRead() {
+        ContentNegotiatingMessageConverter converter = converter(Jackson2CborMessageConverter.CONTENT_TYPE);
+        byte[] body = "{\"response\":\"ok\",\"code\":200}".getBytes(StandardCharsets.UTF_8);
+
+        MessageProperties withCharset = new MessageProperties();
+        withCharset.setContentType("Application/JSON; charset=UTF-8");
+        withCharset.setInferredArgumentType(MessageDTO.class);
+
+        MessageProperties withoutContentType = new MessageProperties();
+        withoutContentType.setContentType(null);
+        withoutContentType.setInferredArgumentType(MessageDTO.class);
+
+        assertEquals(200, ((MessageDTO) converter.fromMessage(new Message(body, withCharset))).getCode());
+        assertEquals("ok", ((MessageDTO) converter.fromMessage(new Message(body, withoutContentType))).getResponse());
+    }
+
+    @Test
+    void conversionHintShouldBeUsedForCborReplies() {
+        ContentNegotiatingMessageConverter converter = converter(Jackson2CborMessageConverter.CONTENT_TYPE);
+        UserDetailsDTO user = new UserDetailsDTO();
+        user.setEmail("a@example.com");
+
+        Message reply = converter.toMessage(new UserDetailsDTO[]{user}, new MessageProperties());
+        Object decoded = converter.fromMessage(reply, new ParameterizedTypeReference<UserDetailsDTO[]>() {
+        });
+
+        assertEquals("a@example.com", ((UserDetailsDTO[]) decoded)[0].getEmail());
+        assertThrows(IllegalArgumentException.class, () -> converter("application/x-unknown"));
+    }
+}
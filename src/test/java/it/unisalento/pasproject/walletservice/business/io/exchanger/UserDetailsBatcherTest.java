@@ -0,0 +1,130 @@
+package it.unisalento.pasproject.walletservice.business.io.exchanger;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import it.unisalento.pasproject.walletservice.dto.UserDetailsDTO;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+class UserDetailsBatcherTest {
+
+    private MessageExchanger messageExchanger;
+
+    private UserDetailsBatcher userDetailsBatcher;
+
+    @BeforeEach
+    void setUp() {
+        messageExchanger = mock(MessageExchanger.class);
+        //Finestra lunga: gli invii avvengono solo con flush() o a batch pieno
+        userDetailsBatcher = new UserDetailsBatcher(messageExchanger, new SimpleMeterRegistry(),
+                true, 60000, 3, 60000);
+        ReflectionTestUtils.setField(userDetailsBatcher, "securityExchange", "security-exchange");
+        ReflectionTestUtils.setField(userDetailsBatcher, "securityRequestRoutingKey", "security-request");
+        ReflectionTestUtils.setField(userDetailsBatcher, "securityBatchRoutingKey", "security-request.batch");
+    }
+
+    @AfterEach
+    void tearDown() {
+        userDetailsBatcher.close();
+    }
+
+    private static UserDetailsDTO user(String email) {
+        return new UserDetailsDTO(email, "UTENTE", true);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void lookup_sendsConcurrentLookupsAsOneRequest() {
+        UserDetailsDTO a = user("a@example.com");
+        when(messageExchanger.exchangeMessageAsync(anyList(), eq("security-request.batch"), eq("security-exchange"), eq(UserDetailsDTO[].class)))
+                .thenReturn(CompletableFuture.completedFuture(new UserDetailsDTO[]{a, user("b@example.com")}));
+
+        CompletableFuture<UserDetailsBatcher.Reply> first = userDetailsBatcher.lookup("a@example.com");
+        CompletableFuture<UserDetailsBatcher.Reply> second = userDetailsBatcher.lookup("b@example.com");
+        CompletableFuture<UserDetailsBatcher.Reply> repeated = userDetailsBatcher.lookup("a@example.com");
+        userDetailsBatcher.flush();
+
+        assertSame(a, first.join().user());
+        assertEquals("b@example.com", second.join().user().getEmail());
+        assertSame(a, repeated.join().user());
+
+        ArgumentCaptor<List<String>> emailsCaptor = ArgumentCaptor.forClass(List.class);
+        verify(messageExchanger, times(1)).exchangeMessageAsync(emailsCaptor.capture(), anyString(), anyString(), eq(UserDetailsDTO[].class));
+        assertEquals(List.of("a@example.com", "b@example.com"), emailsCaptor.getValue());
+    }
+
+    @Test
+    void lookup_sendsAFullBatchWithoutWaiting() {
+        when(messageExchanger.exchangeMessageAsync(anyList(), anyString(), anyString(), eq(UserDetailsDTO[].class)))
+                .thenReturn(CompletableFuture.completedFuture(new UserDetailsDTO[0]));
+
+        userDetailsBatcher.lookup("a@example.com");
+        userDetailsBatcher.lookup("b@example.com");
+        CompletableFuture<UserDetailsBatcher.Reply> last = userDetailsBatcher.lookup("c@example.com");
+
+        assertTrue(last.isDone());
+        verify(messageExchanger, times(1)).exchangeMessageAsync(anyList(), anyString(), anyString(), eq(UserDetailsDTO[].class));
+    }
+
+    @Test
+    void lookup_aloneInItsWindowUsesTheSingleRequest() {
+        UserDetailsDTO a = user("a@example.com");
+        when(messageExchanger.exchangeMessageAsync(eq("a@example.com"), eq("security-request"), eq("security-exchange"), eq(UserDetailsDTO.class)))
+                .thenReturn(CompletableFuture.completedFuture(a));
+
+        CompletableFuture<UserDetailsBatcher.Reply> lookup = userDetailsBatcher.lookup("a@example.com");
+        userDetailsBatcher.flush();
+
+        assertSame(a, lookup.join().user());
+        verify(messageExchanger, never()).exchangeMessageAsync(anyList(), anyString(), anyString(), any());
+    }
+
+    @Test
+    void lookup_fallsBackToSingleRequestsWhenBatchesFail() throws Exception {
+        when(messageExchanger.exchangeMessageAsync(anyList(), anyString(), anyString(), eq(UserDetailsDTO[].class)))
+                .thenReturn(CompletableFuture.failedFuture(new TimeoutException()));
+        when(messageExchanger.exchangeMessageAsync(anyString(), eq("security-request"), anyString(), eq(UserDetailsDTO.class)))
+                .thenAnswer(invocation -> CompletableFuture.completedFuture(user(invocation.getArgument(0))));
+
+        CompletableFuture<UserDetailsBatcher.Reply> first = userDetailsBatcher.lookup("a@example.com");
+        CompletableFuture<UserDetailsBatcher.Reply> second = userDetailsBatcher.lookup("b@example.com");
+        userDetailsBatcher.flush();
+
+        assertEquals("a@example.com", first.get(1, TimeUnit.SECONDS).user().getEmail());
+        assertEquals("b@example.com", second.get(1, TimeUnit.SECONDS).user().getEmail());
+
+        //Batch sospesi: le richieste successive partono subito da sole
+        assertEquals("c@example.com", userDetailsBatcher.lookup("c@example.com").get(1, TimeUnit.SECONDS).user().getEmail());
+        verify(messageExchanger, times(1)).exchangeMessageAsync(anyList(), anyString(), anyString(), eq(UserDetailsDTO[].class));
+        verify(messageExchanger, times(3)).exchangeMessageAsync(anyString(), eq("security-request"), anyString(), eq(UserDetailsDTO.class));
+    }
+
+    @Test
+    void lookup_looksUpAgainTheEmailsMissingFromABatchReply() {
+        UserDetailsDTO a = user("a@example.com");
+        UserDetailsDTO b = user("b@example.com");
+        when(messageExchanger.exchangeMessageAsync(anyList(), anyString(), anyString(), eq(UserDetailsDTO[].class)))
+                .thenReturn(CompletableFuture.completedFuture(new UserDetailsDTO[]{a}));
+        when(messageExchanger.exchangeMessageAsync(eq("b@example.com"), eq("security-request"), anyString(), eq(UserDetailsDTO.class)))
+                .thenReturn(CompletableFuture.completedFuture(b));
+
+        CompletableFuture<UserDetailsBatcher.Reply> first = userDetailsBatcher.lookup("a@example.com");
+        CompletableFuture<UserDetailsBatcher.Reply> second = userDetailsBatcher.lookup("b@example.com");
+        userDetailsBatcher.flush();
+
+        assertSame(a, first.join().user());
+        assertSame(b, second.join().user());
+        verify(messageExchanger, never()).exchangeMessageAsync(eq("a@example.com"), anyString(), anyString(), eq(UserDetailsDTO.class));
+    }
+}
@@ -0,0 +1,95 @@
+package it.unisalento.pasproject.walletservice.business.stats;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BalanceSketchTest {
+
+    private static final double ACCURACY = 0.01;
+
+    @Test
+    void quantilesShouldBeWithinTheRelativeAccuracy() {
+        BalanceSketch sketch = new BalanceSketch(ACCURACY);
+        Random random = new Random(42);
+        double[] values = new double[10000];
+
+        for (int i = 0; i < values.length; i++) {
+            //Distribuzione molto asimmetrica, come i saldi reali
+            values[i] = Math.exp(random.nextGaussian() * 2 + 4);
+            sketch.add(values[i]);
+        }
+
+        Arrays.sort(values);
+
+        for (double quantile : new double[]{0.1, 0.5, 0.9, 0.99}) {
+            double expected = values[(int) (quantile * (values.length - 1))];
+            assertEquals(expected, sketch.quantile(quantile), expected * ACCURACY);
+        }
+
+        assertEquals(values.length, sketch.getCount());
+    }
+
+    @Test
+    void removedValuesShouldNotCount() {
+        BalanceSketch sketch = new BalanceSketch(ACCURACY);
+
+        for (int i = 1; i <= 100; i++) {
+            sketch.add(i);
+        }
+
+        //Tolti i saldi sopra 50, la mediana scende a 25
+        for (int i = 51; i <= 100; i++) {
+            sketch.remove(i);
+        }
+
+        assertEquals(50, sketch.getCount());
+        assertEquals(25, sketch.quantile(0.5), 25 * ACCURACY);
+        assertEquals(50, sketch.quantile(1.0), 50 * ACCURACY);
+    }
+
+    @Test
+    void zeroAndNegativeValuesShouldBeOrdered() {
+        BalanceSketch sketch = new BalanceSketch(ACCURACY);
+        sketch.add(-100);
+        sketch.add(-1);
+        sketch.add(0);
+        sketch.add(10);
+        sketch.add(1000);
+
+        assertEquals(-100, sketch.quantile(0.0), 100 * ACCURACY);
+        assertEquals(-1, sketch.quantile(0.25), ACCURACY);
+        assertEquals(0.0, sketch.quantile(0.5));
+        assertEquals(10, sketch.quantile(0.75), 10 * ACCURACY);
+        assertEquals(1000, sketch.quantile(1.0), 1000 * ACCURACY);
+    }
+
+    @Test
+    void mergedSketchShouldMatchASingleSketch() {
+        BalanceSketch first = new BalanceSketch(ACCURACY);
+        BalanceSketch second = new BalanceSketch(ACCURACY);
+        BalanceSketch all = new BalanceSketch(ACCURACY);
+
+        for (int i = 1; i <= 1000; i++) {
+            (i % 2 == 0 ? first : second).add(i);
+            all.add(i);
+        }
+
+        first.merge(second);
+
+        assertEquals(all.getCount(), first.getCount());
+        for (double quantile : new double[]{0.0, 0.25, 0.5, 0.75, 1.0}) {
+            assertEquals(all.quantile(quantile), first.quantile(quantile));
+        }
+
+        assertThrows(IllegalArgumentException.class, () -> first.merge(new BalanceSketch(0.05)));
+    }
+
+    @Test
+    void emptySketchShouldReturnNaN() {
+        assertTrue(Double.isNaN(new BalanceSketch(ACCURACY).quantile(0.5)));
+    }
+}
@@ -0,0 +1,71 @@
+package it.unisalento.pasproject.walletservice.business.stats;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TopBalancesTest {
+
+    private static List<String> emails(List<TopBalances.Entry> entries) {
+        return entries.stream().map(TopBalances.Entry::email).toList();
+    }
+
+    @Test
+    void firstShouldMissUntilLoaded() {
+        TopBalances top = new TopBalances(3, true);
+        top.update("a", 100);
+
+        assertTrue(top.first(1).isEmpty());
+        assertFalse(top.contains("a"));
+    }
+
+    @Test
+    void outsiderBeatingTheBoundShouldEnterAndPushOutTheLast() {
+        TopBalances top = new TopBalances(3, true);
+        top.load(List.of(new TopBalances.Entry("a", 300), new TopBalances.Entry("b", 200), new TopBalances.Entry("c", 100)));
+
+        top.update("d", 250);
+        top.update("e", 50);
+
+        assertEquals(List.of("a", "d", "b"), emails(top.first(3).orElseThrow()));
+        assertFalse(top.contains("c"));
+        assertFalse(top.contains("e"));
+    }
+
+    @Test
+    void keptWalletFallingBehindTheBoundShouldShrinkTheLeaderboard() {
+        TopBalances top = new TopBalances(3, true);
+        top.load(List.of(new TopBalances.Entry("a", 300), new TopBalances.Entry("b", 200), new TopBalances.Entry("c", 100)));
+
+        //Un wallet non tenuto potrebbe avere 99, quindi "a" non può restare terzo
+        top.update("a", 10);
+
+        assertEquals(List.of("b", "c"), emails(top.first(2).orElseThrow()));
+        assertTrue(top.first(3).isEmpty());
+    }
+
+    @Test
+    void completeLeaderboardShouldNotMissUntilAWalletIsPushedOut() {
+        TopBalances top = new TopBalances(3, false);
+        top.load(List.of(new TopBalances.Entry("a", 10)));
+
+        top.update("b", 5);
+        top.update("c", 20);
+        top.remove("b");
+
+        //Tutti i wallet sono tenuti, quindi anche meno della richiesta è la risposta esatta
+        assertEquals(List.of("a", "c"), emails(top.first(3).orElseThrow()));
+
+        top.update("d", 1);
+        top.update("e", 2);
+
+        assertEquals(List.of("d", "e", "a"), emails(top.first(3).orElseThrow()));
+        assertFalse(top.contains("c"));
+        assertEquals(2.0, top.balanceOf("e").orElseThrow());
+
+        top.remove("d");
+        assertTrue(top.first(3).isEmpty());
+    }
+}
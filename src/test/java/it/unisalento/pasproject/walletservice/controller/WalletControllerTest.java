@@ -1,12 +1,22 @@
 package it.unisalento.pasproject.walletservice.controller;
 
 import it.unisalento.pasproject.walletservice.TestSecurityConfig;
+import it.unisalento.pasproject.walletservice.business.engine.BalanceEngine;
+import it.unisalento.pasproject.walletservice.business.stats.TopBalances;
+import it.unisalento.pasproject.walletservice.domain.BulkJob;
+import it.unisalento.pasproject.walletservice.domain.LedgerEntry;
 import it.unisalento.pasproject.walletservice.domain.Wallet;
 import it.unisalento.pasproject.walletservice.dto.WalletDTO;
 import it.unisalento.pasproject.walletservice.dto.WalletListDTO;
+import it.unisalento.pasproject.walletservice.dto.WalletStatsDTO;
 import it.unisalento.pasproject.walletservice.repositories.WalletRepository;
+import it.unisalento.pasproject.walletservice.service.BulkOperationService;
+import it.unisalento.pasproject.walletservice.service.LeaderboardService;
+import it.unisalento.pasproject.walletservice.service.LedgerService;
 import it.unisalento.pasproject.walletservice.service.UserCheckService;
+import it.unisalento.pasproject.walletservice.service.WalletReadCache;
 import it.unisalento.pasproject.walletservice.service.WalletService;
+import it.unisalento.pasproject.walletservice.service.WalletStatsService;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
@@ -22,21 +32,31 @@ import org.springframework.context.annotation.Import;
 import org.springframework.http.MediaType;
 import org.springframework.security.test.context.support.WithMockUser;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
 
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.stream.Stream;
 
 import static org.hamcrest.Matchers.hasSize;
 import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.*;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 @WebMvcTest(WalletController.class)
@@ -53,9 +73,27 @@ class WalletControllerTest {
     @MockBean
     private WalletRepository walletRepository;
 
+    @MockBean
+    private BalanceEngine balanceEngine;
+
     @MockBean(answer = Answers.CALLS_REAL_METHODS)
     private UserCheckService userCheckService;
 
+    @MockBean
+    private LedgerService ledgerService;
+
+    @MockBean
+    private WalletReadCache walletReadCache;
+
+    @MockBean(answer = Answers.CALLS_REAL_METHODS)
+    private BulkOperationService bulkOperationService;
+
+    @MockBean
+    private WalletStatsService walletStatsService;
+
+    @MockBean
+    private LeaderboardService leaderboardService;
+
     @InjectMocks
     private WalletController walletController;
 
@@ -132,33 +170,63 @@ class WalletControllerTest {
     @Test
     @WithMockUser(username = "valid@example.com", roles = {"MEMBRO"})
     void getWalletWhenValidEmailReturnWallet() throws Exception {
-        Wallet wallet = new Wallet();
-        wallet.setId("1");
-        wallet.setEmail("valid@example.com");
-        wallet.setBalance(0.0);
-        wallet.setIsEnable(true);
-        given(walletRepository.findByEmail("valid@example.com")).willReturn(Optional.of(wallet));
+        given(walletReadCache.find("valid@example.com")).willReturn(Optional.of(
+                new WalletReadCache.Entry(new WalletDTO("valid@example.com", 0.0, true), "\"3\"")));
 
         mockMvc.perform(get("/api/users/wallet/find?email=valid@example.com"))
                 .andExpect(status().isOk())
+                .andExpect(header().string("ETag", "\"3\""))
                 .andExpect(jsonPath("$.email", is("valid@example.com")));
     }
 
     @Test
     @WithMockUser(username = "current@user.com", roles = {"MEMBRO"})
     void getWalletWhenEmailIsNullShouldUseCurrentSessionUser() throws Exception {
-        Wallet wallet = new Wallet();
-        wallet.setId("1");
-        wallet.setEmail("current@user.com");
-        wallet.setBalance(0.0);
-        wallet.setIsEnable(true);
-        given(walletRepository.findByEmail("current@user.com")).willReturn(Optional.of(wallet));
+        given(walletReadCache.find("current@user.com")).willReturn(Optional.of(
+                new WalletReadCache.Entry(new WalletDTO("current@user.com", 0.0, true), "\"0\"")));
 
         mockMvc.perform(get("/api/users/wallet/find"))
                 .andExpect(status().isOk())
                 .andExpect(jsonPath("$.email", is("current@user.com")));
     }
 
+    @Test
+    @WithMockUser(username = "valid@example.com", roles = {"MEMBRO"})
+    void getWalletWhenVersionIsUnchangedShouldReturnNotModified() throws Exception {
+        given(walletReadCache.find("valid@example.com")).willReturn(Optional.of(
+                new WalletReadCache.Entry(new WalletDTO("valid@example.com", 10.0, true), "\"3\"")));
+
+        mockMvc.perform(get("/api/users/wallet/find?email=valid@example.com")
+                        .header("If-None-Match", "\"3\""))
+                .andExpect(status().isNotModified())
+                .andExpect(header().string("ETag", "\"3\""))
+                .andExpect(content().string(""));
+
+        verify(walletRepository, never()).findByEmail(any());
+    }
+
+    @Test
+    @WithMockUser(username = "valid@example.com", roles = {"MEMBRO"})
+    void getWalletWhenVersionChangedShouldReturnTheWallet() throws Exception {
+        given(walletReadCache.find("valid@example.com")).willReturn(Optional.of(
+                new WalletReadCache.Entry(new WalletDTO("valid@example.com", 10.0, true), "\"4\"")));
+
+        mockMvc.perform(get("/api/users/wallet/find?email=valid@example.com")
+                        .header("If-None-Match", "\"3\""))
+                .andExpect(status().isOk())
+                .andExpect(header().string("ETag", "\"4\""))
+                .andExpect(jsonPath("$.balance", is(10.0)));
+    }
+
+    @Test
+    @WithMockUser(username = "valid@example.com", roles = {"MEMBRO"})
+    void getWalletWhenMissingShouldReturnNotFound() throws Exception {
+        given(walletReadCache.find("valid@example.com")).willReturn(Optional.empty());
+
+        mockMvc.perform(get("/api/users/wallet/find?email=valid@example.com"))
+                .andExpect(status().isNotFound());
+    }
+
     @Test
     @WithMockUser(username = "test@example.com", roles = {"MEMBRO"})
     void addWalletWhenNotAdminAndDifferentUserEmailShouldReturnForbidden() throws Exception {
@@ -222,6 +290,165 @@ class WalletControllerTest {
                 .andExpect(jsonPath("$.wallets[1].email", is("user2@example.com")));
     }
 
+    @Test
+    @WithMockUser(username = "admin@example.com", roles = {"ADMIN"})
+    void getWalletsBatchAsAdminShouldReturnWalletsInRequestOrder() throws Exception {
+        when(userCheckService.isAdministrator()).thenReturn(true);
+
+        Wallet walletOne = new Wallet();
+        walletOne.setEmail("user1@example.com");
+        walletOne.setBalance(10.0);
+
+        Wallet walletTwo = new Wallet();
+        walletTwo.setEmail("user2@example.com");
+        walletTwo.setBalance(20.0);
+
+        given(walletRepository.findSummariesByEmailIn(anyCollection())).willReturn(List.of(walletOne, walletTwo));
+
+        mockMvc.perform(post("/api/users/wallet/find/batch")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"emails\":[\"user2@example.com\",\"missing@example.com\",\"user1@example.com\",\"user2@example.com\"]}"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.wallets", hasSize(2)))
+                .andExpect(jsonPath("$.wallets[0].email", is("user2@example.com")))
+                .andExpect(jsonPath("$.wallets[1].email", is("user1@example.com")));
+
+        verify(walletRepository).findSummariesByEmailIn(List.of("user2@example.com", "missing@example.com", "user1@example.com"));
+    }
+
+    @Test
+    @WithMockUser(username = "user@example.com", roles = {"UTENTE"})
+    void getWalletsBatchAsUserShouldReturnOwnWallet() throws Exception {
+        when(userCheckService.isAdministrator()).thenReturn(false);
+
+        Wallet wallet = new Wallet();
+        wallet.setEmail("user@example.com");
+        wallet.setBalance(10.0);
+
+        given(walletRepository.findSummariesByEmailIn(anyCollection())).willReturn(List.of(wallet));
+
+        mockMvc.perform(post("/api/users/wallet/find/batch")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"emails\":[\"user@example.com\"]}"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.wallets[0].balance", is(10.0)));
+    }
+
+    @Test
+    @WithMockUser(username = "user@example.com", roles = {"UTENTE"})
+    void getWalletsBatchAsUserForOtherOwnersShouldReturnForbidden() throws Exception {
+        when(userCheckService.isAdministrator()).thenReturn(false);
+
+        mockMvc.perform(post("/api/users/wallet/find/batch")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"emails\":[\"user@example.com\",\"other@example.com\"]}"))
+                .andExpect(status().isForbidden());
+
+        verify(walletRepository, never()).findSummariesByEmailIn(anyCollection());
+    }
+
+    @Test
+    @WithMockUser(username = "user@example.com", roles = {"UTENTE"})
+    void getWalletsBatchWithNullOrBlankEmailsShouldReturnBadRequest() throws Exception {
+        when(userCheckService.isAdministrator()).thenReturn(false);
+
+        mockMvc.perform(post("/api/users/wallet/find/batch")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"emails\":[\"user@example.com\",null]}"))
+                .andExpect(status().isBadRequest());
+
+        mockMvc.perform(post("/api/users/wallet/find/batch")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"emails\":[\" \"]}"))
+                .andExpect(status().isBadRequest());
+
+        verify(walletRepository, never()).findSummariesByEmailIn(anyCollection());
+    }
+
+    @Test
+    @WithMockUser(roles = "ADMIN")
+    void getWalletsPageWhenFullShouldReturnTheNextCursor() throws Exception {
+        Wallet walletOne = new Wallet();
+        walletOne.setId("65f000000000000000000001");
+        walletOne.setEmail("user1@example.com");
+
+        Wallet walletTwo = new Wallet();
+        walletTwo.setId("65f000000000000000000002");
+        walletTwo.setEmail("user2@example.com");
+
+        given(walletRepository.findPage(isNull(), eq(2), eq(true), eq(10.0), isNull())).willReturn(List.of(walletOne, walletTwo));
+
+        mockMvc.perform(get("/api/users/wallet/findall/page")
+                        .param("size", "2")
+                        .param("enabled", "true")
+                        .param("minBalance", "10"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.wallets", hasSize(2)))
+                .andExpect(jsonPath("$.next", is("65f000000000000000000002")));
+    }
+
+    @Test
+    @WithMockUser(roles = "ADMIN")
+    void getWalletsPageWhenLastShouldReturnNoCursor() throws Exception {
+        Wallet wallet = new Wallet();
+        wallet.setId("65f000000000000000000003");
+        wallet.setEmail("user3@example.com");
+
+        given(walletRepository.findPage(eq("65f000000000000000000002"), eq(100), isNull(), isNull(), isNull())).willReturn(List.of(wallet));
+
+        mockMvc.perform(get("/api/users/wallet/findall/page")
+                        .param("after", "65f000000000000000000002"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.wallets", hasSize(1)))
+                .andExpect(jsonPath("$.next").doesNotExist());
+    }
+
+    @Test
+    @WithMockUser(roles = "ADMIN")
+    void getWalletsPageWithInvalidCursorShouldReturnBadRequest() throws Exception {
+        mockMvc.perform(get("/api/users/wallet/findall/page")
+                        .param("after", "not-a-cursor"))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    @WithMockUser(roles = "ADMIN")
+    void streamWalletsShouldWriteOneWalletPerLine() throws Exception {
+        Wallet walletOne = new Wallet();
+        walletOne.setEmail("user1@example.com");
+        walletOne.setBalance(5.0);
+        walletOne.setIsEnable(true);
+
+        Wallet walletTwo = new Wallet();
+        walletTwo.setEmail("user2@example.com");
+        walletTwo.setBalance(7.0);
+        walletTwo.setIsEnable(true);
+
+        given(walletRepository.streamAll(eq(true), isNull(), isNull())).willReturn(Stream.of(walletOne, walletTwo));
+
+        MvcResult result = mockMvc.perform(get("/api/users/wallet/findall/stream")
+                        .param("enabled", "true"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+
+        String body = mockMvc.perform(asyncDispatch(result))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType(MediaType.APPLICATION_NDJSON))
+                .andReturn().getResponse().getContentAsString();
+
+        String[] lines = body.split("\n");
+        assertEquals(2, lines.length);
+        assertTrue(lines[0].startsWith("{") && lines[0].contains("\"email\":\"user1@example.com\""));
+        assertTrue(lines[1].contains("\"email\":\"user2@example.com\""));
+    }
+
+    @Test
+    @WithMockUser(roles = "USER")
+    void streamWalletsWhenNotAdminShouldReturnForbidden() throws Exception {
+        mockMvc.perform(get("/api/users/wallet/findall/stream"))
+                .andExpect(status().isForbidden());
+    }
+
     @Test
     @WithMockUser(roles = "USER")
     void getWalletsWhenNotAdminShouldReturnForbidden() throws Exception {
@@ -236,19 +463,23 @@ class WalletControllerTest {
         wallet.setEmail("user@example.com");
         wallet.setBalance(100.0);
 
-        given(walletRepository.findByEmail(anyString())).willReturn(Optional.of(wallet));
+        given(balanceEngine.setBalance("user@example.com", 200.0)).willReturn(Optional.of(wallet));
 
         mockMvc.perform(put("/api/users/wallet/update/balance")
                         .param("email", "user@example.com")
                         .param("balance", "200.0"))
                 .andExpect(status().isOk())
                 .andExpect(jsonPath("$.balance", is(200.0)));
+
+        verify(ledgerService).record("user@example.com", LedgerEntry.Type.ADJUSTMENT, 100.0);
+        verify(walletRepository, never()).findByEmail(anyString());
+        verify(walletRepository, never()).save(any(Wallet.class));
     }
 
     @Test
     @WithMockUser(roles = "ADMIN")
     void updateBalance_whenWalletDoesNotExist_shouldReturnNotFound() throws Exception {
-        given(walletRepository.findByEmail(anyString())).willReturn(Optional.empty());
+        given(balanceEngine.setBalance(anyString(), anyDouble())).willReturn(Optional.empty());
 
         mockMvc.perform(put("/api/users/wallet/update/balance")
                         .param("email", "nonexistent@example.com")
@@ -261,9 +492,9 @@ class WalletControllerTest {
     void updateEnable_whenWalletExists_shouldUpdateEnableStatus() throws Exception {
         Wallet wallet = new Wallet();
         wallet.setEmail("user@example.com");
-        wallet.setIsEnable(false);
+        wallet.setIsEnable(true);
 
-        given(walletRepository.findByEmail(anyString())).willReturn(Optional.of(wallet));
+        given(balanceEngine.setEnabled("user@example.com", true)).willReturn(Optional.of(wallet));
 
         mockMvc.perform(put("/api/users/wallet/update/enable")
                         .param("email", "user@example.com")
@@ -271,12 +502,14 @@ class WalletControllerTest {
                 )
                 .andExpect(status().isOk())
                 .andExpect(jsonPath("$.isEnable", is(true)));
+
+        verify(walletRepository, never()).save(any(Wallet.class));
     }
 
     @Test
     @WithMockUser(roles = "ADMIN")
     void updateEnable_whenWalletDoesNotExist_shouldReturnNotFound() throws Exception {
-        given(walletRepository.findByEmail(anyString())).willReturn(Optional.empty());
+        given(balanceEngine.setEnabled(anyString(), anyBoolean())).willReturn(Optional.empty());
 
         mockMvc.perform(put("/api/users/wallet/update/enable")
                         .param("email", "nonexistent@example.com")
@@ -292,22 +525,118 @@ class WalletControllerTest {
         wallet.setEmail("user@example.com");
         wallet.setBalance(100.0);
 
-        given(walletRepository.findByEmail(anyString())).willReturn(Optional.of(wallet));
+        given(balanceEngine.setBalance("user@example.com", 0.0)).willReturn(Optional.of(wallet));
 
         mockMvc.perform(put("/api/users/wallet/reset")
                         .param("email", "user@example.com"))
                 .andExpect(status().isOk())
                 .andExpect(jsonPath("$.balance", is(0.0)));
+
+        verify(ledgerService).record("user@example.com", LedgerEntry.Type.ADJUSTMENT, -100.0);
     }
 
     @Test
     @WithMockUser(roles = "ADMIN")
     void resetWallet_whenWalletDoesNotExist_shouldReturnNotFound() throws Exception {
-        given(walletRepository.findByEmail(anyString())).willReturn(Optional.empty());
+        given(balanceEngine.setBalance(anyString(), anyDouble())).willReturn(Optional.empty());
 
         mockMvc.perform(put("/api/users/wallet/reset")
                         .param("email", "nonexistent@example.com"))
                 .andExpect(status().isNotFound());
     }
 
+    @Test
+    @WithMockUser(username = "admin@example.com", roles = "ADMIN")
+    void startBulkOperationAsAdminShouldReturnTheQueuedJob() throws Exception {
+        BulkJob job = new BulkJob();
+        job.setId("job-1");
+        job.setOperation(BulkJob.Operation.RESET);
+        job.setStatus(BulkJob.Status.PENDING);
+        doReturn(job).when(bulkOperationService).submit(any(), eq("admin@example.com"));
+
+        mockMvc.perform(post("/api/users/wallet/bulk")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"operation\":\"RESET\",\"minBalance\":100.0}"))
+                .andExpect(status().isAccepted())
+                .andExpect(jsonPath("$.id", is("job-1")))
+                .andExpect(jsonPath("$.status", is("PENDING")));
+    }
+
+    @Test
+    @WithMockUser(roles = "USER")
+    void startBulkOperationWhenNotAdminShouldReturnForbidden() throws Exception {
+        mockMvc.perform(post("/api/users/wallet/bulk")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("{\"operation\":\"RESET\",\"all\":true}"))
+                .andExpect(status().isForbidden());
+
+        verify(bulkOperationService, never()).submit(any(), any());
+    }
+
+    @Test
+    @WithMockUser(roles = "ADMIN")
+    void getBulkJobShouldReturnTheProgress() throws Exception {
+        BulkJob job = new BulkJob();
+        job.setId("job-1");
+        job.setOperation(BulkJob.Operation.DISABLE);
+        job.setStatus(BulkJob.Status.RUNNING);
+        job.setTotal(10);
+        job.setProcessed(4);
+        doReturn(Optional.of(job)).when(bulkOperationService).findJob("job-1");
+        doReturn(Optional.empty()).when(bulkOperationService).findJob("missing");
+
+        mockMvc.perform(get("/api/users/wallet/bulk/job-1"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.status", is("RUNNING")))
+                .andExpect(jsonPath("$.processed", is(4)))
+                .andExpect(jsonPath("$.total", is(10)));
+
+        mockMvc.perform(get("/api/users/wallet/bulk/missing"))
+                .andExpect(status().isNotFound());
+    }
+
+    @Test
+    @WithMockUser(roles = "ADMIN")
+    void getStatsShouldReturnTheInMemoryStatistics() throws Exception {
+        WalletStatsDTO statsDTO = new WalletStatsDTO();
+        statsDTO.setWallets(3);
+        statsDTO.setEnabled(2);
+        statsDTO.setDisabled(1);
+        statsDTO.setTotalBalance(300.0);
+        statsDTO.setMeanBalance(100.0);
+        statsDTO.setQuantiles(Map.of("p50", 100.0));
+        given(walletStatsService.getStats()).willReturn(statsDTO);
+
+        mockMvc.perform(get("/api/users/wallet/stats"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.wallets", is(3)))
+                .andExpect(jsonPath("$.disabled", is(1)))
+                .andExpect(jsonPath("$.totalBalance", is(300.0)))
+                .andExpect(jsonPath("$.quantiles.p50", is(100.0)));
+
+        verify(walletRepository, never()).findAll();
+    }
+
+    @Test
+    @WithMockUser(roles = "USER")
+    void getStatsWhenNotAdminShouldReturnForbidden() throws Exception {
+        mockMvc.perform(get("/api/users/wallet/stats"))
+                .andExpect(status().isForbidden());
+    }
+
+    @Test
+    @WithMockUser(roles = "ADMIN")
+    void getLeaderboardShouldReturnTheWalletsInOrder() throws Exception {
+        given(leaderboardService.getLeaderboard(LeaderboardService.Board.LOWEST, 2)).willReturn(List.of(
+                new TopBalances.Entry("poor@example.com", 1.0),
+                new TopBalances.Entry("other@example.com", 5.0)));
+
+        mockMvc.perform(get("/api/users/wallet/leaderboard").param("board", "LOWEST").param("size", "2"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.wallets", hasSize(2)))
+                .andExpect(jsonPath("$.wallets[0].email", is("poor@example.com")))
+                .andExpect(jsonPath("$.wallets[1].balance", is(5.0)));
+
+        verify(walletRepository, never()).findAll();
+    }
 }
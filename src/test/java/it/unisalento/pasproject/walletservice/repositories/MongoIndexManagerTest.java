@@ -0,0 +1,116 @@
+package it.unisalento.pasproject.walletservice.repositories;
+
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import it.unisalento.pasproject.walletservice.domain.Wallet;
+import org.mockito.ArgumentCaptor;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.IndexDefinition;
+import org.springframework.data.mongodb.core.index.IndexInfo;
+import org.springframework.data.mongodb.core.index.IndexOperations;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+class MongoIndexManagerTest {
+
+    private MongoIndexManager mongoIndexManager;
+
+    private MongoTemplate mongoTemplate;
+
+    private IndexOperations indexOperations;
+
+    @BeforeEach
+    void setUp() {
+        mongoTemplate = mock(MongoTemplate.class);
+        indexOperations = mock(IndexOperations.class);
+        when(mongoTemplate.indexOps(any(Class.class))).thenReturn(indexOperations);
+
+        MongoMappingContext mappingContext = new MongoMappingContext();
+        mappingContext.setInitialEntitySet(Set.of(Wallet.class));
+        mappingContext.initialize();
+
+        mongoIndexManager = spy(new MongoIndexManager(mongoTemplate, mappingContext, false, "fail"));
+    }
+
+    private List<Document> createdIndexOptions() {
+        ArgumentCaptor<IndexDefinition> indexCaptor = ArgumentCaptor.forClass(IndexDefinition.class);
+        verify(indexOperations, atLeastOnce()).ensureIndex(indexCaptor.capture());
+        return indexCaptor.getAllValues().stream().map(IndexDefinition::getIndexOptions).toList();
+    }
+
+    private static Document plan(Document winningPlan) {
+        return new Document("queryPlanner", new Document("winningPlan", winningPlan));
+    }
+
+    private static Document indexScan() {
+        return new Document("stage", "FETCH").append("inputStage", new Document("stage", "IXSCAN"));
+    }
+
+    @Test
+    void hasStage_findsNestedStages() {
+        Document sbePlan = new Document("queryPlan", new Document("stage", "SORT")
+                .append("inputStages", List.of(new Document("stage", "COLLSCAN"))));
+
+        assertTrue(MongoIndexManager.hasStage(sbePlan, "COLLSCAN"));
+        assertFalse(MongoIndexManager.hasStage(indexScan(), "COLLSCAN"));
+    }
+
+    @Test
+    void onApplicationReady_passesWhenEveryQueryUsesAnIndex() {
+        doReturn(plan(indexScan())).when(mongoIndexManager).explain(any());
+
+        assertDoesNotThrow(() -> mongoIndexManager.onApplicationReady());
+        verify(mongoIndexManager, times(MongoIndexManager.QUERIES.size())).explain(any());
+    }
+
+    @Test
+    void onApplicationReady_failsOnCollectionScans() {
+        doAnswer(invocation -> {
+            MongoIndexManager.QueryPlanProbe query = invocation.getArgument(0);
+            return plan(query.collection().equals("wallet") ? new Document("stage", "COLLSCAN") : indexScan());
+        }).when(mongoIndexManager).explain(any());
+
+        IllegalStateException e = assertThrows(IllegalStateException.class, () -> mongoIndexManager.onApplicationReady());
+        assertTrue(e.getMessage().contains("WalletRepository.findByEmail"));
+    }
+
+    @Test
+    void verifyQueryPlans_skipsQueriesThatCantBeExplained() {
+        doThrow(new IllegalStateException("no connection")).when(mongoIndexManager).explain(any());
+
+        assertTrue(mongoIndexManager.verifyQueryPlans().isEmpty());
+    }
+
+    @Test
+    void ensureIndexes_usesANonUniqueIndexWhileThereAreDuplicates() {
+        doReturn(List.of(new Document("_id", new Document("email", "user@example.com")).append("count", 2)))
+                .when(mongoIndexManager).findDuplicates(eq("wallet"), eq(new Document("email", 1)));
+        doReturn(List.of()).when(mongoIndexManager).findDuplicates(anyString(), argThat(keys -> !keys.containsKey("email")));
+
+        mongoIndexManager.ensureIndexes();
+
+        Document email = createdIndexOptions().stream()
+                .filter(options -> options.getString("name").startsWith("email"))
+                .findFirst().orElseThrow();
+        assertEquals("email_non_unique", email.getString("name"));
+        assertFalse(email.containsKey("unique"));
+    }
+
+    @Test
+    void ensureIndexes_createsTheUniqueIndexAndDropsTheNonUniqueOne() {
+        doReturn(List.of()).when(mongoIndexManager).findDuplicates(anyString(), any());
+        when(indexOperations.getIndexInfo()).thenReturn(List.of(new IndexInfo(List.of(), "email_non_unique", false, false, "")));
+
+        mongoIndexManager.ensureIndexes();
+
+        assertTrue(createdIndexOptions().stream().anyMatch(options -> Boolean.TRUE.equals(options.get("unique"))));
+        verify(indexOperations).dropIndex("email_non_unique");
+    }
+}
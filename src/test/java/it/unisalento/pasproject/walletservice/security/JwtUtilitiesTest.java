@@ -0,0 +1,87 @@
+package it.unisalento.pasproject.walletservice.security;
+
+import io.jsonwebtoken.JwtException;
+import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.security.Keys;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.security.core.userdetails.User;
+import org.springframework.security.core.userdetails.UserDetails;
+
+import java.util.Date;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class JwtUtilitiesTests {
+
+    private static final String SECRET = "0123456789abcdef0123456789abcdef0123456789abcdef";
+
+    private SimpleMeterRegistry meterRegistry;
+
+    private JwtUtilities jwtUtilities;
+
+    @BeforeEach
+    void setUp() {
+        SecurityConstants securityConstants = mock(SecurityConstants.class);
+        when(securityConstants.getJWT_SECRET()).thenReturn(SECRET);
+        meterRegistry = new SimpleMeterRegistry();
+        jwtUtilities = new JwtUtilities(securityConstants, meterRegistry, 100);
+    }
+
+    private static String token(String secret, String subject, long expiresInMillis) {
+        return Jwts.builder()
+                .setSubject(subject)
+                .claim("role", "UTENTE")
+                .setExpiration(new Date(System.currentTimeMillis() + expiresInMillis))
+                .signWith(Keys.hmacShaKeyFor(secret.getBytes()))
+                .compact();
+    }
+
+    private double cacheGets(String result) {
+        return meterRegistry.get("cache.gets").tag("cache", "verifiedTokens").tag("result", result).functionCounter().count();
+    }
+
+    @Test
+    void verify_parsesTheTokenOnlyOnce() {
+        String token = token(SECRET, "user@example.com", 60000);
+
+        VerifiedToken verified = jwtUtilities.verify(token);
+        assertEquals("user@example.com", verified.getUsername());
+        assertEquals("UTENTE", verified.getRole());
+
+        assertEquals("user@example.com", jwtUtilities.extractUsername(token));
+        assertEquals("UTENTE", jwtUtilities.extractRole(token));
+
+        UserDetails userDetails = User.builder().username("user@example.com").password("").authorities("UTENTE").build();
+        assertTrue(jwtUtilities.validateToken(token, userDetails, "UTENTE"));
+
+        assertEquals(1.0, cacheGets("miss"));
+        assertEquals(3.0, cacheGets("hit"));
+    }
+
+    @Test
+    void verify_rejectsTokensSignedWithAnotherKey() {
+        String token = token("fedcba9876543210fedcba9876543210fedcba9876543210", "user@example.com", 60000);
+
+        assertThrows(JwtException.class, () -> jwtUtilities.verify(token));
+        assertThrows(JwtException.class, () -> jwtUtilities.verify(token));
+    }
+
+    @Test
+    void verify_rejectsExpiredTokens() {
+        String token = token(SECRET, "user@example.com", -1000);
+
+        assertThrows(JwtException.class, () -> jwtUtilities.verify(token));
+    }
+
+    @Test
+    void verifiedToken_isNotChangedByItsCallers() {
+        VerifiedToken verified = jwtUtilities.verify(token(SECRET, "user@example.com", 60000));
+
+        verified.getExpiration().setTime(0);
+
+        assertFalse(verified.isExpired());
+    }
+}
@@ -0,0 +1,242 @@
+package it.unisalento.pasproject.walletservice.services;
+
+import it.unisalento.pasproject.walletservice.business.events.WalletChangedEvent;
+import it.unisalento.pasproject.walletservice.domain.BulkJob;
+import it.unisalento.pasproject.walletservice.domain.LedgerEntry;
+import it.unisalento.pasproject.walletservice.domain.Wallet;
+import it.unisalento.pasproject.walletservice.dto.BulkOperationDTO;
+import it.unisalento.pasproject.walletservice.exceptions.BadRequestException;
+import it.unisalento.pasproject.walletservice.repositories.BulkJobRepository;
+import it.unisalento.pasproject.walletservice.repositories.WalletRepository;
+import it.unisalento.pasproject.walletservice.service.BulkOperationService;
+import it.unisalento.pasproject.walletservice.service.LedgerService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.junit.jupiter.MockitoSettings;
+import org.mockito.quality.Strictness;
+import org.springframework.context.ApplicationEventPublisher;
+
+import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import static it.unisalento.pasproject.walletservice.TestWallets.walletWithId;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+@MockitoSettings(strictness = Strictness.LENIENT)
+class BulkOperationServiceTests {
+
+    private WalletRepository walletRepository;
+
+    private BulkJobRepository bulkJobRepository;
+
+    private LedgerService ledgerService;
+
+    private ApplicationEventPublisher eventPublisher;
+
+    private BulkOperationService bulkOperationService;
+
+    @BeforeEach
+    void setUp() {
+        walletRepository = mock(WalletRepository.class);
+        bulkJobRepository = mock(BulkJobRepository.class);
+        ledgerService = mock(LedgerService.class);
+        eventPublisher = mock(ApplicationEventPublisher.class);
+        bulkOperationService = new BulkOperationService(walletRepository, bulkJobRepository, ledgerService, eventPublisher, 2, "mongo", 60000);
+
+        when(bulkJobRepository.save(any(BulkJob.class))).thenAnswer(invocation -> {
+            BulkJob job = invocation.getArgument(0);
+            if (job.getId() == null) {
+                job.setId("job-1");
+            }
+            return job;
+        });
+        when(bulkJobRepository.start(anyString(), anyString(), anyLong(), any(Instant.class))).thenReturn(true);
+        when(bulkJobRepository.updateProgress(anyString(), anyString(), anyLong(), anyLong(), any(Instant.class))).thenReturn(true);
+        when(bulkJobRepository.finish(anyString(), anyString(), any(BulkJob.Status.class), any(), any(Instant.class))).thenReturn(true);
+    }
+
+    @AfterEach
+    void tearDown() {
+        bulkOperationService.close();
+    }
+
+    private static Wallet reset(String email, double previousBalance) {
+        Wallet wallet = new Wallet();
+        wallet.setEmail(email);
+        wallet.setResetBalance(previousBalance);
+        return wallet;
+    }
+
+    private static BulkOperationDTO request(BulkJob.Operation operation) {
+        BulkOperationDTO request = new BulkOperationDTO();
+        request.setOperation(operation);
+        return request;
+    }
+
+    private static void awaitFinished(BulkJob job) throws InterruptedException {
+        for (int i = 0; i < 500 && job.getFinishedAt() == null; i++) {
+            Thread.sleep(10);
+        }
+        assertNotNull(job.getFinishedAt(), "job not finished");
+    }
+
+    @Test
+    void submit_rejectsRequestsWithoutOperationOrSelection() {
+        assertThrows(BadRequestException.class, () -> bulkOperationService.submit(new BulkOperationDTO(), "admin@example.com"));
+        assertThrows(BadRequestException.class, () -> bulkOperationService.submit(request(BulkJob.Operation.RESET), "admin@example.com"));
+
+        verify(bulkJobRepository, never()).save(any());
+    }
+
+    @Test
+    void submit_rejectsResetWithTheInMemoryEngine() {
+        BulkOperationService memoryService = new BulkOperationService(walletRepository, bulkJobRepository, ledgerService, eventPublisher, 2, "memory", 60000);
+        BulkOperationDTO request = request(BulkJob.Operation.RESET);
+        request.setAll(true);
+
+        assertThrows(BadRequestException.class, () -> memoryService.submit(request, "admin@example.com"));
+
+        memoryService.close();
+        verify(bulkJobRepository, never()).save(any());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void reset_processesTheWalletsInChunksAndRecordsTheAdjustments() throws Exception {
+        BulkOperationDTO request = request(BulkJob.Operation.RESET);
+        request.setMinBalance(10.0);
+
+        when(walletRepository.countMatching(isNull(), isNull(), eq(10.0), isNull())).thenReturn(3L);
+        when(walletRepository.findIdsPage(isNull(), eq(2), isNull(), isNull(), eq(10.0), isNull()))
+                .thenReturn(List.of(walletWithId("1", "a@example.com"), walletWithId("2", "b@example.com")));
+        when(walletRepository.findIdsPage(eq("2"), eq(2), isNull(), isNull(), eq(10.0), isNull()))
+                .thenReturn(List.of(walletWithId("3", "c@example.com")));
+        when(walletRepository.resetByIds(List.of("1", "2"), "job-1", null, 10.0, null))
+                .thenReturn(List.of(reset("a@example.com", 15.0), reset("b@example.com", 20.0)));
+        when(walletRepository.resetByIds(List.of("3"), "job-1", null, 10.0, null))
+                .thenReturn(List.of(reset("c@example.com", 30.0)));
+
+        BulkJob job = bulkOperationService.submit(request, "admin@example.com");
+        awaitFinished(job);
+
+        assertEquals(BulkJob.Status.COMPLETED, job.getStatus());
+        assertEquals(3, job.getTotal());
+        assertEquals(3, job.getProcessed());
+        assertEquals(3, job.getModified());
+        assertEquals("admin@example.com", job.getRequestedBy());
+
+        ArgumentCaptor<Map<String, Double>> adjustments = ArgumentCaptor.forClass(Map.class);
+        verify(ledgerService, times(2)).recordAll(eq(LedgerEntry.Type.ADJUSTMENT), adjustments.capture());
+        assertEquals(Map.of("a@example.com", -15.0, "b@example.com", -20.0), adjustments.getAllValues().get(0));
+        assertEquals(Map.of("c@example.com", -30.0), adjustments.getAllValues().get(1));
+
+        verify(eventPublisher, times(3)).publishEvent(any(WalletChangedEvent.class));
+        verify(walletRepository, never()).save(any(Wallet.class));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void disable_splitsLongEmailListsIntoChunks() throws Exception {
+        BulkOperationDTO request = request(BulkJob.Operation.DISABLE);
+        request.setEmails(List.of("a@example.com", "b@example.com", "c@example.com", "a@example.com"));
+
+        when(walletRepository.countMatching(anyCollection(), isNull(), isNull(), isNull())).thenReturn(2L, 1L);
+        when(walletRepository.findIdsPage(isNull(), eq(2), eq(List.of("a@example.com", "b@example.com")), isNull(), isNull(), isNull()))
+                .thenReturn(List.of(walletWithId("1", "a@example.com"), walletWithId("2", "b@example.com")));
+        when(walletRepository.findIdsPage(isNull(), eq(2), eq(List.of("c@example.com")), isNull(), isNull(), isNull()))
+                .thenReturn(List.of(walletWithId("3", "c@example.com")));
+        //Il wallet b è stato disabilitato da altri dopo la lettura del chunk
+        when(walletRepository.setEnableByIds(anyCollection(), eq(false), eq("job-1"), isNull(), isNull(), isNull()))
+                .thenReturn(List.of(walletWithId("1", "a@example.com")), List.of(walletWithId("3", "c@example.com")));
+
+        BulkJob job = bulkOperationService.submit(request, "admin@example.com");
+        awaitFinished(job);
+
+        assertEquals(BulkJob.Status.COMPLETED, job.getStatus());
+        assertEquals(3, job.getTotal());
+        assertEquals(3, job.getProcessed());
+        assertEquals(2, job.getModified());
+
+        ArgumentCaptor<Collection<String>> ids = ArgumentCaptor.forClass(Collection.class);
+        verify(walletRepository, times(2)).setEnableByIds(ids.capture(), eq(false), eq("job-1"), isNull(), isNull(), isNull());
+        assertEquals(List.of(List.of("1", "2"), List.of("3")), ids.getAllValues());
+
+        ArgumentCaptor<WalletChangedEvent> events = ArgumentCaptor.forClass(WalletChangedEvent.class);
+        verify(eventPublisher, times(2)).publishEvent(events.capture());
+        assertEquals(List.of("a@example.com", "c@example.com"), events.getAllValues().stream().map(WalletChangedEvent::getEmail).toList());
+        verify(walletRepository, never()).findIdsPage(eq("2"), anyInt(), any(), any(), any(), any());
+        verify(ledgerService, never()).recordAll(any(), anyMap());
+    }
+
+    @Test
+    void failedChunk_marksTheJobAsFailed() throws Exception {
+        BulkOperationDTO request = request(BulkJob.Operation.ENABLE);
+        request.setAll(true);
+
+        when(walletRepository.countMatching(isNull(), isNull(), isNull(), isNull())).thenReturn(2L);
+        when(walletRepository.findIdsPage(isNull(), eq(2), isNull(), isNull(), isNull(), isNull()))
+                .thenReturn(List.of(walletWithId("1", "a@example.com"), walletWithId("2", "b@example.com")));
+        when(walletRepository.setEnableByIds(anyCollection(), eq(true), any(), any(), any(), any())).thenThrow(new IllegalStateException("timeout"));
+
+        BulkJob job = bulkOperationService.submit(request, "admin@example.com");
+        awaitFinished(job);
+
+        assertEquals(BulkJob.Status.FAILED, job.getStatus());
+        assertEquals("timeout", job.getError());
+        assertEquals(0, job.getProcessed());
+    }
+
+    @Test
+    void jobFailedAsOrphan_stopsWithoutOverwritingItsStatus() throws Exception {
+        BulkOperationDTO request = request(BulkJob.Operation.ENABLE);
+        request.setAll(true);
+
+        when(walletRepository.countMatching(isNull(), isNull(), isNull(), isNull())).thenReturn(4L);
+        when(walletRepository.findIdsPage(isNull(), eq(2), isNull(), isNull(), isNull(), isNull()))
+                .thenReturn(List.of(walletWithId("1", "a@example.com"), walletWithId("2", "b@example.com")));
+        when(walletRepository.findIdsPage(eq("2"), eq(2), isNull(), isNull(), isNull(), isNull()))
+                .thenReturn(List.of(walletWithId("3", "c@example.com"), walletWithId("4", "d@example.com")));
+        when(walletRepository.setEnableByIds(anyCollection(), eq(true), any(), any(), any(), any())).thenReturn(List.of());
+        //Un'altra istanza ha già segnato il job come fallito
+        when(bulkJobRepository.updateProgress(anyString(), anyString(), anyLong(), anyLong(), any(Instant.class))).thenReturn(false);
+        when(bulkJobRepository.finish(anyString(), anyString(), any(BulkJob.Status.class), any(), any(Instant.class))).thenReturn(false);
+
+        BulkJob job = bulkOperationService.submit(request, "admin@example.com");
+        awaitFinished(job);
+
+        assertEquals(BulkJob.Status.FAILED, job.getStatus());
+        verify(walletRepository, times(1)).setEnableByIds(anyCollection(), anyBoolean(), any(), any(), any(), any());
+        verify(bulkJobRepository, times(1)).save(any(BulkJob.class));
+    }
+
+    @Test
+    void checkJobs_keepsTheOwnJobsAliveAndFailsTheOrphans() {
+        BulkOperationDTO request = request(BulkJob.Operation.ENABLE);
+        request.setAll(true);
+        BulkJob job = bulkOperationService.submit(request, "admin@example.com");
+
+        when(bulkJobRepository.failOrphans(any(), any())).thenReturn(1L);
+
+        bulkOperationService.checkJobs();
+
+        ArgumentCaptor<Instant> now = ArgumentCaptor.forClass(Instant.class);
+        verify(bulkJobRepository).heartbeat(eq(job.getInstance()), now.capture());
+        verify(bulkJobRepository).failOrphans(now.getValue().minusSeconds(60), now.getValue());
+    }
+
+    @Test
+    void checkJobs_survivesRepositoryErrors() {
+        doThrow(new IllegalStateException("timeout")).when(bulkJobRepository).heartbeat(any(), any());
+
+        assertDoesNotThrow(() -> bulkOperationService.checkJobs());
+    }
+}
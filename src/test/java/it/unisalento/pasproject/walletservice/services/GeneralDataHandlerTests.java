@@ -1,23 +1,34 @@
 package it.unisalento.pasproject.walletservice.services;
 
+import it.unisalento.pasproject.walletservice.business.engine.BalanceEngine;
+import it.unisalento.pasproject.walletservice.business.engine.MongoBalanceEngine;
+import it.unisalento.pasproject.walletservice.business.events.WalletChangedEvent;
+import it.unisalento.pasproject.walletservice.domain.LedgerEntry;
 import it.unisalento.pasproject.walletservice.domain.Wallet;
 import it.unisalento.pasproject.walletservice.dto.GeneralDataDTO;
 import it.unisalento.pasproject.walletservice.dto.GeneralRequestDTO;
 import it.unisalento.pasproject.walletservice.repositories.WalletRepository;
 import it.unisalento.pasproject.walletservice.service.GeneralDataHandler;
+import it.unisalento.pasproject.walletservice.service.LedgerService;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.InjectMocks;
 import org.mockito.MockitoAnnotations;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.junit.jupiter.MockitoSettings;
+import org.mockito.quality.Strictness;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.context.ApplicationEventPublisher;
 
+import java.util.List;
 import java.util.Optional;
 
+import static it.unisalento.pasproject.walletservice.TestWallets.wallet;
 import static it.unisalento.pasproject.walletservice.security.WalletConstants.UTENTE_INITIAL_BALANCE;
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.any;
@@ -25,6 +36,7 @@ import static org.mockito.BDDMockito.given;
 import static org.mockito.Mockito.*;
 
 @ExtendWith(MockitoExtension.class)
+@MockitoSettings(strictness = Strictness.LENIENT)
 @SpringBootTest(classes = {GeneralDataHandler.class})
 class GeneralDataHandlerTests {
 
@@ -34,6 +46,14 @@ class GeneralDataHandlerTests {
     @MockBean
     private RabbitTemplate rabbitTemplate;
 
+    @MockBean
+    private LedgerService ledgerService;
+
+    @MockBean
+    private BalanceEngine balanceEngine;
+
+    private ApplicationEventPublisher eventPublisher;
+
     @InjectMocks
     private GeneralDataHandler generalDataHandler;
 
@@ -41,7 +61,10 @@ class GeneralDataHandlerTests {
     void setUp() {
         MockitoAnnotations.openMocks(this);
         walletRepository = mock(WalletRepository.class);
-        generalDataHandler = new GeneralDataHandler(walletRepository);
+        ledgerService = mock(LedgerService.class);
+        eventPublisher = mock(ApplicationEventPublisher.class);
+        generalDataHandler = new GeneralDataHandler(walletRepository,
+                new MongoBalanceEngine(walletRepository, ledgerService, eventPublisher), ledgerService, eventPublisher);
 
         given(walletRepository.save(any(Wallet.class))).willAnswer(invocation -> invocation.getArgument(0));
     }
@@ -68,120 +91,150 @@ class GeneralDataHandlerTests {
 
     @Test
     void receiveRequest_disablesWalletWhenRequested() {
-        Wallet existingWallet = new Wallet();
-        existingWallet.setBalance(100.0);
-        existingWallet.setEmail("user@example.com");
-        existingWallet.setId("1");
-        existingWallet.setIsEnable(true);
-        when(walletRepository.findByEmail("user@example.com")).thenReturn(Optional.of(existingWallet));
+        Wallet updatedWallet = wallet("user@example.com", 100.0, false);
+        when(walletRepository.findAndSetEnable("user@example.com", false)).thenReturn(Optional.of(updatedWallet));
 
-        GeneralRequestDTO requestDTO = new GeneralRequestDTO();
-        requestDTO.setEmail("user@example.com");
-        requestDTO.setRequestType(GeneralRequestDTO.RequestType.DISABLE);
+        generalDataHandler.receiveRequest(request(GeneralRequestDTO.RequestType.DISABLE, 0.0));
 
-        generalDataHandler.receiveRequest(requestDTO);
+        verify(walletRepository).findAndSetEnable("user@example.com", false);
+        verify(walletRepository, never()).save(any(Wallet.class));
+        verify(ledgerService, never()).record(any(), any(), anyDouble());
 
-        ArgumentCaptor<Wallet> walletCaptor = ArgumentCaptor.forClass(Wallet.class);
-        verify(walletRepository).save(walletCaptor.capture());
-        assertFalse(walletCaptor.getValue().getIsEnable());
+        ArgumentCaptor<WalletChangedEvent> eventCaptor = ArgumentCaptor.forClass(WalletChangedEvent.class);
+        verify(eventPublisher).publishEvent(eventCaptor.capture());
+        assertFalse(eventCaptor.getValue().getEnabled());
     }
 
     @Test
     void receiveRequest_enablesWalletWhenRequested() {
-        Wallet existingWallet = new Wallet();
-        existingWallet.setBalance(100.0);
-        existingWallet.setEmail("user@example.com");
-        existingWallet.setId("1");
-        existingWallet.setIsEnable(false);
-
-        when(walletRepository.findByEmail("user@example.com")).thenReturn(Optional.of(existingWallet));
+        Wallet updatedWallet = wallet("user@example.com", 100.0, true);
+        when(walletRepository.findAndSetEnable("user@example.com", true)).thenReturn(Optional.of(updatedWallet));
 
-        GeneralRequestDTO requestDTO = new GeneralRequestDTO();
-        requestDTO.setEmail("user@example.com");
-        requestDTO.setRequestType(GeneralRequestDTO.RequestType.ENABLE);
+        generalDataHandler.receiveRequest(request(GeneralRequestDTO.RequestType.ENABLE, 0.0));
 
-        generalDataHandler.receiveRequest(requestDTO);
+        verify(walletRepository).findAndSetEnable("user@example.com", true);
 
-        // Verifica che il metodo save sia stato chiamato con il wallet abilitato
-        ArgumentCaptor<Wallet> walletCaptor = ArgumentCaptor.forClass(Wallet.class);
-        verify(walletRepository).save(walletCaptor.capture());
+        ArgumentCaptor<WalletChangedEvent> eventCaptor = ArgumentCaptor.forClass(WalletChangedEvent.class);
+        verify(eventPublisher).publishEvent(eventCaptor.capture());
+        assertTrue(eventCaptor.getValue().getEnabled(), "Il wallet dovrebbe essere abilitato.");
+        assertEquals(100.0, eventCaptor.getValue().getBalance());
+    }
 
-        Wallet savedWallet = walletCaptor.getValue();
+    @Test
+    void receiveRequest_increasesBalanceWhenDepositRequested() {
+        when(walletRepository.findAndApplyChange("user@example.com", 50.0, null)).thenReturn(Optional.of(wallet("user@example.com", 100.0, true)));
 
-        // Assegnazioni per verificare lo stato del wallet
-        assertTrue(savedWallet.getIsEnable(), "Il wallet dovrebbe essere abilitato.");
+        generalDataHandler.receiveRequest(request(GeneralRequestDTO.RequestType.DEPOSIT, 50.0));
 
+        verify(walletRepository).findAndApplyChange("user@example.com", 50.0, null);
+        assertEquals(150.0, publishedBalance());
+        verify(ledgerService).record(any(), eq(LedgerEntry.Type.DEPOSIT), eq(50.0));
     }
 
     @Test
-    void receiveRequest_increasesBalanceWhenDepositRequested() {
-        Wallet existingWallet = new Wallet();
-        existingWallet.setBalance(100.0);
-        when(walletRepository.findByEmail("user@example.com")).thenReturn(Optional.of(existingWallet));
+    void receiveRequest_resetsBalanceWhenRefillRequested() {
+        when(walletRepository.findAndSetBalance("user@example.com", UTENTE_INITIAL_BALANCE)).thenReturn(Optional.of(wallet("user@example.com", 100.0, true)));
 
-        GeneralRequestDTO requestDTO = new GeneralRequestDTO();
-        requestDTO.setEmail("user@example.com");
-        requestDTO.setRequestType(GeneralRequestDTO.RequestType.DEPOSIT);
-        requestDTO.setAmount(50.0);
-        generalDataHandler.receiveRequest(requestDTO);
+        generalDataHandler.receiveRequest(request(GeneralRequestDTO.RequestType.REFILL, 0.0));
 
-        ArgumentCaptor<Wallet> walletCaptor = ArgumentCaptor.forClass(Wallet.class);
-        verify(walletRepository).save(walletCaptor.capture());
-        assertEquals(150.0, walletCaptor.getValue().getBalance());
+        verify(walletRepository).findAndSetBalance("user@example.com", UTENTE_INITIAL_BALANCE);
+        assertEquals(UTENTE_INITIAL_BALANCE, publishedBalance());
+        verify(ledgerService).record(any(), eq(LedgerEntry.Type.REFILL), eq(UTENTE_INITIAL_BALANCE - 100.0));
     }
 
     @Test
-    void receiveRequest_resetsBalanceWhenRefillRequested() {
-        Wallet existingWallet = new Wallet();
-        existingWallet.setBalance(100.0);
-        when(walletRepository.findByEmail("user@example.com")).thenReturn(Optional.of(existingWallet));
+    void receiveRequest_setsBalanceToZeroWhenSubtractRequestedAndResultIsNegative() {
+        when(walletRepository.findAndApplyChange("user@example.com", -100.0, 0.0)).thenReturn(Optional.of(wallet("user@example.com", 50.0, true)));
 
-        GeneralRequestDTO requestDTO = new GeneralRequestDTO();
-        requestDTO.setEmail("user@example.com" );
-        requestDTO.setRequestType(GeneralRequestDTO.RequestType.REFILL);
-        requestDTO.setAmount(0.0);
+        generalDataHandler.receiveRequest(request(GeneralRequestDTO.RequestType.SUBTRACT, 100.0));
 
-        generalDataHandler.receiveRequest(requestDTO);
+        assertEquals(0.0, publishedBalance());
+        verify(ledgerService).record(any(), eq(LedgerEntry.Type.SUBTRACT), eq(-50.0));
+    }
 
-        ArgumentCaptor<Wallet> walletCaptor = ArgumentCaptor.forClass(Wallet.class);
-        verify(walletRepository).save(walletCaptor.capture());
-        assertEquals(UTENTE_INITIAL_BALANCE, walletCaptor.getValue().getBalance());
+    @Test
+    void receiveRequest_subtractsFromBalanceWhenSubtractRequested() {
+        when(walletRepository.findAndApplyChange("user@example.com", -50.0, 0.0)).thenReturn(Optional.of(wallet("user@example.com", 100.0, true)));
+
+        generalDataHandler.receiveRequest(request(GeneralRequestDTO.RequestType.SUBTRACT, 50.0));
 
+        assertEquals(50.0, publishedBalance());
     }
 
     @Test
-    void receiveRequest_setsBalanceToZeroWhenSubtractRequestedAndResultIsNegative() {
-        Wallet existingWallet = new Wallet();
-        existingWallet.setBalance(50.0);
-        when(walletRepository.findByEmail("user@example.com")).thenReturn(Optional.of(existingWallet));
+    void receiveRequest_skipsMissingWallet() {
+        when(walletRepository.findAndApplyChange(any(), anyDouble(), any())).thenReturn(Optional.empty());
 
-        GeneralRequestDTO requestDTO = new GeneralRequestDTO();
-        requestDTO.setEmail("user@example.com" );
-        requestDTO.setRequestType(GeneralRequestDTO.RequestType.SUBTRACT);
-        requestDTO.setAmount(100.0);
+        generalDataHandler.receiveRequest(request(GeneralRequestDTO.RequestType.DEPOSIT, 50.0));
 
-        generalDataHandler.receiveRequest(requestDTO);
+        verify(eventPublisher, never()).publishEvent(any());
+        verify(ledgerService, never()).record(any(), any(), anyDouble());
+    }
 
-        ArgumentCaptor<Wallet> walletCaptor = ArgumentCaptor.forClass(Wallet.class);
-        verify(walletRepository).save(walletCaptor.capture());
-        assertEquals(0.0, walletCaptor.getValue().getBalance());
+    @Test
+    void receiveRequests_foldsDepositsAndSubtractionsIntoOneUpdate() {
+        //50 + 10 - 100 si ferma a 0, poi + 5: il minimo finale è 5
+        when(walletRepository.findAndApplyChange("user@example.com", -85.0, 5.0)).thenReturn(Optional.of(wallet("user@example.com", 50.0, true)));
+
+        generalDataHandler.receiveRequests(List.of(
+                request(GeneralRequestDTO.RequestType.DEPOSIT, 10.0),
+                request(GeneralRequestDTO.RequestType.SUBTRACT, 100.0),
+                request(GeneralRequestDTO.RequestType.DEPOSIT, 5.0)));
+
+        verify(walletRepository, times(1)).findAndApplyChange(any(), anyDouble(), any());
+        assertEquals(5.0, publishedBalance());
+        verify(ledgerService).record("user@example.com", LedgerEntry.Type.SUBTRACT, -45.0);
     }
 
     @Test
-    void receiveRequest_subtractsFromBalanceWhenSubtractRequested() {
-        Wallet existingWallet = new Wallet();
-        existingWallet.setBalance(100.0);
-        when(walletRepository.findByEmail("user@example.com")).thenReturn(Optional.of(existingWallet));
+    void receiveRequests_appliesPendingChangesBeforeRefill() {
+        when(walletRepository.findAndApplyChange("user@example.com", 20.0, null)).thenReturn(Optional.of(wallet("user@example.com", 30.0, true)));
+        when(walletRepository.findAndSetBalance("user@example.com", UTENTE_INITIAL_BALANCE)).thenReturn(Optional.of(wallet("user@example.com", 50.0, true)));
+        when(walletRepository.findAndApplyChange("user@example.com", -5.0, 0.0)).thenReturn(Optional.of(wallet("user@example.com", UTENTE_INITIAL_BALANCE, true)));
+
+        generalDataHandler.receiveRequests(List.of(
+                request(GeneralRequestDTO.RequestType.DEPOSIT, 10.0),
+                request(GeneralRequestDTO.RequestType.DEPOSIT, 10.0),
+                request(GeneralRequestDTO.RequestType.REFILL, 0.0),
+                request(GeneralRequestDTO.RequestType.SUBTRACT, 5.0)));
+
+        InOrder inOrder = inOrder(walletRepository);
+        inOrder.verify(walletRepository).findAndApplyChange("user@example.com", 20.0, null);
+        inOrder.verify(walletRepository).findAndSetBalance("user@example.com", UTENTE_INITIAL_BALANCE);
+        inOrder.verify(walletRepository).findAndApplyChange("user@example.com", -5.0, 0.0);
+        verify(ledgerService).record("user@example.com", LedgerEntry.Type.DEPOSIT, 20.0);
+        verify(ledgerService).record("user@example.com", LedgerEntry.Type.SUBTRACT, -5.0);
+    }
 
-        GeneralRequestDTO requestDTO = new GeneralRequestDTO();
-        requestDTO.setEmail("user@example.com" );
-        requestDTO.setRequestType(GeneralRequestDTO.RequestType.SUBTRACT);
-        requestDTO.setAmount(50.0);
+    @Test
+    void receiveRequests_updatesEveryWalletOnce() {
+        GeneralRequestDTO other = request(GeneralRequestDTO.RequestType.DEPOSIT, 7.0);
+        other.setEmail("other@example.com");
 
-        generalDataHandler.receiveRequest(requestDTO);
+        when(walletRepository.findAndApplyChange("user@example.com", 3.0, null)).thenThrow(new RuntimeException("timeout"));
+        when(walletRepository.findAndApplyChange("other@example.com", 14.0, null)).thenReturn(Optional.of(wallet("user@example.com", 0.0, true)));
 
-        ArgumentCaptor<Wallet> walletCaptor = ArgumentCaptor.forClass(Wallet.class);
-        verify(walletRepository).save(walletCaptor.capture());
-        assertEquals(50.0, walletCaptor.getValue().getBalance());
+        generalDataHandler.receiveRequests(List.of(
+                request(GeneralRequestDTO.RequestType.DEPOSIT, 3.0),
+                other,
+                other));
+
+        //L'errore sul primo wallet non blocca il secondo
+        verify(walletRepository).findAndApplyChange("other@example.com", 14.0, null);
+        verify(ledgerService).record("other@example.com", LedgerEntry.Type.DEPOSIT, 14.0);
+    }
+
+    private static GeneralRequestDTO request(GeneralRequestDTO.RequestType type, double amount) {
+        GeneralRequestDTO requestDTO = new GeneralRequestDTO();
+        requestDTO.setEmail("user@example.com");
+        requestDTO.setRequestType(type);
+        requestDTO.setAmount(amount);
+        return requestDTO;
+    }
+
+    private Double publishedBalance() {
+        ArgumentCaptor<WalletChangedEvent> eventCaptor = ArgumentCaptor.forClass(WalletChangedEvent.class);
+        verify(eventPublisher, atLeastOnce()).publishEvent(eventCaptor.capture());
+        return eventCaptor.getValue().getBalance();
     }
 }
\ No newline at end of file
@@ -0,0 +1,139 @@
+package it.unisalento.pasproject.walletservice.services;
+
+import it.unisalento.pasproject.walletservice.business.events.BalancesChangedEvent;
+import it.unisalento.pasproject.walletservice.business.events.InvalidationAware;
+import it.unisalento.pasproject.walletservice.business.events.WalletChangedEvent;
+import it.unisalento.pasproject.walletservice.business.io.producer.MessageProducer;
+import it.unisalento.pasproject.walletservice.dto.InvalidationDTO;
+import it.unisalento.pasproject.walletservice.service.InvalidationHandler;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.junit.jupiter.MockitoSettings;
+import org.mockito.quality.Strictness;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+@MockitoSettings(strictness = Strictness.LENIENT)
+class InvalidationHandlerTests {
+
+    private InvalidationAware firstCache;
+
+    private InvalidationAware secondCache;
+
+    private MessageProducer messageProducer;
+
+    private InvalidationHandler invalidationHandler;
+
+    @BeforeEach
+    void setUp() {
+        firstCache = mock(InvalidationAware.class);
+        secondCache = mock(InvalidationAware.class);
+        messageProducer = mock(MessageProducer.class);
+        invalidationHandler = new InvalidationHandler(List.of(firstCache, secondCache), messageProducer);
+        ReflectionTestUtils.setField(invalidationHandler, "invalidationExchange", "wallet-invalidation-exchange");
+        ReflectionTestUtils.setField(invalidationHandler, "refillRoutingKey", "wallet.refill");
+    }
+
+    @Test
+    void receiveInvalidation_evictsTheUserFromEveryCache() {
+        doThrow(new RuntimeException()).when(firstCache).invalidate(anyString());
+
+        invalidationHandler.receiveInvalidation(new InvalidationDTO("user@example.com"), "user.data.consistency");
+
+        verify(firstCache).invalidate("user@example.com");
+        verify(secondCache).invalidate("user@example.com");
+    }
+
+    @Test
+    void receiveInvalidation_ignoresMessagesWithoutEmail() {
+        invalidationHandler.receiveInvalidation(new InvalidationDTO(), "user.data.consistency");
+
+        verify(firstCache, never()).invalidate(any());
+    }
+
+    @Test
+    void onWalletChanged_evictsOnlyTheWalletAndAnnouncesIt() {
+        invalidationHandler.onWalletChanged(new WalletChangedEvent(this, "user@example.com"));
+        verify(firstCache).invalidateWallet("user@example.com");
+        verify(firstCache, never()).invalidate(any());
+
+        invalidationHandler.flush();
+
+        ArgumentCaptor<InvalidationDTO> captor = ArgumentCaptor.forClass(InvalidationDTO.class);
+        verify(messageProducer).sendMessage(captor.capture(), eq(""), eq("wallet-invalidation-exchange"));
+        assertEquals(List.of("user@example.com"), captor.getValue().getWallets());
+        assertTrue(captor.getValue().getUsers().isEmpty());
+    }
+
+    @Test
+    void receiveInvalidation_refillEvictsOnlyTheWallet() {
+        invalidationHandler.receiveInvalidation(new InvalidationDTO("user@example.com"), "wallet.refill");
+
+        verify(firstCache).invalidateWallet("user@example.com");
+        verify(secondCache).invalidateWallet("user@example.com");
+        verify(firstCache, never()).invalidate(any());
+    }
+
+    @Test
+    void receiveInvalidation_evictsTheAnnouncedUsers() {
+        invalidationHandler.receiveInvalidation(new InvalidationDTO(List.of("a@example.com", "b@example.com"), List.of()), "");
+
+        verify(firstCache).invalidate("a@example.com");
+        verify(secondCache).invalidate("b@example.com");
+        verify(firstCache, never()).invalidateWallet(any());
+    }
+
+    @Test
+    void onBalancesChanged_evictsLocallyAndAnnouncesOnFlush() {
+        invalidationHandler.onBalancesChanged(new BalancesChangedEvent(this, Map.of("a@example.com", -1.0, "b@example.com", 1.0)));
+        invalidationHandler.onBalancesChanged(new BalancesChangedEvent(this, Map.of("a@example.com", 1.0)));
+
+        verify(firstCache, times(2)).invalidateWallet("a@example.com");
+        verify(secondCache).invalidateWallet("b@example.com");
+        verify(firstCache, never()).invalidate(any());
+        verify(messageProducer, never()).sendMessage(any(), anyString(), anyString());
+
+        invalidationHandler.flush();
+
+        ArgumentCaptor<InvalidationDTO> captor = ArgumentCaptor.forClass(InvalidationDTO.class);
+        verify(messageProducer, times(1)).sendMessage(captor.capture(), eq(""), eq("wallet-invalidation-exchange"));
+        assertNull(captor.getValue().getEmail());
+        assertEquals(2, captor.getValue().getWallets().size());
+        assertTrue(captor.getValue().getWallets().containsAll(List.of("a@example.com", "b@example.com")));
+
+        invalidationHandler.flush();
+        verifyNoMoreInteractions(messageProducer);
+    }
+
+    @Test
+    void flush_keepsTheChangesIfNotSent() {
+        doThrow(new RuntimeException()).doNothing().when(messageProducer).sendMessage(any(), anyString(), anyString());
+        invalidationHandler.onBalancesChanged(new BalancesChangedEvent(this, Map.of("a@example.com", 1.0)));
+
+        invalidationHandler.flush();
+        invalidationHandler.flush();
+
+        ArgumentCaptor<InvalidationDTO> captor = ArgumentCaptor.forClass(InvalidationDTO.class);
+        verify(messageProducer, times(2)).sendMessage(captor.capture(), eq(""), eq("wallet-invalidation-exchange"));
+        assertEquals(List.of("a@example.com"), captor.getAllValues().get(1).getWallets());
+    }
+
+    @Test
+    void receiveInvalidation_evictsOnlyTheWalletsOfTransfers() {
+        invalidationHandler.receiveInvalidation(new InvalidationDTO(null, List.of("a@example.com")), "");
+
+        verify(firstCache).invalidateWallet("a@example.com");
+        verify(secondCache).invalidateWallet("a@example.com");
+        verify(firstCache, never()).invalidate(any());
+    }
+}
@@ -0,0 +1,92 @@
+package it.unisalento.pasproject.walletservice.services;
+
+import it.unisalento.pasproject.walletservice.business.events.BalancesChangedEvent;
+import it.unisalento.pasproject.walletservice.business.events.WalletChangedEvent;
+import it.unisalento.pasproject.walletservice.business.stats.TopBalances;
+import it.unisalento.pasproject.walletservice.domain.Wallet;
+import it.unisalento.pasproject.walletservice.exceptions.BadRequestException;
+import it.unisalento.pasproject.walletservice.repositories.WalletRepository;
+import it.unisalento.pasproject.walletservice.service.LeaderboardService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.junit.jupiter.MockitoSettings;
+import org.mockito.quality.Strictness;
+
+import java.util.List;
+import java.util.Map;
+
+import static it.unisalento.pasproject.walletservice.TestWallets.wallet;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+@MockitoSettings(strictness = Strictness.LENIENT)
+class LeaderboardServiceTests {
+
+    private WalletRepository walletRepository;
+
+    private LeaderboardService leaderboardService;
+
+    @BeforeEach
+    void setUp() {
+        walletRepository = mock(WalletRepository.class);
+        leaderboardService = new LeaderboardService(walletRepository, 3);
+
+        when(walletRepository.findTopBalances(3, true)).thenReturn(List.of(
+                wallet("a@example.com", 300.0, true),
+                wallet("b@example.com", 200.0, true),
+                wallet("c@example.com", 100.0, true)));
+    }
+
+    private static List<String> emails(List<TopBalances.Entry> entries) {
+        return entries.stream().map(TopBalances.Entry::email).toList();
+    }
+
+    @Test
+    void leaderboardShouldBeReadFromTheIndexOnlyOnce() {
+        assertEquals(List.of("a@example.com", "b@example.com"), emails(leaderboardService.getLeaderboard(LeaderboardService.Board.HIGHEST, 2)));
+        assertEquals(List.of("a@example.com", "b@example.com", "c@example.com"), emails(leaderboardService.getLeaderboard(LeaderboardService.Board.HIGHEST, 3)));
+
+        verify(walletRepository, times(1)).findTopBalances(3, true);
+    }
+
+    @Test
+    void transfersBetweenKeptWalletsShouldReorderTheLeaderboard() {
+        leaderboardService.getLeaderboard(LeaderboardService.Board.HIGHEST, 3);
+
+        leaderboardService.onBalancesChanged(new BalancesChangedEvent(this, Map.of("a@example.com", -150.0, "c@example.com", 150.0)));
+
+        List<TopBalances.Entry> leaderboard = leaderboardService.getLeaderboard(LeaderboardService.Board.HIGHEST, 3);
+        assertEquals(List.of("c@example.com", "b@example.com", "a@example.com"), emails(leaderboard));
+        assertEquals(250.0, leaderboard.get(0).balance());
+        verify(walletRepository, times(1)).findTopBalances(3, true);
+    }
+
+    @Test
+    void disabledWalletShouldLeaveAndOutsidersShouldBeReadAgain() {
+        leaderboardService.getLeaderboard(LeaderboardService.Board.HIGHEST, 3);
+        when(walletRepository.findSummariesByEmailIn(anyCollection())).thenReturn(List.of(wallet("d@example.com", 500.0, true)));
+
+        leaderboardService.onWalletChanged(new WalletChangedEvent(this, "b@example.com", null, false));
+        leaderboardService.onBalancesChanged(new BalancesChangedEvent(this, Map.of("d@example.com", 400.0)));
+        leaderboardService.refresh();
+
+        assertEquals(List.of("d@example.com", "a@example.com", "c@example.com"),
+                emails(leaderboardService.getLeaderboard(LeaderboardService.Board.HIGHEST, 3)));
+        verify(walletRepository).findSummariesByEmailIn(List.of("d@example.com"));
+    }
+
+    @Test
+    void shrunkLeaderboardShouldFallBackToTheIndex() {
+        leaderboardService.getLeaderboard(LeaderboardService.Board.HIGHEST, 3);
+
+        leaderboardService.onWalletChanged(new WalletChangedEvent(this, "a@example.com", 0.0, null));
+        leaderboardService.getLeaderboard(LeaderboardService.Board.HIGHEST, 3);
+
+        verify(walletRepository, times(2)).findTopBalances(3, true);
+        assertThrows(BadRequestException.class, () -> leaderboardService.getLeaderboard(LeaderboardService.Board.LOWEST, 4));
+    }
+}
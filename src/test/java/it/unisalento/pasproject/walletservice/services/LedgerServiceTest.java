@@ -0,0 +1,257 @@
+package it.unisalento.pasproject.walletservice.services;
+
+import it.unisalento.pasproject.walletservice.domain.BalanceSnapshot;
+import it.unisalento.pasproject.walletservice.domain.LedgerEntry;
+import it.unisalento.pasproject.walletservice.dto.RequestTransactionDTO;
+import it.unisalento.pasproject.walletservice.repositories.BalanceSnapshotRepository;
+import it.unisalento.pasproject.walletservice.repositories.JobLeaseRepository;
+import it.unisalento.pasproject.walletservice.repositories.LedgerEntryRepository;
+import it.unisalento.pasproject.walletservice.repositories.WalletRepository;
+import it.unisalento.pasproject.walletservice.service.LedgerService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.junit.jupiter.MockitoSettings;
+import org.mockito.quality.Strictness;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+import static it.unisalento.pasproject.walletservice.TestWallets.wallet;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+@MockitoSettings(strictness = Strictness.LENIENT)
+class LedgerServiceTests {
+
+    private LedgerEntryRepository ledgerEntryRepository;
+
+    private BalanceSnapshotRepository balanceSnapshotRepository;
+
+    private JobLeaseRepository jobLeaseRepository;
+
+    private WalletRepository walletRepository;
+
+    private LedgerService ledgerService;
+
+    @BeforeEach
+    void setUp() {
+        ledgerEntryRepository = mock(LedgerEntryRepository.class);
+        balanceSnapshotRepository = mock(BalanceSnapshotRepository.class);
+        jobLeaseRepository = mock(JobLeaseRepository.class);
+        walletRepository = mock(WalletRepository.class);
+        ledgerService = new LedgerService(ledgerEntryRepository, balanceSnapshotRepository, jobLeaseRepository,
+                walletRepository, new SimpleMeterRegistry(), 0, 600000);
+
+        when(jobLeaseRepository.tryAcquire(eq("ledger-compaction"), anyString(), any(Duration.class))).thenReturn(true);
+    }
+
+    private static LedgerEntry entry(String email, double amount) {
+        LedgerEntry entry = new LedgerEntry();
+        entry.setEmail(email);
+        entry.setAmount(amount);
+        return entry;
+    }
+
+    private static BalanceSnapshot snapshot(String email, double balance, Instant timestamp) {
+        BalanceSnapshot snapshot = new BalanceSnapshot();
+        snapshot.setEmail(email);
+        snapshot.setBalance(balance);
+        snapshot.setTimestamp(timestamp);
+        return snapshot;
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void recordTransfers_insertsDebitAndCreditWithOneInsert() {
+        RequestTransactionDTO transaction = new RequestTransactionDTO();
+        transaction.setId("tx1");
+        transaction.setSenderEmail("a@example.com");
+        transaction.setReceiverEmail("b@example.com");
+        transaction.setAmount(25.0);
+
+        ledgerService.recordTransfers(List.of(transaction));
+
+        ArgumentCaptor<List<LedgerEntry>> entriesCaptor = ArgumentCaptor.forClass(List.class);
+        verify(ledgerEntryRepository, times(1)).insert(entriesCaptor.capture());
+
+        List<LedgerEntry> entries = entriesCaptor.getValue();
+        assertEquals(2, entries.size());
+        assertEquals(LedgerEntry.Type.TRANSFER_DEBIT, entries.get(0).getType());
+        assertEquals(-25.0, entries.get(0).getAmount());
+        assertEquals(LedgerEntry.Type.TRANSFER_CREDIT, entries.get(1).getType());
+        assertEquals(25.0, entries.get(1).getAmount());
+        assertTrue(entries.stream().allMatch(entry -> "tx1".equals(entry.getTransactionId())));
+    }
+
+    @Test
+    void record_skipsUnchangedBalances() {
+        ledgerService.record("a@example.com", LedgerEntry.Type.REFILL, 0.0);
+
+        verify(ledgerEntryRepository, never()).insert(anyList());
+    }
+
+    @Test
+    void record_insertFailureIsNotPropagated() {
+        when(ledgerEntryRepository.insert(anyList())).thenThrow(new RuntimeException());
+
+        assertDoesNotThrow(() -> ledgerService.record("a@example.com", LedgerEntry.Type.DEPOSIT, 10.0));
+    }
+
+    @Test
+    void rebuildBalance_addsEntriesAfterLatestSnapshot() {
+        Instant snapshotTime = Instant.parse("2024-01-01T00:00:00Z");
+        when(balanceSnapshotRepository.findFirstByEmailOrderByTimestampDesc("a@example.com"))
+                .thenReturn(Optional.of(snapshot("a@example.com", 100.0, snapshotTime)));
+        when(ledgerEntryRepository.findByEmailAndRecordedAtGreaterThanEqual("a@example.com", snapshotTime))
+                .thenReturn(List.of(entry("a@example.com", -30.0), entry("a@example.com", 5.0)));
+
+        assertEquals(75.0, ledgerService.rebuildBalance("a@example.com"));
+    }
+
+    @Test
+    void rebuildBalance_withoutSnapshotUsesTheWholeHistory() {
+        when(balanceSnapshotRepository.findFirstByEmailOrderByTimestampDesc("a@example.com")).thenReturn(Optional.empty());
+        when(ledgerEntryRepository.findByEmailAndRecordedAtGreaterThanEqual("a@example.com", Instant.EPOCH))
+                .thenReturn(List.of(entry("a@example.com", 10000.0), entry("a@example.com", -50.0)));
+
+        assertEquals(9950.0, ledgerService.rebuildBalance("a@example.com"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void compact_addsChangesToPreviousSnapshots() {
+        Instant lastRun = Instant.parse("2024-01-01T00:00:00Z");
+        when(balanceSnapshotRepository.findFirstByOrderByTimestampDesc())
+                .thenReturn(Optional.of(snapshot("a@example.com", 100.0, lastRun)));
+        when(ledgerEntryRepository.sumAmountsByEmail(eq(lastRun), any(Instant.class)))
+                .thenReturn(Map.of("a@example.com", -40.0, "b@example.com", 40.0));
+        when(balanceSnapshotRepository.findLatestBalances(anyCollection())).thenReturn(Map.of("a@example.com", 100.0));
+
+        ledgerService.compact();
+
+        ArgumentCaptor<List<BalanceSnapshot>> snapshotsCaptor = ArgumentCaptor.forClass(List.class);
+        verify(balanceSnapshotRepository).insert(snapshotsCaptor.capture());
+
+        List<BalanceSnapshot> snapshots = snapshotsCaptor.getValue().stream()
+                .sorted(Comparator.comparing(BalanceSnapshot::getEmail)).toList();
+        assertEquals(60.0, snapshots.get(0).getBalance());
+        assertEquals(40.0, snapshots.get(1).getBalance());
+        assertEquals(snapshots.get(0).getTimestamp(), snapshots.get(1).getTimestamp());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void compact_firstRunSeedsAnOpeningSnapshotForEveryWallet() {
+        when(balanceSnapshotRepository.findFirstByOrderByTimestampDesc()).thenReturn(Optional.empty());
+        when(walletRepository.streamSummaries()).thenReturn(Stream.of(
+                wallet("a@example.com", 100.0, true),
+                wallet("b@example.com", 50.0, true)));
+        //Variazione di b registrata dopo il cutoff, già compresa nel saldo
+        when(ledgerEntryRepository.sumAmountsByEmail(any(Instant.class), any(Instant.class)))
+                .thenReturn(Map.of("b@example.com", 20.0));
+
+        ledgerService.compact();
+
+        ArgumentCaptor<List<BalanceSnapshot>> snapshotsCaptor = ArgumentCaptor.forClass(List.class);
+        verify(balanceSnapshotRepository).insert(snapshotsCaptor.capture());
+
+        List<BalanceSnapshot> snapshots = snapshotsCaptor.getValue().stream()
+                .sorted(Comparator.comparing(BalanceSnapshot::getEmail)).toList();
+        assertEquals(100.0, snapshots.get(0).getBalance());
+        assertEquals(30.0, snapshots.get(1).getBalance());
+    }
+
+    @Test
+    void compact_failureRemovesThePartialRun() {
+        when(balanceSnapshotRepository.findFirstByOrderByTimestampDesc())
+                .thenReturn(Optional.of(snapshot("a@example.com", 100.0, Instant.parse("2024-01-01T00:00:00Z"))));
+        when(ledgerEntryRepository.sumAmountsByEmail(any(Instant.class), any(Instant.class)))
+                .thenReturn(Map.of("a@example.com", 10.0));
+        when(balanceSnapshotRepository.insert(anyList())).thenThrow(new RuntimeException());
+
+        ledgerService.compact();
+
+        verify(balanceSnapshotRepository).deleteByTimestamp(any(Instant.class));
+    }
+
+    @Test
+    void compact_skippedWhileAnotherInstanceHoldsTheLease() {
+        when(jobLeaseRepository.tryAcquire(eq("ledger-compaction"), anyString(), any(Duration.class))).thenReturn(false);
+
+        ledgerService.compact();
+
+        verify(ledgerEntryRepository, never()).sumAmountsByEmail(any(Instant.class), any(Instant.class));
+        verify(balanceSnapshotRepository, never()).insert(anyList());
+        verify(jobLeaseRepository, never()).release(anyString(), anyString());
+    }
+
+    @Test
+    void compact_releasesTheLease() {
+        when(balanceSnapshotRepository.findFirstByOrderByTimestampDesc()).thenReturn(Optional.empty());
+        when(walletRepository.streamSummaries()).thenReturn(Stream.empty());
+        when(ledgerEntryRepository.sumAmountsByEmail(any(Instant.class), any(Instant.class))).thenReturn(Map.of());
+
+        ledgerService.compact();
+
+        verify(jobLeaseRepository).release(eq("ledger-compaction"), anyString());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void retryPending_keepsTheTimestampOfTheChangeAndRecordsTheEntryAgain() {
+        when(ledgerEntryRepository.insert(anyList())).thenThrow(new RuntimeException()).thenReturn(List.of());
+
+        Instant changedAt = Instant.now();
+        ledgerService.record("a@example.com", LedgerEntry.Type.DEPOSIT, 10.0);
+        Instant failedAt = Instant.now();
+        ledgerService.retryPending();
+        ledgerService.retryPending();
+
+        ArgumentCaptor<List<LedgerEntry>> entriesCaptor = ArgumentCaptor.forClass(List.class);
+        verify(ledgerEntryRepository, times(2)).insert(entriesCaptor.capture());
+
+        LedgerEntry retried = entriesCaptor.getAllValues().get(1).get(0);
+        assertEquals("a@example.com", retried.getEmail());
+        assertEquals(10.0, retried.getAmount());
+        assertFalse(retried.getTimestamp().isBefore(changedAt));
+        assertFalse(retried.getTimestamp().isAfter(failedAt));
+        assertFalse(retried.getRecordedAt().isBefore(failedAt));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void repair_recordsTheDifferenceAsAnAdjustment() {
+        when(balanceSnapshotRepository.findFirstByEmailOrderByTimestampDesc("a@example.com")).thenReturn(Optional.empty());
+        when(ledgerEntryRepository.findByEmailAndRecordedAtGreaterThanEqual("a@example.com", Instant.EPOCH))
+                .thenReturn(List.of(entry("a@example.com", 100.0)));
+
+        assertEquals(20.0, ledgerService.repair("a@example.com", 120.0).getDifference());
+
+        ArgumentCaptor<List<LedgerEntry>> entriesCaptor = ArgumentCaptor.forClass(List.class);
+        verify(ledgerEntryRepository).insert(entriesCaptor.capture());
+        assertEquals(LedgerEntry.Type.ADJUSTMENT, entriesCaptor.getValue().get(0).getType());
+        assertEquals(20.0, entriesCaptor.getValue().get(0).getAmount());
+    }
+
+    @Test
+    void repair_recordsNothingWhenTheLedgerMatches() {
+        when(balanceSnapshotRepository.findFirstByEmailOrderByTimestampDesc("a@example.com")).thenReturn(Optional.empty());
+        when(ledgerEntryRepository.findByEmailAndRecordedAtGreaterThanEqual("a@example.com", Instant.EPOCH))
+                .thenReturn(List.of(entry("a@example.com", 100.0), entry("a@example.com", 0.1), entry("a@example.com", 0.2)));
+
+        assertEquals(0.0, ledgerService.repair("a@example.com", 100.3).getDifference());
+        verify(ledgerEntryRepository, never()).insert(anyList());
+    }
+}
@@ -0,0 +1,190 @@
+package it.unisalento.pasproject.walletservice.services;
+
+import it.unisalento.pasproject.walletservice.domain.ProcessedTransaction;
+import it.unisalento.pasproject.walletservice.dto.MessageDTO;
+import it.unisalento.pasproject.walletservice.repositories.ProcessedTransactionRepository;
+import it.unisalento.pasproject.walletservice.service.TransactionIdempotencyService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.junit.jupiter.MockitoSettings;
+import org.mockito.quality.Strictness;
+import org.springframework.dao.DuplicateKeyException;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+@MockitoSettings(strictness = Strictness.LENIENT)
+class TransactionIdempotencyServiceTests {
+
+    private ProcessedTransactionRepository processedTransactionRepository;
+
+    private TransactionIdempotencyService transactionIdempotencyService;
+
+    @BeforeEach
+    void setUp() {
+        processedTransactionRepository = mock(ProcessedTransactionRepository.class);
+        transactionIdempotencyService = new TransactionIdempotencyService(processedTransactionRepository, 2, 60000);
+    }
+
+    private static ProcessedTransaction processed(String id, int code) {
+        ProcessedTransaction transaction = new ProcessedTransaction();
+        transaction.setId(id);
+        transaction.setCode(code);
+        return transaction;
+    }
+
+    @Test
+    void findOutcome_unknownTransactionReturnsNull() {
+        when(processedTransactionRepository.findById("tx1")).thenReturn(Optional.empty());
+
+        assertNull(transactionIdempotencyService.findOutcome("tx1"));
+    }
+
+    @Test
+    void findOutcome_recordedTransactionIsAnsweredFromMemory() {
+        transactionIdempotencyService.recordOutcome(new MessageDTO("tx1", 400));
+
+        MessageDTO outcome = transactionIdempotencyService.findOutcome("tx1");
+
+        assertEquals(400, outcome.getCode());
+        assertEquals("tx1", outcome.getResponse());
+        verify(processedTransactionRepository).save(any(ProcessedTransaction.class));
+        verify(processedTransactionRepository, never()).findById(anyString());
+    }
+
+    @Test
+    void findOutcome_fallsBackToTheDatabaseOnlyOnce() {
+        when(processedTransactionRepository.findById("tx1")).thenReturn(Optional.of(processed("tx1", 200)));
+
+        assertEquals(200, transactionIdempotencyService.findOutcome("tx1").getCode());
+        assertEquals(200, transactionIdempotencyService.findOutcome("tx1").getCode());
+
+        verify(processedTransactionRepository, times(1)).findById("tx1");
+    }
+
+    @Test
+    void findOutcome_leastRecentlyUsedIdsAreEvicted() {
+        transactionIdempotencyService.recordOutcome(new MessageDTO("tx1", 200));
+        transactionIdempotencyService.recordOutcome(new MessageDTO("tx2", 200));
+        transactionIdempotencyService.findOutcome("tx1");
+        transactionIdempotencyService.recordOutcome(new MessageDTO("tx3", 200));
+
+        when(processedTransactionRepository.findById(anyString())).thenReturn(Optional.empty());
+
+        assertNotNull(transactionIdempotencyService.findOutcome("tx1"));
+        assertNull(transactionIdempotencyService.findOutcome("tx2"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void claimAll_claimsTheIdsNotInMemoryWithOneInsert() {
+        transactionIdempotencyService.recordOutcome(new MessageDTO("tx1", 200));
+        when(processedTransactionRepository.insertClaims(anyList())).thenReturn(Set.of("tx2"));
+        when(processedTransactionRepository.findAllById(Set.of("tx2"))).thenReturn(List.of(processed("tx2", 400)));
+
+        Map<String, MessageDTO> outcomes = transactionIdempotencyService.claimAll(List.of("tx1", "tx2", "tx3"));
+
+        //tx3 è stata presa in carico, chi chiama la applica
+        assertEquals(2, outcomes.size());
+        assertEquals(200, outcomes.get("tx1").getCode());
+        assertEquals(400, outcomes.get("tx2").getCode());
+
+        ArgumentCaptor<List<ProcessedTransaction>> claims = ArgumentCaptor.forClass(List.class);
+        verify(processedTransactionRepository).insertClaims(claims.capture());
+        assertEquals(List.of("tx2", "tx3"), claims.getValue().stream().map(ProcessedTransaction::getId).toList());
+        assertTrue(claims.getValue().stream().allMatch(claim -> claim.getCode() == ProcessedTransaction.PENDING));
+    }
+
+    @Test
+    void claimAll_withoutDuplicatesReadsNothingBack() {
+        when(processedTransactionRepository.insertClaims(anyList())).thenReturn(Set.of());
+
+        assertTrue(transactionIdempotencyService.claimAll(List.of("tx1", "tx2")).isEmpty());
+        verify(processedTransactionRepository, never()).findAllById(any());
+    }
+
+    @Test
+    void recordOutcome_storageFailureIsNotPropagated() {
+        when(processedTransactionRepository.save(any(ProcessedTransaction.class))).thenThrow(new RuntimeException());
+
+        assertDoesNotThrow(() -> transactionIdempotencyService.recordOutcome(new MessageDTO("tx1", 200)));
+        assertEquals(200, transactionIdempotencyService.findOutcome("tx1").getCode());
+    }
+
+    @Test
+    void claim_newTransactionIsClaimedWithAPendingOutcome() {
+        assertNull(transactionIdempotencyService.claim("tx1"));
+
+        verify(processedTransactionRepository).insert(argThat((ProcessedTransaction transaction) ->
+                "tx1".equals(transaction.getId()) && transaction.getCode() == ProcessedTransaction.PENDING));
+    }
+
+    @Test
+    void claim_alreadyCompletedTransactionReturnsItsOutcome() {
+        when(processedTransactionRepository.insert(any(ProcessedTransaction.class))).thenThrow(new DuplicateKeyException("tx1"));
+        when(processedTransactionRepository.findById("tx1")).thenReturn(Optional.of(processed("tx1", 200)));
+
+        assertEquals(200, transactionIdempotencyService.claim("tx1").getCode());
+    }
+
+    @Test
+    void claim_transactionInFlightGetsNoReply() {
+        ProcessedTransaction pending = processed("tx1", ProcessedTransaction.PENDING);
+        pending.setProcessedAt(Instant.now());
+
+        when(processedTransactionRepository.insert(any(ProcessedTransaction.class))).thenThrow(new DuplicateKeyException("tx1"));
+        when(processedTransactionRepository.findById("tx1")).thenReturn(Optional.of(pending));
+
+        assertEquals(ProcessedTransaction.PENDING, transactionIdempotencyService.claim("tx1").getCode());
+        //Ancora senza esito, non è una transazione processata
+        assertNull(transactionIdempotencyService.findOutcome("tx1"));
+    }
+
+    @Test
+    void claim_orphanedTransactionIsAnsweredAsFailed() {
+        ProcessedTransaction pending = processed("tx1", ProcessedTransaction.PENDING);
+        pending.setProcessedAt(Instant.now().minusSeconds(120));
+
+        when(processedTransactionRepository.insert(any(ProcessedTransaction.class))).thenThrow(new DuplicateKeyException("tx1"));
+        when(processedTransactionRepository.findById("tx1")).thenReturn(Optional.of(pending));
+
+        assertEquals(400, transactionIdempotencyService.claim("tx1").getCode());
+    }
+
+    @Test
+    void claimAll_distinguishesInFlightAndOrphanedClaims() {
+        ProcessedTransaction inFlight = processed("tx1", ProcessedTransaction.PENDING);
+        inFlight.setProcessedAt(Instant.now());
+        ProcessedTransaction orphaned = processed("tx2", ProcessedTransaction.PENDING);
+        orphaned.setProcessedAt(Instant.now().minusSeconds(120));
+
+        when(processedTransactionRepository.insertClaims(anyList())).thenReturn(Set.of("tx1", "tx2"));
+        when(processedTransactionRepository.findAllById(Set.of("tx1", "tx2"))).thenReturn(List.of(inFlight, orphaned));
+
+        Map<String, MessageDTO> outcomes = transactionIdempotencyService.claimAll(List.of("tx1", "tx2"));
+
+        assertEquals(ProcessedTransaction.PENDING, outcomes.get("tx1").getCode());
+        assertEquals(400, outcomes.get("tx2").getCode());
+    }
+
+    @Test
+    void recordOutcomes_replacesTheClaimsWithOneBulkWrite() {
+        transactionIdempotencyService.recordOutcomes(List.of(new MessageDTO("tx1", 200), new MessageDTO(null, 400)));
+
+        verify(processedTransactionRepository).saveOutcomes(argThat(outcomes -> outcomes.size() == 1
+                && outcomes.iterator().next().getCode() == 200));
+        verify(processedTransactionRepository, never()).insert(anyList());
+        assertEquals(200, transactionIdempotencyService.findOutcome("tx1").getCode());
+    }
+}
@@ -0,0 +1,221 @@
+package it.unisalento.pasproject.walletservice.services;
+
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import io.github.resilience4j.circuitbreaker.CircuitBreakerConfig;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import it.unisalento.pasproject.walletservice.business.io.exchanger.MessageExchanger;
+import it.unisalento.pasproject.walletservice.business.io.exchanger.UserDetailsBatcher;
+import it.unisalento.pasproject.walletservice.dto.UserDetailsDTO;
+import it.unisalento.pasproject.walletservice.service.UserCheckService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.junit.jupiter.MockitoSettings;
+import org.mockito.quality.Strictness;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+@MockitoSettings(strictness = Strictness.LENIENT)
+class UserCheckServiceTests {
+
+    private MessageExchanger messageExchanger;
+
+    private SimpleMeterRegistry meterRegistry;
+
+    @BeforeEach
+    void setUp() {
+        messageExchanger = mock(MessageExchanger.class);
+        meterRegistry = new SimpleMeterRegistry();
+        circuitBreaker = CircuitBreaker.of("security", CircuitBreakerConfig.custom()
+                .slidingWindowSize(4)
+                .minimumNumberOfCalls(4)
+                .failureRateThreshold(50)
+                .waitDurationInOpenState(Duration.ofMinutes(1))
+                .build());
+    }
+
+    private CircuitBreaker circuitBreaker;
+
+    private UserCheckService userCheckService(long negativeTtlMillis) {
+        UserDetailsBatcher userDetailsBatcher = new UserDetailsBatcher(messageExchanger, meterRegistry,
+                false, 5, 100, 60000);
+        return new UserCheckService(userDetailsBatcher, circuitBreaker, meterRegistry, 100, 60000, negativeTtlMillis);
+    }
+
+    @Test
+    void loadUserByUsername_cachesTheAnswer() {
+        UserDetailsDTO user = new UserDetailsDTO("user@example.com", "UTENTE", true);
+        when(messageExchanger.exchangeMessageAsync(eq("user@example.com"), any(), any(), eq(UserDetailsDTO.class))).thenReturn(CompletableFuture.completedFuture(user));
+        UserCheckService userCheckService = userCheckService(60000);
+
+        assertSame(user, userCheckService.loadUserByUsername("user@example.com"));
+        assertSame(user, userCheckService.loadUserByUsername("user@example.com"));
+
+        verify(messageExchanger, times(1)).exchangeMessageAsync(eq("user@example.com"), any(), any(), eq(UserDetailsDTO.class));
+        assertEquals(1.0, meterRegistry.get("cache.gets").tag("cache", "userDetails").tag("result", "hit").functionCounter().count());
+        assertEquals(1.0, meterRegistry.get("cache.gets").tag("cache", "userDetails").tag("result", "miss").functionCounter().count());
+    }
+
+    @Test
+    void loadUserByUsername_cachesUnknownUsers() {
+        when(messageExchanger.exchangeMessageAsync(anyString(), any(), any(), eq(UserDetailsDTO.class))).thenReturn(CompletableFuture.completedFuture(null));
+        UserCheckService userCheckService = userCheckService(60000);
+
+        assertNull(userCheckService.loadUserByUsername("unknown@example.com"));
+        assertNull(userCheckService.loadUserByUsername("unknown@example.com"));
+
+        verify(messageExchanger, times(1)).exchangeMessageAsync(anyString(), any(), any(), eq(UserDetailsDTO.class));
+    }
+
+    @Test
+    void loadUserByUsername_unknownUsersExpireWithTheNegativeTtl() {
+        when(messageExchanger.exchangeMessageAsync(anyString(), any(), any(), eq(UserDetailsDTO.class))).thenReturn(CompletableFuture.completedFuture(null));
+        UserCheckService userCheckService = userCheckService(0);
+
+        userCheckService.loadUserByUsername("unknown@example.com");
+        userCheckService.loadUserByUsername("unknown@example.com");
+
+        verify(messageExchanger, times(2)).exchangeMessageAsync(anyString(), any(), any(), eq(UserDetailsDTO.class));
+    }
+
+    @Test
+    void loadUserByUsername_concurrentMissesShareOneRequest() throws Exception {
+        UserDetailsDTO user = new UserDetailsDTO("user@example.com", "UTENTE", true);
+        CountDownLatch release = new CountDownLatch(1);
+        when(messageExchanger.exchangeMessageAsync(anyString(), any(), any(), eq(UserDetailsDTO.class))).thenAnswer(invocation -> CompletableFuture.supplyAsync(() -> {
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return user;
+        }));
+        UserCheckService userCheckService = userCheckService(60000);
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+
+        try {
+            List<Future<UserDetailsDTO>> lookups = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                lookups.add(pool.submit(() -> userCheckService.loadUserByUsername("user@example.com")));
+            }
+            Thread.sleep(100);
+            release.countDown();
+
+            for (Future<UserDetailsDTO> lookup : lookups) {
+                assertSame(user, lookup.get(5, TimeUnit.SECONDS));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        verify(messageExchanger, times(1)).exchangeMessageAsync(anyString(), any(), any(), eq(UserDetailsDTO.class));
+    }
+
+    @Test
+    void loadUserByUsernameAsync_doesNotBlockTheCaller() {
+        CompletableFuture<UserDetailsDTO> reply = new CompletableFuture<>();
+        when(messageExchanger.exchangeMessageAsync(anyString(), any(), any(), eq(UserDetailsDTO.class))).thenReturn(reply);
+        UserCheckService userCheckService = userCheckService(60000);
+
+        CompletableFuture<UserDetailsDTO> first = userCheckService.loadUserByUsernameAsync("user@example.com");
+        CompletableFuture<UserDetailsDTO> second = userCheckService.loadUserByUsernameAsync("user@example.com");
+        assertFalse(first.isDone());
+
+        UserDetailsDTO user = new UserDetailsDTO("user@example.com", "UTENTE", true);
+        reply.complete(user);
+
+        assertSame(user, first.join());
+        assertSame(user, second.join());
+        verify(messageExchanger, times(1)).exchangeMessageAsync(anyString(), any(), any(), eq(UserDetailsDTO.class));
+    }
+
+    @Test
+    void invalidate_evictsTheCachedUser() {
+        UserDetailsDTO user = new UserDetailsDTO("user@example.com", "UTENTE", true);
+        when(messageExchanger.exchangeMessageAsync(anyString(), any(), any(), eq(UserDetailsDTO.class)))
+                .thenReturn(CompletableFuture.completedFuture(user));
+        UserCheckService userCheckService = userCheckService(60000);
+
+        userCheckService.loadUserByUsername("user@example.com");
+        userCheckService.invalidate("user@example.com");
+        userCheckService.loadUserByUsername("user@example.com");
+
+        verify(messageExchanger, times(2)).exchangeMessageAsync(anyString(), any(), any(), eq(UserDetailsDTO.class));
+    }
+
+    @Test
+    void loadUserByUsername_doesNotCacheFailures() {
+        UserDetailsDTO user = new UserDetailsDTO("user@example.com", "UTENTE", true);
+        when(messageExchanger.exchangeMessageAsync(anyString(), any(), any(), eq(UserDetailsDTO.class)))
+                .thenThrow(new RuntimeException("timeout"))
+                .thenReturn(CompletableFuture.completedFuture(user));
+        UserCheckService userCheckService = userCheckService(60000);
+
+        assertNull(userCheckService.loadUserByUsername("user@example.com"));
+        assertSame(user, userCheckService.loadUserByUsername("user@example.com"));
+    }
+
+    @Test
+    void loadUserByUsername_skipsTheRequestWhileTheCircuitIsOpen() {
+        when(messageExchanger.exchangeMessageAsync(anyString(), any(), any(), eq(UserDetailsDTO.class)))
+                .thenReturn(CompletableFuture.failedFuture(new TimeoutException()));
+        UserCheckService userCheckService = userCheckService(60000);
+
+        for (int i = 0; i < 4; i++) {
+            assertNull(userCheckService.loadUserByUsername("user" + i + "@example.com"));
+        }
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+
+        assertNull(userCheckService.loadUserByUsername("other@example.com"));
+
+        verify(messageExchanger, times(4)).exchangeMessageAsync(anyString(), any(), any(), eq(UserDetailsDTO.class));
+    }
+
+    @Test
+    void loadUserByUsername_unknownUsersDontOpenTheCircuit() {
+        when(messageExchanger.exchangeMessageAsync(anyString(), any(), any(), eq(UserDetailsDTO.class)))
+                .thenReturn(CompletableFuture.completedFuture(null));
+        UserCheckService userCheckService = userCheckService(60000);
+
+        for (int i = 0; i < 8; i++) {
+            userCheckService.loadUserByUsername("user" + i + "@example.com");
+        }
+
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+    }
+
+    @Test
+    void loadUserByUsername_fallbackAfterASlowBatchIsTimedOnItsSingleRequest() {
+        circuitBreaker = CircuitBreaker.of("security", CircuitBreakerConfig.custom()
+                .slowCallDurationThreshold(Duration.ofMillis(100))
+                .build());
+        when(messageExchanger.exchangeMessageAsync(anyList(), any(), any(), eq(UserDetailsDTO[].class)))
+                .thenReturn(CompletableFuture.supplyAsync(() -> {
+                    throw new CompletionException(new TimeoutException());
+                }, CompletableFuture.delayedExecutor(200, TimeUnit.MILLISECONDS)));
+        when(messageExchanger.exchangeMessageAsync(anyString(), any(), any(), eq(UserDetailsDTO.class)))
+                .thenAnswer(invocation -> CompletableFuture.completedFuture(new UserDetailsDTO(invocation.getArgument(0), "UTENTE", true)));
+        UserDetailsBatcher userDetailsBatcher = new UserDetailsBatcher(messageExchanger, meterRegistry,
+                true, 5, 100, 60000);
+        UserCheckService userCheckService = new UserCheckService(userDetailsBatcher, circuitBreaker, meterRegistry, 100, 60000, 60000);
+
+        CompletableFuture<UserDetailsDTO> first = userCheckService.loadUserByUsernameAsync("a@example.com");
+        CompletableFuture<UserDetailsDTO> second = userCheckService.loadUserByUsernameAsync("b@example.com");
+
+        assertEquals("a@example.com", first.join().getEmail());
+        assertEquals("b@example.com", second.join().getEmail());
+        assertEquals(2, circuitBreaker.getMetrics().getNumberOfSuccessfulCalls());
+        assertEquals(0, circuitBreaker.getMetrics().getNumberOfSlowCalls());
+
+        userDetailsBatcher.close();
+    }
+}
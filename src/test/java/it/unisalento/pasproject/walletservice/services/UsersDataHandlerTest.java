@@ -1,8 +1,10 @@
 package it.unisalento.pasproject.walletservice.services;
 
+import it.unisalento.pasproject.walletservice.domain.LedgerEntry;
 import it.unisalento.pasproject.walletservice.domain.Wallet;
 import it.unisalento.pasproject.walletservice.dto.UserDTO;
 import it.unisalento.pasproject.walletservice.repositories.WalletRepository;
+import it.unisalento.pasproject.walletservice.service.LedgerService;
 import it.unisalento.pasproject.walletservice.service.UsersDataHandler;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -15,12 +17,16 @@ import org.mockito.junit.jupiter.MockitoSettings;
 import org.mockito.quality.Strictness;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.dao.DuplicateKeyException;
 
 import java.util.Optional;
 
 import static it.unisalento.pasproject.walletservice.security.WalletConstants.UTENTE_INITIAL_BALANCE;
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyDouble;
+import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.BDDMockito.given;
 import static org.mockito.Mockito.*;
 
@@ -32,6 +38,9 @@ class UsersDataHandlerTests {
     @MockBean
     private WalletRepository walletRepository;
 
+    @MockBean
+    private LedgerService ledgerService;
+
     @InjectMocks
     private UsersDataHandler usersDataHandler;
 
@@ -39,7 +48,8 @@ class UsersDataHandlerTests {
     void setUp() {
         MockitoAnnotations.openMocks(this);
         walletRepository = mock(WalletRepository.class);
-        usersDataHandler = new UsersDataHandler(walletRepository);
+        ledgerService = mock(LedgerService.class);
+        usersDataHandler = new UsersDataHandler(walletRepository, ledgerService, mock(ApplicationEventPublisher.class));
 
         given(walletRepository.save(any(Wallet.class))).willAnswer(invocation -> invocation.getArgument(0));
     }
@@ -69,6 +79,20 @@ class UsersDataHandlerTests {
         verify(walletRepository, never()).save(any(Wallet.class));
     }
 
+    @Test
+    void receiveMessage_userCreatedConcurrently() {
+        UserDTO userDTO = new UserDTO();
+        userDTO.setEmail("user@example.com");
+        userDTO.setRole("utente");
+
+        when(walletRepository.findByEmail("user@example.com")).thenReturn(Optional.empty());
+        when(walletRepository.save(any(Wallet.class))).thenThrow(new DuplicateKeyException("email"));
+
+        usersDataHandler.receiveMessage(userDTO);
+
+        verify(ledgerService, never()).record(anyString(), any(), anyDouble());
+    }
+
     @Test
     void receiveMessage_createsNewUserWithInitialBalance() {
         UserDTO userDTO = new UserDTO();
@@ -87,6 +111,7 @@ class UsersDataHandlerTests {
         assertEquals("newuser@example.com", savedWallet.getEmail());
         assertEquals(UTENTE_INITIAL_BALANCE, savedWallet.getBalance());
         assertTrue(savedWallet.getIsEnable());
+        verify(ledgerService).record("newuser@example.com", LedgerEntry.Type.OPENING, UTENTE_INITIAL_BALANCE);
     }
 
     @Test
@@ -0,0 +1,343 @@
+package it.unisalento.pasproject.walletservice.services;
+
+import it.unisalento.pasproject.walletservice.business.events.BalancesChangedEvent;
+import it.unisalento.pasproject.walletservice.business.io.producer.MessageProducer;
+import it.unisalento.pasproject.walletservice.domain.ProcessedTransaction;
+import it.unisalento.pasproject.walletservice.domain.Wallet;
+import it.unisalento.pasproject.walletservice.dto.MessageDTO;
+import it.unisalento.pasproject.walletservice.dto.RequestTransactionDTO;
+import it.unisalento.pasproject.walletservice.repositories.WalletRepository;
+import it.unisalento.pasproject.walletservice.service.LedgerService;
+import it.unisalento.pasproject.walletservice.service.TransactionIdempotencyService;
+import it.unisalento.pasproject.walletservice.service.WalletBatchMessageHandler;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.junit.jupiter.MockitoSettings;
+import org.mockito.quality.Strictness;
+import org.springframework.amqp.support.AmqpHeaders;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.support.MessageBuilder;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static it.unisalento.pasproject.walletservice.TestWallets.wallet;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+@MockitoSettings(strictness = Strictness.LENIENT)
+class WalletBatchMessageHandlerTests {
+
+    private WalletRepository walletRepository;
+
+    private MessageProducer messageProducer;
+
+    private TransactionIdempotencyService transactionIdempotencyService;
+
+    private LedgerService ledgerService;
+
+    private ApplicationEventPublisher eventPublisher;
+
+    private WalletBatchMessageHandler walletBatchMessageHandler;
+
+    @BeforeEach
+    void setUp() {
+        walletRepository = mock(WalletRepository.class);
+        messageProducer = mock(MessageProducer.class);
+        transactionIdempotencyService = mock(TransactionIdempotencyService.class);
+        ledgerService = mock(LedgerService.class);
+        eventPublisher = mock(ApplicationEventPublisher.class);
+        walletBatchMessageHandler = new WalletBatchMessageHandler(walletRepository, messageProducer, transactionIdempotencyService,
+                ledgerService, eventPublisher);
+
+        when(walletRepository.applyBatchDeltas(anyString(), anyMap()))
+                .thenAnswer(invocation -> Set.copyOf(invocation.<Map<String, Double>>getArgument(1).keySet()));
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<Map<String, Double>> appliedDeltas() {
+        ArgumentCaptor<Map<String, Double>> deltasCaptor = ArgumentCaptor.forClass(Map.class);
+        verify(walletRepository, atLeast(0)).applyBatchDeltas(anyString(), deltasCaptor.capture());
+        return deltasCaptor.getAllValues();
+    }
+
+    private static RequestTransactionDTO transaction(String id, String sender, String receiver, double amount) {
+        RequestTransactionDTO request = new RequestTransactionDTO();
+        request.setId(id);
+        request.setSenderEmail(sender);
+        request.setReceiverEmail(receiver);
+        request.setAmount(amount);
+        return request;
+    }
+
+    @Test
+    void processBatch_appliesDebitsThenCreditsWithTwoBulkWrites() {
+        when(walletRepository.findByEmailIn(anyCollection())).thenReturn(List.of(
+                wallet("a@example.com", 100.0, true),
+                wallet("b@example.com", 0.0, true),
+                wallet("c@example.com", 10.0, true)));
+
+        List<MessageDTO> responses = walletBatchMessageHandler.processBatch(List.of(
+                transaction("tx1", "a@example.com", "b@example.com", 60.0),
+                transaction("tx2", "b@example.com", "c@example.com", 20.0),
+                transaction("tx3", "c@example.com", "a@example.com", 30.0)));
+
+        assertEquals(List.of(200, 200, 200), responses.stream().map(MessageDTO::getCode).toList());
+        assertEquals(List.of("tx1", "tx2", "tx3"), responses.stream().map(MessageDTO::getResponse).toList());
+
+        verify(walletRepository, never()).save(any(Wallet.class));
+        verify(walletRepository, never()).debitIfEnabled(anyString(), anyDouble());
+
+        //Prima i prelievi, poi gli accrediti
+        List<Map<String, Double>> deltas = appliedDeltas();
+        assertEquals(List.of(Map.of("a@example.com", -30.0, "c@example.com", -10.0), Map.of("b@example.com", 40.0)), deltas);
+
+        ArgumentCaptor<BalancesChangedEvent> eventCaptor = ArgumentCaptor.forClass(BalancesChangedEvent.class);
+        verify(eventPublisher).publishEvent(eventCaptor.capture());
+        assertEquals(List.of("a@example.com", "b@example.com", "c@example.com"), eventCaptor.getValue().getEmails());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void processBatch_laterTransactionsSeeEarlierDebits() {
+        when(walletRepository.findByEmailIn(anyCollection())).thenReturn(List.of(
+                wallet("a@example.com", 100.0, true),
+                wallet("b@example.com", 0.0, true)));
+
+        List<MessageDTO> responses = walletBatchMessageHandler.processBatch(List.of(
+                transaction("tx1", "a@example.com", "b@example.com", 80.0),
+                transaction("tx2", "a@example.com", "b@example.com", 80.0)));
+
+        assertEquals(200, responses.get(0).getCode());
+        assertEquals(400, responses.get(1).getCode());
+
+        assertEquals(List.of(Map.of("a@example.com", -80.0), Map.of("b@example.com", 80.0)), appliedDeltas());
+
+        ArgumentCaptor<Collection<RequestTransactionDTO>> ledgerCaptor = ArgumentCaptor.forClass(Collection.class);
+        verify(ledgerService).recordTransfers(ledgerCaptor.capture());
+        assertEquals(List.of("tx1"), ledgerCaptor.getValue().stream().map(RequestTransactionDTO::getId).toList());
+    }
+
+    @Test
+    void processBatch_rejectsUnknownOrDisabledWallets() {
+        when(walletRepository.findByEmailIn(anyCollection())).thenReturn(List.of(
+                wallet("a@example.com", 100.0, true),
+                wallet("disabled@example.com", 100.0, false)));
+
+        List<MessageDTO> responses = walletBatchMessageHandler.processBatch(List.of(
+                transaction("tx1", "missing@example.com", "a@example.com", 10.0),
+                transaction("tx2", "a@example.com", "missing@example.com", 10.0),
+                transaction("tx3", "disabled@example.com", "a@example.com", 10.0),
+                transaction("tx4", "a@example.com", "disabled@example.com", 10.0)));
+
+        assertEquals(List.of(400, 400, 400, 400), responses.stream().map(MessageDTO::getCode).toList());
+        assertTrue(appliedDeltas().stream().allMatch(Map::isEmpty));
+        verify(eventPublisher, never()).publishEvent(any(Object.class));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void processBatch_unknownWriteStateGetsNoReplyAndStaysClaimed() {
+        when(walletRepository.findByEmailIn(anyCollection())).thenReturn(List.of(
+                wallet("a@example.com", 100.0, true),
+                wallet("b@example.com", 0.0, true)));
+        when(walletRepository.applyBatchDeltas(anyString(), anyMap())).thenThrow(new RuntimeException());
+
+        List<MessageDTO> responses = walletBatchMessageHandler.processBatch(List.of(
+                transaction("tx1", "a@example.com", "b@example.com", 10.0),
+                transaction("tx2", "b@example.com", "a@example.com", 20.0)));
+
+        //tx2 è rifiutata dalla validazione in memoria, il suo esito è certo
+        assertNull(responses.get(0));
+        assertEquals(400, responses.get(1).getCode());
+
+        ArgumentCaptor<Collection<RequestTransactionDTO>> ledgerCaptor = ArgumentCaptor.forClass(Collection.class);
+        verify(ledgerService).recordTransfers(ledgerCaptor.capture());
+        assertTrue(ledgerCaptor.getValue().isEmpty());
+
+        ArgumentCaptor<Collection<MessageDTO>> recordedCaptor = ArgumentCaptor.forClass(Collection.class);
+        verify(transactionIdempotencyService).recordOutcomes(recordedCaptor.capture());
+        assertEquals(List.of("tx2"), recordedCaptor.getValue().stream().map(MessageDTO::getResponse).toList());
+    }
+
+    @Test
+    void processBatch_claimsTheTransactionsBeforeChangingBalances() {
+        when(walletRepository.findByEmailIn(anyCollection())).thenReturn(List.of(
+                wallet("a@example.com", 100.0, true),
+                wallet("b@example.com", 0.0, true)));
+
+        walletBatchMessageHandler.processBatch(List.of(
+                transaction("tx1", "a@example.com", "b@example.com", 10.0),
+                transaction("tx2", "a@example.com", "b@example.com", 10.0)));
+        walletBatchMessageHandler.processBatch(List.of(
+                transaction("tx2", "a@example.com", "b@example.com", 10.0),
+                transaction("tx1", "a@example.com", "b@example.com", 10.0)));
+
+        InOrder inOrder = inOrder(transactionIdempotencyService, walletRepository);
+        inOrder.verify(transactionIdempotencyService).claimAll(List.of("tx1", "tx2"));
+        inOrder.verify(walletRepository, atLeastOnce()).applyBatchDeltas(anyString(), anyMap());
+
+        //Le stesse transazioni danno lo stesso batch, che non modifica di nuovo i wallet già marcati
+        ArgumentCaptor<String> batchIds = ArgumentCaptor.forClass(String.class);
+        verify(walletRepository, times(4)).applyBatchDeltas(batchIds.capture(), anyMap());
+        assertEquals(1, Set.copyOf(batchIds.getAllValues()).size());
+    }
+
+    @Test
+    void processBatch_transactionsInFlightElsewhereGetNoReply() {
+        when(transactionIdempotencyService.claimAll(anyCollection()))
+                .thenReturn(Map.of("tx1", new MessageDTO("tx1", ProcessedTransaction.PENDING)));
+        when(walletRepository.findByEmailIn(anyCollection())).thenReturn(List.of(
+                wallet("a@example.com", 100.0, true),
+                wallet("b@example.com", 0.0, true)));
+
+        List<MessageDTO> responses = walletBatchMessageHandler.processBatch(List.of(
+                transaction("tx1", "a@example.com", "b@example.com", 60.0),
+                transaction("tx2", "a@example.com", "b@example.com", 10.0)));
+
+        assertNull(responses.get(0));
+        assertEquals(200, responses.get(1).getCode());
+        assertEquals(Map.of("a@example.com", -10.0), appliedDeltas().get(0));
+    }
+
+    @Test
+    void processBatch_creditToAWalletDisabledMeanwhileRefundsTheDebit() {
+        when(walletRepository.findByEmailIn(anyCollection())).thenReturn(List.of(
+                wallet("a@example.com", 100.0, true),
+                wallet("b@example.com", 0.0, true)));
+        //b è stato disabilitato dopo la lettura
+        when(walletRepository.applyBatchDeltas(anyString(), eq(Map.of("b@example.com", 10.0)))).thenReturn(Set.of());
+        when(walletRepository.debitIfEnabled("a@example.com", 10.0)).thenReturn(true);
+        when(walletRepository.creditIfEnabled("b@example.com", 10.0)).thenReturn(false);
+
+        List<MessageDTO> responses = walletBatchMessageHandler.processBatch(List.of(
+                transaction("tx1", "a@example.com", "b@example.com", 10.0)));
+
+        assertEquals(400, responses.get(0).getCode());
+        verify(walletRepository).revertBatchDeltas(anyString(), eq(Map.of("a@example.com", -10.0)));
+        verify(walletRepository).refund("a@example.com", 10.0);
+        verify(eventPublisher, never()).publishEvent(any(Object.class));
+    }
+
+    @Test
+    void processBatch_failedTransferInTheOneByOneRetryKeepsTheOtherOutcomes() {
+        when(walletRepository.findByEmailIn(anyCollection())).thenReturn(List.of(
+                wallet("a@example.com", 100.0, true),
+                wallet("b@example.com", 0.0, true),
+                wallet("c@example.com", 50.0, true)));
+        when(walletRepository.applyBatchDeltas(anyString(), anyMap())).thenReturn(Set.of());
+        when(walletRepository.debitIfEnabled(anyString(), anyDouble())).thenReturn(true);
+        when(walletRepository.creditIfEnabled("b@example.com", 60.0)).thenReturn(true);
+        when(walletRepository.creditIfEnabled("a@example.com", 20.0)).thenReturn(false);
+        doThrow(new RuntimeException("timeout")).when(walletRepository).refund("c@example.com", 20.0);
+
+        List<MessageDTO> responses = walletBatchMessageHandler.processBatch(List.of(
+                transaction("tx1", "a@example.com", "b@example.com", 60.0),
+                transaction("tx2", "c@example.com", "a@example.com", 20.0)));
+
+        assertEquals(200, responses.get(0).getCode());
+        //Addebitata e non rimborsata: nessuna risposta, resta presa in carico
+        assertNull(responses.get(1));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void processBatch_debitNotMatchedRollsBackAndRetriesOneByOne() {
+        when(walletRepository.findByEmailIn(anyCollection())).thenReturn(List.of(
+                wallet("a@example.com", 100.0, true),
+                wallet("b@example.com", 0.0, true),
+                wallet("c@example.com", 50.0, true)));
+        //Il saldo di a è cambiato dopo la lettura, il suo prelievo non passa la condizione
+        when(walletRepository.applyBatchDeltas(anyString(), anyMap())).thenReturn(Set.of("c@example.com"));
+        when(walletRepository.debitIfEnabled("a@example.com", 60.0)).thenReturn(false);
+        when(walletRepository.debitIfEnabled("c@example.com", 20.0)).thenReturn(true);
+        when(walletRepository.creditIfEnabled("b@example.com", 20.0)).thenReturn(true);
+
+        List<MessageDTO> responses = walletBatchMessageHandler.processBatch(List.of(
+                transaction("tx1", "a@example.com", "b@example.com", 60.0),
+                transaction("tx2", "c@example.com", "b@example.com", 20.0)));
+
+        assertEquals(List.of(400, 200), responses.stream().map(MessageDTO::getCode).toList());
+        verify(walletRepository).revertBatchDeltas(anyString(), eq(Map.of("c@example.com", -20.0)));
+        //Gli accrediti del batch non vengono applicati
+        verify(walletRepository, times(1)).applyBatchDeltas(anyString(), anyMap());
+
+        ArgumentCaptor<Collection<RequestTransactionDTO>> ledgerCaptor = ArgumentCaptor.forClass(Collection.class);
+        verify(ledgerService).recordTransfers(ledgerCaptor.capture());
+        assertEquals(List.of("tx2"), ledgerCaptor.getValue().stream().map(RequestTransactionDTO::getId).toList());
+
+        ArgumentCaptor<Collection<MessageDTO>> recordedCaptor = ArgumentCaptor.forClass(Collection.class);
+        verify(transactionIdempotencyService).recordOutcomes(recordedCaptor.capture());
+        assertEquals(List.of(400, 200), recordedCaptor.getValue().stream().map(MessageDTO::getCode).toList());
+    }
+
+    @Test
+    void processBatch_retriesCreditsOnce() {
+        when(walletRepository.findByEmailIn(anyCollection())).thenReturn(List.of(
+                wallet("a@example.com", 100.0, true),
+                wallet("b@example.com", 0.0, true)));
+        when(walletRepository.applyBatchDeltas(anyString(), eq(Map.of("b@example.com", 10.0))))
+                .thenReturn(Set.of())
+                .thenReturn(Set.of("b@example.com"));
+
+        List<MessageDTO> responses = walletBatchMessageHandler.processBatch(List.of(
+                transaction("tx1", "a@example.com", "b@example.com", 10.0)));
+
+        assertEquals(200, responses.get(0).getCode());
+        verify(walletRepository, times(2)).applyBatchDeltas(anyString(), eq(Map.of("b@example.com", 10.0)));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void processBatch_skipsAlreadyProcessedTransactions() {
+        when(transactionIdempotencyService.claimAll(anyCollection())).thenReturn(Map.of("tx1", new MessageDTO("tx1", 200)));
+        when(walletRepository.findByEmailIn(anyCollection())).thenReturn(List.of(
+                wallet("a@example.com", 100.0, true),
+                wallet("b@example.com", 0.0, true)));
+
+        List<MessageDTO> responses = walletBatchMessageHandler.processBatch(List.of(
+                transaction("tx1", "a@example.com", "b@example.com", 60.0),
+                transaction("tx2", "a@example.com", "b@example.com", 10.0),
+                transaction("tx2", "a@example.com", "b@example.com", 10.0)));
+
+        assertEquals(List.of(200, 200, 200), responses.stream().map(MessageDTO::getCode).toList());
+
+        assertEquals(Map.of("a@example.com", -10.0), appliedDeltas().get(0));
+
+        ArgumentCaptor<Collection<MessageDTO>> recordedCaptor = ArgumentCaptor.forClass(Collection.class);
+        verify(transactionIdempotencyService).recordOutcomes(recordedCaptor.capture());
+        assertEquals(List.of("tx2"), recordedCaptor.getValue().stream().map(MessageDTO::getResponse).toList());
+    }
+
+    @Test
+    void receiveTransactions_repliesToEveryRequest() {
+        when(walletRepository.findByEmailIn(anyCollection())).thenReturn(List.of(
+                wallet("a@example.com", 100.0, true),
+                wallet("b@example.com", 0.0, true)));
+
+        Message<RequestTransactionDTO> withReply = MessageBuilder
+                .withPayload(transaction("tx1", "a@example.com", "b@example.com", 10.0))
+                .setHeader(AmqpHeaders.REPLY_TO, "reply-queue")
+                .setHeader(AmqpHeaders.CORRELATION_ID, "corr-1")
+                .build();
+        Message<RequestTransactionDTO> withoutReply = MessageBuilder
+                .withPayload(transaction("tx2", "a@example.com", "b@example.com", 10.0))
+                .build();
+
+        walletBatchMessageHandler.receiveTransactions(List.of(withReply, withoutReply));
+
+        ArgumentCaptor<MessageDTO> replyCaptor = ArgumentCaptor.forClass(MessageDTO.class);
+        verify(messageProducer, times(1)).sendReply(replyCaptor.capture(), eq("reply-queue"), eq("corr-1"));
+        assertEquals("tx1", replyCaptor.getValue().getResponse());
+        assertEquals(200, replyCaptor.getValue().getCode());
+    }
+}
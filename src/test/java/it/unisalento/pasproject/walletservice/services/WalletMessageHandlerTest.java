@@ -1,9 +1,17 @@
 package it.unisalento.pasproject.walletservice.services;
 
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import it.unisalento.pasproject.walletservice.business.concurrency.WalletLaneExecutor;
+import it.unisalento.pasproject.walletservice.business.engine.BalanceEngine;
+import it.unisalento.pasproject.walletservice.business.engine.MongoBalanceEngine;
+import it.unisalento.pasproject.walletservice.business.engine.UnconfirmedChangeException;
+import it.unisalento.pasproject.walletservice.domain.ProcessedTransaction;
 import it.unisalento.pasproject.walletservice.domain.Wallet;
 import it.unisalento.pasproject.walletservice.dto.MessageDTO;
 import it.unisalento.pasproject.walletservice.dto.RequestTransactionDTO;
 import it.unisalento.pasproject.walletservice.repositories.WalletRepository;
+import it.unisalento.pasproject.walletservice.service.LedgerService;
+import it.unisalento.pasproject.walletservice.service.TransactionIdempotencyService;
 import it.unisalento.pasproject.walletservice.service.WalletMessageHandler;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -16,11 +24,12 @@ import org.mockito.junit.jupiter.MockitoSettings;
 import org.mockito.quality.Strictness;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
-
-import java.util.Optional;
+import org.springframework.context.ApplicationEventPublisher;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyDouble;
+import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.BDDMockito.given;
 import static org.mockito.Mockito.*;
 
@@ -30,8 +39,18 @@ import static org.mockito.Mockito.*;
 class WalletMessageHandlerTests {
 
     @MockBean
+    private BalanceEngine balanceEngine;
+
     private WalletRepository walletRepository;
 
+    @MockBean
+    private WalletLaneExecutor walletLaneExecutor;
+
+    @MockBean
+    private TransactionIdempotencyService transactionIdempotencyService;
+
+    private LedgerService ledgerService;
+
     @InjectMocks
     private WalletMessageHandler walletMessageHandler;
 
@@ -39,7 +58,11 @@ class WalletMessageHandlerTests {
     void setUp() {
         MockitoAnnotations.openMocks(this);
         walletRepository = mock(WalletRepository.class);
-        walletMessageHandler = new WalletMessageHandler(walletRepository);
+        walletLaneExecutor = new WalletLaneExecutor(4, new SimpleMeterRegistry());
+        transactionIdempotencyService = mock(TransactionIdempotencyService.class);
+        ledgerService = mock(LedgerService.class);
+        balanceEngine = new MongoBalanceEngine(walletRepository, ledgerService, mock(ApplicationEventPublisher.class));
+        walletMessageHandler = new WalletMessageHandler(balanceEngine, walletLaneExecutor, transactionIdempotencyService);
 
         given(walletRepository.save(any(Wallet.class))).willAnswer(invocation -> invocation.getArgument(0));
     }
@@ -52,22 +75,19 @@ class WalletMessageHandlerTests {
         request.setAmount(100.0);
         request.setId("tx1");
 
-        when(walletRepository.findByEmail("sender@example.com")).thenReturn(Optional.empty());
+        when(walletRepository.debitIfEnabled("sender@example.com", 100.0)).thenReturn(false);
 
         MessageDTO response = walletMessageHandler.receiveTransaction(request);
 
         assertEquals(400, response.getCode());
         assertEquals("tx1", response.getResponse());
+        verify(walletRepository, never()).creditIfEnabled(anyString(), anyDouble());
         verify(walletRepository, never()).save(any(Wallet.class));
     }
 
     @Test
     void receiveTransaction_senderNotEnoughMoney() {
-        Wallet senderWallet = new Wallet();
-        senderWallet.setBalance(50.0);
-        senderWallet.setIsEnable(true);
-
-        when(walletRepository.findByEmail("sender@example.com")).thenReturn(Optional.of(senderWallet));
+        when(walletRepository.debitIfEnabled("sender@example.com", 100.0)).thenReturn(false);
 
         RequestTransactionDTO request = new RequestTransactionDTO();
         request.setSenderEmail("sender@example.com");
@@ -79,17 +99,14 @@ class WalletMessageHandlerTests {
 
         assertEquals(400, response.getCode());
         assertEquals("tx1", response.getResponse());
-        verify(walletRepository, never()).save(any(Wallet.class));
+        verify(walletRepository, never()).creditIfEnabled(anyString(), anyDouble());
+        verify(walletRepository, never()).refund(anyString(), anyDouble());
     }
 
     @Test
-    void receiveTransaction_receiverNotFound() {
-        Wallet senderWallet = new Wallet();
-        senderWallet.setBalance(150.0);
-        senderWallet.setIsEnable(true);
-
-        when(walletRepository.findByEmail("sender@example.com")).thenReturn(Optional.of(senderWallet));
-        when(walletRepository.findByEmail("receiver@example.com")).thenReturn(Optional.empty());
+    void receiveTransaction_receiverNotFoundRefundsSender() {
+        when(walletRepository.debitIfEnabled("sender@example.com", 100.0)).thenReturn(true);
+        when(walletRepository.creditIfEnabled("receiver@example.com", 100.0)).thenReturn(false);
 
         RequestTransactionDTO request = new RequestTransactionDTO();
         request.setSenderEmail("sender@example.com");
@@ -101,20 +118,37 @@ class WalletMessageHandlerTests {
 
         assertEquals(400, response.getCode());
         assertEquals("tx1", response.getResponse());
+        verify(walletRepository).refund("sender@example.com", 100.0);
         verify(walletRepository, never()).save(any(Wallet.class));
+        verify(ledgerService, never()).recordTransfer(any());
     }
 
     @Test
-    void receiveTransaction_receiverNotEnabled() {
-        Wallet senderWallet = new Wallet();
-        senderWallet.setBalance(150.0);
-        senderWallet.setIsEnable(true);
+    void receiveTransaction_successfulTransaction() {
+        when(walletRepository.debitIfEnabled("sender@example.com", 100.0)).thenReturn(true);
+        when(walletRepository.creditIfEnabled("receiver@example.com", 100.0)).thenReturn(true);
+
+        RequestTransactionDTO request = new RequestTransactionDTO();
+        request.setSenderEmail("sender@example.com");
+        request.setReceiverEmail("receiver@example.com");
+        request.setAmount(100.0);
+        request.setId("tx1");
 
-        Wallet receiverWallet = new Wallet();
-        receiverWallet.setIsEnable(false);
+        MessageDTO response = walletMessageHandler.receiveTransaction(request);
 
-        when(walletRepository.findByEmail("sender@example.com")).thenReturn(Optional.of(senderWallet));
-        when(walletRepository.findByEmail("receiver@example.com")).thenReturn(Optional.of(receiverWallet));
+        assertEquals(200, response.getCode());
+        assertEquals("tx1", response.getResponse());
+
+        verify(walletRepository).debitIfEnabled("sender@example.com", 100.0);
+        verify(walletRepository).creditIfEnabled("receiver@example.com", 100.0);
+        verify(walletRepository, never()).refund(anyString(), anyDouble());
+        verify(walletRepository, never()).findByEmail(anyString());
+        verify(ledgerService).recordTransfer(request);
+    }
+
+    @Test
+    void receiveTransaction_transactionFailsOnDebit() {
+        when(walletRepository.debitIfEnabled("sender@example.com", 100.0)).thenThrow(new RuntimeException());
 
         RequestTransactionDTO request = new RequestTransactionDTO();
         request.setSenderEmail("sender@example.com");
@@ -126,21 +160,13 @@ class WalletMessageHandlerTests {
 
         assertEquals(400, response.getCode());
         assertEquals("tx1", response.getResponse());
-        verify(walletRepository, never()).save(any(Wallet.class));
+        verify(walletRepository, never()).creditIfEnabled(anyString(), anyDouble());
     }
 
     @Test
-    void receiveTransaction_successfulTransaction() {
-        Wallet senderWallet = new Wallet();
-        senderWallet.setBalance(150.0);
-        senderWallet.setIsEnable(true);
-
-        Wallet receiverWallet = new Wallet();
-        receiverWallet.setBalance(50.0);
-        receiverWallet.setIsEnable(true);
-
-        when(walletRepository.findByEmail("sender@example.com")).thenReturn(Optional.of(senderWallet));
-        when(walletRepository.findByEmail("receiver@example.com")).thenReturn(Optional.of(receiverWallet));
+    void receiveTransaction_transactionFailsOnCreditRefundsSender() {
+        when(walletRepository.debitIfEnabled("sender@example.com", 100.0)).thenReturn(true);
+        when(walletRepository.creditIfEnabled("receiver@example.com", 100.0)).thenThrow(new RuntimeException());
 
         RequestTransactionDTO request = new RequestTransactionDTO();
         request.setSenderEmail("sender@example.com");
@@ -150,32 +176,47 @@ class WalletMessageHandlerTests {
 
         MessageDTO response = walletMessageHandler.receiveTransaction(request);
 
-        assertEquals(200, response.getCode());
+        assertEquals(400, response.getCode());
         assertEquals("tx1", response.getResponse());
+        verify(walletRepository).refund("sender@example.com", 100.0);
+    }
+
+    @Test
+    void receiveTransaction_successfulTransactionRecordsOutcome() {
+        when(walletRepository.debitIfEnabled("sender@example.com", 100.0)).thenReturn(true);
+        when(walletRepository.creditIfEnabled("receiver@example.com", 100.0)).thenReturn(true);
 
-        ArgumentCaptor<Wallet> walletCaptor = ArgumentCaptor.forClass(Wallet.class);
-        verify(walletRepository, times(2)).save(walletCaptor.capture());
+        RequestTransactionDTO request = new RequestTransactionDTO();
+        request.setSenderEmail("sender@example.com");
+        request.setReceiverEmail("receiver@example.com");
+        request.setAmount(100.0);
+        request.setId("tx1");
 
-        Wallet updatedSenderWallet = walletCaptor.getAllValues().get(0);
-        Wallet updatedReceiverWallet = walletCaptor.getAllValues().get(1);
+        walletMessageHandler.receiveTransaction(request);
 
-        assertEquals(50.0, updatedSenderWallet.getBalance());
-        assertEquals(150.0, updatedReceiverWallet.getBalance());
+        ArgumentCaptor<MessageDTO> outcomeCaptor = ArgumentCaptor.forClass(MessageDTO.class);
+        verify(transactionIdempotencyService).recordOutcome(outcomeCaptor.capture());
+        assertEquals("tx1", outcomeCaptor.getValue().getResponse());
+        assertEquals(200, outcomeCaptor.getValue().getCode());
     }
 
     @Test
-    void receiveTransaction_transactionFailsOnSave() {
-        Wallet senderWallet = new Wallet();
-        senderWallet.setBalance(150.0);
-        senderWallet.setIsEnable(true);
+    void receiveTransaction_claimFailureDoesNotTouchBalances() {
+        when(transactionIdempotencyService.claim("tx1")).thenThrow(new RuntimeException("timeout"));
 
-        Wallet receiverWallet = new Wallet();
-        receiverWallet.setBalance(50.0);
-        receiverWallet.setIsEnable(true);
+        RequestTransactionDTO request = new RequestTransactionDTO();
+        request.setSenderEmail("sender@example.com");
+        request.setReceiverEmail("receiver@example.com");
+        request.setAmount(100.0);
+        request.setId("tx1");
 
-        when(walletRepository.findByEmail("sender@example.com")).thenReturn(Optional.of(senderWallet));
-        when(walletRepository.findByEmail("receiver@example.com")).thenReturn(Optional.of(receiverWallet));
-        doThrow(new RuntimeException()).when(walletRepository).save(any(Wallet.class));
+        assertEquals(400, walletMessageHandler.receiveTransaction(request).getCode());
+        verify(walletRepository, never()).debitIfEnabled(anyString(), anyDouble());
+    }
+
+    @Test
+    void receiveTransaction_duplicateReturnsOriginalOutcomeWithoutTouchingBalances() {
+        when(transactionIdempotencyService.claim("tx1")).thenReturn(new MessageDTO("tx1", 200));
 
         RequestTransactionDTO request = new RequestTransactionDTO();
         request.setSenderEmail("sender@example.com");
@@ -185,7 +226,41 @@ class WalletMessageHandlerTests {
 
         MessageDTO response = walletMessageHandler.receiveTransaction(request);
 
-        assertEquals(400, response.getCode());
+        assertEquals(200, response.getCode());
         assertEquals("tx1", response.getResponse());
+        verify(walletRepository, never()).debitIfEnabled(anyString(), anyDouble());
+        verify(walletRepository, never()).creditIfEnabled(anyString(), anyDouble());
+        verify(transactionIdempotencyService, never()).recordOutcome(any());
+    }
+
+    @Test
+    void receiveTransaction_redeliveryOfATransactionInFlightGetsNoReply() {
+        when(transactionIdempotencyService.claim("tx1")).thenReturn(new MessageDTO("tx1", ProcessedTransaction.PENDING));
+
+        RequestTransactionDTO request = new RequestTransactionDTO();
+        request.setSenderEmail("sender@example.com");
+        request.setReceiverEmail("receiver@example.com");
+        request.setAmount(100.0);
+        request.setId("tx1");
+
+        assertNull(walletMessageHandler.receiveTransaction(request));
+        verify(walletRepository, never()).debitIfEnabled(anyString(), anyDouble());
+        verify(transactionIdempotencyService, never()).recordOutcome(any());
+    }
+
+    @Test
+    void receiveTransaction_transferNotForcedToDiskGetsNoReply() {
+        BalanceEngine engine = mock(BalanceEngine.class);
+        when(engine.transfer(any())).thenThrow(new UnconfirmedChangeException("not forced", new RuntimeException("disk full")));
+        walletMessageHandler = new WalletMessageHandler(engine, walletLaneExecutor, transactionIdempotencyService);
+
+        RequestTransactionDTO request = new RequestTransactionDTO();
+        request.setSenderEmail("sender@example.com");
+        request.setReceiverEmail("receiver@example.com");
+        request.setAmount(100.0);
+        request.setId("tx1");
+
+        assertNull(walletMessageHandler.receiveTransaction(request));
+        verify(transactionIdempotencyService, never()).recordOutcome(any());
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,122 @@
+package it.unisalento.pasproject.walletservice.services;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import it.unisalento.pasproject.walletservice.domain.Wallet;
+import it.unisalento.pasproject.walletservice.repositories.WalletRepository;
+import it.unisalento.pasproject.walletservice.service.WalletReadCache;
+import it.unisalento.pasproject.walletservice.service.WalletService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.junit.jupiter.MockitoSettings;
+import org.mockito.quality.Strictness;
+
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static it.unisalento.pasproject.walletservice.TestWallets.walletWithVersion;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+@MockitoSettings(strictness = Strictness.LENIENT)
+class WalletReadCacheTests {
+
+    private WalletRepository walletRepository;
+
+    private WalletReadCache walletReadCache;
+
+    @BeforeEach
+    void setUp() {
+        walletRepository = mock(WalletRepository.class);
+        walletReadCache = new WalletReadCache(walletRepository, new WalletService(), new SimpleMeterRegistry(), 100, 60000);
+    }
+
+    @Test
+    void find_readsTheDatabaseOnlyOnce() {
+        when(walletRepository.findByEmail("user@example.com")).thenReturn(Optional.of(walletWithVersion("user@example.com", 10.0, 7L)));
+
+        WalletReadCache.Entry first = walletReadCache.find("user@example.com").orElseThrow();
+        WalletReadCache.Entry second = walletReadCache.find("user@example.com").orElseThrow();
+
+        assertSame(first, second);
+        assertEquals("\"7\"", first.etag());
+        assertEquals(10.0, first.wallet().getBalance());
+        verify(walletRepository, times(1)).findByEmail("user@example.com");
+    }
+
+    @Test
+    void find_doesNotCacheUnknownWallets() {
+        when(walletRepository.findByEmail("missing@example.com")).thenReturn(Optional.empty());
+
+        assertTrue(walletReadCache.find("missing@example.com").isEmpty());
+        assertTrue(walletReadCache.find("missing@example.com").isEmpty());
+
+        verify(walletRepository, times(2)).findByEmail("missing@example.com");
+    }
+
+    @Test
+    void find_withoutVersionUsesZero() {
+        when(walletRepository.findByEmail("legacy@example.com")).thenReturn(Optional.of(walletWithVersion("legacy@example.com", 0.0, null)));
+
+        assertEquals("\"0\"", walletReadCache.find("legacy@example.com").orElseThrow().etag());
+    }
+
+    @Test
+    void invalidateWallet_reloadsTheNewVersion() {
+        when(walletRepository.findByEmail("user@example.com"))
+                .thenReturn(Optional.of(walletWithVersion("user@example.com", 10.0, 1L)))
+                .thenReturn(Optional.of(walletWithVersion("user@example.com", 5.0, 2L)));
+
+        walletReadCache.find("user@example.com");
+        walletReadCache.invalidateWallet("user@example.com");
+
+        WalletReadCache.Entry reloaded = walletReadCache.find("user@example.com").orElseThrow();
+        assertEquals("\"2\"", reloaded.etag());
+        assertEquals(5.0, reloaded.wallet().getBalance());
+    }
+
+    @Test
+    void find_failedLoadIsNotCached() {
+        when(walletRepository.findByEmail("user@example.com"))
+                .thenThrow(new IllegalStateException("down"))
+                .thenReturn(Optional.of(walletWithVersion("user@example.com", 10.0, 1L)));
+
+        assertThrows(IllegalStateException.class, () -> walletReadCache.find("user@example.com"));
+        assertTrue(walletReadCache.find("user@example.com").isPresent());
+    }
+
+    @Test
+    void find_loadEvictedWhileRunningIsNotStored() throws Exception {
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch evicted = new CountDownLatch(1);
+
+        when(walletRepository.findByEmail("user@example.com"))
+                .thenAnswer(invocation -> {
+                    loading.countDown();
+                    assertTrue(evicted.await(5, TimeUnit.SECONDS));
+                    return Optional.of(walletWithVersion("user@example.com", 10.0, 1L));
+                })
+                .thenReturn(Optional.of(walletWithVersion("user@example.com", 5.0, 2L)));
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        try {
+            Future<Optional<WalletReadCache.Entry>> stale = executor.submit(() -> walletReadCache.find("user@example.com"));
+
+            assertTrue(loading.await(5, TimeUnit.SECONDS));
+            walletReadCache.invalidateWallet("user@example.com");
+            evicted.countDown();
+
+            assertEquals("\"1\"", stale.get(5, TimeUnit.SECONDS).orElseThrow().etag());
+            assertEquals("\"2\"", walletReadCache.find("user@example.com").orElseThrow().etag());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
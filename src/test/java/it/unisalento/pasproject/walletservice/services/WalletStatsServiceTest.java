@@ -0,0 +1,153 @@
+package it.unisalento.pasproject.walletservice.services;
+
+import it.unisalento.pasproject.walletservice.business.events.BalancesChangedEvent;
+import it.unisalento.pasproject.walletservice.business.events.WalletChangedEvent;
+import it.unisalento.pasproject.walletservice.domain.Wallet;
+import it.unisalento.pasproject.walletservice.dto.WalletStatsDTO;
+import it.unisalento.pasproject.walletservice.repositories.WalletRepository;
+import it.unisalento.pasproject.walletservice.repositories.WalletRepositoryCustom;
+import it.unisalento.pasproject.walletservice.service.WalletStatsService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.junit.jupiter.MockitoSettings;
+import org.mockito.quality.Strictness;
+
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static it.unisalento.pasproject.walletservice.TestWallets.wallet;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+@MockitoSettings(strictness = Strictness.LENIENT)
+class WalletStatsServiceTests {
+
+    private WalletRepository walletRepository;
+
+    private WalletStatsService walletStatsService;
+
+    @BeforeEach
+    void setUp() {
+        walletRepository = mock(WalletRepository.class);
+        walletStatsService = new WalletStatsService(walletRepository, 0.01);
+
+        when(walletRepository.streamSummaries()).thenAnswer(invocation -> Stream.of(
+                wallet("a@example.com", 100.0, true),
+                wallet("b@example.com", 200.0, true),
+                wallet("c@example.com", 300.0, false)));
+
+        walletStatsService.onApplicationReady();
+    }
+
+    @Test
+    void loadShouldComputeTheStatistics() {
+        WalletStatsDTO stats = walletStatsService.getStats();
+
+        assertEquals(3, stats.getWallets());
+        assertEquals(2, stats.getEnabled());
+        assertEquals(1, stats.getDisabled());
+        assertEquals(600.0, stats.getTotalBalance());
+        assertEquals(200.0, stats.getMeanBalance());
+        assertEquals(200.0, stats.getQuantiles().get("p50"), 2.0);
+        assertNotNull(stats.getReconciledAt());
+    }
+
+    @Test
+    void transfersShouldUpdateTheStatisticsWithoutReadingTheDatabase() {
+        walletStatsService.onBalancesChanged(new BalancesChangedEvent(this, Map.of("a@example.com", -50.0, "b@example.com", 50.0)));
+        walletStatsService.onBalancesChanged(new BalancesChangedEvent(this, Map.of("a@example.com", -50.0, "c@example.com", 50.0)));
+
+        WalletStatsDTO stats = walletStatsService.getStats();
+
+        assertEquals(600.0, stats.getTotalBalance());
+        assertEquals(0.0, stats.getQuantiles().get("p10"));
+        assertEquals(250.0, stats.getQuantiles().get("p50"), 2.5);
+        verify(walletRepository, times(1)).streamSummaries();
+        verify(walletRepository, never()).aggregateTotals();
+    }
+
+    @Test
+    void walletChangesShouldUpdateTheStatistics() {
+        walletStatsService.onWalletChanged(new WalletChangedEvent(this, "c@example.com", null, true));
+        walletStatsService.onWalletChanged(new WalletChangedEvent(this, "a@example.com", 0.0, null));
+        walletStatsService.onWalletChanged(new WalletChangedEvent(this, "d@example.com", 10.0, true));
+
+        WalletStatsDTO stats = walletStatsService.getStats();
+
+        assertEquals(4, stats.getWallets());
+        assertEquals(4, stats.getEnabled());
+        assertEquals(510.0, stats.getTotalBalance());
+    }
+
+    @Test
+    void walletsChangedElsewhereShouldBeReadAgainOnRefresh() {
+        when(walletRepository.findSummariesByEmailIn(anyCollection())).thenReturn(List.of(
+                wallet("b@example.com", 20.0, false),
+                wallet("e@example.com", 5.0, true)));
+
+        walletStatsService.invalidateWallet("b@example.com");
+        walletStatsService.invalidate("e@example.com");
+        walletStatsService.refresh();
+        walletStatsService.refresh();
+
+        WalletStatsDTO stats = walletStatsService.getStats();
+
+        assertEquals(4, stats.getWallets());
+        assertEquals(2, stats.getEnabled());
+        assertEquals(425.0, stats.getTotalBalance());
+        verify(walletRepository, times(1)).findSummariesByEmailIn(anyCollection());
+    }
+
+    @Test
+    void reconcileShouldReloadOnlyWhenTheTotalsDiffer() {
+        when(walletRepository.aggregateTotals()).thenReturn(new WalletRepositoryCustom.Totals(3, 2, 600.0));
+
+        walletStatsService.reconcile();
+
+        verify(walletRepository, times(1)).streamSummaries();
+
+        //Un trasferimento fatto da un'altra istanza e mai annunciato
+        when(walletRepository.aggregateTotals()).thenReturn(new WalletRepositoryCustom.Totals(3, 2, 650.0));
+        when(walletRepository.streamSummaries()).thenAnswer(invocation -> Stream.of(
+                wallet("a@example.com", 150.0, true),
+                wallet("b@example.com", 200.0, true),
+                wallet("c@example.com", 300.0, false)));
+
+        walletStatsService.reconcile();
+
+        verify(walletRepository, times(2)).streamSummaries();
+        assertEquals(650.0, walletStatsService.getStats().getTotalBalance());
+    }
+
+    @Test
+    void walletsChangedDuringAReloadShouldBeReadAgainAfterIt() {
+        when(walletRepository.aggregateTotals()).thenReturn(new WalletRepositoryCustom.Totals(3, 2, 650.0));
+
+        //Il trasferimento arriva dopo che lo stream ha già letto il wallet a
+        when(walletRepository.streamSummaries()).thenAnswer(invocation -> Stream.of(
+                wallet("a@example.com", 100.0, true),
+                wallet("b@example.com", 200.0, true),
+                wallet("c@example.com", 300.0, false))
+                .peek(wallet -> {
+                    if (wallet.getEmail().equals("b@example.com")) {
+                        walletStatsService.onBalancesChanged(new BalancesChangedEvent(this, Map.of("a@example.com", 50.0)));
+                    }
+                }));
+        when(walletRepository.findSummariesByEmailIn(List.of("a@example.com")))
+                .thenReturn(List.of(wallet("a@example.com", 150.0, true)));
+
+        walletStatsService.reconcile();
+
+        assertEquals(600.0, walletStatsService.getStats().getTotalBalance());
+
+        walletStatsService.refresh();
+
+        assertEquals(650.0, walletStatsService.getStats().getTotalBalance());
+        verify(walletRepository, times(1)).findSummariesByEmailIn(List.of("a@example.com"));
+    }
+}
@@ -0,0 +1,199 @@
+package it.unisalento.pasproject.walletservice.services;
+
+import com.rabbitmq.stream.Message;
+import com.rabbitmq.stream.MessageHandler;
+import com.rabbitmq.stream.OffsetSpecification;
+import com.rabbitmq.stream.Properties;
+import it.unisalento.pasproject.walletservice.business.io.producer.MessageProducer;
+import it.unisalento.pasproject.walletservice.domain.StreamOffset;
+import it.unisalento.pasproject.walletservice.dto.MessageDTO;
+import it.unisalento.pasproject.walletservice.dto.RequestTransactionDTO;
+import it.unisalento.pasproject.walletservice.repositories.StreamOffsetRepository;
+import it.unisalento.pasproject.walletservice.service.WalletBatchMessageHandler;
+import it.unisalento.pasproject.walletservice.service.WalletStreamMessageHandler;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.junit.jupiter.MockitoSettings;
+import org.mockito.quality.Strictness;
+import org.springframework.amqp.support.converter.Jackson2JsonMessageConverter;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+@MockitoSettings(strictness = Strictness.LENIENT)
+class WalletStreamMessageHandlerTests {
+
+    private WalletBatchMessageHandler walletBatchMessageHandler;
+
+    private StreamOffsetRepository streamOffsetRepository;
+
+    private MessageProducer messageProducer;
+
+    private WalletStreamMessageHandler walletStreamMessageHandler;
+
+    @BeforeEach
+    void setUp() {
+        walletBatchMessageHandler = mock(WalletBatchMessageHandler.class);
+        streamOffsetRepository = mock(StreamOffsetRepository.class);
+        messageProducer = mock(MessageProducer.class);
+        walletStreamMessageHandler = new WalletStreamMessageHandler(walletBatchMessageHandler, streamOffsetRepository,
+                messageProducer, new Jackson2JsonMessageConverter());
+
+        ReflectionTestUtils.setField(walletStreamMessageHandler, "streamName", "transaction-stream");
+        ReflectionTestUtils.setField(walletStreamMessageHandler, "transactionExchange", "transaction-exchange");
+        ReflectionTestUtils.setField(walletStreamMessageHandler, "responseRoutingKey", "transaction.response");
+        ReflectionTestUtils.setField(walletStreamMessageHandler, "batchSize", 2);
+        ReflectionTestUtils.setField(walletStreamMessageHandler, "replayOffset", -1L);
+        ReflectionTestUtils.setField(walletStreamMessageHandler, "replayId", "");
+
+        when(walletBatchMessageHandler.processBatch(anyString(), anyList())).thenAnswer(invocation -> {
+            List<RequestTransactionDTO> transactions = invocation.getArgument(1);
+            return transactions.stream().map(transaction -> new MessageDTO(transaction.getId(), 200)).toList();
+        });
+    }
+
+    private static Message message(String body, String replyTo) {
+        Message message = mock(Message.class);
+        Properties properties = mock(Properties.class);
+        when(message.getBodyAsBinary()).thenReturn(body.getBytes(StandardCharsets.UTF_8));
+        when(message.getProperties()).thenReturn(properties);
+        when(properties.getReplyTo()).thenReturn(replyTo);
+        when(properties.getCorrelationId()).thenReturn(replyTo == null ? null : "corr");
+        when(properties.getCorrelationIdAsString()).thenReturn("corr");
+        return message;
+    }
+
+    private static String transaction(String id) {
+        return "{\"id\":\"" + id + "\",\"senderEmail\":\"a@example.com\",\"receiverEmail\":\"b@example.com\",\"amount\":10.0}";
+    }
+
+    private static MessageHandler.Context context(long offset) {
+        MessageHandler.Context context = mock(MessageHandler.Context.class);
+        when(context.offset()).thenReturn(offset);
+        return context;
+    }
+
+    @Test
+    void receiveTransaction_appliesFullBatchesAndStoresTheOffset() {
+        walletStreamMessageHandler.receiveTransaction(message(transaction("tx1"), "reply-queue"), context(10));
+        verify(walletBatchMessageHandler, never()).processBatch(anyString(), anyList());
+
+        walletStreamMessageHandler.receiveTransaction(message(transaction("tx2"), null), context(11));
+
+        verify(walletBatchMessageHandler, times(1)).processBatch(eq("transaction-stream:10-11"), argThat(transactions -> transactions.size() == 2));
+
+        ArgumentCaptor<StreamOffset> offsetCaptor = ArgumentCaptor.forClass(StreamOffset.class);
+        verify(streamOffsetRepository).save(offsetCaptor.capture());
+        assertEquals(11, offsetCaptor.getValue().getOffset());
+        assertEquals("transaction-stream", offsetCaptor.getValue().getStream());
+
+        verify(messageProducer).sendReply(argThat(outcome -> "tx1".equals(((MessageDTO) outcome).getResponse())), eq("reply-queue"), eq("corr"));
+        verify(messageProducer).sendMessage(argThat(outcome -> "tx2".equals(((MessageDTO) outcome).getResponse())),
+                eq("transaction.response"), eq("transaction-exchange"));
+    }
+
+    @Test
+    void flush_appliesPartialBatches() {
+        walletStreamMessageHandler.receiveTransaction(message(transaction("tx1"), null), context(3));
+
+        walletStreamMessageHandler.flush();
+        walletStreamMessageHandler.flush();
+
+        verify(walletBatchMessageHandler, times(1)).processBatch(anyString(), anyList());
+        verify(streamOffsetRepository, times(1)).save(any(StreamOffset.class));
+    }
+
+    @Test
+    void receiveTransaction_skipsMalformedMessagesButAdvancesTheOffset() {
+        walletStreamMessageHandler.receiveTransaction(message("not json", null), context(7));
+
+        walletStreamMessageHandler.flush();
+
+        verify(walletBatchMessageHandler, never()).processBatch(anyString(), anyList());
+        ArgumentCaptor<StreamOffset> offsetCaptor = ArgumentCaptor.forClass(StreamOffset.class);
+        verify(streamOffsetRepository).save(offsetCaptor.capture());
+        assertEquals(7, offsetCaptor.getValue().getOffset());
+    }
+
+    @Test
+    void startOffset_resumesAfterTheStoredOffset() {
+        StreamOffset stored = new StreamOffset();
+        stored.setStream("transaction-stream");
+        stored.setOffset(41);
+        when(streamOffsetRepository.findById("transaction-stream")).thenReturn(Optional.of(stored));
+
+        assertEquals(OffsetSpecification.offset(42), walletStreamMessageHandler.startOffset());
+    }
+
+    @Test
+    void startOffset_replaysOnlyOncePerReplayId() {
+        when(streamOffsetRepository.findById("transaction-stream")).thenReturn(Optional.empty());
+        assertEquals(OffsetSpecification.first(), walletStreamMessageHandler.startOffset());
+
+        //Senza id il replay è ignorato
+        ReflectionTestUtils.setField(walletStreamMessageHandler, "replayOffset", 5L);
+        assertEquals(OffsetSpecification.first(), walletStreamMessageHandler.startOffset());
+
+        ReflectionTestUtils.setField(walletStreamMessageHandler, "replayId", "incident-1");
+        assertEquals(OffsetSpecification.offset(5), walletStreamMessageHandler.startOffset());
+
+        ArgumentCaptor<StreamOffset> offsetCaptor = ArgumentCaptor.forClass(StreamOffset.class);
+        verify(streamOffsetRepository).save(offsetCaptor.capture());
+        assertEquals(4, offsetCaptor.getValue().getOffset());
+        assertEquals("incident-1", offsetCaptor.getValue().getReplayId());
+
+        //Al riavvio successivo si riprende dall'offset salvato
+        when(streamOffsetRepository.findById("transaction-stream")).thenReturn(Optional.of(offsetCaptor.getValue()));
+        assertEquals(OffsetSpecification.offset(5), walletStreamMessageHandler.startOffset());
+        offsetCaptor.getValue().setOffset(20);
+        assertEquals(OffsetSpecification.offset(21), walletStreamMessageHandler.startOffset());
+    }
+
+    @Test
+    void receiveTransaction_offsetsOfSkippedMessagesAreInTheBatchId() {
+        walletStreamMessageHandler.receiveTransaction(message("not json", null), context(30));
+        walletStreamMessageHandler.receiveTransaction(message(transaction("tx1"), null), context(31));
+
+        walletStreamMessageHandler.flush();
+
+        verify(walletBatchMessageHandler).processBatch(eq("transaction-stream:30-31"), anyList());
+    }
+
+    @Test
+    void receiveTransaction_transfersWithoutAnOutcomeGetNoReply() {
+        when(walletBatchMessageHandler.processBatch(anyString(), anyList())).thenAnswer(invocation ->
+                Arrays.asList(null, new MessageDTO("tx2", 200)));
+
+        walletStreamMessageHandler.receiveTransaction(message(transaction("tx1"), "reply-queue"), context(1));
+        walletStreamMessageHandler.receiveTransaction(message(transaction("tx2"), "reply-queue"), context(2));
+
+        verify(messageProducer, times(1)).sendReply(any(), eq("reply-queue"), eq("corr"));
+        verify(streamOffsetRepository).save(any(StreamOffset.class));
+    }
+
+    @Test
+    void onConsumerUpdate_appliesTheBufferBeforeHandingOverTheStream() {
+        walletStreamMessageHandler.receiveTransaction(message(transaction("tx1"), null), context(9));
+
+        assertEquals(OffsetSpecification.none(), walletStreamMessageHandler.onConsumerUpdate(false));
+
+        verify(walletBatchMessageHandler, times(1)).processBatch(anyString(), anyList());
+        ArgumentCaptor<StreamOffset> offsetCaptor = ArgumentCaptor.forClass(StreamOffset.class);
+        verify(streamOffsetRepository).save(offsetCaptor.capture());
+        assertEquals(9, offsetCaptor.getValue().getOffset());
+
+        when(streamOffsetRepository.findById("transaction-stream")).thenReturn(Optional.of(offsetCaptor.getValue()));
+        assertEquals(OffsetSpecification.offset(10), walletStreamMessageHandler.onConsumerUpdate(true));
+    }
+}